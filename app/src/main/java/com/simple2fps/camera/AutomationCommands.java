@@ -0,0 +1,152 @@
+package com.simple2fps.camera;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.UUID;
+
+// Maps automation intents (MacroDroid, Tasker, adb) onto CommandQueue commands and reports
+// every command's outcome back as an ACTION_COMMAND_RESULT broadcast.
+//
+// Result extras: command_id, mode, success, message, queued_ms, run_ms, follow_up. Senders may
+// pass their own command_id to correlate results; otherwise one is generated. A multi-camera
+// video result comes once every camera records or has failed; a camera lost later sends a
+// follow_up result for the same command_id.
+public class AutomationCommands {
+    private static final String TAG = "AutomationCommands";
+
+    public static final String ACTION_COMMAND_RESULT = "com.simple2fps.camera.action.COMMAND_RESULT";
+
+    public static final String VIDEO = CommandFlow.VIDEO;
+    public static final String PHOTO = CommandFlow.PHOTO;
+    public static final String BURST = CommandFlow.BURST;
+    public static final String STOP = CommandFlow.STOP;
+    public static final String BENCHMARK = "benchmark";
+    // Flushes the pre-event buffer (engine=pre_event) to a file
+    public static final String SAVE = CommandFlow.SAVE;
+
+    public static boolean isCommand(Intent intent) {
+        return intent.getStringExtra("mode") != null || intent.getBooleanExtra("auto_start", false);
+    }
+
+    public static CommandQueue.Command fromIntent(Intent intent) {
+        // Stamp the id into the intent so the same delivery seen again (onResume) is recognised
+        String id = intent.getStringExtra("command_id");
+        if (id == null) {
+            id = UUID.randomUUID().toString();
+            intent.putExtra("command_id", id);
+        }
+
+        String mode = intent.getStringExtra("mode");
+        String type = mode != null ? mode.toLowerCase(Locale.US) : VIDEO;
+
+        int priority = STOP.equals(type) ? CommandQueue.PRIORITY_HIGH : CommandQueue.PRIORITY_NORMAL;
+        String requested = intent.getStringExtra("priority");
+        if ("high".equalsIgnoreCase(requested)) priority = CommandQueue.PRIORITY_HIGH;
+        else if ("low".equalsIgnoreCase(requested)) priority = CommandQueue.PRIORITY_LOW;
+
+        // Queued stops are interchangeable; starts, saves and benchmarks only with identical
+        // settings; stills only when they'd write the same file
+        String filepath = intent.getStringExtra("filepath");
+        String key;
+        if (STOP.equals(type)) key = type;
+        else if (VIDEO.equals(type) || BENCHMARK.equals(type) || SAVE.equals(type)) key = type + settingsKey(intent);
+        else key = filepath != null ? type + ":" + filepath : null;
+
+        return new CommandQueue.Command(id, type, key, priority, intent);
+    }
+
+    // Every extra except the ones that only identify or route the command, in a stable order
+    @SuppressWarnings("deprecation")
+    private static String settingsKey(Intent intent) {
+        Bundle extras = intent.getExtras();
+        if (extras == null) return "";
+        TreeMap<String, Object> settings = new TreeMap<>();
+        for (String name : extras.keySet()) {
+            if (name.equals("command_id") || name.equals("priority") || name.equals("result_package")) continue;
+            settings.put(name, extras.get(name));
+        }
+        return settings.toString();
+    }
+
+    // Seconds to record; pre-event buffering and motion triggering run until stopped unless a
+    // duration is given
+    public static int durationSeconds(Intent intent) {
+        boolean preEvent = "pre_event".equalsIgnoreCase(intent.getStringExtra("engine"))
+                || "motion".equalsIgnoreCase(intent.getStringExtra("trigger"));
+        return intent.getIntExtra("duration", preEvent ? 0 : 30);
+    }
+
+    // Plain stills can come straight from a running recording; night and HDR shots need their own
+    // still session, so those still interrupt it
+    public static boolean snapshotCapable(Intent intent) {
+        return !intent.getBooleanExtra("night_mode", false) && !intent.getBooleanExtra("hdr_mode", false);
+    }
+
+    // Zero-shutter-lag stills unless zsl=false; night and HDR shots need their own exposures
+    public static boolean zeroShutterLag(Intent intent) {
+        return intent.getBooleanExtra("zsl", true) && snapshotCapable(intent);
+    }
+
+    // When the intent came in, on the elapsedRealtimeNanos() clock camera timestamps use
+    public static long triggerRealtimeNs(CommandQueue.Command command) {
+        return SystemClock.elapsedRealtimeNanos() - command.ageNs();
+    }
+
+    // A follow-up recording after a still interrupted one: same settings, the time that was left,
+    // and a distinct file so the first part isn't overwritten
+    public static Intent resumeIntent(Intent recording, long remainingMs, int part) {
+        Intent resume = new Intent(recording);
+        resume.putExtra("command_id", UUID.randomUUID().toString());
+        resume.putExtra("mode", VIDEO);
+        resume.putExtra("auto_start", true);
+        resume.putExtra("priority", "high");
+        if (remainingMs >= 0) resume.putExtra("duration", (int) Math.max(1, (remainingMs + 999) / 1000));
+        // Parts are numbered off the first file's name, not the previous part's
+        String filepath = recording.getStringExtra("base_filepath");
+        if (filepath == null) filepath = recording.getStringExtra("filepath");
+        if (filepath != null && !filepath.isEmpty()) {
+            resume.putExtra("base_filepath", filepath);
+            int dot = filepath.lastIndexOf('.');
+            int slash = filepath.lastIndexOf('/');
+            String suffix = "_part" + part;
+            resume.putExtra("filepath", dot > slash
+                    ? filepath.substring(0, dot) + suffix + filepath.substring(dot)
+                    : filepath + suffix);
+        }
+        return resume;
+    }
+
+    public static void broadcastResult(Context context, CommandQueue.Command command, boolean success,
+                                       String message, long queuedMs, long runMs) {
+        Log.d(TAG, command + (success ? " ok" : " failed") + " (queued " + queuedMs + " ms, ran " + runMs + " ms)"
+                + (message != null ? ": " + message : ""));
+        Intent result = resultIntent(command, success, message, false);
+        result.putExtra("queued_ms", queuedMs);
+        result.putExtra("run_ms", runMs);
+        context.sendBroadcast(result);
+    }
+
+    // A change after the command's result went out (a camera of its recording lost)
+    public static void broadcastFollowUp(Context context, CommandQueue.Command command, boolean success, String message) {
+        Log.d(TAG, command + " follow-up" + (success ? " ok" : " failed") + (message != null ? ": " + message : ""));
+        context.sendBroadcast(resultIntent(command, success, message, true));
+    }
+
+    private static Intent resultIntent(CommandQueue.Command command, boolean success, String message, boolean followUp) {
+        Intent result = new Intent(ACTION_COMMAND_RESULT);
+        result.putExtra("command_id", command.id);
+        result.putExtra("mode", command.type);
+        result.putExtra("success", success);
+        result.putExtra("message", message);
+        result.putExtra("follow_up", followUp);
+        Intent source = command.payload instanceof Intent ? (Intent) command.payload : null;
+        String target = source != null ? source.getStringExtra("result_package") : null;
+        if (target != null) result.setPackage(target);
+        return result;
+    }
+}
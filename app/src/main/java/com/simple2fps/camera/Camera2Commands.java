@@ -0,0 +1,234 @@
+package com.simple2fps.camera;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.Size;
+import android.widget.Toast;
+
+// CommandFlow's camera side on Camera2 for automation intents: stills from the recording's
+// snapshot output or a Camera2PhotoCapture session kept warm between commands, pre-event saves
+// and the capability benchmark. Hosts open, record and size stills their own way.
+public abstract class Camera2Commands implements CommandFlow.Camera {
+    private static final String TAG = "Camera2Commands";
+
+    protected final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Null while the host has no camera open
+    protected Camera2VideoRecorder recorder;
+    private Camera2PhotoCapture photoCapture;
+
+    protected Camera2Commands(Context context) {
+        this.context = context;
+    }
+
+    public static CommandFlow.MainThread mainThread(Handler handler) {
+        return new CommandFlow.MainThread() {
+            @Override
+            public void execute(Runnable action) {
+                handler.post(action);
+            }
+
+            @Override
+            public void postDelayed(Runnable action, long delayMs) {
+                handler.postDelayed(action, delayMs);
+            }
+
+            @Override
+            public void cancel(Runnable action) {
+                handler.removeCallbacks(action);
+            }
+        };
+    }
+
+    // JPEG size for a quality extra (null: the host's default)
+    protected abstract Size photoSize(String quality);
+
+    // A still's or save's outcome, on the main thread; failures are toasted
+    protected void showResult(CommandQueue.Command command, boolean success, String message) {
+        if (success) return;
+        Log.e(TAG, command + " failed: " + message);
+        Toast.makeText(context, "Error: " + message, Toast.LENGTH_LONG).show();
+    }
+
+    @Override
+    public CameraStateMachine getStateMachine() {
+        return recorder != null ? recorder.getStateMachine() : null;
+    }
+
+    @Override
+    public boolean canSnapshot(CommandQueue.Command command) {
+        return AutomationCommands.snapshotCapable((Intent) command.payload) && recorder.canSnapshot();
+    }
+
+    // Still from the running recording's JPEG output, at the recording's size
+    @Override
+    public void snapshot(CommandQueue.Command command, CommandFlow.Result result) {
+        Intent intent = (Intent) command.payload;
+        Camera2VideoRecorder snapshotting = recorder;
+        String filepath = Camera2PhotoCapture.photoPath(intent.getStringExtra("filepath"));
+        snapshotting.takeSnapshot(filepath, new Camera2PhotoCapture.PhotoCallback() {
+            @Override
+            public void onPhotoSaved(String filepath) {
+                Log.d(TAG, "Snapshot saved: " + filepath + " (" + snapshotting.getLastSnapshotLatencyMs() + " ms)");
+                report(command, result, true, filepath);
+            }
+
+            @Override
+            public void onError(String error) {
+                report(command, result, false, error);
+            }
+        });
+    }
+
+    @Override
+    public void capture(CommandQueue.Command command, CommandFlow.Result result) {
+        if (AutomationCommands.BURST.equals(command.type)) {
+            captureBurst(command, result);
+            return;
+        }
+        Intent intent = (Intent) command.payload;
+        Camera2PhotoCapture capture = obtainPhotoCapture(intent);
+        capture.capturePhoto(intent.getStringExtra("filepath"), AutomationCommands.triggerRealtimeNs(command),
+                new Camera2PhotoCapture.PhotoCallback() {
+            @Override
+            public void onPhotoSaved(String filepath) {
+                Log.d(TAG, "Photo saved: " + filepath + " (" + capture.getLastShotLatencyMs() + " ms)");
+                report(command, result, true, filepath);
+            }
+
+            @Override
+            public void onError(String error) {
+                report(command, result, false, error);
+            }
+        });
+    }
+
+    private void captureBurst(CommandQueue.Command command, CommandFlow.Result result) {
+        Intent intent = (Intent) command.payload;
+        int count = intent.getIntExtra("count", 10);
+        long intervalMs = intent.getIntExtra("interval_ms", 0);
+        // "drop" skips frames while the writer is behind, "throttle" (default) waits for it
+        Camera2PhotoCapture.Backpressure backpressure = "drop".equalsIgnoreCase(intent.getStringExtra("backpressure"))
+                ? Camera2PhotoCapture.Backpressure.DROP
+                : Camera2PhotoCapture.Backpressure.THROTTLE;
+        String prefix = Camera2PhotoCapture.burstPrefix(intent.getStringExtra("filepath"));
+
+        Camera2PhotoCapture capture = obtainPhotoCapture(intent);
+        capture.captureBurst(count, intervalMs, prefix, backpressure, new Camera2PhotoCapture.BurstCallback() {
+            @Override
+            public void onPhotoSaved(int index, String filepath) {
+                Log.d(TAG, "Burst saved " + index + ": " + filepath);
+            }
+
+            @Override
+            public void onFrameDropped(int index) {
+                Log.w(TAG, "Burst dropped frame " + index);
+            }
+
+            @Override
+            public void onBurstComplete(int saved, int dropped) {
+                report(command, result, saved > 0, saved + " saved, " + dropped + " dropped");
+            }
+
+            @Override
+            public void onError(String error) {
+                report(command, result, false, error);
+            }
+        });
+    }
+
+    @Override
+    public boolean run(CommandQueue.Command command, CommandFlow.Result result) {
+        Intent intent = (Intent) command.payload;
+        if (AutomationCommands.SAVE.equals(command.type)) {
+            // Completes once the event file (pre-roll + post-roll) is finalized
+            long postRollMs = intent.hasExtra("post_seconds") ? intent.getIntExtra("post_seconds", 10) * 1000L : -1;
+            boolean started = recorder != null && recorder.saveEvent(intent.getStringExtra("filepath"), postRollMs,
+                    new PreEventEncoder.SaveCallback() {
+                @Override
+                public void onSaved(String filepath, long frames, long durationMs) {
+                    report(command, result, true, filepath + " (" + frames + " frames, " + durationMs + " ms)");
+                }
+
+                @Override
+                public void onError(String error) {
+                    report(command, result, false, error);
+                }
+            });
+            if (!started) result.done(false, "pre-event buffer not running");
+            return true;
+        }
+        if (AutomationCommands.BENCHMARK.equals(command.type)) {
+            // Cold vs warm capability lookup; result goes to logcat and the result broadcast
+            int runs = intent.getIntExtra("runs", 5);
+            new Thread(() -> report(command, result, true,
+                    CameraCapabilityCache.benchmark(context.getApplicationContext(), runs)), "CapabilityBenchmark").start();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String skip(CommandQueue.Command command) {
+        return null;
+    }
+
+    @Override
+    public int durationSeconds(CommandQueue.Command command) {
+        return AutomationCommands.durationSeconds((Intent) command.payload);
+    }
+
+    @Override
+    public CommandQueue.Command resume(CommandQueue.Command recording, long remainingMs, int part) {
+        return AutomationCommands.fromIntent(AutomationCommands.resumeIntent((Intent) recording.payload, remainingMs, part));
+    }
+
+    @Override
+    public void dispatched(CommandQueue.Command command) {
+        TimelineRecorder.startCommand(context, command);
+    }
+
+    @Override
+    public void phase(String name, boolean begin) {
+        if (begin) TimelineRecorder.begin(name);
+        else TimelineRecorder.end(name);
+    }
+
+    // Reuses the warm photo session as long as the camera device hasn't changed
+    public Camera2PhotoCapture obtainPhotoCapture() {
+        if (photoCapture == null || !photoCapture.isBoundTo(recorder.getCameraDevice())) {
+            if (photoCapture != null) photoCapture.close();
+            photoCapture = new Camera2PhotoCapture(context, recorder.getCameraDevice(), recorder.getBackgroundHandler());
+        }
+        return photoCapture;
+    }
+
+    private Camera2PhotoCapture obtainPhotoCapture(Intent intent) {
+        Camera2PhotoCapture capture = obtainPhotoCapture();
+        capture.setPhotoSize(photoSize(intent.getStringExtra("quality")));
+        capture.setNightMode(intent.getBooleanExtra("night_mode", false));
+        capture.setHdrMode(intent.getBooleanExtra("hdr_mode", false));
+        capture.setZeroShutterLag(AutomationCommands.zeroShutterLag(intent));
+        return capture;
+    }
+
+    public boolean hasPhotoCapture() {
+        return photoCapture != null;
+    }
+
+    public void closePhotoCapture() {
+        if (photoCapture != null) {
+            photoCapture.close();
+            photoCapture = null;
+        }
+    }
+
+    // Callbacks arrive on camera and writer threads
+    private void report(CommandQueue.Command command, CommandFlow.Result result, boolean success, String message) {
+        mainHandler.post(() -> showResult(command, success, message));
+        result.done(success, message);
+    }
+}
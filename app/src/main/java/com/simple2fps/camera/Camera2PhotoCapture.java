@@ -1,24 +1,29 @@
 package com.simple2fps.camera;
 
-import android.app.Activity;
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.ImageFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.*;
+import android.hardware.camera2.params.InputConfiguration;
 import android.media.Image;
 import android.media.ImageReader;
+import android.media.ImageWriter;
+import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Range;
 import android.util.Size;
 import android.view.Surface;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 import androidx.camera.core.CameraProvider;
 import androidx.camera.core.CameraSelector;
@@ -28,26 +33,206 @@ import androidx.camera.lifecycle.ProcessCameraProvider;
 import androidx.core.content.ContextCompat;
 import com.google.common.util.concurrent.ListenableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 public class Camera2PhotoCapture {
     private static final String TAG = "Camera2PhotoCapture";
-    private Activity activity;
+    // Fallback if AE/AF never report convergence (e.g. LEGACY devices without states)
+    private static final long CONVERGENCE_TIMEOUT_MS = 1500;
+    // Deep enough for a burst to keep a few JPEGs queued while earlier ones are written
+    private static final int MAX_IMAGES = 4;
+    // Captured-but-unwritten shots; images stay acquired while queued for the writer, so
+    // one reader slot stays free and acquireNextImage() never fails on a full queue
+    private static final int MAX_IN_FLIGHT = MAX_IMAGES - 1;
+    // Zero-shutter-lag history: about 100 ms of full-resolution frames at 30 fps. The ring reader
+    // has two more slots, one for a frame taken out for encoding and one for the next arrival.
+    private static final int ZSL_FRAMES = 3;
+    // Longest a ZSL shot waits for a frame near its trigger before taking a regular still
+    private static final long ZSL_WAIT_MS = 300;
+    // Frames encoded here rather than by the camera (ZSL, night and HDR shots); YuvImage at
+    // 100 is much larger and slower for no visible gain
+    private static final int CPU_JPEG_QUALITY = 95;
+    // Night shots: a burst of short exposures stacked on the CPU instead of one long one. Each
+    // frame gets the long exposure's brightness (1 s at ISO 100) from a higher ISO; averaging
+    // NIGHT_FRAMES of them takes most of that noise back out, and 1/20 s hardly blurs handheld.
+    private static final int NIGHT_FRAMES = 8;
+    private static final long NIGHT_FRAME_EXPOSURE_NS = 50_000_000L;
+    private static final long NIGHT_EXPOSURE_ISO_NS = 100L * 1_000_000_000L;
+    // Longest single frame when the ISO tops out before reaching the brightness
+    private static final long NIGHT_MAX_FRAME_EXPOSURE_NS = 250_000_000L;
+    // HDR shots: a -2/0/+2 EV bracket around the preview's own exposure, fused on the CPU
+    // instead of CONTROL_SCENE_MODE_HDR, which many HALs ignore
+    private static final int[] HDR_BRACKET_EV = {-2, 0, 2};
+    // Longest bracket frame before its ISO goes up instead; longer would blur handheld
+    private static final long HDR_MAX_FRAME_EXPOSURE_NS = 125_000_000L;
+    // Frames copied out as they arrive, so the reader only needs a little slack
+    private static final int STACK_READER_IMAGES = 3;
+    // On top of the burst's own exposure time
+    private static final long STACK_WAIT_MS = 2000;
+    // How long close() lets a night stack or HDR fuse in progress finish before the writer stops
+    private static final long STACK_DRAIN_MS = 10000;
+    private Context context;
     private CameraDevice cameraDevice;
     
     private CameraCaptureSession captureSession;
     private ImageReader imageReader;
+    private SurfaceTexture dummyTexture;
+    private Surface dummySurface;
     private Handler backgroundHandler;
     private Size photoSize;
     private boolean nightMode = false; 
     private boolean hdrMode = false;
+    private boolean zeroShutterLag = false;
+
+    // Latest 3A state seen by the repeating preview request
+    private Integer aeState;
+    private Integer afState;
+    private Runnable sessionReadyAction;
+    private Runnable convergedAction;
+
+    // Single shot waiting for the session / 3A before it is submitted
+    private Shot pendingShot;
+    // Submitted captures in request order; JPEGs come back in the same order
+    private final ArrayDeque<Shot> inFlight = new ArrayDeque<>();
+    // Images handed to the writer but not yet on disk
+    private int pendingWrites = 0;
+    private final JpegWriter writer = new JpegWriter();
+    private Burst burst;
+    private long lastShotLatencyMs = -1;
+
+    // ZSL session: a YUV ring fed by the repeating TEMPLATE_ZERO_SHUTTER_LAG request and, with
+    // YUV reprocessing, a writer that sends a ring frame back through the camera's JPEG encoder
+    private boolean sessionZsl = false;
+    private ImageReader zslReader;
+    private ImageWriter reprocessWriter;
+    private final ZslRing<Image, TotalCaptureResult> zslRing = new ZslRing<>(ZSL_FRAMES, Image::close);
+    // Whether sensor timestamps share elapsedRealtimeNanos()'s clock with the trigger
+    private boolean zslRealtime;
+    // Single ZSL shot waiting for the complete frame closest to zslTriggerNs
+    private Shot zslShot;
+    private long zslTriggerNs;
+    // Ring frames being encoded on the writer thread
+    private int zslFramesOut = 0;
+    // Set when a ZSL session failed to configure on this camera: first reprocessing goes, then ZSL
+    private boolean reprocessFailed = false;
+    private boolean zslFailed = false;
+
+    // Stack session (night or HDR): a YUV reader the burst goes to, copied frame by frame into
+    // the stacker or the fuser
+    private boolean sessionStack = false;
+    private ImageReader stackReader;
+    // Sized to the photo size (and the heap); kept between shots, as they allocate every buffer
+    // up front
+    private NightStacker stacker;
+    private HdrFuser fuser;
+    // One worker per core for their tile passes; created with the first night or HDR shot
+    private ForkJoinPool stackPool;
+    // Shot whose burst is coming in, whether it is HDR, and how many frames it expects and has
+    private Shot stackShot;
+    private boolean stackHdr;
+    private int stackExpected;
+    private int stackReceived;
+    // Shot whose frames are in the stacker's or fuser's buffers, until its JPEG is on disk
+    private Shot stackingShot;
+    // Set when a stack session failed to configure: night shots go back to one long exposure,
+    // HDR ones to the scene mode
+    private boolean stackSessionFailed = false;
+    // The repeating request's latest exposure, which HDR brackets are set around
+    private Long previewExposureNs;
+    private Integer previewIso;
 
     public interface PhotoCallback {
         void onPhotoSaved(String filepath);
         void onError(String error);
     }
 
-    public Camera2PhotoCapture(Activity activity, CameraDevice camera, Handler handler) {
-        this.activity = activity;
+    public interface BurstCallback {
+        void onPhotoSaved(int index, String filepath);
+        void onFrameDropped(int index);
+        void onBurstComplete(int saved, int dropped);
+        void onError(String error);
+    }
+
+    // What to do when the writer falls MAX_IN_FLIGHT shots behind
+    public enum Backpressure { DROP, THROTTLE }
+
+    private static class Shot {
+        final String path;
+        final PhotoCallback callback;
+        final long requestedAt = SystemClock.elapsedRealtime();
+        // The moment the shot is meant to capture, on the elapsedRealtimeNanos() clock
+        long triggerNs;
+
+        Shot(String path, PhotoCallback callback) {
+            this(path, SystemClock.elapsedRealtimeNanos(), callback);
+        }
+
+        Shot(String path, long triggerNs, PhotoCallback callback) {
+            this.path = path;
+            this.callback = callback;
+            this.triggerNs = triggerNs;
+        }
+    }
+
+    private static class Burst {
+        final int count;
+        final long intervalMs;
+        final String pathPrefix;
+        final Backpressure backpressure;
+        final BurstCallback callback;
+        long startedAt;
+        int nextIndex = 0;
+        int saved = 0;
+        int dropped = 0;
+        boolean waitingForSlot = false;
+
+        Burst(int count, long intervalMs, String pathPrefix, Backpressure backpressure, BurstCallback callback) {
+            this.count = count;
+            this.intervalMs = intervalMs;
+            this.pathPrefix = pathPrefix;
+            this.backpressure = backpressure;
+            this.callback = callback;
+        }
+
+        String pathFor(int index) {
+            return String.format(Locale.US, "%s_%03d.jpg", pathPrefix, index);
+        }
+    }
+
+    // Burst file prefix from an intent's filepath extra ("x.jpg" -> "x"), or a timestamped DCIM default
+    public static String burstPrefix(String filepath) {
+        String prefix;
+        if (filepath != null && !filepath.isEmpty()) {
+            prefix = filepath.toLowerCase(Locale.US).endsWith(".jpg")
+                    ? filepath.substring(0, filepath.length() - 4)
+                    : filepath;
+        } else {
+            File appFolder = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM), "Simple2Fps");
+            String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+            prefix = new File(appFolder, "BURST_" + timeStamp).getAbsolutePath();
+        }
+        File parent = new File(prefix).getParentFile();
+        if (parent != null) parent.mkdirs();
+        return prefix;
+    }
+
+    // The filepath extra, or a timestamped DCIM default
+    public static String photoPath(String filepath) {
+        File file;
+        if (filepath != null && !filepath.isEmpty()) {
+            file = new File(filepath);
+        } else {
+            File appFolder = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM), "Simple2Fps");
+            String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+            file = new File(appFolder, "IMG_" + timeStamp + ".jpg");
+        }
+        if (file.getParentFile() != null) file.getParentFile().mkdirs();
+        return file.getAbsolutePath();
+    }
+
+    public Camera2PhotoCapture(Context context, CameraDevice camera, Handler handler) {
+        this.context = context.getApplicationContext();
         this.cameraDevice = camera;
         this.backgroundHandler = handler;
     }
@@ -55,54 +240,678 @@ public class Camera2PhotoCapture {
     public void setPhotoSize(Size size) { this.photoSize = size; }
     public void setNightMode(boolean enabled) { this.nightMode = enabled; }
     public void setHdrMode(boolean enabled) { this.hdrMode = enabled; }
+    // Single shots come from a ring of frames the camera already took, where the device supports
+    // TEMPLATE_ZERO_SHUTTER_LAG (API 23+, not with night or HDR)
+    public void setZeroShutterLag(boolean enabled) { this.zeroShutterLag = enabled; }
+
+    // Shot request -> JPEG on disk, in ms. -1 until the first shot completes.
+    public long getLastShotLatencyMs() { return lastShotLatencyMs; }
+
+    public boolean isBoundTo(CameraDevice camera) {
+        return camera != null && camera == cameraDevice;
+    }
 
     public void capturePhoto(String customPath, PhotoCallback callback) {
+        capturePhoto(customPath, SystemClock.elapsedRealtimeNanos(), callback);
+    }
+
+    // triggerNs: when the event that asked for the shot happened (elapsedRealtimeNanos()); a ZSL
+    // session hands back the frame closest to it
+    public void capturePhoto(String customPath, long triggerNs, PhotoCallback callback) {
         if (cameraDevice == null) {
             callback.onError("Camera device is null");
             return;
         }
+        // Serialize with the camera callbacks, which all run on backgroundHandler
+        backgroundHandler.post(() -> {
+            if (pendingShot != null || burst != null || zslShot != null) {
+                callback.onError("Capture already in progress");
+                return;
+            }
+            pendingShot = new Shot(customPath, triggerNs, callback);
+            // Frames from before a session or 3A was ready are no good to the shot
+            boolean warm = hasSession() && isConverged();
+            ensureSession(() -> awaitConvergence(() -> {
+                Shot shot = pendingShot;
+                pendingShot = null;
+                if (shot == null) return;
+                if (!warm) shot.triggerNs = Math.max(shot.triggerNs, SystemClock.elapsedRealtimeNanos());
+                if (sessionZsl) takeZslFrame(shot);
+                else if (sessionStack && hdrMode) captureHdr(shot);
+                else if (sessionStack) captureNight(shot);
+                else submit(shot);
+            }));
+        });
+    }
+
+    // Takes count stills into pathPrefix_NNN.jpg. intervalMs <= 0 means as fast as the sensor
+    // and writer allow; in that mode the writer always throttles, since dropping would skip everything.
+    public void captureBurst(int count, long intervalMs, String pathPrefix, Backpressure backpressure, BurstCallback callback) {
+        if (cameraDevice == null) {
+            callback.onError("Camera device is null");
+            return;
+        }
+        backgroundHandler.post(() -> {
+            if (pendingShot != null || burst != null || zslShot != null) {
+                callback.onError("Capture already in progress");
+                return;
+            }
+            burst = new Burst(Math.max(1, count), Math.max(0, intervalMs), pathPrefix, backpressure, callback);
+            ensureSession(() -> awaitConvergence(() -> {
+                if (burst == null) return;
+                burst.startedAt = SystemClock.uptimeMillis();
+                burstTick();
+            }));
+        });
+    }
+
+    private final Runnable burstTickRunnable = this::burstTick;
+
+    private void burstTick() {
+        Burst b = burst;
+        if (b == null || b.nextIndex >= b.count) return;
+
+        if (inFlight.size() + pendingWrites >= MAX_IN_FLIGHT) {
+            if (b.backpressure == Backpressure.DROP && b.intervalMs > 0) {
+                int index = b.nextIndex++;
+                b.dropped++;
+                Log.w(TAG, "Burst frame " + index + " dropped, " + (inFlight.size() + pendingWrites) + " shots pending");
+                b.callback.onFrameDropped(index);
+                scheduleNextTick(b);
+                finishBurstIfDone();
+            } else {
+                // Resumed from onShotFinished() once the writer frees a slot
+                b.waitingForSlot = true;
+            }
+            return;
+        }
+
+        int index = b.nextIndex++;
+        submit(new Shot(b.pathFor(index), new PhotoCallback() {
+            @Override
+            public void onPhotoSaved(String filepath) {
+                b.saved++;
+                b.callback.onPhotoSaved(index, filepath);
+            }
+            @Override
+            public void onError(String error) {
+                b.dropped++;
+                Log.w(TAG, "Burst frame " + index + " failed: " + error);
+                b.callback.onFrameDropped(index);
+            }
+        }));
+        scheduleNextTick(b);
+    }
+
+    private void scheduleNextTick(Burst b) {
+        if (b.nextIndex >= b.count) return;
+        if (b.intervalMs > 0) {
+            // Fixed-rate schedule so a slow shot doesn't push every later one back
+            backgroundHandler.postAtTime(burstTickRunnable, b.startedAt + b.nextIndex * b.intervalMs);
+        } else {
+            backgroundHandler.post(burstTickRunnable);
+        }
+    }
+
+    private void onShotFinished() {
+        Burst b = burst;
+        if (b == null) return;
+        if (b.waitingForSlot) {
+            b.waitingForSlot = false;
+            burstTick();
+        }
+        finishBurstIfDone();
+    }
+
+    private void finishBurstIfDone() {
+        Burst b = burst;
+        if (b == null || b.nextIndex < b.count || !inFlight.isEmpty() || pendingWrites > 0) return;
+        burst = null;
+        Log.d(TAG, "Burst complete: " + b.saved + " saved, " + b.dropped + " dropped");
+        b.callback.onBurstComplete(b.saved, b.dropped);
+    }
+
+    private boolean hasSession() {
+        return captureSession != null && imageReader != null && photoSize != null
+                && imageReader.getWidth() == photoSize.getWidth()
+                && imageReader.getHeight() == photoSize.getHeight()
+                && sessionZsl == zslWanted()
+                && sessionStack == stackWanted();
+    }
+
+    private boolean stackWanted() {
+        return (nightMode || hdrMode) && !stackSessionFailed;
+    }
+
+    private boolean zslWanted() {
+        if (!zeroShutterLag || zslFailed || nightMode || hdrMode || Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return false;
+        CameraCapabilities.Camera caps = CameraCapabilityCache.getCamera(context, cameraDevice.getId());
+        return caps != null && caps.supportsZeroShutterLag();
+    }
+
+    private boolean reprocessWanted() {
+        CameraCapabilities.Camera caps = CameraCapabilityCache.getCamera(context, cameraDevice.getId());
+        return !reprocessFailed && caps != null && (caps.reprocessing & CameraCapabilities.REPROCESS_YUV) != 0;
+    }
+
+    private void ensureSession(Runnable onReady) {
+        if (photoSize == null) photoSize = new Size(1920, 1080);
+        if (hasSession()) {
+            onReady.run();
+        } else {
+            sessionReadyAction = onReady;
+            openSession();
+        }
+    }
+
+    private void openSession() {
         try {
-            if (photoSize == null) photoSize = new Size(1920, 1080);
-            imageReader = ImageReader.newInstance(photoSize.getWidth(), photoSize.getHeight(), ImageFormat.JPEG, 1);
-            imageReader.setOnImageAvailableListener(reader -> processImage(reader, customPath, callback), backgroundHandler);
-
-            SurfaceTexture dummyTexture = new SurfaceTexture(1);
-            Surface dummySurface = new Surface(dummyTexture);
-
-            cameraDevice.createCaptureSession(Arrays.asList(dummySurface, imageReader.getSurface()), 
-                new CameraCaptureSession.StateCallback() {
-                    @Override
-                    public void onConfigured(CameraCaptureSession session) {
-                        captureSession = session;
-                        runPreCaptureSequence(dummySurface, callback);
+            closeSession();
+            imageReader = ImageReader.newInstance(photoSize.getWidth(), photoSize.getHeight(), ImageFormat.JPEG, MAX_IMAGES);
+            imageReader.setOnImageAvailableListener(this::processImage, backgroundHandler);
+
+            dummyTexture = new SurfaceTexture(1);
+            dummySurface = new Surface(dummyTexture);
+            List<Surface> outputs = new ArrayList<>(Arrays.asList(dummySurface, imageReader.getSurface()));
+
+            sessionZsl = zslWanted();
+            boolean reprocess = sessionZsl && reprocessWanted();
+            if (sessionZsl) {
+                CameraCapabilities.Camera caps = CameraCapabilityCache.getCamera(context, cameraDevice.getId());
+                zslRealtime = caps != null && caps.realtimeTimestamps;
+                zslReader = ImageReader.newInstance(photoSize.getWidth(), photoSize.getHeight(),
+                        ImageFormat.YUV_420_888, ZSL_FRAMES + 2);
+                zslReader.setOnImageAvailableListener(this::onZslFrame, backgroundHandler);
+                outputs.add(zslReader.getSurface());
+            }
+            sessionStack = stackWanted();
+            if (sessionStack) {
+                stackReader = ImageReader.newInstance(photoSize.getWidth(), photoSize.getHeight(),
+                        ImageFormat.YUV_420_888, STACK_READER_IMAGES);
+                stackReader.setOnImageAvailableListener(this::onStackFrame, backgroundHandler);
+                outputs.add(stackReader.getSurface());
+            }
+
+            TimelineRecorder.begin("photo_session");
+            CameraCaptureSession.StateCallback callback = new CameraCaptureSession.StateCallback() {
+                @Override
+                public void onConfigured(CameraCaptureSession session) {
+                    TimelineRecorder.end("photo_session");
+                    captureSession = session;
+                    if (reprocess) openReprocessWriter(session);
+                    runPreCaptureSequence();
+                }
+                @Override
+                public void onConfigureFailed(CameraCaptureSession session) {
+                    TimelineRecorder.end("photo_session");
+                    if (sessionZsl) {
+                        // Not every size or stream mix is accepted; step down rather than fail the shot
+                        Log.w(TAG, "ZSL session" + (reprocess ? " with reprocessing" : "") + " rejected, retrying without");
+                        if (reprocess) reprocessFailed = true;
+                        else zslFailed = true;
+                        openSession();
+                        return;
                     }
-                    @Override
-                    public void onConfigureFailed(CameraCaptureSession session) {
-                        callback.onError("Session Configuration Failed");
+                    if (sessionStack) {
+                        Log.w(TAG, "Stack session rejected, falling back to single-frame night and HDR shots");
+                        stackSessionFailed = true;
+                        openSession();
+                        return;
                     }
-                }, backgroundHandler);
-        } catch (CameraAccessException e) {
-            callback.onError(e.getMessage());
+                    failAll("Session Configuration Failed");
+                }
+                @Override
+                public void onClosed(CameraCaptureSession session) {
+                    // Another session (e.g. recording) took over the device
+                    if (captureSession == session) {
+                        captureSession = null;
+                        aeState = null;
+                        afState = null;
+                        // No more frames are coming; don't hold full-size images meanwhile
+                        zslRing.clear();
+                        failAll("Photo session closed");
+                    }
+                }
+            };
+            if (reprocess) {
+                createReprocessableSession(outputs, callback);
+            } else {
+                cameraDevice.createCaptureSession(outputs, callback, backgroundHandler);
+            }
+        } catch (CameraAccessException | IllegalStateException | IllegalArgumentException e) {
+            TimelineRecorder.end("photo_session");
+            failAll(e.getMessage());
         }
     }
 
-    private void runPreCaptureSequence(Surface dummySurface, PhotoCallback callback) {
+    // The ring's own format and size as the input, so a ring frame can be queued straight back
+    @TargetApi(Build.VERSION_CODES.M)
+    private void createReprocessableSession(List<Surface> outputs, CameraCaptureSession.StateCallback callback)
+            throws CameraAccessException {
+        InputConfiguration input = new InputConfiguration(photoSize.getWidth(), photoSize.getHeight(), ImageFormat.YUV_420_888);
+        cameraDevice.createReprocessableCaptureSession(input, outputs, callback, backgroundHandler);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private void openReprocessWriter(CameraCaptureSession session) {
+        if (session.isReprocessable()) reprocessWriter = ImageWriter.newInstance(session.getInputSurface(), 2);
+    }
+
+    private void runPreCaptureSequence() {
         try {
-            CaptureRequest.Builder previewBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            // The ZSL template also picks the noise reduction and edge modes meant for reprocessing
+            CaptureRequest.Builder previewBuilder = cameraDevice.createCaptureRequest(
+                    sessionZsl ? CameraDevice.TEMPLATE_ZERO_SHUTTER_LAG : CameraDevice.TEMPLATE_PREVIEW);
             previewBuilder.addTarget(dummySurface);
+            if (sessionZsl) previewBuilder.addTarget(zslReader.getSurface());
             
             // Standard preview enhancements
             previewBuilder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
-            captureSession.setRepeatingRequest(previewBuilder.build(), null, backgroundHandler);
+            previewBuilder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+            // Keep 3A running between shots so the next one can fire immediately
+            captureSession.setRepeatingRequest(previewBuilder.build(), convergenceCallback, backgroundHandler);
 
-            // Give the sensor 1.5s to "see" the light levels before the snap
-            backgroundHandler.postDelayed(() -> executeStillCapture(callback), 1500);
-        } catch (CameraAccessException e) {
-            callback.onError(e.getMessage());
+            Runnable action = sessionReadyAction;
+            sessionReadyAction = null;
+            if (action != null) action.run();
+        } catch (CameraAccessException | IllegalStateException e) {
+            failAll(e.getMessage());
         }
     }
 
-    private void executeStillCapture(PhotoCallback callback) {
+    private final CameraCaptureSession.CaptureCallback convergenceCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
+            aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+            afState = result.get(CaptureResult.CONTROL_AF_STATE);
+            Long exposure = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            Integer iso = result.get(CaptureResult.SENSOR_SENSITIVITY);
+            if (exposure != null && iso != null) {
+                previewExposureNs = exposure;
+                previewIso = iso;
+            }
+            if (convergedAction != null && isConverged()) {
+                runConvergedAction();
+            }
+            Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            if (sessionZsl && timestamp != null) {
+                zslRing.addResult(timestamp, result);
+                pickZslFrame();
+            }
+        }
+    };
+
+    private void onZslFrame(ImageReader reader) {
+        Image image;
+        try {
+            image = reader.acquireNextImage();
+        } catch (IllegalStateException e) {
+            // Every slot held (or the reader just closed); this frame is skipped
+            return;
+        }
+        if (image == null) return;
+        zslRing.addFrame(image.getTimestamp(), image);
+        pickZslFrame();
+    }
+
+    private void takeZslFrame(Shot shot) {
+        if (zslFramesOut > 0) {
+            // The last ring frame is still being encoded and holds the spare slot
+            submit(shot);
+            return;
+        }
+        // Sensor timestamps on another clock can't be compared with the trigger: the newest frame
+        zslTriggerNs = zslRealtime ? shot.triggerNs : zslRing.newestTimestamp() + 1;
+        zslShot = shot;
+        TimelineRecorder.begin("zsl_frame");
+        backgroundHandler.postDelayed(zslTimeout, ZSL_WAIT_MS);
+        pickZslFrame();
+    }
+
+    private final Runnable zslTimeout = () -> {
+        Shot shot = zslShot;
+        if (shot == null) return;
+        zslShot = null;
+        TimelineRecorder.end("zsl_frame");
+        Log.w(TAG, "No ZSL frame within " + ZSL_WAIT_MS + "ms, taking a regular still");
+        submit(shot);
+    };
+
+    // Runs as frames and results come in; done once no later frame could be closer to the trigger
+    private void pickZslFrame() {
+        Shot shot = zslShot;
+        if (shot == null || !zslRing.canTake(zslTriggerNs)) return;
+        ZslRing.Entry<Image, TotalCaptureResult> frame = zslRing.take(zslTriggerNs);
+        zslShot = null;
+        backgroundHandler.removeCallbacks(zslTimeout);
+        TimelineRecorder.end("zsl_frame");
+        Log.d(TAG, "ZSL frame " + (frame.timestampNs - zslTriggerNs) / 1_000_000 + "ms from the trigger");
+        if (reprocessWriter == null || !reprocess(shot, frame)) encode(shot, frame);
+    }
+
+    // Back through the camera's JPEG encoder; the JPEG arrives in processImage like a still's.
+    // False if the frame couldn't be queued (the caller still owns it).
+    @TargetApi(Build.VERSION_CODES.M)
+    private boolean reprocess(Shot shot, ZslRing.Entry<Image, TotalCaptureResult> frame) {
+        CaptureRequest request;
+        try {
+            CaptureRequest.Builder builder = cameraDevice.createReprocessCaptureRequest(frame.result);
+            builder.addTarget(imageReader.getSurface());
+            builder.set(CaptureRequest.JPEG_QUALITY, (byte) 100);
+            builder.setTag(shot);
+            request = builder.build();
+            // Takes the image and closes it, freeing its ring slot
+            reprocessWriter.queueInputImage(frame.frame);
+        } catch (CameraAccessException | IllegalStateException | IllegalArgumentException e) {
+            Log.w(TAG, "Reprocess failed, encoding the frame here", e);
+            return false;
+        }
+        inFlight.add(shot);
+        TimelineRecorder.begin("capture");
+        try {
+            captureSession.capture(request, stillCallback, backgroundHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            if (inFlight.remove(shot)) TimelineRecorder.end("capture");
+            shot.callback.onError(e.getMessage());
+            onShotFinished();
+        }
+        return true;
+    }
+
+    // No reprocessing: the YUV frame is encoded on the writer thread
+    private void encode(Shot shot, ZslRing.Entry<Image, TotalCaptureResult> frame) {
+        zslFramesOut++;
+        pendingWrites++;
+        writer.writeYuv(frame.frame, shot.path, CPU_JPEG_QUALITY, shotWritten(shot, true));
+    }
+
+    // NIGHT_FRAMES identical short exposures, stacked
+    private void captureNight(Shot shot) {
+        if (stackBusy(shot)) return;
+        int frames = ensureStacker();
+        if (frames < 2) {
+            submit(shot);
+            return;
+        }
+        long[][] settings = new long[frames][];
+        Arrays.fill(settings, nightExposure());
+        captureStack(shot, false, settings);
+    }
+
+    // HDR_BRACKET_EV around the preview's exposure, fused
+    private void captureHdr(Shot shot) {
+        if (stackBusy(shot)) return;
+        if (previewExposureNs == null || previewIso == null) {
+            Log.w(TAG, "No preview exposure to bracket around, taking a scene-mode HDR shot");
+            submit(shot);
+            return;
+        }
+        if (!ensureFuser()) {
+            submit(shot);
+            return;
+        }
+        long[][] settings = new long[HDR_BRACKET_EV.length][];
+        for (int i = 0; i < settings.length; i++) settings[i] = bracketExposure(HDR_BRACKET_EV[i]);
+        captureStack(shot, true, settings);
+    }
+
+    // The last stack's frames are still being merged: rather than wait, this shot is a single
+    // frame, so a series of scheduled shots keeps its pace
+    private boolean stackBusy(Shot shot) {
+        if (stackingShot == null) return false;
+        Log.w(TAG, "Previous " + (stackHdr ? "HDR" : "night") + " shot still merging, taking a single frame");
+        submit(shot);
+        return true;
+    }
+
+    // settings: {exposure ns, ISO} per frame. One captureBurst() so the frames come back to back,
+    // all with the white balance of the moment.
+    private void captureStack(Shot shot, boolean hdr, long[][] settings) {
+        try {
+            List<CaptureRequest> requests = new ArrayList<>();
+            long burstNs = 0;
+            StringBuilder description = new StringBuilder();
+            for (long[] exposure : settings) {
+                CaptureRequest.Builder builder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+                builder.addTarget(stackReader.getSurface());
+                builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
+                builder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, exposure[0]);
+                builder.set(CaptureRequest.SENSOR_SENSITIVITY, (int) exposure[1]);
+                builder.set(CaptureRequest.SENSOR_FRAME_DURATION, exposure[0]);
+                builder.set(CaptureRequest.CONTROL_AWB_LOCK, true);
+                builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+                builder.setTag(shot);
+                requests.add(builder.build());
+                burstNs += exposure[0];
+                description.append(' ').append(exposure[0] / 1_000_000.0).append("ms@").append(exposure[1]);
+            }
+            stackShot = shot;
+            stackHdr = hdr;
+            stackExpected = settings.length;
+            stackReceived = 0;
+            stackingShot = shot;
+            TimelineRecorder.begin("stack_burst");
+            captureSession.captureBurst(requests, stackCallback, backgroundHandler);
+            backgroundHandler.postDelayed(stackTimeout, burstNs / 1_000_000 + STACK_WAIT_MS);
+            Log.d(TAG, (hdr ? "HDR" : "Night") + " burst:" + description);
+        } catch (CameraAccessException | IllegalStateException e) {
+            if (stackShot == shot) TimelineRecorder.end("stack_burst");
+            stackShot = null;
+            stackingShot = null;
+            shot.callback.onError(e.getMessage());
+            onShotFinished();
+        }
+    }
+
+    // {exposure ns, ISO} per frame: NIGHT_FRAME_EXPOSURE_NS with the ISO that makes up the
+    // brightness, or, past the top ISO, a longer frame up to NIGHT_MAX_FRAME_EXPOSURE_NS
+    private long[] nightExposure() {
+        CameraCapabilities.Camera caps = CameraCapabilityCache.getCamera(context, cameraDevice.getId());
+        long exposure = NIGHT_FRAME_EXPOSURE_NS;
+        long iso = NIGHT_EXPOSURE_ISO_NS / exposure;
+        if (caps != null && caps.maxIso > 0 && iso > caps.maxIso) {
+            iso = caps.maxIso;
+            exposure = Math.min(NIGHT_EXPOSURE_ISO_NS / iso, NIGHT_MAX_FRAME_EXPOSURE_NS);
+        }
+        if (caps != null && caps.minIso > 0) iso = Math.max(iso, caps.minIso);
+        if (caps != null && caps.maxExposureNs > 0) exposure = Math.min(exposure, caps.maxExposureNs);
+        if (caps != null && caps.minExposureNs > 0) exposure = Math.max(exposure, caps.minExposureNs);
+        return new long[] {exposure, iso};
+    }
+
+    // {exposure ns, ISO} ev stops from the preview's: the exposure time moves, and the ISO takes
+    // over past HDR_MAX_FRAME_EXPOSURE_NS or the sensor's own limits
+    private long[] bracketExposure(int ev) {
+        CameraCapabilities.Camera caps = CameraCapabilityCache.getCamera(context, cameraDevice.getId());
+        long exposure = ev >= 0 ? previewExposureNs << ev : previewExposureNs >> -ev;
+        long iso = previewIso;
+        long longest = HDR_MAX_FRAME_EXPOSURE_NS;
+        if (caps != null && caps.maxExposureNs > 0) longest = Math.min(longest, caps.maxExposureNs);
+        long shortest = caps != null && caps.minExposureNs > 0 ? caps.minExposureNs : 1;
+        if (exposure > longest) {
+            iso = iso * exposure / longest;
+            exposure = longest;
+        } else if (exposure < shortest) {
+            iso = Math.max(1, iso * exposure / shortest);
+            exposure = shortest;
+        }
+        if (caps != null && caps.maxIso > 0) iso = Math.min(iso, caps.maxIso);
+        if (caps != null && caps.minIso > 0) iso = Math.max(iso, caps.minIso);
+        return new long[] {exposure, iso};
+    }
+
+    // Frames the stacker can take at the photo size, allocating it if needed: as many of
+    // NIGHT_FRAMES as fit a third of the heap next to its output and accumulator (about five
+    // frames' worth). Below two there is nothing to stack.
+    private int ensureStacker() {
+        int width = photoSize.getWidth();
+        int height = photoSize.getHeight();
+        long frameBytes = Yuv420.nv21Size(width, height);
+        int frames = (int) Math.max(0, Math.min(NIGHT_FRAMES, Runtime.getRuntime().maxMemory() / 3 / frameBytes - 5));
+        if (frames < 2) {
+            Log.w(TAG, "No heap for a night stack at " + photoSize + ", taking a single long exposure");
+            return 0;
+        }
+        if (stacker != null && stacker.width() == width && stacker.height() == height && stacker.maxFrames() >= frames) {
+            return frames;
+        }
+        // One set of buffers at a time; the old ones go before the new ones are allocated
+        stacker = null;
+        fuser = null;
+        if (stackPool == null) stackPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            stacker = new NightStacker(width, height, frames, stackPool);
+        } catch (OutOfMemoryError | IllegalArgumentException e) {
+            Log.w(TAG, "Night stacker unavailable at " + photoSize + ", taking a single long exposure", e);
+            return 0;
+        }
+        return frames;
+    }
+
+    // Allocates the fuser at the photo size if needed: the bracket plus its output and working
+    // buffers (about two frames' worth) within a third of the heap
+    private boolean ensureFuser() {
+        int width = photoSize.getWidth();
+        int height = photoSize.getHeight();
+        int frames = HDR_BRACKET_EV.length;
+        if (fuser != null && fuser.width() == width && fuser.height() == height && fuser.maxFrames() >= frames) {
+            return true;
+        }
+        stacker = null;
+        fuser = null;
+        if ((frames + 2L) * Yuv420.nv21Size(width, height) > Runtime.getRuntime().maxMemory() / 3) {
+            Log.w(TAG, "No heap for an HDR bracket at " + photoSize + ", taking a scene-mode HDR shot");
+            return false;
+        }
+        if (stackPool == null) stackPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            fuser = new HdrFuser(width, height, frames, stackPool);
+        } catch (OutOfMemoryError | IllegalArgumentException e) {
+            Log.w(TAG, "HDR fuser unavailable at " + photoSize + ", taking a scene-mode HDR shot", e);
+            return false;
+        }
+        return true;
+    }
+
+    private final CameraCaptureSession.CaptureCallback stackCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request, CaptureFailure failure) {
+            if (stackShot == null || request.getTag() != stackShot) return;
+            Log.w(TAG, "Stack frame failed (reason " + failure.getReason() + ")");
+            stackExpected--;
+            if (stackReceived >= stackExpected) processStack();
+        }
+    };
+
+    // Copied straight into the stacker or fuser, so the reader slot comes free for the next frame
+    private void onStackFrame(ImageReader reader) {
+        Image image;
+        try {
+            image = reader.acquireNextImage();
+        } catch (IllegalStateException e) {
+            return;
+        }
+        if (image == null) return;
+        try {
+            if (stackShot == null || stackReceived >= (stackHdr ? fuser.maxFrames() : stacker.maxFrames())) return;
+            byte[] out = stackHdr ? fuser.frame(stackReceived) : stacker.frame(stackReceived);
+            Image.Plane[] planes = image.getPlanes();
+            Yuv420.toNv21(planes[0].getBuffer(), planes[0].getRowStride(), planes[1].getBuffer(), planes[2].getBuffer(),
+                    planes[1].getRowStride(), planes[1].getPixelStride(), image.getWidth(), image.getHeight(), out);
+            stackReceived++;
+        } finally {
+            image.close();
+        }
+        if (stackReceived >= stackExpected) processStack();
+    }
+
+    private final Runnable stackTimeout = () -> {
+        if (stackShot == null) return;
+        Log.w(TAG, "Stack burst incomplete: " + stackReceived + " of " + stackExpected + " frames");
+        processStack();
+    };
+
+    // Stacks or fuses on the pool, off the camera thread, then encodes on the writer thread
+    private void processStack() {
+        Shot shot = stackShot;
+        stackShot = null;
+        backgroundHandler.removeCallbacks(stackTimeout);
+        TimelineRecorder.end("stack_burst");
+        int count = stackReceived;
+        if (count == 0) {
+            stackingShot = null;
+            shot.callback.onError((stackHdr ? "HDR" : "Night") + " burst failed");
+            onShotFinished();
+            return;
+        }
+        boolean hdr = stackHdr;
+        NightStacker stack = stacker;
+        HdrFuser fuse = fuser;
+        JpegWriter.WriteCallback written = shotWritten(shot, false);
+        pendingWrites++;
+        stackPool.execute(() -> {
+            byte[] nv21;
+            String step = hdr ? "hdr_fuse" : "night_stack";
+            TimelineRecorder.begin(step);
+            try {
+                nv21 = hdr ? fuse.fuse(count) : stack.stack(count);
+            } catch (RuntimeException e) {
+                Log.e(TAG, step + " failed", e);
+                written.onError(step + " failed: " + e.getMessage());
+                return;
+            } finally {
+                TimelineRecorder.end(step);
+            }
+            if (hdr) {
+                Log.d(TAG, "Fused " + count + " exposures on frame " + fuse.reference());
+                writer.writeNv21(nv21, fuse.width(), fuse.height(), shot.path, CPU_JPEG_QUALITY, written);
+            } else {
+                Log.d(TAG, "Stacked " + count + " frames on frame " + stack.reference());
+                writer.writeNv21(nv21, stack.width(), stack.height(), shot.path, CPU_JPEG_QUALITY, written);
+            }
+        });
+    }
+
+    private final Runnable convergenceTimeout = () -> {
+        if (convergedAction != null) {
+            Log.w(TAG, "3A did not converge in " + CONVERGENCE_TIMEOUT_MS + "ms (AE=" + aeState + " AF=" + afState + "), shooting anyway");
+            runConvergedAction();
+        }
+    };
+
+    private void awaitConvergence(Runnable action) {
+        TimelineRecorder.begin("converge_3a");
+        convergedAction = action;
+        if (isConverged()) {
+            runConvergedAction();
+        } else {
+            backgroundHandler.postDelayed(convergenceTimeout, CONVERGENCE_TIMEOUT_MS);
+        }
+    }
+
+    private void runConvergedAction() {
+        TimelineRecorder.end("converge_3a");
+        backgroundHandler.removeCallbacks(convergenceTimeout);
+        Runnable action = convergedAction;
+        convergedAction = null;
+        if (action != null) action.run();
+    }
+
+    private boolean isConverged() {
+        if (aeState == null && afState == null) return false;
+        boolean aeReady = aeState == null
+                || aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED
+                || aeState == CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED
+                || aeState == CaptureResult.CONTROL_AE_STATE_LOCKED;
+        boolean afReady = afState == null
+                || afState == CaptureResult.CONTROL_AF_STATE_INACTIVE
+                || afState == CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED
+                || afState == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED
+                || afState == CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED;
+        return aeReady && afReady;
+    }
+
+    private void submit(Shot shot) {
         try {
             CaptureRequest.Builder shotBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
             shotBuilder.addTarget(imageReader.getSurface());
@@ -110,13 +919,31 @@ public class Camera2PhotoCapture {
             applyEnhancements(shotBuilder);
             
             shotBuilder.set(CaptureRequest.JPEG_QUALITY, (byte) 100);
-            captureSession.stopRepeating();
-            captureSession.capture(shotBuilder.build(), null, backgroundHandler);
-        } catch (CameraAccessException e) {
-            callback.onError(e.getMessage());
+            shotBuilder.setTag(shot);
+            inFlight.add(shot);
+            TimelineRecorder.begin("capture");
+            captureSession.capture(shotBuilder.build(), stillCallback, backgroundHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            if (inFlight.remove(shot)) TimelineRecorder.end("capture");
+            shot.callback.onError(e.getMessage());
+            onShotFinished();
         }
     }
 
+    private final CameraCaptureSession.CaptureCallback stillCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request, CaptureFailure failure) {
+            // No JPEG will arrive for this request, so take it out of the ordered queue
+            Shot shot = (Shot) request.getTag();
+            if (shot != null && inFlight.remove(shot)) {
+                TimelineRecorder.end("capture");
+                shot.callback.onError("Capture failed (reason " + failure.getReason() + ")");
+                onShotFinished();
+            }
+        }
+    };
+
+    // Single-frame night and HDR: bursts, and shots the stack session can't take
     private void applyEnhancements(CaptureRequest.Builder builder) {
         try {
             if (hdrMode) {
@@ -126,17 +953,14 @@ public class Camera2PhotoCapture {
                 // --- PRO STABLE NIGHT MODE ---
                 builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
                 
-                CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
-                CameraCharacteristics chars = manager.getCameraCharacteristics(cameraDevice.getId());
-                Range<Long> timeRange = chars.get(CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE);
-                Range<Integer> isoRange = chars.get(CameraCharacteristics.SENSOR_INFO_SENSITIVITY_RANGE);
+                CameraCapabilities.Camera caps = CameraCapabilityCache.getCamera(context, cameraDevice.getId());
 
                 // Target ISO 100 for clean image, Target 1.0s for light
                 long targetTime = 1_000_000_000L; 
                 int targetIso = 100;
 
-                if (timeRange != null) targetTime = Math.min(targetTime, timeRange.getUpper());
-                if (isoRange != null) targetIso = Math.max(targetIso, isoRange.getLower());
+                if (caps != null && caps.maxExposureNs > 0) targetTime = Math.min(targetTime, caps.maxExposureNs);
+                if (caps != null && caps.minIso > 0) targetIso = Math.max(targetIso, caps.minIso);
 
                 builder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, targetTime);
                 builder.set(CaptureRequest.SENSOR_SENSITIVITY, targetIso);
@@ -153,21 +977,154 @@ public class Camera2PhotoCapture {
         }
     }
 
-    private void processImage(ImageReader reader, String customPath, PhotoCallback callback) {
-        try (Image image = reader.acquireLatestImage()) {
-            if (image == null) return;
-            ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-            byte[] bytes = new byte[buffer.remaining()];
-            buffer.get(bytes);
+    private void processImage(ImageReader reader) {
+        Image image;
+        try {
+            image = reader.acquireNextImage();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "acquireNextImage failed", e);
+            return;
+        }
+        if (image == null) return;
+        Shot shot = inFlight.poll();
+        if (shot == null) { // Late frame from an aborted shot
+            image.close();
+            return;
+        }
+        TimelineRecorder.end("capture");
+
+        // Off to the writer thread; the image is closed there once its bytes are durable
+        pendingWrites++;
+        writer.writeImage(image, shot.path, shotWritten(shot, false));
+    }
 
-            File file = new File(customPath);
-            try (FileOutputStream output = new FileOutputStream(file)) {
-                output.write(bytes);
-                callback.onPhotoSaved(file.getAbsolutePath());
+    private JpegWriter.WriteCallback shotWritten(Shot shot, boolean zslFrame) {
+        return new JpegWriter.WriteCallback() {
+            @Override
+            public void onWritten(String filepath, long writeMs) {
+                backgroundHandler.post(() -> {
+                    pendingWrites--;
+                    if (zslFrame) zslFramesOut--;
+                    if (shot == stackingShot) stackingShot = null;
+                    lastShotLatencyMs = SystemClock.elapsedRealtime() - shot.requestedAt;
+                    Log.d(TAG, "Shot-to-file latency: " + lastShotLatencyMs + "ms (write " + writeMs + "ms)");
+                    shot.callback.onPhotoSaved(filepath);
+                    onShotFinished();
+                });
             }
-        } catch (Exception e) {
-            callback.onError(e.getMessage());
+            @Override
+            public void onError(String error) {
+                backgroundHandler.post(() -> {
+                    pendingWrites--;
+                    if (zslFrame) zslFramesOut--;
+                    if (shot == stackingShot) stackingShot = null;
+                    shot.callback.onError(error);
+                    onShotFinished();
+                });
+            }
+        };
+    }
+
+    private void failAll(String error) {
+        backgroundHandler.removeCallbacks(convergenceTimeout);
+        backgroundHandler.removeCallbacks(burstTickRunnable);
+        backgroundHandler.removeCallbacks(zslTimeout);
+        backgroundHandler.removeCallbacks(stackTimeout);
+        sessionReadyAction = null;
+        convergedAction = null;
+
+        Shot pending = pendingShot;
+        pendingShot = null;
+        if (pending != null) pending.callback.onError(error);
+        Shot zsl = zslShot;
+        zslShot = null;
+        if (zsl != null) {
+            TimelineRecorder.end("zsl_frame");
+            zsl.callback.onError(error);
+        }
+        // A burst still coming in is dropped; one already stacking finishes on its own
+        Shot stack = stackShot;
+        stackShot = null;
+        if (stack != null) {
+            TimelineRecorder.end("stack_burst");
+            stackingShot = null;
+            stack.callback.onError(error);
         }
+
+        Burst b = burst;
+        burst = null;
+        while (!inFlight.isEmpty()) {
+            Shot shot = inFlight.poll();
+            if (b == null) shot.callback.onError(error);
+        }
+        if (b != null) b.callback.onError(error);
+    }
+
+    private void closeSession() {
+        if (captureSession != null) {
+            captureSession.close();
+            captureSession = null;
+        }
+        if (imageReader != null) {
+            imageReader.close();
+            imageReader = null;
+        }
+        if (reprocessWriter != null) {
+            reprocessWriter.close();
+            reprocessWriter = null;
+        }
+        // Ring frames go back before their reader closes
+        zslRing.clear();
+        if (zslReader != null) {
+            zslReader.close();
+            zslReader = null;
+        }
+        sessionZsl = false;
+        if (stackReader != null) {
+            stackReader.close();
+            stackReader = null;
+        }
+        sessionStack = false;
+        if (dummySurface != null) {
+            dummySurface.release();
+            dummySurface = null;
+        }
+        if (dummyTexture != null) {
+            dummyTexture.release();
+            dummyTexture = null;
+        }
+        aeState = null;
+        afState = null;
+        previewExposureNs = null;
+        previewIso = null;
+    }
+
+    // Releases the session and the writer thread; queued writes still finish
+    public void close() {
+        Runnable closing = () -> {
+            failAll("Photo session closed");
+            closeSession();
+            ForkJoinPool pool = stackPool;
+            stackPool = null;
+            stacker = null;
+            fuser = null;
+            if (pool == null) {
+                writer.close();
+                return;
+            }
+            // A stack in progress still hands its result to the writer, so that stops only
+            // once the pool has drained
+            pool.shutdown();
+            new Thread(() -> {
+                try {
+                    if (!pool.awaitTermination(STACK_DRAIN_MS, TimeUnit.MILLISECONDS)) Log.w(TAG, "Stack still running at close");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                writer.close();
+            }, "StackDrain").start();
+        };
+        // Camera thread already gone: nothing else can touch the session any more
+        if (!backgroundHandler.post(closing)) closing.run();
     }
-    
 }
\ No newline at end of file
@@ -1,16 +1,22 @@
 package com.simple2fps.camera;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.ImageFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.*;
-import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
 import android.media.MediaRecorder;
+import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.util.Log;
 import android.util.Range;
 import android.util.Size;
@@ -19,9 +25,10 @@ import android.view.TextureView;
 import android.widget.TextView;
 import android.widget.Toast;
 import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
@@ -30,6 +37,8 @@ import java.util.Locale;
 
 public class Camera2VideoRecorder {
     private static final String TAG = "Camera2VideoRecorder";
+    // AAC at MediaRecorder's defaults; only used to size loop-recording segments
+    private static final int AUDIO_BITRATE_ESTIMATE = 128000;
     
     private Context context;
     private TextureView textureView;
@@ -44,11 +53,105 @@ public class Camera2VideoRecorder {
     private Handler backgroundHandler;
     
     private String cameraId;
+    // Camera to open instead of the first back-facing one (multi-camera sessions)
+    private String requestedCameraId;
     private Size selectedVideoSize;
     private int selectedFps = 2;
     
-    
+    // MEDIA_RECORDER pushes every sensor frame through MediaRecorder; TIMELAPSE runs the sensor
+    // at a supported rate and encodes only the decimated frames (API 23+)
+    // PRE_EVENT keeps encoding into an in-memory ring and only writes files on saveEvent()
+    public enum Engine { MEDIA_RECORDER, TIMELAPSE, PRE_EVENT }
+    private Engine engine = Engine.MEDIA_RECORDER;
+    private double timelapseFactor = 1.0;
+    private TimelapseEncoder timelapseEncoder;
+    private PreEventEncoder preEventEncoder;
+    private long preRollMs = 20000;
+    private long postRollMs = 10000;
+    private int preEventBufferBytes = 0;
+    // Motion-gated pre-event recording (null = buffer until saveEvent())
+    private MotionDetector.Config motionConfig;
+    private MotionTrigger motionTrigger;
+
+    // Bitrate limits (0 = derived from size and rate). MediaRecorder records at the ceiling; the
+    // MediaCodec engines move between floor and ceiling with the scene when adaptive
+    private int bitrateFloorBps = 0;
+    private int bitrateCeilingBps = 0;
+    private boolean adaptiveBitrate = true;
+
+    // Encoder negotiation: preferred type (null = most efficient the device has) and keyframe
+    // spacing in seconds (0 = by frame rate). MediaRecorder has no public GOP setting.
+    private String codecPreference;
+    private int iFrameIntervalSeconds = 0;
+
+    // Loop recording (null = one file until stop); old segments are deleted on segmentThread
+    private SegmentRing.Policy segmentPolicy;
+    private SegmentRing segmentRing;
+    private File pendingSegment;
+    private HandlerThread segmentThread;
+    private Handler segmentHandler;
+
+    // Preview cost: no preview stream at all when hidden, buffers sized to the view rather than
+    // the video, and a capped rate while idle (0 = fastest the sensor offers)
+    private boolean previewEnabled = true;
+    private int idlePreviewFps = 15;
 
+    // Per-recording-session counters, fed by captureCallback and the encoders, exported every
+    // metricsIntervalMs (0 = counters only, no broadcasts or stats files)
+    private volatile CaptureMetrics metrics;
+    private MetricsReporter metricsReporter;
+    private long metricsIntervalMs = 10000;
+    private File mediaRecorderFile;
+    // Appended to the stats session name, so concurrent cameras get separate files
+    private String metricsLabel;
+    // Segment deletes and snapshot writes go to a storage thread and writer shared by every
+    // camera of a multi-camera session; its owner closes them, not closeCamera()
+    private boolean sharedStorage = false;
+    // Only one MediaRecorder can own the microphone; the other cameras of a multi-camera
+    // session record video only
+    private boolean recordAudio = true;
+
+    // JPEG output riding along in the recording session: photo intents during a recording become
+    // TEMPLATE_VIDEO_SNAPSHOT captures (one frame time) instead of stopping the video. Null when
+    // the session has none (LEGACY HAL, pre-event analysis stream, or the HAL refused it).
+    private static final int SNAPSHOT_IMAGES = 3;
+    private volatile ImageReader snapshotReader;
+    // Closed once the writer is done with its last image
+    private ImageReader retiredSnapshotReader;
+    private final ArrayDeque<Snapshot> snapshots = new ArrayDeque<>();
+    private int snapshotWrites = 0;
+    private JpegWriter snapshotWriter;
+    // Outputs and AE range of the repeating recording request, repeated in each snapshot so the
+    // snapshot frame still lands in the video
+    private List<Surface> recordingTargets;
+    private Range<Integer> recordingAeRange;
+    private long lastSnapshotLatencyMs = -1;
+
+    private static class Snapshot {
+        final String path;
+        final Camera2PhotoCapture.PhotoCallback callback;
+        final long requestedAt = SystemClock.elapsedRealtime();
+
+        Snapshot(String path, Camera2PhotoCapture.PhotoCallback callback) {
+            this.path = path;
+            this.callback = callback;
+        }
+    }
+
+    // Rates offered in the UI; every (size, fps) pair is resolved up front
+    public static final int[] FPS_OPTIONS = {1, 2, 5, 10, 15, 24, 30};
+    private FpsRangeResolver fpsResolver;
+
+    // Lifecycle state; queued commands run on the UI thread once their state is reached
+    private final CameraStateMachine stateMachine = new CameraStateMachine(this::runOnUiThread);
+
+    // MediaRecorder prepared while the camera is still opening, keyed by its settings
+    private final Object prepareLock = new Object();
+    private MediaRecorder preparedRecorder;
+    private String preparedKey;
+    private File preparedFile;
+
+    // textureView and statusView may be null for headless use (RecordingForegroundService)
     public Camera2VideoRecorder(Context context, TextureView textureView, TextView statusView) {
         // Use Application Context to avoid memory leaks if Activity is destroyed
         this.context = context.getApplicationContext();
@@ -61,115 +164,284 @@ public class Camera2VideoRecorder {
         new Handler(Looper.getMainLooper()).post(action);
     }
 
+    // A 1x1 or switched-off view gets no stream: the ISP would still fill full-size buffers
+    private boolean hasPreview() {
+        return previewEnabled && textureView != null && textureView.isAvailable()
+                && textureView.getWidth() > 1 && textureView.getHeight() > 1;
+    }
+
+    private Size previewBufferSize(int videoWidth, int videoHeight) {
+        return choosePreviewSize(getAvailableVideoSizes(), videoWidth, videoHeight,
+                textureView.getWidth(), textureView.getHeight());
+    }
+
+    // Smallest size with the video's aspect ratio that covers the view along one side (either
+    // orientation), never larger than the video itself
+    static Size choosePreviewSize(List<Size> sizes, int videoWidth, int videoHeight, int viewWidth, int viewHeight) {
+        int viewLong = Math.max(viewWidth, viewHeight);
+        int viewShort = Math.min(viewWidth, viewHeight);
+        float aspect = (float) videoWidth / videoHeight;
+        long videoArea = (long) videoWidth * videoHeight;
+        Size best = null;
+        for (Size size : sizes) {
+            long area = (long) size.getWidth() * size.getHeight();
+            if (area > videoArea) continue;
+            if (Math.abs((float) size.getWidth() / size.getHeight() - aspect) > 0.02f) continue;
+            int sizeLong = Math.max(size.getWidth(), size.getHeight());
+            int sizeShort = Math.min(size.getWidth(), size.getHeight());
+            if (sizeLong < viewLong && sizeShort < viewShort) continue;
+            if (best == null || area < (long) best.getWidth() * best.getHeight()) best = size;
+        }
+        return best != null ? best : new Size(videoWidth, videoHeight);
+    }
+
+    // Idle preview: a steady range around idlePreviewFps rather than the fastest one
+    private int[] idlePreviewRange(int width, int height) {
+        if (idlePreviewFps > 0) {
+            FpsRangeResolver.Plan plan = getFpsResolver().resolve(width, height, idlePreviewFps);
+            if (plan.possible) return new int[]{plan.aeLower, plan.aeUpper};
+        }
+        return getFpsResolver().previewRange(width, height);
+    }
+
+    private void setStatus(String text) {
+        if (statusView != null) runOnUiThread(() -> statusView.setText(text));
+    }
+
     public void openCamera() {
         startBackgroundThread();
+        // Warm the encoder list while the camera opens
+        backgroundHandler.post(() -> EncoderCapabilityCache.get(context));
         CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        Trace.beginSection("Camera2VideoRecorder.openCamera");
         try {
-            // Find a back-facing camera
-            for (String id : manager.getCameraIdList()) {
-                CameraCharacteristics chars = manager.getCameraCharacteristics(id);
-                if (chars.get(CameraCharacteristics.LENS_FACING) == CameraCharacteristics.LENS_FACING_BACK) {
-                    cameraId = id;
-                    break;
-                }
-            }
-            if (cameraId == null && manager.getCameraIdList().length > 0) {
-                cameraId = manager.getCameraIdList()[0];
-            }
-            
-            if (cameraId != null) {
-                try {
-                    manager.openCamera(cameraId, stateCallback, backgroundHandler);
-                } catch (SecurityException e) {
-                    Log.e(TAG, "Permission missing", e);
-                }
+            openCamera(manager);
+        } catch (IllegalArgumentException e) {
+            // Cached id no longer exists (camera removed, HAL update without OTA): re-query once
+            Log.w(TAG, "Stale camera id " + cameraId + ", refreshing capability cache");
+            CameraCapabilityCache.invalidate(context);
+            cameraId = null;
+            try {
+                openCamera(manager);
+            } catch (Exception retry) {
+                Log.e(TAG, "openCamera failed", retry);
             }
         } catch (CameraAccessException e) {
             e.printStackTrace();
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    private void openCamera(CameraManager manager) throws CameraAccessException {
+        // Find a back-facing camera (from the capability cache, no binder walk)
+        CameraCapabilities.Camera camera;
+        Trace.beginSection("CameraCapabilityCache.get");
+        try {
+            CameraCapabilities caps = CameraCapabilityCache.get(context);
+            camera = requestedCameraId != null ? caps.find(requestedCameraId) : caps.preferFacing(CameraCapabilities.FACING_BACK);
+        } finally {
+            Trace.endSection();
+        }
+        cameraId = camera != null ? camera.id : null;
+        
+        if (cameraId != null) {
+            TimelineRecorder.begin("open_camera");
+            try {
+                stateMachine.moveTo(CameraStateMachine.State.OPENING);
+                manager.openCamera(cameraId, stateCallback, backgroundHandler);
+            } catch (SecurityException e) {
+                TimelineRecorder.end("open_camera");
+                Log.e(TAG, "Permission missing", e);
+            }
         }
     }
     
     private final CameraDevice.StateCallback stateCallback = new CameraDevice.StateCallback() {
         @Override
         public void onOpened(CameraDevice camera) {
+            TimelineRecorder.end("open_camera");
             cameraDevice = camera;
+            stateMachine.moveTo(CameraStateMachine.State.DEVICE_OPENED);
             startPreview();
         }
         @Override
         public void onDisconnected(CameraDevice camera) {
+            TimelineRecorder.end("open_camera");
             camera.close();
             cameraDevice = null;
+            stateMachine.moveTo(CameraStateMachine.State.CLOSED);
         }
         @Override
         public void onError(CameraDevice camera, int error) {
+            TimelineRecorder.end("open_camera");
             camera.close();
             cameraDevice = null;
+            stateMachine.moveTo(CameraStateMachine.State.CLOSED);
+        }
+    };
+
+    private final CameraCaptureSession.CaptureCallback captureCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
+            CaptureMetrics m = metrics;
+            Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            if (m != null && timestamp != null) m.onFrame(timestamp);
+        }
+
+        @Override
+        public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request, CaptureFailure failure) {
+            CaptureMetrics m = metrics;
+            if (m != null) m.onCaptureFailed();
+        }
+
+        @Override
+        public void onCaptureBufferLost(CameraCaptureSession session, CaptureRequest request, Surface target, long frameNumber) {
+            CaptureMetrics m = metrics;
+            if (m != null) m.onBufferLost();
         }
     };
 
+    private void beginMetrics(int sensorFps) {
+        endMetrics();
+        metrics = new CaptureMetrics(SystemClock.elapsedRealtimeNanos(), sensorFps);
+        if (metricsIntervalMs > 0) {
+            String session = "REC_" + new SimpleDateFormat("yyMMdd_HHmmss", Locale.US).format(new Date());
+            if (metricsLabel != null) session += "_" + metricsLabel;
+            metricsReporter = new MetricsReporter(context, metrics, session, metricsIntervalMs);
+            metricsReporter.setCameraId(cameraId);
+            metricsReporter.start();
+        }
+    }
+
+    // Final snapshot of the session that just ended, if any
+    private void endMetrics() {
+        if (metricsReporter != null) {
+            metricsReporter.stop();
+            metricsReporter = null;
+        }
+        metrics = null;
+    }
+
     private void startPreview() {
-        if (cameraDevice == null || !textureView.isAvailable()) return;
+        endMetrics();
+        releaseSnapshotOutput();
+        if (cameraDevice == null) return;
+        if (!hasPreview()) {
+            // No preview to configure; the device itself is ready for commands
+            stateMachine.moveTo(CameraStateMachine.State.IDLE);
+            return;
+        }
         
         try {
             SurfaceTexture texture = textureView.getSurfaceTexture();
             int w = selectedVideoSize != null ? selectedVideoSize.getWidth() : 1920;
             int h = selectedVideoSize != null ? selectedVideoSize.getHeight() : 1080;
-            texture.setDefaultBufferSize(w, h);
+            Size buffer = previewBufferSize(w, h);
+            texture.setDefaultBufferSize(buffer.getWidth(), buffer.getHeight());
             
             Surface surface = new Surface(texture);
             
             previewRequestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
             previewRequestBuilder.addTarget(surface);
-            // Default FPS range for preview
-            previewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, new Range<>(15, 30));
+            // Preview FPS range: one the sensor really advertises for this size, capped while idle
+            int[] range = idlePreviewRange(w, h);
+            previewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, new Range<>(range[0], range[1]));
 
+            TimelineRecorder.begin("preview_session");
             cameraDevice.createCaptureSession(Collections.singletonList(surface),
                 new CameraCaptureSession.StateCallback() {
                     @Override
                     public void onConfigured(CameraCaptureSession session) {
+                        TimelineRecorder.end("preview_session");
                         if (cameraDevice == null) return;
                         captureSession = session;
                         try {
                             session.setRepeatingRequest(previewRequestBuilder.build(), null, backgroundHandler);
                         } catch (CameraAccessException e) { e.printStackTrace(); }
+                        stateMachine.moveTo(CameraStateMachine.State.IDLE);
+                    }
+                    @Override public void onConfigureFailed(CameraCaptureSession session) {
+                        TimelineRecorder.end("preview_session");
+                        // Preview is cosmetic; recording and photos build their own sessions
+                        Log.w(TAG, "Preview configuration failed");
+                        stateMachine.moveTo(CameraStateMachine.State.IDLE);
                     }
-                    @Override public void onConfigureFailed(CameraCaptureSession session) {}
                 }, backgroundHandler);
                 
-        } catch (CameraAccessException e) { e.printStackTrace(); }
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+            TimelineRecorder.end("preview_session");
+            stateMachine.moveTo(CameraStateMachine.State.IDLE);
+        }
     }
 
-    public void startRecording(int fps, String customPath) {
+    // Returns false without touching the session if the size/fps combination can't be recorded
+    public boolean startRecording(int fps, String customPath) {
         this.selectedFps = fps;
         
-        closePreviewSession();
-        
         int width = selectedVideoSize != null ? selectedVideoSize.getWidth() : 1920;
         int height = selectedVideoSize != null ? selectedVideoSize.getHeight() : 1080;
 
+        // Refuse impossible combinations before tearing down the preview session
+        FpsRangeResolver.Plan plan = getFpsResolver().resolve(width, height, fps);
+        if (!plan.possible) {
+            Log.e(TAG, "Cannot record: " + plan);
+            runOnUiThread(() -> Toast.makeText(context, "Cannot record " + fps + " FPS: " + plan.reason, Toast.LENGTH_LONG).show());
+            return false;
+        }
+        Log.d(TAG, "Recording plan: " + plan);
+
+        closePreviewSession();
+        // Out of IDLE until the recording runs: a session that fails to start shows as the
+        // preview coming back
+        stateMachine.moveTo(CameraStateMachine.State.DEVICE_OPENED);
+
         try {
-            File file;
-            if (customPath != null && !customPath.isEmpty()) {
-                file = new File(customPath);
-                if (file.getParentFile() != null) file.getParentFile().mkdirs();
-            } else {
-                file = new File(
-                    Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MOVIES),
-                    "REC_" + new SimpleDateFormat("yyMMdd_HHmmss", Locale.US).format(new Date()) + ".mp4"
-                );
+            // The sensor can't run this slow, so MediaRecorder would silently get the wrong rate
+            if (plan.needsDecimation && engine != Engine.TIMELAPSE) {
+                Log.w(TAG, fps + " FPS is below every AE range, switching to the time-lapse engine");
+            }
+            if (engine == Engine.PRE_EVENT) {
+                if (!PreEventEncoder.isSupported()) {
+                    runOnUiThread(() -> Toast.makeText(context, "Pre-event recording needs Android 6+", Toast.LENGTH_LONG).show());
+                    startPreview();
+                    return false;
+                }
+                startPreEventRecording(fps, width, height, plan, customPath);
+                return true;
             }
 
-            mediaRecorder = new MediaRecorder();
-            mediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-            mediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
-            mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-            mediaRecorder.setOutputFile(file.getAbsolutePath());
-            mediaRecorder.setVideoEncodingBitRate(calculateBitrate(width, height, fps));
-            mediaRecorder.setVideoFrameRate(fps);
-            mediaRecorder.setVideoSize(width, height);
-            mediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
-            mediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
-            mediaRecorder.prepare();
+            boolean segmented = segmentPolicy != null && segmentPolicy.isEnabled();
+            segmentRing = segmented ? createSegmentRing(customPath) : null;
+            // Gapless MediaRecorder rollover needs setNextOutputFile (API 26); below that the
+            // time-lapse engine does the segmenting (video only)
+            boolean encoderSegments = segmented && Build.VERSION.SDK_INT < Build.VERSION_CODES.O;
+            if (encoderSegments && !TimelapseEncoder.isSupported()) {
+                Log.w(TAG, "Loop recording needs API 23+, recording a single file");
+                segmentRing = null;
+                segmented = false;
+                encoderSegments = false;
+            }
+
+            if ((engine == Engine.TIMELAPSE || plan.needsDecimation || encoderSegments) && TimelapseEncoder.isSupported()) {
+                startTimelapseRecording(fps, width, height, segmented ? segmentRing.nextFile() : resolveOutputFile(customPath));
+                return true;
+            }
+
+            mediaRecorderFile = null;
+            if (segmented) {
+                mediaRecorder = createSegmentedMediaRecorder(width, height, fps);
+            } else {
+                mediaRecorder = takePreparedRecorder(preparedKey(width, height, fps, customPath));
+            }
+            if (mediaRecorder == null) {
+                mediaRecorderFile = resolveOutputFile(customPath);
+                mediaRecorder = createMediaRecorder(mediaRecorderFile, width, height, fps);
+            }
+            // MediaRecorder doesn't report encoded bytes: the reporter watches the file grow
+            beginMetrics(plan.aeUpper);
+            if (metricsReporter != null) metricsReporter.setWatchedFile(mediaRecorderFile);
 
             List<Surface> surfaces = new ArrayList<>();
             
@@ -177,9 +449,10 @@ public class Camera2VideoRecorder {
             surfaces.add(recorderSurface);
             
             Surface previewSurface = null;
-            if (textureView.isAvailable()) {
+            if (hasPreview()) {
                 SurfaceTexture texture = textureView.getSurfaceTexture();
-                texture.setDefaultBufferSize(width, height);
+                Size buffer = previewBufferSize(width, height);
+                texture.setDefaultBufferSize(buffer.getWidth(), buffer.getHeight());
                 previewSurface = new Surface(texture);
                 surfaces.add(previewSurface);
             }
@@ -190,39 +463,406 @@ public class Camera2VideoRecorder {
                 previewRequestBuilder.addTarget(previewSurface);
             }
             
-            previewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, new Range<>(fps, fps));
+            Range<Integer> aeRange = new Range<>(plan.aeLower, plan.aeUpper);
+            previewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, aeRange);
+            addSnapshotOutput(surfaces, width, height, aeRange);
 
-            cameraDevice.createCaptureSession(surfaces, new CameraCaptureSession.StateCallback() {
+            TimelineRecorder.begin("recording_session");
+            createRecordingSession(surfaces, new CameraCaptureSession.StateCallback() {
                 @Override
                 public void onConfigured(CameraCaptureSession session) {
+                    TimelineRecorder.end("recording_session");
                     captureSession = session;
                     try {
-                        session.setRepeatingRequest(previewRequestBuilder.build(), null, backgroundHandler);
+                        session.setRepeatingRequest(previewRequestBuilder.build(), captureCallback, backgroundHandler);
+                        TimelineRecorder.begin("start_recorder");
                         mediaRecorder.start();
+                        TimelineRecorder.end("start_recorder");
+                        stateMachine.moveTo(CameraStateMachine.State.RECORDING);
                         
                         runOnUiThread(() -> {
-                            statusView.setText("REC: " + fps + " FPS");
+                            if (statusView != null) statusView.setText("REC: " + fps + " FPS");
                             Toast.makeText(context, "Recording Started", Toast.LENGTH_SHORT).show();
                         });
                         
                     } catch (Exception e) { 
                         Log.e(TAG, "Recording start failed", e);
+                        startPreview();
                     }
                 }
 
                 @Override
                 public void onConfigureFailed(CameraCaptureSession session) {
+                    TimelineRecorder.end("recording_session");
                     runOnUiThread(() -> Toast.makeText(context, "Configuration Failed", Toast.LENGTH_SHORT).show());
+                    startPreview();
                 }
             }, backgroundHandler);
+            return true;
 
         } catch (Exception e) {
             Log.e(TAG, "startRecording exception", e);
             runOnUiThread(() -> Toast.makeText(context, "Error: " + e.getMessage(), Toast.LENGTH_LONG).show());
+            startPreview();
+            return false;
+        }
+    }
+
+    private void startTimelapseRecording(int fps, int width, int height, File file) throws Exception {
+        EncoderCapabilities.Choice encoder = chooseEncoder(width, height, fps);
+        int bitrate = targetBitrate(width, height, fps, encoder);
+        timelapseEncoder = new TimelapseEncoder(width, height, fps, timelapseFactor, bitrate, file);
+        timelapseEncoder.setEncoder(encoder, iFrameInterval(fps));
+        timelapseEncoder.setBitrateController(createBitrateController(bitrate));
+        // Metrics measure the sensor's cadence, not the decimated output's
+        Range<Integer> sensorRange = chooseSensorFpsRange(width, height, fps / timelapseFactor);
+        beginMetrics(sensorRange.getUpper());
+        timelapseEncoder.setMetrics(metrics);
+        if (segmentRing != null) {
+            timelapseEncoder.setSegments(segmentRing, segmentPolicy.segmentDurationMs, segmentPolicy.segmentBytes);
+            segmentRing.setSegmentBytesHint(segmentPolicy.segmentBytes > 0 ? segmentPolicy.segmentBytes
+                    : estimateBytes(bitrate, segmentPolicy.segmentDurationMs));
+            segmentRing.onSegmentStarted(file);
+        }
+        TimelineRecorder.begin("prepare_encoder");
+        Surface encoderSurface = timelapseEncoder.prepare();
+        TimelineRecorder.end("prepare_encoder");
+
+        // The sensor runs at a rate it really supports; the decimator does the rest
+        Log.d(TAG, "Time-lapse: sensor " + sensorRange + ", output " + fps + " FPS, factor " + timelapseFactor);
+        TimelapseEncoder started = timelapseEncoder;
+        startEncoderSession(encoderSurface, null, width, height, sensorRange, started::start,
+                "REC: " + fps + " FPS (time-lapse)");
+    }
+
+    private void startPreEventRecording(int fps, int width, int height, FpsRangeResolver.Plan plan,
+                                        String customPath) throws Exception {
+        EncoderCapabilities.Choice encoder = chooseEncoder(width, height, fps);
+        int bitrate = targetBitrate(width, height, fps, encoder);
+        // Keyframes bound how precisely the pre-roll is kept: no long GOP unless asked for
+        int gop = iFrameIntervalSeconds > 0 ? iFrameIntervalSeconds : Math.min(2, iFrameInterval(fps));
+        int bufferBytes = preEventBufferBytes > 0 ? preEventBufferBytes : PreEventEncoder.defaultBufferBytes(bitrate, preRollMs, gop);
+        preEventEncoder = new PreEventEncoder(width, height, fps, bitrate, preRollMs, bufferBytes);
+        preEventEncoder.setEncoder(encoder, gop);
+        preEventEncoder.setBitrateController(createBitrateController(bitrate));
+        beginMetrics(plan.aeUpper);
+        preEventEncoder.setMetrics(metrics);
+        TimelineRecorder.begin("prepare_encoder");
+        Surface encoderSurface = preEventEncoder.prepare();
+        TimelineRecorder.end("prepare_encoder");
+        Log.d(TAG, "Pre-event buffer: " + preRollMs + " ms pre-roll, " + bufferBytes + " bytes");
+
+        Surface analysisSurface = null;
+        String status = "BUFFERING: " + fps + " FPS";
+        if (motionConfig != null) {
+            Size analysis = chooseAnalysisSize(width, height);
+            String armed = "ARMED: " + fps + " FPS";
+            // Clips go next to filepath, or to Movies
+            File directory = resolveOutputFile(customPath).getParentFile();
+            if (directory == null) directory = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MOVIES);
+            motionTrigger = new MotionTrigger(preEventEncoder, motionConfig, directory,
+                    analysis.getWidth(), analysis.getHeight(), new MotionTrigger.Listener() {
+                @Override
+                public void onMotionChanged(boolean active) {
+                    setStatus(active ? "MOTION: REC " + fps + " FPS" : armed);
+                }
+
+                @Override
+                public void onEventSaved(String filepath, long frames, long durationMs) {
+                    runOnUiThread(() -> Toast.makeText(context, "Motion clip saved", Toast.LENGTH_SHORT).show());
+                }
+            });
+            analysisSurface = motionTrigger.prepare();
+            status = armed;
+            Log.d(TAG, "Motion trigger: " + motionConfig + ", analysis " + analysis);
+        }
+        PreEventEncoder started = preEventEncoder;
+        startEncoderSession(encoderSurface, analysisSurface, width, height, new Range<>(plan.aeLower, plan.aeUpper),
+                started::start, status);
+    }
+
+    // Smallest size with the video's aspect ratio that still has some detail (>= 320 wide)
+    private Size chooseAnalysisSize(int width, int height) {
+        Size best = null;
+        for (Size size : getAvailableVideoSizes()) {
+            if (size.getWidth() < 320) continue;
+            boolean sameAspect = Math.abs((float) size.getWidth() / size.getHeight() - (float) width / height) < 0.05f;
+            if (!sameAspect) continue;
+            if (best == null || size.getWidth() < best.getWidth()) best = size;
+        }
+        return best != null ? best : new Size(640, 480);
+    }
+
+    // Session for the MediaCodec engines: encoder surface, the analysis stream (motion trigger)
+    // and the preview, if there are any
+    private void startEncoderSession(Surface encoderSurface, Surface analysisSurface, int width, int height,
+                                     Range<Integer> aeRange, Runnable startEncoder, String status)
+            throws CameraAccessException {
+        List<Surface> surfaces = new ArrayList<>();
+        surfaces.add(encoderSurface);
+        if (analysisSurface != null) surfaces.add(analysisSurface);
+
+        Surface previewSurface = null;
+        if (hasPreview()) {
+            SurfaceTexture texture = textureView.getSurfaceTexture();
+            Size buffer = previewBufferSize(width, height);
+            texture.setDefaultBufferSize(buffer.getWidth(), buffer.getHeight());
+            previewSurface = new Surface(texture);
+            surfaces.add(previewSurface);
+        }
+
+        previewRequestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+        previewRequestBuilder.addTarget(encoderSurface);
+        if (analysisSurface != null) previewRequestBuilder.addTarget(analysisSurface);
+        if (previewSurface != null) {
+            previewRequestBuilder.addTarget(previewSurface);
+        }
+        previewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, aeRange);
+        // A fourth output next to the analysis stream is more than most HALs guarantee
+        if (analysisSurface == null) addSnapshotOutput(surfaces, width, height, aeRange);
+
+        TimelineRecorder.begin("recording_session");
+        createRecordingSession(surfaces, new CameraCaptureSession.StateCallback() {
+            @Override
+            public void onConfigured(CameraCaptureSession session) {
+                TimelineRecorder.end("recording_session");
+                captureSession = session;
+                try {
+                    TimelineRecorder.begin("start_recorder");
+                    startEncoder.run();
+                    TimelineRecorder.end("start_recorder");
+                    session.setRepeatingRequest(previewRequestBuilder.build(), captureCallback, backgroundHandler);
+                    stateMachine.moveTo(CameraStateMachine.State.RECORDING);
+
+                    runOnUiThread(() -> {
+                        if (statusView != null) statusView.setText(status);
+                        Toast.makeText(context, "Recording Started", Toast.LENGTH_SHORT).show();
+                    });
+                } catch (Exception e) {
+                    Log.e(TAG, "Encoder start failed", e);
+                    startPreview();
+                }
+            }
+
+            @Override
+            public void onConfigureFailed(CameraCaptureSession session) {
+                TimelineRecorder.end("recording_session");
+                runOnUiThread(() -> Toast.makeText(context, "Configuration Failed", Toast.LENGTH_SHORT).show());
+                startPreview();
+            }
+        }, backgroundHandler);
+    }
+
+    // Adds a JPEG output at the video's size (or the nearest legal JPEG size) to a recording
+    // session being built; the guaranteed PRIV preview + PRIV record + JPEG record combination
+    private void addSnapshotOutput(List<Surface> surfaces, int width, int height, Range<Integer> aeRange) {
+        recordingTargets = new ArrayList<>(surfaces);
+        recordingAeRange = aeRange;
+        CameraCapabilities.Camera camera = cameraId != null ? CameraCapabilityCache.getCamera(context, cameraId) : null;
+        if (camera == null || !camera.supportsVideoSnapshot()) return;
+        ResolutionIndex.Match size = getPhotoIndex().nearest(width, height);
+        ImageReader reader = ImageReader.newInstance(size.width, size.height, ImageFormat.JPEG, SNAPSHOT_IMAGES);
+        reader.setOnImageAvailableListener(this::onSnapshotImage, backgroundHandler);
+        snapshotReader = reader;
+        surfaces.add(reader.getSurface());
+    }
+
+    // Like createCaptureSession, but a HAL that refuses the snapshot output gets a second try
+    // without it, so recording never depends on it
+    private void createRecordingSession(List<Surface> surfaces, CameraCaptureSession.StateCallback callback)
+            throws CameraAccessException {
+        ImageReader reader = snapshotReader;
+        if (reader == null) {
+            cameraDevice.createCaptureSession(surfaces, callback, backgroundHandler);
+            return;
+        }
+        cameraDevice.createCaptureSession(surfaces, new CameraCaptureSession.StateCallback() {
+            @Override
+            public void onConfigured(CameraCaptureSession session) {
+                callback.onConfigured(session);
+            }
+
+            @Override
+            public void onConfigureFailed(CameraCaptureSession session) {
+                Log.w(TAG, "Session refused the snapshot output, recording without it");
+                List<Surface> withoutSnapshot = new ArrayList<>(surfaces);
+                withoutSnapshot.remove(reader.getSurface());
+                snapshotReader = null;
+                reader.close();
+                try {
+                    cameraDevice.createCaptureSession(withoutSnapshot, callback, backgroundHandler);
+                } catch (CameraAccessException | IllegalStateException e) {
+                    Log.e(TAG, "Recording session retry failed", e);
+                    callback.onConfigureFailed(session);
+                }
+            }
+        }, backgroundHandler);
+    }
+
+    // Whether takeSnapshot can serve a still without stopping the recording
+    public boolean canSnapshot() {
+        return snapshotReader != null && stateMachine.isIn(CameraStateMachine.State.RECORDING);
+    }
+
+    // Request -> JPEG on disk of the last snapshot, in ms; -1 until one completes
+    public long getLastSnapshotLatencyMs() {
+        return lastSnapshotLatencyMs;
+    }
+
+    // One TEMPLATE_VIDEO_SNAPSHOT frame of the running recording, written to path. The frame
+    // also goes to the recording's outputs, so the video doesn't skip it.
+    public void takeSnapshot(String path, Camera2PhotoCapture.PhotoCallback callback) {
+        backgroundHandler.post(() -> {
+            ImageReader reader = snapshotReader;
+            if (reader == null || captureSession == null || !stateMachine.isIn(CameraStateMachine.State.RECORDING)) {
+                callback.onError("No snapshot stream in this recording");
+                return;
+            }
+            // One reader slot stays free, as in Camera2PhotoCapture
+            if (snapshots.size() + snapshotWrites >= SNAPSHOT_IMAGES - 1) {
+                callback.onError("Snapshot writer busy");
+                return;
+            }
+            Snapshot snapshot = new Snapshot(path, callback);
+            try {
+                CaptureRequest.Builder builder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_VIDEO_SNAPSHOT);
+                for (Surface target : recordingTargets) builder.addTarget(target);
+                builder.addTarget(reader.getSurface());
+                builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, recordingAeRange);
+                builder.set(CaptureRequest.JPEG_QUALITY, (byte) 95);
+                builder.setTag(snapshot);
+                snapshots.add(snapshot);
+                TimelineRecorder.begin("capture");
+                captureSession.capture(builder.build(), snapshotCallback, backgroundHandler);
+            } catch (CameraAccessException | IllegalStateException e) {
+                if (snapshots.remove(snapshot)) TimelineRecorder.end("capture");
+                callback.onError(e.getMessage());
+            }
+        });
+    }
+
+    private final CameraCaptureSession.CaptureCallback snapshotCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
+            // Still a video frame as far as the metrics go
+            captureCallback.onCaptureCompleted(session, request, result);
+        }
+
+        @Override
+        public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request, CaptureFailure failure) {
+            captureCallback.onCaptureFailed(session, request, failure);
+            Snapshot snapshot = (Snapshot) request.getTag();
+            if (snapshot != null && snapshots.remove(snapshot)) {
+                TimelineRecorder.end("capture");
+                snapshot.callback.onError("Snapshot failed (reason " + failure.getReason() + ")");
+            }
+        }
+    };
+
+    private void onSnapshotImage(ImageReader reader) {
+        Image image;
+        try {
+            image = reader.acquireNextImage();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "acquireNextImage failed", e);
+            return;
+        }
+        if (image == null) return;
+        Snapshot snapshot = snapshots.poll();
+        if (snapshot == null) {
+            image.close();
+            return;
+        }
+        TimelineRecorder.end("capture");
+        if (snapshotWriter == null) snapshotWriter = new JpegWriter();
+        snapshotWrites++;
+        snapshotWriter.writeImage(image, snapshot.path, new JpegWriter.WriteCallback() {
+            @Override
+            public void onWritten(String filepath, long writeMs) {
+                backgroundHandler.post(() -> {
+                    onSnapshotWritten();
+                    lastSnapshotLatencyMs = SystemClock.elapsedRealtime() - snapshot.requestedAt;
+                    Log.d(TAG, "Snapshot-to-file latency: " + lastSnapshotLatencyMs + "ms (write " + writeMs + "ms)");
+                    snapshot.callback.onPhotoSaved(filepath);
+                });
+            }
+
+            @Override
+            public void onError(String error) {
+                backgroundHandler.post(() -> {
+                    onSnapshotWritten();
+                    snapshot.callback.onError(error);
+                });
+            }
+        });
+    }
+
+    private void onSnapshotWritten() {
+        snapshotWrites--;
+        if (snapshotWrites == 0 && retiredSnapshotReader != null) {
+            retiredSnapshotReader.close();
+            retiredSnapshotReader = null;
+        }
+    }
+
+    // Recording over: snapshots not captured yet fail, ones already captured still get written
+    private void releaseSnapshotOutput() {
+        ImageReader reader = snapshotReader;
+        snapshotReader = null;
+        recordingTargets = null;
+        if (reader == null || backgroundHandler == null) return;
+        backgroundHandler.post(() -> {
+            while (!snapshots.isEmpty()) {
+                TimelineRecorder.end("capture");
+                snapshots.poll().callback.onError("Recording stopped");
+            }
+            if (snapshotWrites > 0) retiredSnapshotReader = reader;
+            else reader.close();
+        });
+    }
+
+    // Camera thread already gone: nothing left to wait for
+    private void closeSnapshotOutput() {
+        if (snapshotReader != null) snapshotReader.close();
+        if (retiredSnapshotReader != null) retiredSnapshotReader.close();
+        snapshotReader = null;
+        retiredSnapshotReader = null;
+        recordingTargets = null;
+        snapshots.clear();
+        snapshotWrites = 0;
+        if (snapshotWriter != null && !sharedStorage) {
+            snapshotWriter.close();
+            snapshotWriter = null;
         }
     }
 
+    // Dashcam trigger: writes the buffered pre-roll plus postRollMs of live video to path (a
+    // timestamped Movies/EVENT_*.mp4 if null). Returns false if the pre-event engine isn't running.
+    public boolean saveEvent(String path, long postRollMs, PreEventEncoder.SaveCallback callback) {
+        PreEventEncoder encoder = preEventEncoder;
+        if (encoder == null) return false;
+        File file;
+        if (path != null && !path.isEmpty()) {
+            file = new File(path);
+            if (file.getParentFile() != null) file.getParentFile().mkdirs();
+        } else {
+            file = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MOVIES),
+                    "EVENT_" + new SimpleDateFormat("yyMMdd_HHmmss", Locale.US).format(new Date()) + ".mp4");
+        }
+        encoder.saveEvent(file, postRollMs >= 0 ? postRollMs : this.postRollMs, callback);
+        return true;
+    }
+
+    // Lowest-power legal AE range that still delivers captureFps frames per second
+    private Range<Integer> chooseSensorFpsRange(int width, int height, double captureFps) {
+        FpsRangeResolver.Plan plan = getFpsResolver().resolve(width, height, (int) Math.max(1, Math.ceil(captureFps)));
+        if (plan.possible) return new Range<>(plan.aeLower, plan.aeUpper);
+        int[] range = getFpsResolver().previewRange(width, height);
+        return new Range<>(range[0], range[1]);
+    }
+
     public void stopRecording() {
+        TimelineRecorder.begin("stop_recorder");
         try {
             if (captureSession != null) {
                 captureSession.stopRepeating();
@@ -231,7 +871,32 @@ public class Camera2VideoRecorder {
         } catch (Exception e) {
             Log.e(TAG, "Stop capture session failed", e);
         }
+        releaseSnapshotOutput();
         
+        if (timelapseEncoder != null) {
+            timelapseEncoder.stop(new TimelapseEncoder.Listener() {
+                @Override
+                public void onFinished(String filepath, long frames) {
+                    Log.d(TAG, "Time-lapse saved: " + filepath + " (" + frames + " frames)");
+                }
+                @Override
+                public void onError(String error) {
+                    Log.e(TAG, "Time-lapse failed: " + error);
+                    runOnUiThread(() -> Toast.makeText(context, "Error: " + error, Toast.LENGTH_LONG).show());
+                }
+            });
+            timelapseEncoder = null;
+        }
+        if (motionTrigger != null) {
+            motionTrigger.release();
+            motionTrigger = null;
+        }
+        if (preEventEncoder != null) {
+            // Finalizes an event still in its post-roll
+            preEventEncoder.stop();
+            preEventEncoder = null;
+        }
+
         try {
             if (mediaRecorder != null) {
                 mediaRecorder.stop();
@@ -240,11 +905,202 @@ public class Camera2VideoRecorder {
         } catch (Exception e) {
             Log.e(TAG, "Stop mediaRecorder failed", e);
         }
+        TimelineRecorder.end("stop_recorder");
         
-        runOnUiThread(() -> statusView.setText("Saved"));
+        setStatus("Saved");
+        stateMachine.moveTo(CameraStateMachine.State.DEVICE_OPENED);
         startPreview();
     }
 
+    private File resolveOutputFile(String customPath) {
+        File file;
+        if (customPath != null && !customPath.isEmpty()) {
+            file = new File(customPath);
+            if (file.getParentFile() != null) file.getParentFile().mkdirs();
+        } else {
+            file = new File(
+                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MOVIES),
+                "REC_" + new SimpleDateFormat("yyMMdd_HHmmss", Locale.US).format(new Date()) + ".mp4"
+            );
+        }
+        return file;
+    }
+
+    private MediaRecorder createMediaRecorder(File file, int width, int height, int fps) throws Exception {
+        MediaRecorder recorder = new MediaRecorder();
+        if (recordAudio) recorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+        recorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
+        recorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+        recorder.setOutputFile(file.getAbsolutePath());
+        EncoderCapabilities.Choice encoder = chooseEncoder(width, height, fps);
+        recorder.setVideoEncodingBitRate(targetBitrate(width, height, fps, encoder));
+        recorder.setVideoFrameRate(fps);
+        recorder.setVideoSize(width, height);
+        setVideoEncoder(recorder, encoder);
+        if (recordAudio) recorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
+        prepare(recorder);
+        return recorder;
+    }
+
+    // Usually the slowest step before a MediaRecorder start (codec allocation, file creation)
+    private static void prepare(MediaRecorder recorder) throws IOException {
+        TimelineRecorder.begin("prepare_recorder");
+        Trace.beginSection("MediaRecorder.prepare");
+        try {
+            recorder.prepare();
+        } finally {
+            Trace.endSection();
+            TimelineRecorder.end("prepare_recorder");
+        }
+    }
+
+    // First segment of a loop recording. The size limit triggers the switch, so a duration-only
+    // policy is turned into bytes from the target bitrate (segments run long on very static scenes).
+    @TargetApi(Build.VERSION_CODES.O)
+    private MediaRecorder createSegmentedMediaRecorder(int width, int height, int fps) throws Exception {
+        EncoderCapabilities.Choice encoder = chooseEncoder(width, height, fps);
+        int bitrate = targetBitrate(width, height, fps, encoder);
+        long bytes = segmentPolicy.segmentBytes;
+        if (segmentPolicy.segmentDurationMs > 0) {
+            long fromDuration = estimateBytes(bitrate + (recordAudio ? AUDIO_BITRATE_ESTIMATE : 0), segmentPolicy.segmentDurationMs);
+            bytes = bytes > 0 ? Math.min(bytes, fromDuration) : fromDuration;
+        }
+        segmentRing.setSegmentBytesHint(bytes);
+
+        File first = segmentRing.nextFile();
+        MediaRecorder recorder = new MediaRecorder();
+        if (recordAudio) recorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+        recorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
+        recorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+        recorder.setOutputFile(first.getAbsolutePath());
+        recorder.setMaxFileSize(bytes);
+        recorder.setVideoEncodingBitRate(bitrate);
+        recorder.setVideoFrameRate(fps);
+        recorder.setVideoSize(width, height);
+        setVideoEncoder(recorder, encoder);
+        if (recordAudio) recorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
+        recorder.setOnInfoListener((mr, what, extra) -> {
+            if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING) {
+                // Hand over the next file now; MediaRecorder switches to it without a gap
+                pendingSegment = segmentRing.nextFile();
+                try {
+                    mr.setNextOutputFile(pendingSegment);
+                } catch (Exception e) {
+                    Log.e(TAG, "setNextOutputFile failed", e);
+                }
+            } else if (what == MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED) {
+                if (pendingSegment != null) {
+                    // Before the ring can trim: the finished segment's size still counts
+                    mediaRecorderFile = pendingSegment;
+                    MetricsReporter reporter = metricsReporter;
+                    if (reporter != null) reporter.setWatchedFile(pendingSegment);
+                    segmentRing.onSegmentStarted(pendingSegment);
+                }
+                pendingSegment = null;
+            } else if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED) {
+                Log.e(TAG, "Segment limit reached without a next file, recording stopped");
+            }
+        });
+        prepare(recorder);
+        mediaRecorderFile = first;
+        segmentRing.onSegmentStarted(first);
+        Log.d(TAG, "Loop recording: " + segmentPolicy + ", rolling at " + bytes + " bytes");
+        return recorder;
+    }
+
+    private SegmentRing createSegmentRing(String customPath) {
+        File base;
+        if (customPath != null && !customPath.isEmpty()) {
+            base = new File(customPath);
+        } else {
+            // Fixed name, so a restarted loop finds and keeps counting the previous run's segments
+            base = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MOVIES), "LOOP.mp4");
+        }
+        String name = base.getName();
+        int dot = name.lastIndexOf('.');
+        String prefix = dot > 0 ? name.substring(0, dot) : name;
+        File directory = base.getParentFile() != null ? base.getParentFile() : new File(".");
+
+        if (segmentHandler == null) {
+            segmentThread = new HandlerThread("SegmentJanitor");
+            segmentThread.start();
+            segmentHandler = new Handler(segmentThread.getLooper());
+        }
+        SegmentRing ring = new SegmentRing(directory, prefix, ".mp4", segmentPolicy, segmentHandler::post);
+        ring.scanExisting();
+        return ring;
+    }
+
+    private static long estimateBytes(long bitsPerSecond, long durationMs) {
+        return bitsPerSecond * durationMs / 8000;
+    }
+
+    // Runs MediaRecorder.prepare() in parallel with openCamera so a pending recording command
+    // only has to build the session once the device is ready. No-op for the time-lapse engine.
+    public void prepareRecordingAsync(int fps, String customPath) {
+        int width = selectedVideoSize != null ? selectedVideoSize.getWidth() : 1920;
+        int height = selectedVideoSize != null ? selectedVideoSize.getHeight() : 1080;
+        FpsRangeResolver.Plan plan = getFpsResolver().resolve(width, height, fps);
+        if (!plan.possible || engine != Engine.MEDIA_RECORDER || (plan.needsDecimation && TimelapseEncoder.isSupported())) return;
+        // Loop recordings name their files from the segment ring at start
+        if (segmentPolicy != null && segmentPolicy.isEnabled()) return;
+
+        String key = preparedKey(width, height, fps, customPath);
+        new Thread(() -> {
+            synchronized (prepareLock) {
+                releasePreparedRecorder();
+                try {
+                    File file = resolveOutputFile(customPath);
+                    preparedRecorder = createMediaRecorder(file, width, height, fps);
+                    preparedKey = key;
+                    preparedFile = file;
+                } catch (Exception e) {
+                    Log.w(TAG, "Early MediaRecorder prepare failed, will retry at start", e);
+                }
+            }
+        }, "RecorderPrepare").start();
+    }
+
+    // Waits for an in-flight prepare; returns null (and drops it) if the settings changed since
+    private MediaRecorder takePreparedRecorder(String key) {
+        synchronized (prepareLock) {
+            if (preparedRecorder == null) return null;
+            if (!key.equals(preparedKey)) {
+                releasePreparedRecorder();
+                return null;
+            }
+            MediaRecorder recorder = preparedRecorder;
+            Log.d(TAG, "Using MediaRecorder prepared ahead for " + preparedFile);
+            mediaRecorderFile = preparedFile;
+            preparedRecorder = null;
+            preparedKey = null;
+            preparedFile = null;
+            return recorder;
+        }
+    }
+
+    private void releasePreparedRecorder() {
+        synchronized (prepareLock) {
+            if (preparedRecorder != null) {
+                preparedRecorder.release();
+                // Don't leave an empty file behind for a recording that never started
+                if (preparedFile != null && preparedFile.length() == 0) preparedFile.delete();
+            }
+            preparedRecorder = null;
+            preparedKey = null;
+            preparedFile = null;
+        }
+    }
+
+    // Every input createMediaRecorder() builds from, so a recorder prepared under one intent's
+    // extras is never started under another's
+    private String preparedKey(int width, int height, int fps, String customPath) {
+        EncoderCapabilities.Choice encoder = chooseEncoder(width, height, fps);
+        return width + "x" + height + "@" + fps + ":" + customPath + ", " + engine + (recordAudio ? ", audio" : "")
+                + ", " + (encoder != null ? encoder + (encoder.platformDefault ? " default" : "") : "platform encoder")
+                + ", " + targetBitrate(width, height, fps, encoder) + " bps";
+    }
+
     private void closePreviewSession() {
         if (captureSession != null) {
             captureSession.close();
@@ -254,6 +1110,8 @@ public class Camera2VideoRecorder {
     
     // Cleanup method
     public void closeCamera() {
+        endMetrics();
+        releasePreparedRecorder();
         closePreviewSession();
         if (cameraDevice != null) {
             cameraDevice.close();
@@ -263,12 +1121,32 @@ public class Camera2VideoRecorder {
             mediaRecorder.release();
             mediaRecorder = null;
         }
+        if (timelapseEncoder != null) {
+            timelapseEncoder.release();
+            timelapseEncoder = null;
+        }
+        if (motionTrigger != null) {
+            motionTrigger.release();
+            motionTrigger = null;
+        }
+        if (preEventEncoder != null) {
+            preEventEncoder.stop();
+            preEventEncoder = null;
+        }
         stopBackgroundThread();
+        closeSnapshotOutput();
+        if (segmentThread != null) {
+            // Lets queued deletes finish
+            segmentThread.quitSafely();
+            segmentThread = null;
+            segmentHandler = null;
+        }
+        stateMachine.moveTo(CameraStateMachine.State.CLOSED);
     }
     
     private void startBackgroundThread() {
         if (backgroundThread == null) {
-            backgroundThread = new HandlerThread("CameraBackground");
+            backgroundThread = new HandlerThread(requestedCameraId != null ? "CameraBackground-" + requestedCameraId : "CameraBackground");
             backgroundThread.start();
             backgroundHandler = new Handler(backgroundThread.getLooper());
         }
@@ -285,35 +1163,231 @@ public class Camera2VideoRecorder {
         }
     }
 
-    // Helper: Bitrate calculation
-    private int calculateBitrate(int width, int height, int fps) {
-        int pixels = width * height;
-        double bitsPerPixel = fps <= 5 ? 0.25 : 0.15;
-        int bitrate = (int) (pixels * fps * bitsPerPixel);
-        return Math.max(500000, Math.min(bitrate, 20000000));
+    // Null falls back to the platform's default AVC encoder. MediaRecorder and MediaMuxer only
+    // take HEVC from API 24.
+    private EncoderCapabilities.Choice chooseEncoder(int width, int height, int fps) {
+        EncoderCapabilities.Choice choice = EncoderCapabilityCache.get(context).choose(width, height, fps,
+                codecPreference, Build.VERSION.SDK_INT >= Build.VERSION_CODES.N);
+        Log.d(TAG, "Encoder for " + width + "x" + height + "@" + fps + ": " + (choice != null ? choice : "platform default"));
+        return choice;
+    }
+
+    private int iFrameInterval(int fps) {
+        return iFrameIntervalSeconds > 0 ? iFrameIntervalSeconds : EncoderCapabilities.defaultIFrameIntervalSeconds(fps);
+    }
+
+    // MediaRecorder picks the first encoder of the type itself; profile/level only when that is
+    // the one negotiated, so they are known to be supported
+    private void setVideoEncoder(MediaRecorder recorder, EncoderCapabilities.Choice encoder) {
+        if (encoder != null && encoder.isHevc() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            recorder.setVideoEncoder(MediaRecorder.VideoEncoder.HEVC);
+        } else {
+            recorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
+        }
+        if (encoder != null && encoder.platformDefault && encoder.profile > 0
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            recorder.setVideoEncodingProfileLevel(encoder.profile, encoder.level);
+        }
+    }
+
+    // Starting (and, for MediaRecorder, fixed) bitrate: the ceiling, scaled down for HEVC
+    private int targetBitrate(int width, int height, int fps, EncoderCapabilities.Choice encoder) {
+        if (bitrateCeilingBps > 0) return bitrateCeilingBps;
+        if (encoder == null) return BitrateController.defaultCeiling(width, height, fps);
+        int bitrate = (int) (BitrateController.defaultCeiling(width, height, fps) * encoder.bitrateScale());
+        return encoder.encoder.maxBitrate > 0 ? Math.min(bitrate, encoder.encoder.maxBitrate) : bitrate;
+    }
+
+    private BitrateController createBitrateController(int ceiling) {
+        if (!adaptiveBitrate) return null;
+        int floor = bitrateFloorBps > 0 ? bitrateFloorBps : BitrateController.defaultFloor(ceiling);
+        BitrateController controller = new BitrateController(floor, ceiling);
+        Log.d(TAG, "Adaptive bitrate: " + controller);
+        return controller;
     }
     
-    // Helper: Get Sizes (simplified for brevity, logic same as before)
+    // Built once per camera: the MediaRecorder and JPEG size lists with their preset/"WxH"/aspect
+    // lookups, largest first
+    private ResolutionIndex videoIndex;
+    private ResolutionIndex photoIndex;
+    private String indexedCameraId;
+
+    public ResolutionIndex getVideoIndex() {
+        indexCamera();
+        return videoIndex;
+    }
+
+    public ResolutionIndex getPhotoIndex() {
+        indexCamera();
+        return photoIndex;
+    }
+
+    private void indexCamera() {
+        if (videoIndex != null && cameraId != null && cameraId.equals(indexedCameraId)) return;
+        CameraCapabilities.Camera camera = cameraId != null ? CameraCapabilityCache.getCamera(context, cameraId) : null;
+        if (camera != null && camera.videoSizeCount() > 0) {
+            videoIndex = new ResolutionIndex(camera.videoSizes, camera.videoMinFrameDurations);
+            photoIndex = camera.jpegSizes.length > 0 ? new ResolutionIndex(camera.jpegSizes, null) : videoIndex;
+            fpsResolver = buildFpsResolver(camera);
+            indexedCameraId = cameraId;
+        } else if (videoIndex == null || indexedCameraId != null) {
+            // Nothing known yet: Full HD only, rebuilt once the camera is
+            videoIndex = new ResolutionIndex(new int[]{1920, 1080}, null);
+            photoIndex = videoIndex;
+            indexedCameraId = null;
+        }
+    }
+
     public List<Size> getAvailableVideoSizes() {
-        List<Size> sizes = new ArrayList<>();
-        try {
-            CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
-            if (cameraId != null) {
-                CameraCharacteristics chars = manager.getCameraCharacteristics(cameraId);
-                StreamConfigurationMap map = chars.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-                if (map != null) {
-                    sizes.addAll(Arrays.asList(map.getOutputSizes(MediaRecorder.class)));
-                    Collections.sort(sizes, (s1, s2) -> Integer.compare(s2.getWidth()*s2.getHeight(), s1.getWidth()*s1.getHeight()));
-                }
-            }
-        } catch (Exception e) {}
-        if (sizes.isEmpty()) sizes.add(new Size(1920, 1080));
+        ResolutionIndex index = getVideoIndex();
+        List<Size> sizes = new ArrayList<>(index.size());
+        for (int i = 0; i < index.size(); i++) sizes.add(new Size(index.width(i), index.height(i)));
         return sizes;
     }
-    
+
+    private FpsRangeResolver buildFpsResolver(CameraCapabilities.Camera camera) {
+        FpsRangeResolver resolver = new FpsRangeResolver(camera.fpsRanges, TimelapseEncoder.isSupported());
+        for (int i = 0; i < camera.videoSizeCount(); i++) {
+            resolver.addSize(camera.videoSizes[i * 2], camera.videoSizes[i * 2 + 1], camera.videoMinFrameDurations[i]);
+        }
+        resolver.precompute(FPS_OPTIONS);
+        for (FpsRangeResolver.Plan plan : resolver.impossiblePlans()) {
+            Log.d(TAG, "Unsupported: " + plan);
+        }
+        return resolver;
+    }
+
+    // Falls back to a resolver built from the current camera if the size list wasn't queried yet
+    private FpsRangeResolver getFpsResolver() {
+        if (fpsResolver == null) indexCamera();
+        if (fpsResolver == null) return new FpsRangeResolver(new int[][]{{15, 30}}, TimelapseEncoder.isSupported());
+        return fpsResolver;
+    }
+
+    // Lets callers check a rate for the selected size before asking to record it
+    public FpsRangeResolver.Plan resolveFps(int fps) {
+        int width = selectedVideoSize != null ? selectedVideoSize.getWidth() : 1920;
+        int height = selectedVideoSize != null ? selectedVideoSize.getHeight() : 1080;
+        return getFpsResolver().resolve(width, height, fps);
+    }
+
+    // Opens this camera instead of the first back-facing one; call before openCamera()
+    public void setCameraId(String id) {
+        this.requestedCameraId = id;
+    }
+
+    public String getCameraId() {
+        return cameraId;
+    }
+
+    public void setAudioEnabled(boolean enabled) {
+        this.recordAudio = enabled;
+    }
+
+    public void setMetricsLabel(String label) {
+        this.metricsLabel = label;
+    }
+
+    // null, null goes back to this recorder's own thread and writer (created on demand)
+    public void setSharedStorage(Handler storageHandler, JpegWriter writer) {
+        if (snapshotWriter != null && !sharedStorage) snapshotWriter.close();
+        if (segmentThread != null) {
+            segmentThread.quitSafely();
+            segmentThread = null;
+        }
+        this.segmentHandler = storageHandler;
+        this.snapshotWriter = writer;
+        this.sharedStorage = storageHandler != null;
+    }
+
     public void setVideoSize(Size size) {
         this.selectedVideoSize = size;
     }
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+    public void setTimelapseFactor(double factor) {
+        this.timelapseFactor = factor > 0 ? factor : 1.0;
+    }
+    public void setPreEventWindow(long preRollMs, long postRollMs, int bufferBytes) {
+        this.preRollMs = Math.max(0, preRollMs);
+        this.postRollMs = Math.max(0, postRollMs);
+        this.preEventBufferBytes = Math.max(0, bufferBytes);
+    }
+    // mime: EncoderCapabilities.MIME_AVC / MIME_HEVC, null = auto
+    public void setCodecOptions(String mime, int iFrameIntervalSeconds) {
+        this.codecPreference = mime;
+        this.iFrameIntervalSeconds = Math.max(0, iFrameIntervalSeconds);
+    }
+    public void setBitrateLimits(int floorBps, int ceilingBps, boolean adaptive) {
+        this.bitrateFloorBps = Math.max(0, floorBps);
+        this.bitrateCeilingBps = Math.max(0, ceilingBps);
+        this.adaptiveBitrate = adaptive;
+    }
+    // false drops the preview target from every session, e.g. for hide_preview / background
+    public void setPreviewEnabled(boolean enabled) {
+        this.previewEnabled = enabled;
+    }
+    public void setMetricsInterval(long intervalMs) {
+        this.metricsIntervalMs = Math.max(0, intervalMs);
+    }
+    public void setIdlePreviewFps(int fps) {
+        this.idlePreviewFps = Math.max(0, fps);
+    }
+    // Gates the pre-event engine on motion; null buffers until saveEvent() instead
+    public void setMotionTrigger(MotionDetector.Config config) {
+        this.motionConfig = config;
+    }
+    // null turns loop recording off
+    public void setSegmentPolicy(SegmentRing.Policy policy) {
+        this.segmentPolicy = policy;
+    }
+
+    // Recording options shared by every intent entry point (Activity and service)
+    public void applyIntentExtras(Intent intent) {
+        // engine=timelapse encodes exact 1-2 FPS / time-lapse output via MediaCodec,
+        // engine=pre_event buffers in memory until a mode=save intent
+        String engineName = intent.getStringExtra("engine");
+        if ("timelapse".equalsIgnoreCase(engineName)) setEngine(Engine.TIMELAPSE);
+        else if ("pre_event".equalsIgnoreCase(engineName)) setEngine(Engine.PRE_EVENT);
+        else setEngine(Engine.MEDIA_RECORDER);
+        // trigger=motion: pre-event engine writing a MOTION_*.mp4 clip per motion period, with
+        // motion_threshold (luma 0-255 per grid cell), motion_area (% of cells), motion_frames
+        // (consecutive frames to start) and hangover_seconds (quiet time to stop)
+        if ("motion".equalsIgnoreCase(intent.getStringExtra("trigger"))) {
+            setEngine(Engine.PRE_EVENT);
+            MotionDetector.Config defaults = MotionDetector.Config.defaults();
+            setMotionTrigger(new MotionDetector.Config(defaults.gridCols, defaults.gridRows,
+                    intent.getIntExtra("motion_threshold", defaults.cellThreshold),
+                    intent.getFloatExtra("motion_area", defaults.areaThreshold * 100) / 100f,
+                    intent.getIntExtra("motion_frames", defaults.triggerFrames),
+                    intent.getIntExtra("hangover_seconds", (int) (defaults.hangoverMs / 1000)) * 1000L));
+        } else {
+            setMotionTrigger(null);
+        }
+        setTimelapseFactor(intent.getFloatExtra("timelapse_factor", 1f));
+        setPreEventWindow(intent.getIntExtra("pre_seconds", 20) * 1000L, intent.getIntExtra("post_seconds", 10) * 1000L,
+                intent.getIntExtra("buffer_mb", 0) << 20);
+        // Loop recording: segment_seconds / segment_mb per file, keep_segments / quota_mb on disk
+        SegmentRing.Policy policy = new SegmentRing.Policy(
+                intent.getIntExtra("segment_seconds", 0) * 1000L,
+                intent.getIntExtra("segment_mb", 0) * 1024L * 1024L,
+                intent.getIntExtra("keep_segments", 0),
+                intent.getIntExtra("quota_mb", 0) * 1024L * 1024L);
+        setSegmentPolicy(policy.isEnabled() ? policy : null);
+        // metrics_seconds: snapshot interval for the METRICS broadcast and stats files, 0 = off
+        setMetricsInterval(intent.getIntExtra("metrics_seconds", 10) * 1000L);
+        if (intent.hasExtra("preview_fps")) setIdlePreviewFps(intent.getIntExtra("preview_fps", 15));
+        // min_bitrate_kbps / max_bitrate_kbps bound the adaptive range; adaptive_bitrate=false pins the max
+        setBitrateLimits(intent.getIntExtra("min_bitrate_kbps", 0) * 1000, intent.getIntExtra("max_bitrate_kbps", 0) * 1000,
+                intent.getBooleanExtra("adaptive_bitrate", true));
+        // codec=hevc|avc (default: most efficient hardware encoder), gop_seconds between keyframes
+        String codec = intent.getStringExtra("codec");
+        String mime = null;
+        if ("hevc".equalsIgnoreCase(codec) || "h265".equalsIgnoreCase(codec)) mime = EncoderCapabilities.MIME_HEVC;
+        else if ("avc".equalsIgnoreCase(codec) || "h264".equalsIgnoreCase(codec)) mime = EncoderCapabilities.MIME_AVC;
+        setCodecOptions(mime, intent.getIntExtra("gop_seconds", 0));
+    }
     public CameraDevice getCameraDevice() {
         return this.cameraDevice;
     }
@@ -321,4 +1395,8 @@ public class Camera2VideoRecorder {
     public Handler getBackgroundHandler() {
         return this.backgroundHandler;
     }
+
+    public CameraStateMachine getStateMachine() {
+        return stateMachine;
+    }
 }
\ No newline at end of file
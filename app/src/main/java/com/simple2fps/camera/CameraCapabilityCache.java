@@ -0,0 +1,197 @@
+package com.simple2fps.camera;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+// Process-wide cache of camera capabilities. Intent-triggered cold starts read a small file
+// (keyed by the build fingerprint, so an OTA invalidates it) instead of walking
+// getCameraIdList()/getCameraCharacteristics() over binder every time.
+public class CameraCapabilityCache {
+    private static final String TAG = "CameraCapabilityCache";
+    private static final String FILE_NAME = "camera_caps.bin";
+
+    private static CameraCapabilities memory;
+
+    public static synchronized CameraCapabilities get(Context context) {
+        if (memory != null) return memory;
+
+        long start = SystemClock.elapsedRealtime();
+        CameraCapabilities loaded = load(context);
+        if (loaded != null) {
+            memory = loaded;
+            Log.d(TAG, "Loaded from file in " + (SystemClock.elapsedRealtime() - start) + "ms");
+            return memory;
+        }
+
+        CameraCapabilities queried = query(context);
+        Log.d(TAG, "Queried CameraManager in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        // Nothing found (no permission yet, camera service hiccup): don't pin that result
+        if (queried.cameras.isEmpty()) return queried;
+        memory = queried;
+        CameraCapabilities toSave = memory;
+        Context appContext = context.getApplicationContext();
+        new Thread(() -> save(appContext, toSave), "CapabilityCacheWriter").start();
+        return memory;
+    }
+
+    public static CameraCapabilities.Camera getCamera(Context context, String cameraId) {
+        return get(context).find(cameraId);
+    }
+
+    // Call when a cached camera id turns out to be stale (e.g. openCamera rejected it)
+    public static synchronized void invalidate(Context context) {
+        memory = null;
+        new File(context.getFilesDir(), FILE_NAME).delete();
+    }
+
+    static CameraCapabilities load(Context context) {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        if (!file.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            CameraCapabilities caps = CameraCapabilities.readFrom(in);
+            if (!Build.FINGERPRINT.equals(caps.fingerprint)) {
+                Log.d(TAG, "Fingerprint changed, re-querying");
+                return null;
+            }
+            return caps;
+        } catch (Exception e) {
+            Log.w(TAG, "Capability file unreadable, re-querying", e);
+            return null;
+        }
+    }
+
+    static void save(Context context, CameraCapabilities caps) {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        File tmp = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            caps.writeTo(out);
+        } catch (Exception e) {
+            Log.w(TAG, "Could not write capability file", e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) tmp.delete();
+    }
+
+    static CameraCapabilities query(Context context) {
+        List<CameraCapabilities.Camera> cameras = new ArrayList<>();
+        List<String[]> concurrentSets = new ArrayList<>();
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            for (String id : manager.getCameraIdList()) {
+                CameraCharacteristics chars = manager.getCameraCharacteristics(id);
+                Integer facing = chars.get(CameraCharacteristics.LENS_FACING);
+                StreamConfigurationMap map = chars.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+
+                Size[] videoSizes = map != null ? map.getOutputSizes(MediaRecorder.class) : null;
+                if (videoSizes == null) videoSizes = new Size[0];
+                long[] durations = new long[videoSizes.length];
+                for (int i = 0; i < videoSizes.length; i++) {
+                    durations[i] = map.getOutputMinFrameDuration(MediaRecorder.class, videoSizes[i]);
+                }
+                Size[] jpegSizes = map != null ? map.getOutputSizes(ImageFormat.JPEG) : null;
+
+                Range<Integer>[] ranges = chars.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+                int[][] fpsRanges = new int[ranges != null ? ranges.length : 0][];
+                for (int i = 0; i < fpsRanges.length; i++) {
+                    fpsRanges[i] = new int[]{ranges[i].getLower(), ranges[i].getUpper()};
+                }
+
+                Range<Long> exposure = chars.get(CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE);
+                Range<Integer> iso = chars.get(CameraCharacteristics.SENSOR_INFO_SENSITIVITY_RANGE);
+                Integer level = chars.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+                Integer timestampSource = chars.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+
+                cameras.add(new CameraCapabilities.Camera(id,
+                        facing != null ? facing : CameraCapabilities.FACING_EXTERNAL,
+                        pack(videoSizes), durations, pack(jpegSizes), fpsRanges,
+                        exposure != null ? exposure.getLower() : 0, exposure != null ? exposure.getUpper() : 0,
+                        iso != null ? iso.getLower() : 0, iso != null ? iso.getUpper() : 0,
+                        level != null ? level : CameraCapabilities.LEVEL_LEGACY, reprocessing(chars),
+                        timestampSource != null && timestampSource == CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME));
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                for (Set<String> set : manager.getConcurrentCameraIds()) concurrentSets.add(set.toArray(new String[0]));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Capability query failed", e);
+        }
+        return new CameraCapabilities(Build.FINGERPRINT, cameras, concurrentSets);
+    }
+
+    private static int reprocessing(CameraCharacteristics chars) {
+        int[] available = chars.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        int reprocessing = 0;
+        if (available == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return reprocessing;
+        for (int capability : available) {
+            if (capability == CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_PRIVATE_REPROCESSING) {
+                reprocessing |= CameraCapabilities.REPROCESS_PRIVATE;
+            } else if (capability == CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_YUV_REPROCESSING) {
+                reprocessing |= CameraCapabilities.REPROCESS_YUV;
+            }
+        }
+        return reprocessing;
+    }
+
+    private static int[] pack(Size[] sizes) {
+        if (sizes == null) return new int[0];
+        int[] packed = new int[sizes.length * 2];
+        for (int i = 0; i < sizes.length; i++) {
+            packed[i * 2] = sizes[i].getWidth();
+            packed[i * 2 + 1] = sizes[i].getHeight();
+        }
+        return packed;
+    }
+
+    // Cold (CameraManager) vs warm (file) vs hot (memory) capability lookup, averaged over runs.
+    // Slow: does real binder queries, so call it off the main thread.
+    public static String benchmark(Context context, int runs) {
+        long queryNs = 0, fileNs = 0, memoryNs = 0;
+        CameraCapabilities caps = null;
+        for (int i = 0; i < runs; i++) {
+            long t0 = SystemClock.elapsedRealtimeNanos();
+            caps = query(context);
+            long t1 = SystemClock.elapsedRealtimeNanos();
+            queryNs += t1 - t0;
+        }
+        save(context, caps);
+        for (int i = 0; i < runs; i++) {
+            long t0 = SystemClock.elapsedRealtimeNanos();
+            load(context);
+            long t1 = SystemClock.elapsedRealtimeNanos();
+            fileNs += t1 - t0;
+        }
+        get(context);
+        for (int i = 0; i < runs; i++) {
+            long t0 = SystemClock.elapsedRealtimeNanos();
+            get(context);
+            long t1 = SystemClock.elapsedRealtimeNanos();
+            memoryNs += t1 - t0;
+        }
+        String result = String.format(Locale.US, "Capabilities (%d cameras, %d runs): cold %.2f ms, file %.2f ms, memory %.4f ms",
+                caps.cameras.size(), runs, queryNs / 1e6 / runs, fileNs / 1e6 / runs, memoryNs / 1e6 / runs);
+        Log.i(TAG, result);
+        return result;
+    }
+}
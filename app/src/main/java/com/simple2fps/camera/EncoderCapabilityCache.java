@@ -0,0 +1,177 @@
+package com.simple2fps.camera;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Range;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Process-wide cache of the encoder list, same scheme as CameraCapabilityCache: memory, then a
+// file keyed by the build fingerprint, then a MediaCodecList walk (tens of ms, it loads every
+// codec's capability XML).
+public class EncoderCapabilityCache {
+    private static final String TAG = "EncoderCapabilityCache";
+    private static final String FILE_NAME = "encoder_caps.bin";
+
+    private static EncoderCapabilities memory;
+
+    public static synchronized EncoderCapabilities get(Context context) {
+        if (memory != null) return memory;
+
+        long start = SystemClock.elapsedRealtime();
+        EncoderCapabilities loaded = load(context);
+        if (loaded != null) {
+            memory = loaded;
+            Log.d(TAG, "Loaded from file in " + (SystemClock.elapsedRealtime() - start) + "ms");
+            return memory;
+        }
+
+        memory = query();
+        Log.d(TAG, "Probed MediaCodecList in " + (SystemClock.elapsedRealtime() - start) + "ms: "
+                + memory.encoders.size() + " encoders");
+        EncoderCapabilities toSave = memory;
+        Context appContext = context.getApplicationContext();
+        new Thread(() -> save(appContext, toSave), "EncoderCacheWriter").start();
+        return memory;
+    }
+
+    // Call when a cached encoder refused to configure
+    public static synchronized void invalidate(Context context) {
+        memory = null;
+        new File(context.getFilesDir(), FILE_NAME).delete();
+    }
+
+    static EncoderCapabilities load(Context context) {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        if (!file.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            EncoderCapabilities caps = EncoderCapabilities.readFrom(in);
+            if (!Build.FINGERPRINT.equals(caps.fingerprint)) {
+                Log.d(TAG, "Fingerprint changed, re-probing");
+                return null;
+            }
+            return caps;
+        } catch (Exception e) {
+            Log.w(TAG, "Encoder file unreadable, re-probing", e);
+            return null;
+        }
+    }
+
+    static void save(Context context, EncoderCapabilities caps) {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        File tmp = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            caps.writeTo(out);
+        } catch (Exception e) {
+            Log.w(TAG, "Could not write encoder file", e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) tmp.delete();
+    }
+
+    static EncoderCapabilities query() {
+        List<EncoderCapabilities.Encoder> encoders = new ArrayList<>();
+        try {
+            for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+                if (!info.isEncoder()) continue;
+                for (String type : info.getSupportedTypes()) {
+                    String mime = type.toLowerCase(Locale.US);
+                    if (!EncoderCapabilities.MIME_AVC.equals(mime) && !EncoderCapabilities.MIME_HEVC.equals(mime)) continue;
+                    EncoderCapabilities.Encoder encoder = describe(info, type, mime);
+                    if (encoder != null) encoders.add(encoder);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Encoder probe failed", e);
+        }
+        return new EncoderCapabilities(Build.FINGERPRINT, encoders);
+    }
+
+    private static EncoderCapabilities.Encoder describe(MediaCodecInfo info, String type, String mime) {
+        MediaCodecInfo.CodecCapabilities caps = info.getCapabilitiesForType(type);
+        MediaCodecInfo.VideoCapabilities video = caps.getVideoCapabilities();
+        if (video == null) return null;
+
+        int[] profileLevels = new int[caps.profileLevels.length * 2];
+        for (int i = 0; i < caps.profileLevels.length; i++) {
+            profileLevels[i * 2] = caps.profileLevels[i].profile;
+            profileLevels[i * 2 + 1] = caps.profileLevels[i].level;
+        }
+        int[] maxFps = new int[EncoderCapabilities.PROBE_SIZES.length];
+        for (int i = 0; i < maxFps.length; i++) {
+            int w = EncoderCapabilities.PROBE_SIZES[i][0];
+            int h = EncoderCapabilities.PROBE_SIZES[i][1];
+            if (!video.isSizeSupported(w, h)) continue;
+            Range<Double> rates = video.getSupportedFrameRatesFor(w, h);
+            maxFps[i] = (int) Math.floor(rates.getUpper());
+        }
+        return new EncoderCapabilities.Encoder(info.getName(), mime, isHardware(info), profileLevels,
+                video.getWidthAlignment(), video.getHeightAlignment(),
+                video.getSupportedWidths().getUpper(), video.getSupportedHeights().getUpper(),
+                maxFps, video.getBitrateRange().getUpper());
+    }
+
+    private static boolean isHardware(MediaCodecInfo info) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) return info.isHardwareAccelerated();
+        String name = info.getName().toLowerCase(Locale.US);
+        return !name.startsWith("omx.google.") && !name.startsWith("c2.android.") && !name.contains(".sw.");
+    }
+
+    // Creates and configures a surface-input encoder, the chosen one or the platform AVC one when
+    // choice is null, in async mode on handler. Profile and level go in when known; an encoder
+    // that rejects them is configured again without, rather than failing the recording.
+    @TargetApi(Build.VERSION_CODES.M)
+    public static MediaCodec createEncoder(EncoderCapabilities.Choice choice, int width, int height, int bitrate,
+                                           int fps, int iFrameIntervalSeconds, MediaCodec.Callback callback,
+                                           Handler handler) throws IOException {
+        String mime = choice != null ? choice.encoder.mime : EncoderCapabilities.MIME_AVC;
+        MediaCodec codec = choice != null
+                ? MediaCodec.createByCodecName(choice.encoder.name)
+                : MediaCodec.createEncoderByType(mime);
+        codec.setCallback(callback, handler);
+        if (choice != null && choice.profile > 0) {
+            MediaFormat format = videoFormat(mime, width, height, bitrate, fps, iFrameIntervalSeconds);
+            format.setInteger(MediaFormat.KEY_PROFILE, choice.profile);
+            format.setInteger(MediaFormat.KEY_LEVEL, choice.level);
+            try {
+                codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                return codec;
+            } catch (Exception e) {
+                Log.w(TAG, choice + " rejected profile/level, configuring without", e);
+                codec.reset();
+                codec.setCallback(callback, handler);
+            }
+        }
+        codec.configure(videoFormat(mime, width, height, bitrate, fps, iFrameIntervalSeconds),
+                null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        return codec;
+    }
+
+    private static MediaFormat videoFormat(String mime, int width, int height, int bitrate, int fps,
+                                           int iFrameIntervalSeconds) {
+        MediaFormat format = MediaFormat.createVideoFormat(mime, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, fps);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iFrameIntervalSeconds);
+        return format;
+    }
+}
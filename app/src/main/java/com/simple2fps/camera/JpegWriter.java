@@ -0,0 +1,199 @@
+package com.simple2fps.camera;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.media.Image;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+// Dedicated writer stage so a slow SD card never stalls the camera callback thread.
+// JPEG planes are written straight from the Image's direct buffer; the Image is closed
+// (and its ImageReader slot freed) as soon as the bytes are forced to storage.
+public class JpegWriter {
+    private static final String TAG = "JpegWriter";
+    private static final int POOLED_BUFFERS = 3;
+
+    private HandlerThread writerThread;
+    private Handler writerHandler;
+    // CPU-encoded JPEGs are staged in pooled direct buffers, and YUV frames in one reused NV21
+    // array, so shots after the first allocate no pixel or JPEG memory; writer thread only
+    private final DirectBufferPool bufferPool = new DirectBufferPool(POOLED_BUFFERS);
+    private final StagingStream staging = new StagingStream();
+    private byte[] nv21;
+
+    public interface WriteCallback {
+        void onWritten(String filepath, long writeMs);
+        void onError(String error);
+    }
+
+    public JpegWriter() {
+        writerThread = new HandlerThread("JpegWriter");
+        writerThread.start();
+        writerHandler = new Handler(writerThread.getLooper());
+    }
+
+    // Takes ownership of image and closes it once written. JPEG only: YUV frames go through
+    // writeYuv, which honours their row and pixel strides.
+    public void writeImage(Image image, String path, WriteCallback callback) {
+        if (image.getFormat() != ImageFormat.JPEG) {
+            int format = image.getFormat();
+            image.close();
+            callback.onError("Not a JPEG image (format " + format + ")");
+            return;
+        }
+        boolean queued = writerHandler.post(() -> {
+            long start = SystemClock.elapsedRealtime();
+            Exception error;
+            try {
+                error = write(image.getPlanes()[0].getBuffer(), path);
+            } finally {
+                image.close();
+            }
+            report(path, start, error, callback);
+        });
+        if (!queued) closed(image, callback);
+    }
+
+    // Encodes a YUV_420_888 image to a JPEG file here, for frames that can't go back through the
+    // camera's own encoder. Takes ownership of image and closes it as soon as it is copied out.
+    public void writeYuv(Image image, String path, int quality, WriteCallback callback) {
+        boolean queued = writerHandler.post(() -> {
+            long start = SystemClock.elapsedRealtime();
+            int width = image.getWidth();
+            int height = image.getHeight();
+            try {
+                Image.Plane[] planes = image.getPlanes();
+                nv21 = Yuv420.toNv21(planes[0].getBuffer(), planes[0].getRowStride(), planes[1].getBuffer(),
+                        planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(), width, height, nv21);
+            } catch (Exception e) {
+                Log.e(TAG, "Image copy failed: " + path, e);
+                callback.onError(e.getMessage());
+                return;
+            } finally {
+                image.close();
+            }
+            encode(nv21, width, height, path, quality, start, callback);
+        });
+        if (!queued) closed(image, callback);
+    }
+
+    // Encodes an NV21 frame built on the CPU (stacked night shots, fused HDR shots). nv21 must
+    // stay untouched until the callback, which fires even if the writer was closed meanwhile.
+    public void writeNv21(byte[] nv21, int width, int height, String path, int quality, WriteCallback callback) {
+        if (!writerHandler.post(() -> encode(nv21, width, height, path, quality, SystemClock.elapsedRealtime(), callback))) {
+            callback.onError("Writer closed");
+        }
+    }
+
+    private void encode(byte[] nv21, int width, int height, String path, int quality, long start, WriteCallback callback) {
+        ByteBuffer jpeg;
+        TimelineRecorder.begin("jpeg_encode");
+        try {
+            staging.begin(width * height / 4);
+            new YuvImage(nv21, ImageFormat.NV21, width, height, null).compressToJpeg(new Rect(0, 0, width, height), quality, staging);
+            jpeg = staging.finish();
+        } catch (Exception e) {
+            Log.e(TAG, "Encode failed: " + path, e);
+            staging.abandon();
+            callback.onError(e.getMessage());
+            return;
+        } finally {
+            TimelineRecorder.end("jpeg_encode");
+        }
+        Exception error;
+        try {
+            error = write(jpeg, path);
+        } finally {
+            bufferPool.release(jpeg);
+        }
+        report(path, start, error, callback);
+    }
+
+    // The writer thread is gone: nothing will ever write or close the image
+    private static void closed(Image image, WriteCallback callback) {
+        image.close();
+        callback.onError("Writer closed");
+    }
+
+    private Exception write(ByteBuffer buffer, String path) {
+        TimelineRecorder.begin("jpeg_write");
+        Trace.beginSection("JpegWriter.write");
+        try {
+            ChannelWriter.writeFully(buffer, new File(path), true);
+            return null;
+        } catch (Exception e) {
+            Log.e(TAG, "Write failed: " + path, e);
+            return e;
+        } finally {
+            Trace.endSection();
+            TimelineRecorder.end("jpeg_write");
+        }
+    }
+
+    private void report(String path, long start, Exception error, WriteCallback callback) {
+        if (error == null) {
+            callback.onWritten(new File(path).getAbsolutePath(), SystemClock.elapsedRealtime() - start);
+        } else {
+            callback.onError(error.getMessage());
+        }
+    }
+
+    // compressToJpeg's output, straight into a pooled direct buffer that grows (by swapping for a
+    // bigger one) as needed; the channel then writes it without a temporary direct copy
+    private class StagingStream extends OutputStream {
+        private ByteBuffer buffer;
+
+        void begin(int expectedBytes) {
+            buffer = bufferPool.acquire(expectedBytes);
+        }
+
+        @Override
+        public void write(int b) {
+            reserve(1);
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            reserve(length);
+            buffer.put(bytes, offset, length);
+        }
+
+        // Flipped for reading; the caller hands it back to the pool
+        ByteBuffer finish() {
+            ByteBuffer done = buffer;
+            buffer = null;
+            done.flip();
+            return done;
+        }
+
+        void abandon() {
+            bufferPool.release(buffer);
+            buffer = null;
+        }
+
+        private void reserve(int bytes) {
+            if (buffer.remaining() >= bytes) return;
+            ByteBuffer bigger = bufferPool.acquire(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            bigger.put(buffer);
+            bufferPool.release(buffer);
+            buffer = bigger;
+        }
+    }
+
+    // Finishes queued writes, then stops the thread
+    public void close() {
+        if (writerThread != null) {
+            writerThread.quitSafely();
+            writerThread = null;
+        }
+    }
+}
@@ -9,7 +9,9 @@ import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
+import android.os.Trace;
 import android.util.Size;
 import android.view.TextureView;
 import android.view.WindowManager;
@@ -30,16 +32,23 @@ public class MainActivity extends Activity implements TextureView.SurfaceTexture
     private Button modeButton;
     private boolean isPhotoMode = false;
     private TextView statusText;
-    private Camera2PhotoCapture photoCapture;
     private Spinner fpsSpinner;
     private Spinner resolutionSpinner;
     private Camera2VideoRecorder recorder;
     
     private boolean isRecording = false;
     private boolean isBackgroundRecording = false;
-    private boolean isProcessingMacroDroid = false;
+    // Automation intents, one at a time; results go out as AutomationCommands broadcasts
+    private CommandFlow flow;
+    private final PreviewCamera camera = new PreviewCamera();
+    // An automation launch stays up this long after its last command, so the next one finds the
+    // camera open and the photo session (and its ZSL ring) warm
+    private static final long IDLE_LINGER_MS = 15000;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
     private boolean isBackgroundPhoto = false;
     private boolean resolutionSpinnerSetup = false;  // ADD THIS FLAG
+    // Background intent passed to RecordingForegroundService; this Activity never owned the camera
+    private boolean handedOff = false;
 
     private PowerManager.WakeLock wakeLock;
     
@@ -57,6 +66,14 @@ public class MainActivity extends Activity implements TextureView.SurfaceTexture
         Intent intent = getIntent();
         boolean backgroundMode = intent.getBooleanExtra("background", false);
         boolean hidePreview = intent.getBooleanExtra("hide_preview", false);
+
+        // Background captures run headless in the service: no layout, window or preview surface
+        if (shouldHandOff(intent)) {
+            handedOff = true;
+            RecordingForegroundService.forward(this, intent);
+            finish();
+            return;
+        }
         
         if (backgroundMode) {
             getWindow().setFlags(
@@ -67,7 +84,9 @@ public class MainActivity extends Activity implements TextureView.SurfaceTexture
             moveTaskToBack(true);
         }
         
+        Trace.beginSection("MainActivity.setContentView");
         setContentView(R.layout.activity_main);
+        Trace.endSection();
 
         textureView = findViewById(R.id.textureView);
         recordButton = findViewById(R.id.recordButton);
@@ -89,6 +108,16 @@ public class MainActivity extends Activity implements TextureView.SurfaceTexture
         }
 
         recorder = new Camera2VideoRecorder(this, textureView, statusText);
+        // Nobody looks at a hidden preview: keep it out of the capture sessions altogether
+        recorder.setPreviewEnabled(!(hidePreview || backgroundMode));
+        camera.recorder = recorder;
+        flow = new CommandFlow(camera, Camera2Commands.mainThread(mainHandler), IDLE_LINGER_MS);
+        flow.getQueue().setResultListener((command, success, message, queuedMs, runMs) -> {
+            TimelineRecorder.finishCommand(command, queuedMs, success, message);
+            AutomationCommands.broadcastResult(getApplicationContext(), command, success, message, queuedMs, runMs);
+        });
+        // Warm the capability cache while the layout and surface come up
+        new Thread(() -> CameraCapabilityCache.get(getApplicationContext()), "CapabilityPrewarm").start();
 
         String[] fpsItems = new String[]{"1 FPS", "2 FPS", "5 FPS", "10 FPS", "15 FPS", "24 FPS", "30 FPS"};
         ArrayAdapter<String> fpsAdapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_dropdown_item, fpsItems);
@@ -140,74 +169,48 @@ public class MainActivity extends Activity implements TextureView.SurfaceTexture
         String mode = intent.getStringExtra("mode");
         boolean autoStart = intent.getBooleanExtra("auto_start", false);
         
-        if (mode != null || autoStart) {
-            new Handler().postDelayed(() -> {
-                processMacroDroidIntent(intent);
-            }, 500);
+        if (shouldHandOff(intent) && !isRecording) {
+            // Release our camera so the service can open it, then get out of the way
+            recorder.closeCamera();
+            handedOff = true;
+            RecordingForegroundService.forward(this, intent);
+            finishAndRemoveTask();
+        } else if (mode != null || autoStart) {
+            enqueueMacroDroidIntent(intent);
         }
     }
 
+    private boolean shouldHandOff(Intent intent) {
+        // Multi-camera recordings only run headless, in the service
+        boolean background = intent.getBooleanExtra("background", false) || intent.getBooleanExtra("hide_preview", false)
+                || MultiCameraRecorder.isRequested(intent);
+        boolean command = intent.getStringExtra("mode") != null || intent.getBooleanExtra("auto_start", false);
+        // Without the permission grant the service can't open the camera; let the Activity ask
+        return background && command && checkPermissions();
+    }
+
     @Override
     public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
         if (checkPermissions()) {
+            recorder.getStateMachine().moveTo(CameraStateMachine.State.SURFACE_READY);
             recorder.openCamera();
             // ===== CHANGE 3: ADD setupResolutionSpinner() HERE =====
             if (!resolutionSpinnerSetup) {
                 setupResolutionSpinner();
                 resolutionSpinnerSetup = true;
             }
-            new Handler().postDelayed(() -> {
-                processMacroDroidIntent(getIntent());
-            }, 1500);
+            enqueueMacroDroidIntent(getIntent());
         }
     }
 
-    private void processMacroDroidIntent(Intent intent) {
-        if (isProcessingMacroDroid) {
-            return;
-        }
-        
-        isProcessingMacroDroid = true;
-        
-        String mode = intent.getStringExtra("mode");
-        boolean autoStart = intent.getBooleanExtra("auto_start", false);
-        boolean isVideoMode = autoStart && !"photo".equals(mode);
-        
-        if ("photo".equals(mode)) {
-            isBackgroundPhoto = intent.getBooleanExtra("background", false) || 
-                               intent.getBooleanExtra("hide_preview", false);
-            
-            if (isRecording) {
-                stopRecording();
-                new Handler().postDelayed(() -> {
-                    capturePhotoFromIntent(intent);
-                    isProcessingMacroDroid = false;
-                }, 1000);
-            } else {
-                capturePhotoFromIntent(intent);
-                isProcessingMacroDroid = false;
-            }
-        } else if (isVideoMode) {
-            int fps = intent.getIntExtra("fps", 2);
-            String quality = intent.getStringExtra("quality");
-            int duration = intent.getIntExtra("duration", 30);
-            String filepath = intent.getStringExtra("filepath");
-            
-            startMacroDroidRecording(fps, quality, duration, filepath);
-            isProcessingMacroDroid = false;
-        } else {
-            isProcessingMacroDroid = false;
-        }
+    // Queues the intent; it runs as soon as the camera is ready and every earlier command is done
+    private void enqueueMacroDroidIntent(Intent intent) {
+        if (!AutomationCommands.isCommand(intent)) return;
+        flow.submit(AutomationCommands.fromIntent(intent));
     }
 
     private void capturePhotoManual() {
-        Size photoSize = null;
-        int selectedPos = resolutionSpinner.getSelectedItemPosition();
-        if (availableResolutions != null && selectedPos < availableResolutions.size()) {
-            photoSize = availableResolutions.get(selectedPos);
-        } else {
-            photoSize = new Size(1920, 1080);
-        }
+        Size photoSize = resolvePhotoSize(null);
 
                 // Target the public DCIM directory
         java.io.File dcimDir = android.os.Environment.getExternalStoragePublicDirectory(android.os.Environment.DIRECTORY_DCIM);
@@ -224,87 +227,46 @@ public class MainActivity extends Activity implements TextureView.SurfaceTexture
         String defaultPath = imageFile.getAbsolutePath();
         // --- END OF DCIM FIX ---
 
-        photoCapture = new Camera2PhotoCapture(this, recorder.getCameraDevice(), recorder.getBackgroundHandler());
+        Camera2PhotoCapture photoCapture = camera.obtainPhotoCapture();
         photoCapture.setPhotoSize(photoSize);
         
         statusText.setText("Capturing photo...");
+        recorder.getStateMachine().moveTo(CameraStateMachine.State.CAPTURING);
         photoCapture.capturePhoto(defaultPath, new Camera2PhotoCapture.PhotoCallback() {
             @Override
             public void onPhotoSaved(String filepath) {
+                recorder.getStateMachine().moveTo(CameraStateMachine.State.IDLE);
                 runOnUiThread(() -> {
                     Toast.makeText(MainActivity.this, "Photo Saved: " + filepath, Toast.LENGTH_SHORT).show();
-                    statusText.setText("Photo saved!");
+                    statusText.setText("Photo saved! (" + photoCapture.getLastShotLatencyMs() + " ms)");
                 });
             }
 
             @Override
             public void onError(String error) {
+                recorder.getStateMachine().moveTo(CameraStateMachine.State.IDLE);
                 runOnUiThread(() -> Toast.makeText(MainActivity.this, "Error: " + error, Toast.LENGTH_SHORT).show());
             }
         });
     }
 
-    private void capturePhotoFromIntent(Intent intent) {
-        String quality = intent.getStringExtra("quality");
-        String filepath = intent.getStringExtra("filepath");
-        boolean nightMode = intent.getBooleanExtra("night_mode", false);
-        boolean hdr = intent.getBooleanExtra("hdr_mode", false);
-
-        Size photoSize = null;
-        if (quality != null && availableResolutions != null) {
-            for (Size size : availableResolutions) {
-                if (quality.equalsIgnoreCase("fhd") && size.getWidth() == 1920) {
-                    photoSize = size;
-                    break;
-                } else if (quality.equalsIgnoreCase("4k") && size.getWidth() == 3840) {
-                    photoSize = size;
-                    break;
-                } else if (quality.equalsIgnoreCase("hd") && size.getWidth() == 1280) {
-                    photoSize = size;
-                    break;
-                }
-            }
+    // The quality extra's JPEG size (or the nearest one the camera has), else the legal JPEG size
+    // closest to the spinner's selection
+    private Size resolvePhotoSize(String quality) {
+        ResolutionIndex photoSizes = recorder.getPhotoIndex();
+        ResolutionIndex.Match match = photoSizes.find(quality);
+        if (match != null && !match.exact) {
+            android.util.Log.w("Quality", "No " + quality + " photo size, using " + match);
         }
-        
-        if (photoSize == null && availableResolutions != null && !availableResolutions.isEmpty()) {
-            int selectedPosition = resolutionSpinner.getSelectedItemPosition();
-            if (selectedPosition >= 0 && selectedPosition < availableResolutions.size()) {
-                photoSize = availableResolutions.get(selectedPosition);
+        if (match == null) {
+            if (quality != null && !quality.isEmpty()) android.util.Log.w("Quality", "Unknown quality: " + quality);
+            int selected = resolutionSpinner.getSelectedItemPosition();
+            if (availableResolutions != null && selected >= 0 && selected < availableResolutions.size()) {
+                Size size = availableResolutions.get(selected);
+                match = photoSizes.nearest(size.getWidth(), size.getHeight());
             }
         }
-        
-        if (photoSize == null) {
-            photoSize = new Size(1920, 1080);
-        }
-        
-        photoCapture = new Camera2PhotoCapture(this, recorder.getCameraDevice(), recorder.getBackgroundHandler());
-        photoCapture.setPhotoSize(photoSize);
-        photoCapture.setNightMode(nightMode);
-        photoCapture.setHdrMode(hdr);
-        
-        photoCapture.capturePhoto(filepath, new Camera2PhotoCapture.PhotoCallback() {
-            @Override
-            public void onPhotoSaved(String filepath) {
-                runOnUiThread(() -> {
-                    Toast.makeText(MainActivity.this, "Photo saved: " + filepath, Toast.LENGTH_SHORT).show();
-                });
-                
-                new Handler().postDelayed(() -> {
-                    finishAndRemoveTask();
-                }, 300);
-            }
-            
-            @Override
-            public void onError(String error) {
-                runOnUiThread(() -> {
-                    Toast.makeText(MainActivity.this, "Error: " + error, Toast.LENGTH_LONG).show();
-                });
-                
-                new Handler().postDelayed(() -> {
-                    finishAndRemoveTask();
-                }, 300);
-            }
-        });
+        return match != null ? new Size(match.width, match.height) : new Size(1920, 1080);
     }
 
     private void setupResolutionSpinner() {
@@ -315,24 +277,9 @@ public class MainActivity extends Activity implements TextureView.SurfaceTexture
             return;
         }
         
+        ResolutionIndex index = recorder.getVideoIndex();
         List<String> resolutionStrings = new ArrayList<>();
-        for (Size size : availableResolutions) {
-            String label = size.getWidth() + " x " + size.getHeight();
-            
-            if (size.getWidth() == 3840 && size.getHeight() == 2160) {
-                label += " (4K UHD)";
-            } else if (size.getWidth() == 2560 && size.getHeight() == 1440) {
-                label += " (QHD)";
-            } else if (size.getWidth() == 1920 && size.getHeight() == 1080) {
-                label += " (Full HD)";
-            } else if (size.getWidth() == 1280 && size.getHeight() == 720) {
-                label += " (HD)";
-            } else if (size.getWidth() == 640 && size.getHeight() == 480) {
-                label += " (VGA)";
-            }
-            
-            resolutionStrings.add(label);
-        }
+        for (int i = 0; i < index.size(); i++) resolutionStrings.add(index.label(i));
         
         ArrayAdapter<String> resAdapter = new ArrayAdapter<>(
             this, 
@@ -358,14 +305,7 @@ public class MainActivity extends Activity implements TextureView.SurfaceTexture
         });
 
         // Set default AFTER listener is attached
-        int defaultIndex = 0;
-        for (int i = 0; i < availableResolutions.size(); i++) {
-            Size size = availableResolutions.get(i);
-            if (size.getWidth() == 1920 && size.getHeight() == 1080) {
-                defaultIndex = i;
-                break;
-            }
-        }
+        int defaultIndex = Math.max(0, index.indexOf(1920, 1080));
         resolutionSpinner.setSelection(defaultIndex);
         recorder.setVideoSize(availableResolutions.get(defaultIndex));
         
@@ -385,7 +325,10 @@ public class MainActivity extends Activity implements TextureView.SurfaceTexture
         Intent intent = getIntent();
         String customPath = intent.getStringExtra("filepath");
         
-        recorder.startRecording(fps, customPath);
+        if (!recorder.startRecording(fps, customPath)) {
+            statusText.setText("Cannot record " + fps + " FPS at this resolution");
+            return;
+        }
         recordButton.setText("Stop Recording");
         recordButton.setBackgroundColor(0xFF00AA00);
         isRecording = true;
@@ -429,44 +372,13 @@ public class MainActivity extends Activity implements TextureView.SurfaceTexture
         
         // ===== CHANGE 6: Better quality matching =====
         if (quality != null && !quality.isEmpty() && availableResolutions != null) {
-            boolean found = false;
-            
-            // Try exact match first
-            for (int i = 0; i < availableResolutions.size(); i++) {
-                Size size = availableResolutions.get(i);
-                String sizeStr = size.getWidth() + "x" + size.getHeight();
-                
-                if (quality.equals(sizeStr)) {
-                    resolutionSpinner.setSelection(i);
-                    recorder.setVideoSize(size);
-                    found = true;
-                    android.util.Log.d("Quality", "Found exact match: " + sizeStr);
-                    break;
-                }
-            }
-            
-            // Try name match if no exact match
-            if (!found) {
-                for (int i = 0; i < availableResolutions.size(); i++) {
-                    Size size = availableResolutions.get(i);
-                    
-                    if ((quality.equalsIgnoreCase("4k") && size.getWidth() == 3840 && size.getHeight() == 2160) ||
-                        (quality.equalsIgnoreCase("fhd") && size.getWidth() == 1920 && size.getHeight() == 1080) ||
-                        (quality.equalsIgnoreCase("hd") && size.getWidth() == 1280 && size.getHeight() == 720) ||
-                        (quality.equalsIgnoreCase("vga") && size.getWidth() == 640 && size.getHeight() == 480) ||
-                        (quality.equalsIgnoreCase("qhd") && size.getWidth() == 2560 && size.getHeight() == 1440)) {
-                        
-                        resolutionSpinner.setSelection(i);
-                        recorder.setVideoSize(size);
-                        found = true;
-                        android.util.Log.d("Quality", "Found name match for: " + quality);
-                        break;
-                    }
-                }
-            }
-            
-            if (!found) {
-                android.util.Log.w("Quality", "Quality not found: " + quality + ", using default");
+            ResolutionIndex.Match match = recorder.getVideoIndex().find(quality);
+            if (match == null) {
+                android.util.Log.w("Quality", "Unknown quality: " + quality + ", using default");
+            } else {
+                if (!match.exact) android.util.Log.w("Quality", "No " + quality + " video size, using " + match);
+                resolutionSpinner.setSelection(match.index);
+                recorder.setVideoSize(new Size(match.width, match.height));
             }
         }
         
@@ -476,23 +388,107 @@ public class MainActivity extends Activity implements TextureView.SurfaceTexture
         }
         
         startRecording();
+        if (!isRecording) {
+            // Rejected up front (impossible size/fps); don't leave the service running
+            isBackgroundRecording = false;
+            releaseWakeLock();
+            stopService(new Intent(this, RecordingForegroundService.class));
+        }
+    }
+
+    private void endMacroDroidRecording() {
+        stopRecording();
+        isBackgroundRecording = false;
         
-        if (duration > 0) {
-            new Handler().postDelayed(() -> {
-                if (isRecording) {
-                    stopRecording();
-                    isBackgroundRecording = false;
-                    recorder.closeCamera();
-                    
-                    releaseWakeLock();
-                    
-                    // STOP FOREGROUND SERVICE
-                    Intent stopServiceIntent = new Intent(MainActivity.this, RecordingForegroundService.class);
-                    stopService(stopServiceIntent);
-                    
-                    finishAndRemoveTask();
-                }
-            }, duration * 1000);
+        releaseWakeLock();
+        
+        // STOP FOREGROUND SERVICE
+        Intent stopServiceIntent = new Intent(MainActivity.this, RecordingForegroundService.class);
+        stopService(stopServiceIntent);
+    }
+
+    // The Activity's camera for automation commands: opened with the preview surface, so commands
+    // only ever wait for it; recordings drive the same UI as the record button
+    private class PreviewCamera extends Camera2Commands {
+        PreviewCamera() {
+            super(MainActivity.this);
+        }
+
+        // Never asked: the state machine is there from onCreate on
+        @Override
+        public boolean open(CommandQueue.Command command) {
+            return recorder != null;
+        }
+
+        @Override
+        public String skip(CommandQueue.Command command) {
+            Intent intent = (Intent) command.payload;
+            if (AutomationCommands.VIDEO.equals(command.type) && !intent.getBooleanExtra("auto_start", false)) {
+                return "no auto_start, nothing to do";
+            }
+            return null;
+        }
+
+        // Dispatch time, not queue time: an earlier command may still be using the recorder.
+        // MediaRecorder.prepare() overlaps whatever is left of the camera's open.
+        @Override
+        public void prepareRecording(CommandQueue.Command command, boolean opening) {
+            Intent intent = (Intent) command.payload;
+            recorder.applyIntentExtras(intent);
+            ResolutionIndex.Match match = recorder.getVideoIndex().find(intent.getStringExtra("quality"));
+            if (match != null) recorder.setVideoSize(new Size(match.width, match.height));
+            recorder.prepareRecordingAsync(intent.getIntExtra("fps", 2), intent.getStringExtra("filepath"));
+        }
+
+        @Override
+        public void startRecording(CommandQueue.Command command, CommandFlow.Result result) {
+            Intent intent = (Intent) command.payload;
+            startMacroDroidRecording(intent.getIntExtra("fps", 2), intent.getStringExtra("quality"),
+                    AutomationCommands.durationSeconds(intent), intent.getStringExtra("filepath"));
+            result.done(isRecording, isRecording ? null : "recording refused");
+        }
+
+        // A still's pause keeps the foreground service and wake lock for the part after it
+        @Override
+        public void stopRecording(boolean resuming) {
+            if (!isRecording) return;
+            if (resuming) MainActivity.this.stopRecording();
+            else endMacroDroidRecording();
+        }
+
+        @Override
+        public void dispatched(CommandQueue.Command command) {
+            super.dispatched(command);
+            if (AutomationCommands.PHOTO.equals(command.type) || AutomationCommands.BURST.equals(command.type)) {
+                Intent intent = (Intent) command.payload;
+                isBackgroundPhoto = intent.getBooleanExtra("background", false) || intent.getBooleanExtra("hide_preview", false);
+            }
+        }
+
+        @Override
+        protected Size photoSize(String quality) {
+            return resolvePhotoSize(quality);
+        }
+
+        @Override
+        protected void showResult(CommandQueue.Command command, boolean success, String message) {
+            if (!success) {
+                super.showResult(command, false, message);
+            } else if (AutomationCommands.PHOTO.equals(command.type)) {
+                Toast.makeText(MainActivity.this, "Photo saved: " + message, Toast.LENGTH_SHORT).show();
+            } else if (AutomationCommands.BURST.equals(command.type)) {
+                Toast.makeText(MainActivity.this, "Burst: " + message, Toast.LENGTH_SHORT).show();
+            } else if (AutomationCommands.SAVE.equals(command.type)) {
+                Toast.makeText(MainActivity.this, "Event saved: " + message, Toast.LENGTH_SHORT).show();
+            } else {
+                Toast.makeText(MainActivity.this, message, Toast.LENGTH_LONG).show();
+            }
+        }
+
+        // Automation launches go away once nothing has been left to do for IDLE_LINGER_MS
+        @Override
+        public void idle() {
+            finishAndRemoveTask();
         }
     }
     
@@ -549,9 +545,7 @@ public class MainActivity extends Activity implements TextureView.SurfaceTexture
         boolean autoStart = intent.getBooleanExtra("auto_start", false);
         
         if (textureView.isAvailable() && checkPermissions() && (mode != null || autoStart)) {
-            new Handler().postDelayed(() -> {
-                processMacroDroidIntent(intent);
-            }, 500);
+            enqueueMacroDroidIntent(intent);
         } else if (textureView.isAvailable() && checkPermissions()) {
             recorder.openCamera();
         } else {
@@ -575,6 +569,12 @@ public class MainActivity extends Activity implements TextureView.SurfaceTexture
     @Override
     protected void onDestroy() {
         releaseWakeLock();
+        if (handedOff) {
+            super.onDestroy();
+            return;
+        }
+        mainHandler.removeCallbacksAndMessages(null);
+        flow.reset("activity destroyed");
         
         // Stop service se ancora attivo
         Intent serviceIntent = new Intent(this, RecordingForegroundService.class);
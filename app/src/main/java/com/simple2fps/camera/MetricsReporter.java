@@ -0,0 +1,166 @@
+package com.simple2fps.camera;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+// Exports CaptureMetrics snapshots every interval while a session runs: an ACTION_METRICS
+// broadcast, a line in <session>.jsonl and a record in <session>.bin under the app's external
+// files dir (adb pull /sdcard/Android/data/<package>/files/stats). One thread, off the camera's.
+public class MetricsReporter {
+    private static final String TAG = "MetricsReporter";
+    private static final int KEEP_SESSIONS = 20;
+
+    public static final String ACTION_METRICS = "com.simple2fps.camera.action.METRICS";
+
+    private final Context context;
+    private final CaptureMetrics metrics;
+    private final String session;
+    private final long intervalMs;
+    // Polled for its size when the engine can't report encoded bytes (MediaRecorder), plus what
+    // earlier segments of a loop recording reached before the switch to it
+    private File watchedFile;
+    private long watchedBaseBytes;
+    // Tells the cameras of a multi-camera session apart in the broadcasts
+    private String cameraId;
+
+    private HandlerThread thread;
+    private Handler handler;
+    private Writer json;
+    private DataOutputStream binary;
+    private CaptureMetrics.Snapshot previous;
+
+    public MetricsReporter(Context context, CaptureMetrics metrics, String session, long intervalMs) {
+        this.context = context.getApplicationContext();
+        this.metrics = metrics;
+        this.session = session;
+        this.intervalMs = intervalMs;
+    }
+
+    // Also called on each segment switch: the previous file's size keeps counting
+    public synchronized void setWatchedFile(File file) {
+        if (watchedFile != null && file != null && !file.equals(watchedFile)) watchedBaseBytes += watchedFile.length();
+        this.watchedFile = file;
+    }
+
+    private synchronized long watchedBytes() {
+        return watchedFile != null ? watchedBaseBytes + watchedFile.length() : -1;
+    }
+
+    public void setCameraId(String cameraId) {
+        this.cameraId = cameraId;
+    }
+
+    public void start() {
+        thread = new HandlerThread("MetricsReporter");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        handler.post(this::openFiles);
+        handler.postDelayed(tick, intervalMs);
+    }
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            report(false);
+            handler.postDelayed(this, intervalMs);
+        }
+    };
+
+    // Reports a final snapshot and closes the files; returns at once
+    public void stop() {
+        if (thread == null) return;
+        handler.removeCallbacks(tick);
+        handler.post(() -> {
+            report(true);
+            closeFiles();
+        });
+        thread.quitSafely();
+        thread = null;
+    }
+
+    private void report(boolean last) {
+        long watched = watchedBytes();
+        if (watched >= 0) metrics.onFileSize(watched);
+        CaptureMetrics.Snapshot snapshot = metrics.snapshot(SystemClock.elapsedRealtimeNanos(), previous);
+        previous = snapshot;
+        String line = snapshot.toJson();
+        if (last) Log.i(TAG, session + " final: " + line);
+        else Log.d(TAG, session + ": " + line);
+
+        try {
+            if (json != null) {
+                json.write(line);
+                json.write('\n');
+                json.flush();
+            }
+            if (binary != null) {
+                snapshot.writeTo(binary);
+                binary.flush();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Stats file write failed, continuing with broadcasts only", e);
+            closeFiles();
+        }
+
+        Intent intent = new Intent(ACTION_METRICS);
+        intent.putExtra("session", session);
+        if (cameraId != null) intent.putExtra("camera_id", cameraId);
+        intent.putExtra("final", last);
+        intent.putExtra("json", line);
+        intent.putExtra("delivered_fps", snapshot.deliveredFps);
+        intent.putExtra("dropped", snapshot.droppedFrames);
+        intent.putExtra("capture_failed", snapshot.captureFailed);
+        intent.putExtra("buffers_lost", snapshot.buffersLost);
+        intent.putExtra("bytes_per_s", snapshot.bytesPerSecond);
+        intent.putExtra("write_max_ms", snapshot.writeMaxMs);
+        context.sendBroadcast(intent);
+    }
+
+    private void openFiles() {
+        File directory = context.getExternalFilesDir("stats");
+        if (directory == null) directory = new File(context.getFilesDir(), "stats");
+        directory.mkdirs();
+        prune(directory);
+        try {
+            json = new FileWriter(new File(directory, session + ".jsonl"), true);
+            binary = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(directory, session + ".bin"))));
+            CaptureMetrics.writeHeader(binary);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not open stats files", e);
+            closeFiles();
+        }
+    }
+
+    private void closeFiles() {
+        try {
+            if (json != null) json.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            if (binary != null) binary.close();
+        } catch (IOException ignored) {
+        }
+        json = null;
+        binary = null;
+    }
+
+    // Oldest sessions go first; names sort by time
+    private static void prune(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".jsonl") || name.endsWith(".bin"));
+        if (files == null || files.length <= KEEP_SESSIONS * 2) return;
+        Arrays.sort(files, (a, b) -> a.getName().compareTo(b.getName()));
+        for (int i = 0; i < files.length - KEEP_SESSIONS * 2; i++) files[i].delete();
+    }
+}
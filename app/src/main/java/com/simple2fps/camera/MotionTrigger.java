@@ -0,0 +1,123 @@
+package com.simple2fps.camera;
+
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+// Motion-gated recording on top of the pre-event engine. A small YUV stream from the same capture
+// session feeds MotionDetector; motion opens an event file (buffered pre-roll included) and the
+// hangover without motion closes it. The encoder keeps running in between, so files start on the
+// buffered keyframes instead of waiting for the codec to spin up.
+@TargetApi(Build.VERSION_CODES.M)
+public class MotionTrigger implements MotionDetector.Listener {
+    private static final String TAG = "MotionTrigger";
+    private static final int READER_IMAGES = 2;
+
+    public interface Listener {
+        void onMotionChanged(boolean active);
+        void onEventSaved(String filepath, long frames, long durationMs);
+    }
+
+    private final PreEventEncoder encoder;
+    private final MotionDetector detector;
+    private final File directory;
+    private final int width;
+    private final int height;
+    private final Listener listener;
+
+    private HandlerThread analysisThread;
+    private Handler analysisHandler;
+    private ImageReader reader;
+
+    public MotionTrigger(PreEventEncoder encoder, MotionDetector.Config config, File directory,
+                         int width, int height, Listener listener) {
+        this.encoder = encoder;
+        this.detector = new MotionDetector(config, this);
+        this.directory = directory;
+        this.width = width;
+        this.height = height;
+        this.listener = listener;
+    }
+
+    // Returns the analysis Surface to add to the session next to the encoder's
+    public Surface prepare() {
+        analysisThread = new HandlerThread("MotionAnalysis");
+        analysisThread.start();
+        analysisHandler = new Handler(analysisThread.getLooper());
+        reader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, READER_IMAGES);
+        reader.setOnImageAvailableListener(this::onFrame, analysisHandler);
+        return reader.getSurface();
+    }
+
+    private void onFrame(ImageReader imageReader) {
+        Image image;
+        try {
+            // Behind? Analyse the newest frame and drop the rest
+            image = imageReader.acquireLatestImage();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "acquireLatestImage failed", e);
+            return;
+        }
+        if (image == null) return;
+        try {
+            Image.Plane luma = image.getPlanes()[0];
+            detector.process(luma.getBuffer(), image.getWidth(), image.getHeight(),
+                    luma.getRowStride(), luma.getPixelStride(), image.getTimestamp());
+        } finally {
+            image.close();
+        }
+    }
+
+    @Override
+    public void onMotionStart(long timestampNs, float area) {
+        directory.mkdirs();
+        File file = new File(directory, "MOTION_" + new SimpleDateFormat("yyMMdd_HHmmss", Locale.US).format(new Date()) + ".mp4");
+        Log.d(TAG, String.format(Locale.US, "Motion (%.1f%% of frame), recording %s", area * 100, file.getName()));
+        encoder.saveEvent(file, -1, new PreEventEncoder.SaveCallback() {
+            @Override
+            public void onSaved(String filepath, long frames, long durationMs) {
+                Log.d(TAG, "Motion event saved: " + filepath + ", " + frames + " frames, " + durationMs + " ms");
+                if (listener != null) listener.onEventSaved(filepath, frames, durationMs);
+            }
+
+            @Override
+            public void onError(String error) {
+                Log.e(TAG, "Motion event failed: " + error);
+            }
+        });
+        if (listener != null) listener.onMotionChanged(true);
+    }
+
+    @Override
+    public void onMotionStop(long timestampNs) {
+        Log.d(TAG, "Motion ended, closing event");
+        encoder.endEvent(0);
+        if (listener != null) listener.onMotionChanged(false);
+    }
+
+    public boolean isMotionActive() {
+        return detector.isActive();
+    }
+
+    // Stops analysis; an event in progress is left to the encoder's own stop()
+    public void release() {
+        if (analysisThread == null) return;
+        // Closed on the analysis thread, so a frame being analysed isn't pulled from under it
+        ImageReader closing = reader;
+        reader = null;
+        analysisHandler.post(closing::close);
+        analysisThread.quitSafely();
+        analysisThread = null;
+        analysisHandler = null;
+    }
+}
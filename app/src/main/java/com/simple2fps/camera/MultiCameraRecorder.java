@@ -0,0 +1,144 @@
+package com.simple2fps.camera;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.util.Size;
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+// The other cameras of a multi-camera recording (cameras=all|back+front|0,2 on a video intent,
+// API 30+ devices that list concurrent combinations). The service's own recorder records the
+// plan's first camera as usual; every other camera gets a headless Camera2VideoRecorder, and so
+// its own CameraBackground-<id> thread and encoder pipeline (video only: the primary has the
+// microphone), opened and started in parallel. All of them, the primary included, share one
+// storage thread (segment deletes), one JPEG writer and the metrics broadcast and stats
+// directory, told apart by camera id. How each camera does goes to the recording's
+// RecordingOutcome.
+public class MultiCameraRecorder {
+    private static final String TAG = "MultiCameraRecorder";
+
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<Camera2VideoRecorder> recorders = new ArrayList<>();
+    private Camera2VideoRecorder primary;
+    private HandlerThread storageThread;
+    private Handler storageHandler;
+    private JpegWriter writer;
+
+    public MultiCameraRecorder(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    public static boolean isRequested(Intent intent) {
+        String cameras = intent.getStringExtra("cameras");
+        return cameras != null && !cameras.isEmpty();
+    }
+
+    // From the capability cache, no camera opened; preferredId is a camera already open, if any
+    public static ConcurrentCameraPlan plan(Context context, Intent intent, String preferredId) {
+        return ConcurrentCameraPlan.plan(CameraCapabilityCache.get(context), intent.getStringExtra("cameras"),
+                intent.getStringExtra("quality"), preferredId);
+    }
+
+    // The primary's file stays as requested; the others get a _cam<id> suffix (or a timestamped
+    // Movies default)
+    public static String cameraPath(String filepath, String cameraId) {
+        if (filepath == null || filepath.isEmpty()) {
+            String timeStamp = new SimpleDateFormat("yyMMdd_HHmmss", Locale.US).format(new Date());
+            File movies = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MOVIES);
+            return new File(movies, "REC_" + timeStamp + "_cam" + cameraId + ".mp4").getAbsolutePath();
+        }
+        int dot = filepath.lastIndexOf('.');
+        int slash = filepath.lastIndexOf('/');
+        String suffix = "_cam" + cameraId;
+        return dot > slash ? filepath.substring(0, dot) + suffix + filepath.substring(dot) : filepath + suffix;
+    }
+
+    // Before the primary starts recording, so its stats session already carries the label
+    public void attachPrimary(Camera2VideoRecorder recorder) {
+        ensureStorage();
+        primary = recorder;
+        recorder.setSharedStorage(storageHandler, writer);
+        recorder.setMetricsLabel("cam" + recorder.getCameraId());
+    }
+
+    // Opens every camera of the plan but the first, alongside the primary's own open, and starts
+    // each one as soon as it is ready; outcome hears whether it got to record. Must be called on
+    // the main thread.
+    public void start(ConcurrentCameraPlan plan, Intent intent, RecordingOutcome outcome) {
+        ensureStorage();
+        int fps = intent.getIntExtra("fps", 2);
+        for (int i = 1; i < plan.streams.size(); i++) {
+            ConcurrentCameraPlan.Stream stream = plan.streams.get(i);
+            Camera2VideoRecorder recorder = new Camera2VideoRecorder(context, null, null);
+            recorder.setCameraId(stream.cameraId);
+            recorder.applyIntentExtras(intent);
+            recorder.setVideoSize(new Size(stream.width, stream.height));
+            recorder.setSharedStorage(storageHandler, writer);
+            recorder.setMetricsLabel("cam" + stream.cameraId);
+            recorder.setAudioEnabled(false);
+            recorder.getStateMachine().setListener((from, to) -> {
+                if (to == CameraStateMachine.State.CLOSED) Log.w(TAG, "Camera " + stream.cameraId + " closed");
+                mainHandler.post(() -> outcome.onStateChanged(stream.cameraId, from, to));
+            });
+            String path = cameraPath(intent.getStringExtra("filepath"), stream.cameraId);
+            recorders.add(recorder);
+            recorder.openCamera();
+            // MediaRecorder.prepare() overlaps the open, as for the primary
+            recorder.prepareRecordingAsync(fps, path);
+            recorder.getStateMachine().runWhen("multi:" + stream.cameraId, () -> {
+                if (recorder.startRecording(fps, path)) {
+                    outcome.starting(stream.cameraId);
+                } else {
+                    Log.e(TAG, "Camera " + stream.cameraId + " refused to record");
+                    outcome.failed(stream.cameraId, "refused to record");
+                }
+            }, CameraStateMachine.State.IDLE);
+        }
+        Log.i(TAG, "Recording " + plan);
+    }
+
+    // Stops and closes the other cameras and hands the primary its own storage back; the
+    // primary's recording is the caller's to stop
+    public void stop() {
+        for (Camera2VideoRecorder recorder : recorders) {
+            recorder.getStateMachine().setListener(null);
+            recorder.getStateMachine().clear();
+            if (recorder.getStateMachine().isIn(CameraStateMachine.State.RECORDING)) recorder.stopRecording();
+            recorder.closeCamera();
+        }
+        recorders.clear();
+        if (primary != null) {
+            primary.setSharedStorage(null, null);
+            primary.setMetricsLabel(null);
+            primary = null;
+        }
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        if (storageThread != null) {
+            // Lets queued deletes and writes finish
+            storageThread.quitSafely();
+            storageThread = null;
+            storageHandler = null;
+        }
+    }
+
+    private void ensureStorage() {
+        if (storageThread != null) return;
+        storageThread = new HandlerThread("MultiCameraStorage");
+        storageThread.start();
+        storageHandler = new Handler(storageThread.getLooper());
+        writer = new JpegWriter();
+    }
+}
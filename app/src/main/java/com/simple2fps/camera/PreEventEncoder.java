@@ -0,0 +1,320 @@
+package com.simple2fps.camera;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Dashcam mode: the camera encodes continuously but nothing touches flash until saveEvent().
+// Encoded frames live in an EncodedRingBuffer (off-heap, keyframe-aligned, bounded by bytes and
+// by the pre-roll length). A save writes the buffered pre-roll to an MP4 and keeps appending
+// live frames until the post-roll has passed. Video only, like TimelapseEncoder.
+@TargetApi(Build.VERSION_CODES.M)
+public class PreEventEncoder {
+    private static final String TAG = "PreEventEncoder";
+
+    public interface SaveCallback {
+        void onSaved(String filepath, long frames, long durationMs);
+        void onError(String error);
+    }
+
+    private final int width;
+    private final int height;
+    private final int fps;
+    private final int bitrate;
+    private final long preRollMs;
+    private final int bufferBytes;
+    private EncodedRingBuffer ring;
+    private BitrateController bitrateController;
+    private CaptureMetrics metrics;
+    private EncoderCapabilities.Choice encoderChoice;
+    private int iFrameIntervalSeconds = 1;
+
+    private HandlerThread encoderThread;
+    private Handler encoderHandler;
+    private MediaCodec codec;
+    private Surface codecSurface;
+    private MediaFormat outputFormat;
+    private long lastPtsUs = -1;
+
+    // Event being written; all fields below are touched on the encoder thread only
+    private MediaMuxer muxer;
+    private int trackIndex = -1;
+    private File eventFile;
+    private long eventStartUs = -1;
+    private long eventEndUs;
+    private long eventFrames;
+    private final List<SaveCallback> eventCallbacks = new ArrayList<>();
+    private final MediaCodec.BufferInfo sampleInfo = new MediaCodec.BufferInfo();
+
+    public PreEventEncoder(int width, int height, int fps, int bitrate, long preRollMs, int bufferBytes) {
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        this.bitrate = bitrate;
+        this.preRollMs = preRollMs;
+        this.bufferBytes = bufferBytes;
+    }
+
+    // Encoder from EncoderCapabilities (null = platform AVC) and keyframe spacing, which is also
+    // the granularity of the pre-roll; before prepare()
+    public void setEncoder(EncoderCapabilities.Choice choice, int iFrameIntervalSeconds) {
+        this.encoderChoice = choice;
+        this.iFrameIntervalSeconds = Math.max(1, iFrameIntervalSeconds);
+    }
+
+    // Encoded bytes and event write times go here; before start()
+    public void setMetrics(CaptureMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Retunes the bitrate mid-stream; a static scene then holds a longer pre-roll in the same buffer
+    public void setBitrateController(BitrateController controller) {
+        this.bitrateController = controller;
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    // Default buffer: the pre-roll plus two GOPs at the target bitrate, with 50% headroom
+    public static int defaultBufferBytes(int bitrate, long preRollMs, int iFrameIntervalSeconds) {
+        long bytes = (long) bitrate / 8 * (preRollMs + 2000L * iFrameIntervalSeconds) / 1000 * 3 / 2;
+        return (int) Math.max(1 << 20, Math.min(bytes, 256L << 20));
+    }
+
+    // Returns the codec's input Surface to add to the capture session
+    public Surface prepare() throws IOException {
+        encoderThread = new HandlerThread("PreEventEncoder");
+        encoderThread.start();
+        encoderHandler = new Handler(encoderThread.getLooper());
+
+        // One extra GOP so the pre-roll is still full after the oldest one is dropped
+        ring = new EncodedRingBuffer(bufferBytes, (preRollMs + iFrameIntervalSeconds * 1000L) * 1000);
+
+        codec = EncoderCapabilityCache.createEncoder(encoderChoice, width, height, bitrate, fps,
+                iFrameIntervalSeconds, codecCallback, encoderHandler);
+        codecSurface = codec.createInputSurface();
+        return codecSurface;
+    }
+
+    public void start() {
+        codec.start();
+    }
+
+    // Writes the buffered pre-roll to file and keeps recording for postRollMs (negative: until
+    // endEvent()). A trigger during an event in progress extends it instead. The callback fires
+    // on the encoder thread.
+    public void saveEvent(File file, long postRollMs, SaveCallback callback) {
+        encoderHandler.post(() -> {
+            if (codec == null) {
+                callback.onError("Encoder stopped");
+                return;
+            }
+            eventCallbacks.add(callback);
+            long end = postRollMs < 0 ? Long.MAX_VALUE : Math.max(lastPtsUs, 0) + postRollMs * 1000;
+            if (muxer != null) {
+                eventEndUs = Math.max(eventEndUs, end);
+                Log.d(TAG, "Event extended to " + eventFile.getName());
+                return;
+            }
+            if (outputFormat == null) {
+                failEvent("Encoder has no output yet");
+                return;
+            }
+            try {
+                muxer = new MediaMuxer(file.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                trackIndex = muxer.addTrack(outputFormat);
+                muxer.start();
+            } catch (Exception e) {
+                Log.e(TAG, "Event muxer setup failed", e);
+                closeMuxer();
+                failEvent("Could not create " + file + ": " + e.getMessage());
+                return;
+            }
+            eventFile = file;
+            eventEndUs = end;
+            eventFrames = 0;
+            eventStartUs = -1;
+            try {
+                int preRoll = ring.drainTo(this::writeEventSample);
+                Log.d(TAG, "Event " + file.getName() + ": " + preRoll + " pre-roll frames");
+            } catch (IOException e) {
+                closeMuxer();
+                failEvent(e.getMessage());
+                return;
+            }
+            // Nothing buffered yet: start the event at the next keyframe, and ask for one now
+            if (eventStartUs < 0) requestSyncFrame();
+        });
+    }
+
+    // Closes an open-ended event after postRollMs more video
+    public void endEvent(long postRollMs) {
+        encoderHandler.post(() -> {
+            if (muxer != null) eventEndUs = Math.max(lastPtsUs, 0) + postRollMs * 1000;
+        });
+    }
+
+    private void writeEventSample(ByteBuffer data, long ptsUs, boolean keyFrame) throws IOException {
+        if (eventStartUs < 0) {
+            if (!keyFrame) return;
+            eventStartUs = ptsUs;
+        }
+        sampleInfo.set(data.position(), data.remaining(), ptsUs - eventStartUs,
+                keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        long start = System.nanoTime();
+        try {
+            muxer.writeSampleData(trackIndex, data, sampleInfo);
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            throw new IOException("writeSampleData failed", e);
+        }
+        eventFrames++;
+        if (metrics != null) metrics.onWrite(System.nanoTime() - start);
+    }
+
+    private final MediaCodec.Callback codecCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(MediaCodec mc, int index) {
+            // Surface input: never called
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec mc, int index, MediaCodec.BufferInfo info) {
+            ByteBuffer data = mc.getOutputBuffer(index);
+            boolean config = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+            if (data != null && info.size > 0 && !config) {
+                data.position(info.offset);
+                data.limit(info.offset + info.size);
+                boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+                if (metrics != null) metrics.onEncodedFrame(info.size);
+                if (bitrateController != null) {
+                    int retuned = bitrateController.onFrame(info.size, info.presentationTimeUs, keyFrame);
+                    if (retuned > 0) setBitrate(mc, retuned);
+                }
+                lastPtsUs = info.presentationTimeUs;
+                ring.add(data, info.presentationTimeUs, keyFrame);
+                if (muxer != null) {
+                    data.position(info.offset);
+                    try {
+                        writeEventSample(data, info.presentationTimeUs, keyFrame);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Event write failed", e);
+                        closeMuxer();
+                        failEvent(e.getMessage());
+                    }
+                    if (muxer != null && info.presentationTimeUs >= eventEndUs) finishEvent();
+                }
+            }
+            mc.releaseOutputBuffer(index, false);
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec mc, MediaFormat format) {
+            outputFormat = format;
+        }
+
+        @Override
+        public void onError(MediaCodec mc, MediaCodec.CodecException e) {
+            Log.e(TAG, "Encoder error", e);
+            if (muxer != null) finishEvent();
+        }
+    };
+
+    private void setBitrate(MediaCodec mc, int bitrate) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        try {
+            mc.setParameters(params);
+            Log.d(TAG, "Bitrate now " + bitrateController);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Bitrate update failed", e);
+        }
+    }
+
+    private void requestSyncFrame() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        codec.setParameters(params);
+    }
+
+    private void finishEvent() {
+        long frames = eventFrames;
+        long durationMs = (lastPtsUs - eventStartUs) / 1000;
+        String path = eventFile.getAbsolutePath();
+        boolean ok = closeMuxer() && frames > 0;
+        eventFile = null;
+        List<SaveCallback> callbacks = new ArrayList<>(eventCallbacks);
+        eventCallbacks.clear();
+        for (SaveCallback callback : callbacks) {
+            if (ok) callback.onSaved(path, frames, durationMs);
+            else callback.onError("Event " + path + " could not be finalized");
+        }
+    }
+
+    private void failEvent(String error) {
+        List<SaveCallback> callbacks = new ArrayList<>(eventCallbacks);
+        eventCallbacks.clear();
+        for (SaveCallback callback : callbacks) callback.onError(error);
+    }
+
+    private boolean closeMuxer() {
+        if (muxer == null) return false;
+        boolean ok = true;
+        try {
+            muxer.stop();
+        } catch (Exception e) {
+            // Thrown when no sample was ever written
+            ok = false;
+        }
+        muxer.release();
+        muxer = null;
+        return ok;
+    }
+
+    // Ends buffering; an event in progress is finalized with whatever post-roll it has so far
+    public void stop() {
+        if (encoderHandler == null) return;
+        encoderHandler.post(() -> {
+            if (muxer != null) finishEvent();
+            release();
+        });
+    }
+
+    public void release() {
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (Exception e) {
+                Log.w(TAG, "codec.stop failed", e);
+            }
+            codec.release();
+            codec = null;
+        }
+        if (codecSurface != null) {
+            codecSurface.release();
+            codecSurface = null;
+        }
+        if (muxer != null) {
+            muxer.release();
+            muxer = null;
+        }
+        failEvent("Encoder released");
+        if (ring != null) ring.clear();
+        if (encoderThread != null) {
+            encoderThread.quitSafely();
+            encoderThread = null;
+        }
+    }
+}
@@ -1,36 +1,118 @@
 package com.simple2fps.camera;
 
+import android.Manifest;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
+import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.util.Log;
+import android.util.Size;
+import android.widget.Toast;
 import androidx.core.app.NotificationCompat;
+import java.util.ArrayList;
+import java.util.List;
 
+// Owns the camera for background work: photos, bursts and recordings run here with no Activity,
+// window or preview surface. Commands arrive as ACTION_CAPTURE intents carrying the same extras
+// MainActivity accepts, or through the local binder. Started without an action it only posts the
+// notification (MainActivity's own foreground recordings still use that).
 public class RecordingForegroundService extends Service {
-    
+    private static final String TAG = "RecordingService";
+
+    public static final String ACTION_CAPTURE = "com.simple2fps.camera.action.CAPTURE";
+    public static final String ACTION_STOP = "com.simple2fps.camera.action.STOP";
+
     private static final String CHANNEL_ID = "RecordingChannel";
     private static final int NOTIFICATION_ID = 1;
-    
+
+    public class LocalBinder extends Binder {
+        public RecordingForegroundService getService() {
+            return RecordingForegroundService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final HeadlessCamera camera = new HeadlessCamera();
+    private PowerManager.WakeLock wakeLock;
+    private int boundClients = 0;
+
+    // Camera and photo session stay up this long after the last command, so the next one (often
+    // seconds later from the same automation) skips the open and finds the ZSL ring already full
+    private static final long IDLE_LINGER_MS = 15000;
+    private final CommandFlow flow = new CommandFlow(camera, Camera2Commands.mainThread(mainHandler), IDLE_LINGER_MS);
+    // cameras extra: the plan for the video command being dispatched, then its other cameras
+    private ConcurrentCameraPlan cameraPlan;
+    private MultiCameraRecorder multiCamera;
+    // Whether each camera of the video command being started got to record; its result waits
+    // for them, at most START_TIMEOUT_MS
+    private RecordingOutcome outcome;
+    private CommandFlow.Result startResult;
+    private static final long START_TIMEOUT_MS = 10000;
+    private final Runnable startTimeout = () -> {
+        if (outcome != null) outcome.settle("not recording after " + START_TIMEOUT_MS / 1000 + " s");
+    };
+    // Foreground type only ever widens within a session: a photo or stop command arriving while
+    // a recording runs must not drop the microphone from it
+    private boolean foregroundAudio;
+
+    // Hands a background intent (mode/auto_start extras) to the service instead of an Activity
+    public static void forward(Context context, Intent source) {
+        Intent intent = new Intent(context, RecordingForegroundService.class);
+        intent.setAction(ACTION_CAPTURE);
+        if (source.getExtras() != null) intent.putExtras(source.getExtras());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            context.startForegroundService(intent);
+        } else {
+            context.startService(intent);
+        }
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
         createNotificationChannel();
+        flow.getQueue().setResultListener((command, success, message, queuedMs, runMs) -> {
+            TimelineRecorder.finishCommand(command, queuedMs, success, message);
+            AutomationCommands.broadcastResult(getApplicationContext(), command, success, message, queuedMs, runMs);
+        });
     }
-    
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        String mode = intent.getStringExtra("mode");
-        int duration = intent.getIntExtra("duration", 30);
-        
+        String action = intent != null ? intent.getAction() : null;
+        String mode = intent != null ? intent.getStringExtra("mode") : null;
+
+        boolean video = "video".equals(mode) || (mode == null && ACTION_CAPTURE.equals(action));
+        foregroundAudio |= video || flow.isRecording() || flow.getQueue().hasQueued(AutomationCommands.VIDEO);
+
         String title = "Recording Video";
-        if (mode != null && mode.equals("photo")) {
+        if (!flow.isRecording() && mode != null && (mode.equals("photo") || mode.equals("burst"))) {
             title = "Taking photo...";
         }
-        
+        startForeground(title, foregroundAudio);
+
+        if (ACTION_CAPTURE.equals(action)) {
+            submit(intent);
+        } else if (ACTION_STOP.equals(action)) {
+            stopCapture();
+        }
+
+        return START_NOT_STICKY;
+    }
+
+    private void startForeground(String title, boolean withAudio) {
         Notification notification = new NotificationCompat.Builder(this, CHANNEL_ID)
                 .setContentTitle(title)
                 .setContentText("Camera is active in background")
@@ -38,28 +120,255 @@ public class RecordingForegroundService extends Service {
                 .setPriority(NotificationCompat.PRIORITY_LOW)
                 .setOngoing(true)
                 .build();
-        
+
         // FIX FOR ANDROID 14: You must specify the service type
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R && withAudio) {
+            startForeground(NOTIFICATION_ID, notification,
+                    ServiceInfo.FOREGROUND_SERVICE_TYPE_CAMERA | ServiceInfo.FOREGROUND_SERVICE_TYPE_MICROPHONE);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
             startForeground(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_CAMERA);
         } else {
             startForeground(NOTIFICATION_ID, notification);
         }
-        
-        return START_NOT_STICKY;
     }
-    
+
+    // Queues a capture command; the camera is opened headless on first use and the command
+    // runs once the device is ready and earlier commands are done. Must be called on the main thread.
+    public void submit(Intent intent) {
+        if (checkSelfPermission(Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
+            Toast.makeText(this, "Camera permission missing, open the app once", Toast.LENGTH_LONG).show();
+            flow.stopIfIdle();
+            return;
+        }
+        if (!intent.hasExtra("mode") && !intent.getBooleanExtra("auto_start", false)) intent.putExtra("auto_start", true);
+        flow.submit(AutomationCommands.fromIntent(intent));
+    }
+
+    // Ends a recording (if any) and shuts down once everything queued has run
+    public void stopCapture() {
+        if (camera.recorder == null) {
+            flow.stopIfIdle();
+            return;
+        }
+        Intent stop = new Intent();
+        stop.putExtra("mode", AutomationCommands.STOP);
+        submit(stop);
+    }
+
+    // Planned before the camera opens, so the primary is a camera of the combination; null means
+    // a single-camera recording (not asked for, or no concurrent combination fits)
+    private ConcurrentCameraPlan planCameras(Intent intent) {
+        if (!MultiCameraRecorder.isRequested(intent)) return null;
+        String openId = camera.recorder != null ? camera.recorder.getCameraId() : null;
+        ConcurrentCameraPlan plan = MultiCameraRecorder.plan(this, intent, openId);
+        if (plan.isPossible() && openId != null && !openId.equals(plan.streams.get(0).cameraId)) {
+            Log.w(TAG, "Camera " + openId + " is open and not part of " + plan + ", recording it alone");
+            return null;
+        }
+        if (!plan.isPossible()) {
+            Log.w(TAG, "Multi-camera recording " + plan + ", recording one camera");
+            Toast.makeText(this, "Multi-camera: " + plan.reason, Toast.LENGTH_LONG).show();
+            return null;
+        }
+        return plan;
+    }
+
+    // The quality extra's size or the nearest legal one; Full HD (the UI's default) when the
+    // camera has it and no quality was given
+    private Size resolveSize(ResolutionIndex sizes, String quality) {
+        ResolutionIndex.Match match = sizes.find(quality);
+        if (match != null && !match.exact) Log.w(TAG, "No " + quality + " size, using " + match);
+        if (match == null) match = sizes.nearest(1920, 1080);
+        return new Size(match.width, match.height);
+    }
+
+    private void startOtherCameras(Intent intent) {
+        stopOtherCameras();
+        multiCamera = new MultiCameraRecorder(this);
+        multiCamera.attachPrimary(camera.recorder);
+        multiCamera.start(cameraPlan, intent, outcome);
+        cameraPlan = null;
+    }
+
+    // Every camera the command records, the primary first
+    private void trackRecording(CommandQueue.Command command) {
+        closeOutcome();
+        List<String> cameraIds = new ArrayList<>();
+        if (cameraPlan != null) {
+            for (ConcurrentCameraPlan.Stream stream : cameraPlan.streams) cameraIds.add(stream.cameraId);
+        } else {
+            cameraIds.add(camera.recorder.getCameraId());
+        }
+        outcome = new RecordingOutcome(cameraIds, (success, message, changed) -> {
+            if (changed) {
+                // A camera lost mid-recording: the command was reported already, this follows it up
+                Log.w(TAG, command + ": " + message);
+                AutomationCommands.broadcastFollowUp(this, command, success, message);
+                return;
+            }
+            mainHandler.removeCallbacks(startTimeout);
+            if (!success) stopOtherCameras();
+            CommandFlow.Result result = startResult;
+            startResult = null;
+            if (result != null) result.done(success, message);
+        });
+    }
+
+    // The recording is being stopped or abandoned on purpose
+    private void closeOutcome() {
+        mainHandler.removeCallbacks(startTimeout);
+        if (outcome != null) outcome.close();
+        outcome = null;
+        startResult = null;
+    }
+
+    private void stopOtherCameras() {
+        if (multiCamera == null) return;
+        multiCamera.stop();
+        multiCamera = null;
+    }
+
+    // The service's camera: opened headless for the first command, closed once idle
+    private class HeadlessCamera extends Camera2Commands {
+        HeadlessCamera() {
+            super(RecordingForegroundService.this);
+        }
+
+        // cameraId from the video command's plan; otherwise the first back-facing camera
+        @Override
+        public boolean open(CommandQueue.Command command) {
+            acquireWakeLock();
+            Intent intent = (Intent) command.payload;
+            cameraPlan = AutomationCommands.VIDEO.equals(command.type) ? planCameras(intent) : null;
+            recorder = new Camera2VideoRecorder(context, null, null);
+            recorder.setCameraId(cameraPlan != null ? cameraPlan.streams.get(0).cameraId : null);
+            Camera2VideoRecorder opened = recorder;
+            recorder.getStateMachine().setListener((from, to) -> {
+                mainHandler.post(() -> {
+                    if (outcome != null) outcome.onStateChanged(opened.getCameraId(), from, to);
+                });
+                // Open failed or device lost (disconnect/error) outside of our own shutdown
+                if (to == CameraStateMachine.State.CLOSED) mainHandler.post(RecordingForegroundService.this::shutdown);
+            });
+            recorder.openCamera();
+            if (recorder.getStateMachine().isIn(CameraStateMachine.State.CLOSED)) {
+                Toast.makeText(context, "No camera available", Toast.LENGTH_LONG).show();
+                recorder.getStateMachine().setListener(null);
+                recorder.closeCamera();
+                recorder = null;
+                cameraPlan = null;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void prepareRecording(CommandQueue.Command command, boolean opening) {
+            Intent intent = (Intent) command.payload;
+            if (!opening) cameraPlan = planCameras(intent);
+            recorder.applyIntentExtras(intent);
+            if (cameraPlan != null) {
+                ConcurrentCameraPlan.Stream primary = cameraPlan.streams.get(0);
+                recorder.setVideoSize(new Size(primary.width, primary.height));
+            } else {
+                recorder.setVideoSize(resolveSize(recorder.getVideoIndex(), intent.getStringExtra("quality")));
+            }
+            // MediaRecorder.prepare() overlaps with the camera opening
+            if (opening) recorder.prepareRecordingAsync(intent.getIntExtra("fps", 2), intent.getStringExtra("filepath"));
+            trackRecording(command);
+            // The other cameras open, prepare and start on their own threads alongside this one
+            if (cameraPlan != null) startOtherCameras(intent);
+        }
+
+        @Override
+        public void startRecording(CommandQueue.Command command, CommandFlow.Result result) {
+            Intent intent = (Intent) command.payload;
+            if (!recorder.startRecording(intent.getIntExtra("fps", 2), intent.getStringExtra("filepath"))) {
+                closeOutcome();
+                stopOtherCameras();
+                result.done(false, "recording refused");
+                return;
+            }
+            // Reported once every camera records or has failed: "3 cameras", "2 of 3 cameras
+            // recording; camera 2 failed to open"...
+            startResult = result;
+            outcome.starting(recorder.getCameraId());
+            mainHandler.postDelayed(startTimeout, START_TIMEOUT_MS);
+        }
+
+        // A resumed part plans its cameras again
+        @Override
+        public void stopRecording(boolean resuming) {
+            closeOutcome();
+            if (flow.isRecording()) recorder.stopRecording();
+            stopOtherCameras();
+        }
+
+        @Override
+        protected Size photoSize(String quality) {
+            return resolveSize(recorder.getPhotoIndex(), quality);
+        }
+
+        // Nothing queued, nothing running and nobody bound: release the camera and go away
+        @Override
+        public void idle() {
+            if (boundClients == 0) shutdown();
+        }
+    }
+
+    private void shutdown() {
+        flow.reset("service stopped");
+        closeOutcome();
+        cameraPlan = null;
+        foregroundAudio = false;
+        camera.closePhotoCapture();
+        if (camera.recorder != null) {
+            Camera2VideoRecorder closing = camera.recorder;
+            camera.recorder = null;
+            closing.getStateMachine().setListener(null);
+            closing.getStateMachine().clear();
+            if (closing.getStateMachine().isIn(CameraStateMachine.State.RECORDING)) closing.stopRecording();
+            closing.closeCamera();
+        }
+        stopOtherCameras();
+        releaseWakeLock();
+        stopSelf();
+    }
+
+    private void acquireWakeLock() {
+        if (wakeLock == null) {
+            PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+            wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Simple2FpsCamera::ServiceWakeLock");
+            wakeLock.setReferenceCounted(false);
+        }
+        if (!wakeLock.isHeld()) wakeLock.acquire();
+    }
+
+    private void releaseWakeLock() {
+        if (wakeLock != null && wakeLock.isHeld()) wakeLock.release();
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
-        return null; // We are not binding, we are starting
+        boundClients++;
+        return binder;
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        boundClients = 0;
+        mainHandler.post(flow::stopIfIdle);
+        return false;
     }
-    
+
     @Override
     public void onDestroy() {
+        mainHandler.removeCallbacksAndMessages(null);
+        if (camera.recorder != null || camera.hasPhotoCapture()) shutdown();
         stopForeground(true);
         super.onDestroy();
     }
-    
+
     private void createNotificationChannel() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             NotificationChannel channel = new NotificationChannel(
@@ -68,11 +377,11 @@ public class RecordingForegroundService extends Service {
                 NotificationManager.IMPORTANCE_LOW
             );
             channel.setDescription("Background recording notifications");
-            
+
             NotificationManager manager = getSystemService(NotificationManager.class);
             if (manager != null) {
                 manager.createNotificationChannel(channel);
             }
         }
     }
-}
\ No newline at end of file
+}
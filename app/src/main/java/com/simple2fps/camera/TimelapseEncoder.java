@@ -0,0 +1,359 @@
+package com.simple2fps.camera;
+
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.hardware.HardwareBuffer;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.ImageWriter;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Alternative to MediaRecorder for true 1-2 FPS / time-lapse output. The camera streams into a
+// PRIVATE ImageReader at a rate the sensor supports; FrameDecimator keeps only the frames the
+// output needs and they are forwarded zero-copy through an ImageWriter into the encoder's input
+// Surface, then muxed with MediaMuxer. Video only: audio has no meaning at these rates.
+@TargetApi(Build.VERSION_CODES.M)
+public class TimelapseEncoder {
+    private static final String TAG = "TimelapseEncoder";
+    private static final int READER_IMAGES = 4;
+
+    private final int width;
+    private final int height;
+    private final int outputFps;
+    private final int bitrate;
+    private File outputFile;
+    private final FrameDecimator decimator;
+    private BitrateController bitrateController;
+    private CaptureMetrics metrics;
+    private EncoderCapabilities.Choice encoderChoice;
+    private int iFrameIntervalSeconds = 1;
+
+    // Loop recording: roll to a new MP4 at the first keyframe past the duration/size limit
+    private SegmentRing segments;
+    private long segmentDurationUs;
+    private long segmentBytes;
+    private MediaFormat outputFormat;
+    private long segmentStartUs = -1;
+    private long segmentWritten = 0;
+    private boolean syncRequested = false;
+    private final MediaCodec.BufferInfo sampleInfo = new MediaCodec.BufferInfo();
+
+    private HandlerThread encoderThread;
+    private Handler encoderHandler;
+    private MediaCodec codec;
+    private MediaMuxer muxer;
+    private Surface codecSurface;
+    private ImageReader cameraReader;
+    private ImageWriter codecWriter;
+    private int trackIndex = -1;
+    private boolean muxerStarted = false;
+    private boolean stopping = false;
+    private Listener listener;
+
+    public interface Listener {
+        void onFinished(String filepath, long frames);
+        void onError(String error);
+    }
+
+    public TimelapseEncoder(int width, int height, int outputFps, double timelapseFactor, int bitrate, File outputFile) {
+        this.width = width;
+        this.height = height;
+        this.outputFps = outputFps;
+        this.bitrate = bitrate;
+        this.outputFile = outputFile;
+        this.decimator = new FrameDecimator(outputFps, timelapseFactor);
+    }
+
+    // outputFile must be ring.nextFile(); each later segment is taken from the ring
+    public void setSegments(SegmentRing ring, long segmentDurationMs, long segmentBytes) {
+        this.segments = ring;
+        this.segmentDurationUs = segmentDurationMs * 1000;
+        this.segmentBytes = segmentBytes;
+    }
+
+    // Encoder from EncoderCapabilities (null = platform AVC) and keyframe spacing; before prepare()
+    public void setEncoder(EncoderCapabilities.Choice choice, int iFrameIntervalSeconds) {
+        this.encoderChoice = choice;
+        this.iFrameIntervalSeconds = Math.max(1, iFrameIntervalSeconds);
+    }
+
+    // Encoded bytes and muxer write times go here; before start()
+    public void setMetrics(CaptureMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Retunes the bitrate mid-stream from the encoded frame sizes; bitrate passed above is the start
+    public void setBitrateController(BitrateController controller) {
+        this.bitrateController = controller;
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    // Sets up codec, muxer and the camera-facing reader. Returns the Surface to add to the session.
+    public Surface prepare() throws IOException {
+        encoderThread = new HandlerThread("TimelapseEncoder");
+        encoderThread.start();
+        encoderHandler = new Handler(encoderThread.getLooper());
+
+        codec = EncoderCapabilityCache.createEncoder(encoderChoice, width, height, bitrate, outputFps,
+                iFrameIntervalSeconds, codecCallback, encoderHandler);
+        codecSurface = codec.createInputSurface();
+        codecWriter = ImageWriter.newInstance(codecSurface, READER_IMAGES);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            cameraReader = ImageReader.newInstance(width, height, ImageFormat.PRIVATE, READER_IMAGES,
+                    HardwareBuffer.USAGE_VIDEO_ENCODE);
+        } else {
+            cameraReader = ImageReader.newInstance(width, height, ImageFormat.PRIVATE, READER_IMAGES);
+        }
+        cameraReader.setOnImageAvailableListener(this::onCameraFrame, encoderHandler);
+
+        muxer = new MediaMuxer(outputFile.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        return cameraReader.getSurface();
+    }
+
+    public void start() {
+        codec.start();
+    }
+
+    private void onCameraFrame(ImageReader reader) {
+        Image image;
+        try {
+            image = reader.acquireNextImage();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "acquireNextImage failed", e);
+            return;
+        }
+        if (image == null) return;
+        if (stopping) {
+            image.close();
+            return;
+        }
+
+        long ptsUs = decimator.accept(image.getTimestamp());
+        if (ptsUs < 0) {
+            image.close();
+            return;
+        }
+        // The encoder takes the buffer timestamp as PTS; queueInputImage() closes the image
+        image.setTimestamp(ptsUs * 1000);
+        try {
+            codecWriter.queueInputImage(image);
+        } catch (Exception e) {
+            Log.e(TAG, "queueInputImage failed", e);
+            image.close();
+        }
+    }
+
+    private final MediaCodec.Callback codecCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(MediaCodec mc, int index) {
+            // Surface input: never called
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec mc, int index, MediaCodec.BufferInfo info) {
+            ByteBuffer data = mc.getOutputBuffer(index);
+            boolean config = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+            if (data != null && info.size > 0 && !config && muxerStarted) {
+                if (metrics != null) metrics.onEncodedFrame(info.size);
+                if (bitrateController != null) {
+                    int retuned = bitrateController.onFrame(info.size, info.presentationTimeUs,
+                            (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+                    if (retuned > 0) setBitrate(mc, retuned);
+                }
+                if (segments != null) {
+                    // A failed rollover already finished (and released) the codec
+                    if (!writeSegmented(mc, data, info)) return;
+                } else {
+                    data.position(info.offset);
+                    data.limit(info.offset + info.size);
+                    writeSample(data, info);
+                }
+            }
+            mc.releaseOutputBuffer(index, false);
+
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                finish(null);
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec mc, MediaFormat format) {
+            outputFormat = format;
+            trackIndex = muxer.addTrack(format);
+            muxer.start();
+            muxerStarted = true;
+        }
+
+        @Override
+        public void onError(MediaCodec mc, MediaCodec.CodecException e) {
+            Log.e(TAG, "Encoder error", e);
+            finish(e.getMessage());
+        }
+    };
+
+    // Writes one sample, rolling over first if it's a keyframe and the segment is full. Timestamps
+    // are rebased so every segment starts at 0. Returns false if the rollover failed.
+    private boolean writeSegmented(MediaCodec mc, ByteBuffer data, MediaCodec.BufferInfo info) {
+        boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (segmentStartUs < 0) segmentStartUs = info.presentationTimeUs;
+        if (keyFrame && segmentFull(info.presentationTimeUs)) {
+            try {
+                rollOver(info.presentationTimeUs);
+            } catch (Exception e) {
+                Log.e(TAG, "Segment rollover failed", e);
+                finish("Segment rollover failed: " + e.getMessage());
+                return false;
+            }
+        }
+
+        data.position(info.offset);
+        data.limit(info.offset + info.size);
+        sampleInfo.set(info.offset, info.size, info.presentationTimeUs - segmentStartUs, info.flags);
+        writeSample(data, sampleInfo);
+        segmentWritten += info.size;
+
+        // Ask for a keyframe as soon as the limit is hit, so the cut lands close to it
+        if (!syncRequested && segmentFull(info.presentationTimeUs)) {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            mc.setParameters(params);
+            syncRequested = true;
+        }
+        return true;
+    }
+
+    // The muxer writes on this thread: its time is the file write latency
+    private void writeSample(ByteBuffer data, MediaCodec.BufferInfo info) {
+        long start = System.nanoTime();
+        muxer.writeSampleData(trackIndex, data, info);
+        if (metrics != null) metrics.onWrite(System.nanoTime() - start);
+    }
+
+    private void setBitrate(MediaCodec mc, int bitrate) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        try {
+            mc.setParameters(params);
+            Log.d(TAG, "Bitrate now " + bitrateController);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Bitrate update failed", e);
+        }
+    }
+
+    private boolean segmentFull(long ptsUs) {
+        return (segmentDurationUs > 0 && ptsUs - segmentStartUs >= segmentDurationUs)
+                || (segmentBytes > 0 && segmentWritten >= segmentBytes);
+    }
+
+    // The new muxer is started before the first sample of the next segment: no frame is lost
+    private void rollOver(long ptsUs) throws IOException {
+        muxer.stop();
+        muxer.release();
+        muxer = null;
+        muxerStarted = false;
+
+        File next = segments.nextFile();
+        muxer = new MediaMuxer(next.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        trackIndex = muxer.addTrack(outputFormat);
+        muxer.start();
+        muxerStarted = true;
+        Log.d(TAG, "Segment " + outputFile.getName() + " closed, now writing " + next.getName());
+        outputFile = next;
+        segments.onSegmentStarted(next);
+
+        segmentStartUs = ptsUs;
+        segmentWritten = 0;
+        syncRequested = false;
+    }
+
+    // Flushes the encoder and finalizes the MP4; listener fires on the encoder thread
+    public void stop(Listener listener) {
+        encoderHandler.post(() -> {
+            if (codec == null) {
+                listener.onError("Encoder already stopped");
+                return;
+            }
+            this.listener = listener;
+            stopping = true;
+            try {
+                codec.signalEndOfInputStream();
+            } catch (Exception e) {
+                finish(e.getMessage());
+            }
+        });
+    }
+
+    private void finish(String error) {
+        if (codec == null) return; // Already finished (error followed by EOS)
+        String failure = error;
+        try {
+            codec.stop();
+        } catch (Exception e) {
+            Log.w(TAG, "codec.stop failed", e);
+        }
+        if (muxerStarted) {
+            try {
+                muxer.stop();
+            } catch (Exception e) {
+                // Thrown when no sample was ever written
+                if (failure == null) failure = "Muxer stop failed: " + e.getMessage();
+            }
+            muxerStarted = false;
+        } else if (failure == null) {
+            failure = "No frames were encoded";
+        }
+        Log.d(TAG, "Time-lapse finished: " + decimator.getKeptFrames() + " frames");
+        release();
+
+        Listener l = listener;
+        listener = null;
+        if (l == null) return;
+        if (failure == null) {
+            l.onFinished(outputFile.getAbsolutePath(), decimator.getKeptFrames());
+        } else {
+            l.onError(failure);
+        }
+    }
+
+    public void release() {
+        if (cameraReader != null) {
+            cameraReader.close();
+            cameraReader = null;
+        }
+        if (codecWriter != null) {
+            codecWriter.close();
+            codecWriter = null;
+        }
+        if (codec != null) {
+            codec.release();
+            codec = null;
+        }
+        if (codecSurface != null) {
+            codecSurface.release();
+            codecSurface = null;
+        }
+        if (muxer != null) {
+            muxer.release();
+            muxer = null;
+        }
+        if (encoderThread != null) {
+            encoderThread.quitSafely();
+            encoderThread = null;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.simple2fps.camera;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+// Process-wide timeline of the automation command being run. Lifecycle steps anywhere in the
+// app call begin/end with a phase name; each pair becomes an async trace section (visible in
+// Perfetto/systrace next to the camera HAL's own tracks, API 29+) and, while a command is
+// active, a phase in its Timeline. The finished timeline goes to logcat and is appended as one
+// JSON line to timeline/timeline.jsonl in the app's external files dir, so slow commands can be
+// pulled off production devices and picked apart later.
+//
+// CommandQueue runs one command at a time per host, and the Activity hands its camera to the
+// service before the service runs anything, so one active timeline is enough.
+public class TimelineRecorder {
+    private static final String TAG = "TimelineRecorder";
+    private static final String FILE_NAME = "timeline.jsonl";
+    private static final String OLD_FILE_NAME = "timeline.1.jsonl";
+    // Rolled over to OLD_FILE_NAME past this, so at most twice this on disk
+    private static final long MAX_FILE_BYTES = 1024 * 1024;
+
+    private static Context appContext;
+    private static Timeline active;
+    // Holds phases begun with no command running (the preview on app start), only so their
+    // trace sections can be matched up; never written out
+    private static final Timeline idle = new Timeline("", "idle", 0);
+    private static int activeCookie;
+    private static int nextCookie = 1;
+    private static HandlerThread writerThread;
+    private static Handler writerHandler;
+
+    // Starts the timeline of a command that was just dispatched; an unfinished earlier one is
+    // written out as abandoned
+    public static synchronized void startCommand(Context context, CommandQueue.Command command) {
+        if (appContext == null) appContext = context.getApplicationContext();
+        if (active != null) finish(active, 0, false, "abandoned: " + command.type + " started");
+        active = new Timeline(command.id, command.type, SystemClock.elapsedRealtimeNanos());
+        activeCookie = nextCookie++;
+        beginAsync("command:" + command.type, activeCookie);
+    }
+
+    // Ends the command's timeline; ignored if another command's is active (late result)
+    public static synchronized void finishCommand(CommandQueue.Command command, long queuedMs, boolean success,
+                                                  String message) {
+        if (active == null || !active.id.equals(command.id)) return;
+        finish(active, queuedMs, success, message);
+    }
+
+    public static synchronized void begin(String phase) {
+        int cookie = nextCookie++;
+        beginAsync(phase, cookie);
+        (active != null ? active : idle).begin(phase, cookie, SystemClock.elapsedRealtimeNanos());
+    }
+
+    // Ends the oldest open instance of phase; a no-op if the command it belonged to already
+    // finished (its sections were closed then)
+    public static synchronized void end(String phase) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        int cookie = active != null ? active.end(phase, now) : -1;
+        if (cookie < 0) cookie = idle.end(phase, now);
+        if (cookie >= 0) endAsync(phase, cookie);
+    }
+
+    private static void finish(Timeline timeline, long queuedMs, boolean success, String message) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        for (Map.Entry<String, Integer> instance : timeline.openInstances()) {
+            endAsync(instance.getKey(), instance.getValue());
+        }
+        endAsync("command:" + timeline.command, activeCookie);
+        active = null;
+
+        String line = timeline.toJson(now, System.currentTimeMillis(), queuedMs, success, message);
+        Log.d(TAG, line);
+        if (appContext == null) return;
+        if (writerThread == null) {
+            writerThread = new HandlerThread("TimelineWriter");
+            writerThread.start();
+            writerHandler = new Handler(writerThread.getLooper());
+        }
+        Context context = appContext;
+        writerHandler.post(() -> append(context, line));
+    }
+
+    private static void append(Context context, String line) {
+        File directory = context.getExternalFilesDir("timeline");
+        if (directory == null) directory = new File(context.getFilesDir(), "timeline");
+        directory.mkdirs();
+        File file = new File(directory, FILE_NAME);
+        if (file.length() > MAX_FILE_BYTES) {
+            File old = new File(directory, OLD_FILE_NAME);
+            old.delete();
+            file.renameTo(old);
+        }
+        try (Writer out = new FileWriter(file, true)) {
+            out.write(line);
+            out.write('\n');
+        } catch (IOException e) {
+            Log.w(TAG, "Timeline write failed", e);
+        }
+    }
+
+    private static void beginAsync(String name, int cookie) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) Trace.beginAsyncSection(name, cookie);
+    }
+
+    private static void endAsync(String name, int cookie) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) Trace.endAsyncSection(name, cookie);
+    }
+}
@@ -0,0 +1,61 @@
+package com.simple2fps.camera.benchmark;
+
+import com.simple2fps.camera.BitrateController;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Static bitrate estimate per recording start, and the adaptive controller's per-frame cost on
+// the encoder callback thread
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BitrateBenchmark {
+    private static final int[][] SIZES = {{640, 480}, {1280, 720}, {1920, 1080}, {2560, 1440}, {3840, 2160}};
+    private static final int[] FPS = {1, 2, 5, 15, 30};
+    private static final int FRAMES = 4096;
+
+    // Scene activity: delta frames as a share of keyframe size
+    @Param({"0.02", "0.3"})
+    public double activity;
+
+    private BitrateController controller;
+    private final int[] frameBytes = new int[FRAMES];
+    private final boolean[] keyFrames = new boolean[FRAMES];
+    private int frame;
+    private long ptsUs;
+    private int sizeIndex;
+
+    @Setup
+    public void setup() {
+        int ceiling = BitrateController.defaultCeiling(1920, 1080, 30);
+        controller = new BitrateController(BitrateController.defaultFloor(ceiling), ceiling);
+        Random random = new Random(42);
+        int keyBytes = ceiling / 8;
+        for (int i = 0; i < FRAMES; i++) {
+            keyFrames[i] = i % 60 == 0;
+            double noise = 0.8 + random.nextDouble() * 0.4;
+            frameBytes[i] = (int) (keyFrames[i] ? keyBytes * noise : keyBytes * activity * noise);
+        }
+    }
+
+    @Benchmark
+    public int defaultCeiling() {
+        int i = sizeIndex++ % SIZES.length;
+        return BitrateController.defaultCeiling(SIZES[i][0], SIZES[i][1], FPS[i]);
+    }
+
+    @Benchmark
+    public int onFrame() {
+        int i = frame++ & (FRAMES - 1);
+        ptsUs += 33333;
+        return controller.onFrame(frameBytes[i], ptsUs, keyFrames[i]);
+    }
+}
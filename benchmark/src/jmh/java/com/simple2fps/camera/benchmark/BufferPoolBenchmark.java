@@ -0,0 +1,48 @@
+package com.simple2fps.camera.benchmark;
+
+import com.simple2fps.camera.DirectBufferPool;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Staging buffers for CPU-encoded JPEGs: the pool's acquire/release against a fresh direct
+// allocation per frame, which is what the pool replaces
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BufferPoolBenchmark {
+    // 1080p and 4K YUV_420_888 frames
+    @Param({"3110400", "12441600"})
+    public int frameBytes;
+
+    private DirectBufferPool pool;
+
+    @Setup
+    public void setup() {
+        pool = new DirectBufferPool(3);
+        pool.release(pool.acquire(frameBytes));
+    }
+
+    @Benchmark
+    public int pooled() {
+        ByteBuffer buffer = pool.acquire(frameBytes);
+        buffer.put(0, (byte) 1);
+        int capacity = buffer.capacity();
+        pool.release(buffer);
+        return capacity;
+    }
+
+    @Benchmark
+    public int allocateDirect() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(frameBytes);
+        buffer.put(0, (byte) 1);
+        return buffer.capacity();
+    }
+}
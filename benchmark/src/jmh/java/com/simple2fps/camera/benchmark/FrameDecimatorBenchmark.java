@@ -0,0 +1,52 @@
+package com.simple2fps.camera.benchmark;
+
+import com.simple2fps.camera.FrameDecimator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Slot scheduling for the time-lapse engine: one accept() per sensor frame, on a jittery 30 fps
+// stream with the odd stall
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameDecimatorBenchmark {
+    private static final int FRAMES = 10_000;
+
+    @Param({"1", "60"})
+    public double timelapseFactor;
+
+    private final long[] timestamps = new long[FRAMES];
+    private FrameDecimator decimator;
+
+    @Setup
+    public void setup() {
+        decimator = new FrameDecimator(2, timelapseFactor);
+        Random random = new Random(7);
+        long t = 1_000_000_000L;
+        for (int i = 0; i < FRAMES; i++) {
+            t += 33_333_333L + random.nextInt(4_000_000) - 2_000_000;
+            if (i % 1000 == 999) t += 500_000_000L;
+            timestamps[i] = t;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long acceptStream() {
+        decimator.reset();
+        long kept = 0;
+        for (long timestamp : timestamps) {
+            if (decimator.accept(timestamp) >= 0) kept++;
+        }
+        return kept;
+    }
+}
@@ -0,0 +1,53 @@
+package com.simple2fps.camera.benchmark;
+
+import com.simple2fps.camera.HdrFuser;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// HDR fusion of a synthetic -2/0/+2 EV bracket (shifted, noisy, clipped NV21 frames): alignment
+// plus blend per shot. threads=0 sizes the pool to the cores, as the app does; 1 shows the speedup.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HdrFuseBenchmark {
+    private static final double[] GAINS = {0.25, 1, 4};
+
+    @Param({"1920x1080", "4000x3000"})
+    public String size;
+
+    @Param({"0", "1"})
+    public int threads;
+
+    private ForkJoinPool pool;
+    private HdrFuser fuser;
+
+    @Setup
+    public void setup() {
+        int x = size.indexOf('x');
+        int width = Integer.parseInt(size.substring(0, x));
+        int height = Integer.parseInt(size.substring(x + 1));
+        pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+        fuser = new HdrFuser(width, height, GAINS.length, pool);
+        SyntheticFrames bracket = new SyntheticFrames(width, height, 5);
+        for (int i = 0; i < GAINS.length; i++) bracket.frame(fuser.frame(i), GAINS[i], 3);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public byte fuse() {
+        return fuser.fuse(GAINS.length)[0];
+    }
+}
@@ -0,0 +1,60 @@
+package com.simple2fps.camera.benchmark;
+
+import com.simple2fps.camera.ChannelWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// JpegWriter's write path: a direct buffer the size of a JPEG into a file in a temp directory,
+// with and without forcing it to storage. Throughput is bytes / score; point java.io.tmpdir at
+// the filesystem of interest (-Djava.io.tmpdir=... via jmh jvmArgs).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JpegWriteBenchmark {
+    // Typical 1080p and 12 MP JPEGs at quality 100
+    @Param({"600000", "4000000"})
+    public int jpegBytes;
+
+    @Param({"true", "false"})
+    public boolean durable;
+
+    private File directory;
+    private File target;
+    private ByteBuffer jpeg;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("jpeg-bench").toFile();
+        target = new File(directory, "shot.jpg");
+        byte[] data = new byte[jpegBytes];
+        // Incompressible, like entropy-coded JPEG data
+        new Random(1).nextBytes(data);
+        jpeg = ByteBuffer.allocateDirect(jpegBytes);
+        jpeg.put(data);
+    }
+
+    @TearDown
+    public void tearDown() {
+        target.delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        jpeg.rewind();
+        return ChannelWriter.writeFully(jpeg, target, durable);
+    }
+}
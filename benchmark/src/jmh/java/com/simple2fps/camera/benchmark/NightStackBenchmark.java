@@ -0,0 +1,55 @@
+package com.simple2fps.camera.benchmark;
+
+import com.simple2fps.camera.NightStacker;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// Night stacking of a synthetic handheld burst (shifted, noisy NV21 frames): alignment plus
+// merge per shot. threads=0 sizes the pool to the cores, as the app does; 1 shows the speedup.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NightStackBenchmark {
+    @Param({"1920x1080", "4000x3000"})
+    public String size;
+
+    @Param({"4", "8"})
+    public int frames;
+
+    @Param({"0", "1"})
+    public int threads;
+
+    private ForkJoinPool pool;
+    private NightStacker stacker;
+
+    @Setup
+    public void setup() {
+        int x = size.indexOf('x');
+        int width = Integer.parseInt(size.substring(0, x));
+        int height = Integer.parseInt(size.substring(x + 1));
+        pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+        stacker = new NightStacker(width, height, frames, pool);
+        // ISO 1600-ish noise on a dim scene
+        SyntheticFrames burst = new SyntheticFrames(width, height, 3);
+        for (int i = 0; i < frames; i++) burst.frame(stacker.frame(i), 0.5, 12);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public byte stack() {
+        return stacker.stack(frames)[0];
+    }
+}
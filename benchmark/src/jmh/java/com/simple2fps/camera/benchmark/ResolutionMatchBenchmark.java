@@ -0,0 +1,75 @@
+package com.simple2fps.camera.benchmark;
+
+import com.simple2fps.camera.FpsRangeResolver;
+import com.simple2fps.camera.QualityPresets;
+import com.simple2fps.camera.ResolutionIndex;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Per-intent lookups: the "quality" extra against the camera's size list (a scan vs the prebuilt
+// ResolutionIndex, including the nearest-size fallback), then the fps plan for the chosen size (precomputed, and the cold path for an fps nobody precomputed)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ResolutionMatchBenchmark {
+    // A typical back camera's MediaRecorder sizes, largest first as the HAL lists them
+    private static final int[][] SIZES = {
+            {4000, 3000}, {3840, 2160}, {3264, 2448}, {2560, 1440}, {2340, 1080}, {2048, 1536},
+            {1920, 1440}, {1920, 1080}, {1600, 1200}, {1440, 1080}, {1280, 960}, {1280, 720},
+            {1024, 768}, {960, 720}, {800, 600}, {800, 480}, {720, 480}, {640, 480}, {640, 360},
+            {352, 288}, {320, 240}, {176, 144}};
+    private static final int[][] AE_RANGES = {{7, 30}, {15, 15}, {15, 30}, {24, 24}, {30, 30}, {8, 60}, {60, 60}};
+    private static final int[] FPS_OPTIONS = {1, 2, 5, 10, 15, 24, 30};
+
+    @Param({"fhd", "1280x720", "4k", "16:9", "999x999"})
+    public String quality;
+
+    private FpsRangeResolver resolver;
+    private ResolutionIndex index;
+
+    @Setup
+    public void setup() {
+        resolver = new FpsRangeResolver(AE_RANGES, true);
+        for (int[] size : SIZES) {
+            long pixels = (long) size[0] * size[1];
+            resolver.addSize(size[0], size[1], pixels > 8_000_000 ? 33_333_333L : 16_666_666L);
+        }
+        resolver.precompute(FPS_OPTIONS);
+
+        int[] packed = new int[SIZES.length * 2];
+        long[] durations = new long[SIZES.length];
+        for (int i = 0; i < SIZES.length; i++) {
+            packed[i * 2] = SIZES[i][0];
+            packed[i * 2 + 1] = SIZES[i][1];
+            durations[i] = (long) SIZES[i][0] * SIZES[i][1] > 8_000_000 ? 33_333_333L : 16_666_666L;
+        }
+        index = new ResolutionIndex(packed, durations);
+    }
+
+    @Benchmark
+    public int matchQuality() {
+        return QualityPresets.indexOf(SIZES, quality);
+    }
+
+    @Benchmark
+    public ResolutionIndex.Match matchIndexed() {
+        return index.find(quality);
+    }
+
+    @Benchmark
+    public FpsRangeResolver.Plan resolvePrecomputed() {
+        return resolver.resolve(1920, 1080, 2);
+    }
+
+    @Benchmark
+    public FpsRangeResolver.Plan resolveUncached() {
+        return resolver.resolve(1920, 1080, 12);
+    }
+}
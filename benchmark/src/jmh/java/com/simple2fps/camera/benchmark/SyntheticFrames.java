@@ -0,0 +1,49 @@
+package com.simple2fps.camera.benchmark;
+
+import java.util.Random;
+
+// Stand-in for a handheld burst: one textured scene (smooth gradients, edges, fine detail),
+// seen through a randomly shifted window with Gaussian sensor noise, as NV21
+final class SyntheticFrames {
+    // Largest shift of a frame against the scene, per axis
+    static final int MAX_SHIFT = 12;
+
+    private final int width;
+    private final int height;
+    private final int sceneWidth;
+    private final byte[] scene;
+    private final Random random;
+
+    SyntheticFrames(int width, int height, long seed) {
+        this.width = width;
+        this.height = height;
+        sceneWidth = width + 2 * MAX_SHIFT;
+        int sceneHeight = height + 2 * MAX_SHIFT;
+        scene = new byte[sceneWidth * sceneHeight];
+        random = new Random(seed);
+        for (int y = 0; y < sceneHeight; y++) {
+            for (int x = 0; x < sceneWidth; x++) {
+                double value = 128 + 60 * Math.sin(x / 9.0) * Math.cos(y / 13.0) + ((x / 40 + y / 40) % 2) * 30 - 15
+                        + random.nextInt(9) - 4;
+                scene[y * sceneWidth + x] = (byte) Math.max(0, Math.min(255, (int) value));
+            }
+        }
+    }
+
+    // One exposure into out (NV21, width x height): scene luma times gain, shifted by up to
+    // MAX_SHIFT, plus noise of the given sigma; neutral chroma with noise
+    void frame(byte[] out, double gain, double sigma) {
+        int shiftX = random.nextInt(2 * MAX_SHIFT + 1);
+        int shiftY = random.nextInt(2 * MAX_SHIFT + 1);
+        for (int y = 0; y < height; y++) {
+            int row = (y + shiftY) * sceneWidth + shiftX;
+            for (int x = 0; x < width; x++) {
+                double value = (scene[row + x] & 0xFF) * gain + random.nextGaussian() * sigma;
+                out[y * width + x] = (byte) Math.max(0, Math.min(255, (int) Math.round(value)));
+            }
+        }
+        for (int i = width * height; i < out.length; i++) {
+            out[i] = (byte) Math.max(0, Math.min(255, 128 + (int) Math.round(random.nextGaussian() * sigma / 2)));
+        }
+    }
+}
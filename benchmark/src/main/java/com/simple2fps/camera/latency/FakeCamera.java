@@ -0,0 +1,439 @@
+package com.simple2fps.camera.latency;
+
+import com.simple2fps.camera.CameraCapabilities;
+import com.simple2fps.camera.CameraStateMachine;
+import com.simple2fps.camera.CommandFlow;
+import com.simple2fps.camera.CommandQueue;
+import com.simple2fps.camera.RecordingOutcome;
+import com.simple2fps.camera.ZslRing;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// CommandFlow's camera with scripted delays in place of Camera2: what Camera2Commands,
+// Camera2VideoRecorder and Camera2PhotoCapture do for a command, step by step, on the threads
+// the app uses for them (main for state changes, a prepare thread overlapping the open, a writer
+// thread for JPEGs). Async steps (open, session configuration, 3A, capture) call back on a
+// single "camera" thread after their delay, like Camera2 does on the background handler;
+// blocking steps (prepare, start, stop, JPEG write) sleep on the caller's thread, like
+// MediaRecorder and the writer do. Other cameras, if given, record alongside the first one like
+// MultiCameraRecorder's: each with its own camera thread, state machine and prepare thread,
+// opened when the video command is, and the command's result waits for all of them through
+// RecordingOutcome as the service's does. With zero shutter lag on, the photo session streams frames
+// into the real ZslRing and a shot takes the frame closest to its command's arrival, as
+// Camera2PhotoCapture does.
+public class FakeCamera implements CommandFlow.Camera {
+
+    // Step durations in ms; defaults model a slow mid-range device. Each one can be overridden
+    // with -Dfake.<name>Ms=...
+    public static class Delays {
+        public final long openMs = get("open", 350);
+        public final long previewMs = get("preview", 120);
+        public final long sessionMs = get("session", 180);
+        public final long prepareMs = get("prepare", 250);
+        public final long startMs = get("start", 60);
+        public final long stopMs = get("stop", 200);
+        public final long convergeMs = get("converge", 150);
+        public final long captureMs = get("capture", 90);
+        // TEMPLATE_VIDEO_SNAPSHOT from the recording session: about one frame at the recording's
+        // sensor rate
+        public final long snapshotMs = get("snapshot", 70);
+        public final long writeMs = get("write", 40);
+        // Repeating request: a frame every frameMs, its capture result resultMs after the image
+        public final long frameMs = get("frame", 33);
+        public final long resultMs = get("result", 12);
+        // A ZSL ring frame back through the camera's JPEG encoder
+        public final long reprocessMs = get("reprocess", 60);
+
+        private static long get(String name, long fallback) {
+            return Long.getLong("fake." + name + "Ms", fallback);
+        }
+
+        @Override
+        public String toString() {
+            return "open " + openMs + ", preview " + previewMs + ", session " + sessionMs + ", prepare " + prepareMs
+                    + ", start " + startMs + ", stop " + stopMs + ", converge " + convergeMs + ", capture " + captureMs
+                    + ", snapshot " + snapshotMs + ", write " + writeMs + ", frame " + frameMs + ", result " + resultMs
+                    + ", reprocess " + reprocessMs + " (ms)";
+        }
+    }
+
+    // The capability cache of the device being faked: back "0" (up to 4K), front "1", back
+    // ultra-wide "2"; it can stream 0+1, 1+2 or all three at once
+    public static CameraCapabilities capabilities() {
+        long frame30 = 33_333_333L;
+        return new CameraCapabilities("fake", Arrays.asList(
+                camera("0", CameraCapabilities.FACING_BACK, new int[]{3840, 2160, 1920, 1440, 1920, 1080, 1280, 720},
+                        new long[]{frame30, frame30, frame30, frame30}),
+                camera("1", CameraCapabilities.FACING_FRONT, new int[]{1920, 1080, 1280, 720, 640, 480},
+                        new long[]{frame30, frame30, frame30}),
+                camera("2", CameraCapabilities.FACING_BACK, new int[]{2560, 1440, 1280, 720},
+                        new long[]{frame30 * 2, frame30})),
+                Arrays.asList(new String[]{"0", "1"}, new String[]{"1", "2"}, new String[]{"0", "1", "2"}));
+    }
+
+    private static CameraCapabilities.Camera camera(String id, int facing, int[] sizes, long[] durations) {
+        return new CameraCapabilities.Camera(id, facing, sizes, durations, sizes, new int[][]{{15, 30}, {30, 30}},
+                100_000L, 100_000_000L, 100, 3200, CameraCapabilities.LEVEL_FULL,
+                CameraCapabilities.REPROCESS_YUV, true);
+    }
+
+
+    public final Delays delays;
+    private final ScheduledExecutorService cameraThread =
+            Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "FakeCamera"));
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> new Thread(r, "JpegWriter"));
+    private ScheduledFuture<?> frames;
+
+    // Set by the host before the first command
+    private Executor main;
+    private boolean preview;
+    private boolean zsl;
+    private List<FakeCamera> others = Collections.emptyList();
+    // This camera's open fails (CameraDevice.StateCallback.onError)
+    private boolean failOpen = false;
+
+    // Main thread: null while closed
+    private volatile CameraStateMachine states;
+    // prepareRecordingAsync: started when a video command is dispatched with the camera closed
+    private Thread prepareThread;
+    // Main thread: the video command's cameras, this one as "0" and the others from "1"
+    private RecordingOutcome outcome;
+    private CommandFlow.Result startResult;
+    // Whether the photo session is up and streaming
+    private boolean zslStreaming = false;
+
+    // Camera thread only: the ring of timestamps the photo session streams, and the shot waiting on it
+    private final ZslRing<Long, Long> zslRing = new ZslRing<>(3, frame -> {});
+    private CommandFlow.Result zslResult;
+    private long zslTriggerNs;
+    // Sensor timestamp of the last ZSL frame taken minus its trigger
+    public volatile long lastZslOffsetNs;
+
+    // Completed with System.nanoTime() at the moment each flow is done
+    public final CompletableFuture<Long> recordingStarted = new CompletableFuture<>();
+    private final List<CompletableFuture<Long>> photos = new ArrayList<>();
+    private int photosSaved;
+    public final CompletableFuture<Long> fileFinalized = new CompletableFuture<>();
+    // The video command's result, once every camera records or has failed; its message
+    public final CompletableFuture<Long> recordingReported = new CompletableFuture<>();
+    public volatile String recordingMessage;
+
+    public FakeCamera(Delays delays) {
+        this.delays = delays;
+    }
+
+    // preview=false is the headless service; true is MainActivity with its preview session
+    public void attach(Executor main, boolean preview, boolean zsl, List<FakeCamera> others) {
+        this.main = main;
+        this.preview = preview;
+        this.zsl = zsl;
+        this.others = new ArrayList<>(others);
+    }
+
+    // For one of the others: its open fails
+    public void failOpen() {
+        failOpen = true;
+    }
+
+    // Completed with System.nanoTime() when the index-th photo (from 0) is on disk
+    public synchronized CompletableFuture<Long> photoSaved(int index) {
+        while (photos.size() <= index) photos.add(new CompletableFuture<>());
+        return photos.get(index);
+    }
+
+    public boolean isIn(CameraStateMachine.State state) {
+        CameraStateMachine current = states;
+        return current != null ? current.isIn(state) : state == CameraStateMachine.State.CLOSED;
+    }
+
+    @Override
+    public CameraStateMachine getStateMachine() {
+        return states;
+    }
+
+    @Override
+    public boolean open(CommandQueue.Command command) {
+        states = new CameraStateMachine(main);
+        track(states, "0");
+        states.moveTo(CameraStateMachine.State.OPENING);
+        later(delays.openMs, () -> {
+            states.moveTo(CameraStateMachine.State.DEVICE_OPENED);
+            startPreview();
+        });
+        return true;
+    }
+
+    private void startPreview() {
+        if (!preview) {
+            states.moveTo(CameraStateMachine.State.IDLE);
+            return;
+        }
+        later(delays.previewMs, () -> states.moveTo(CameraStateMachine.State.IDLE));
+    }
+
+    // The service prepares while its own open runs, MainActivity at every dispatch
+    @Override
+    public void prepareRecording(CommandQueue.Command command, boolean opening) {
+        if (opening || preview) {
+            prepareThread = new Thread(this::prepareRecorder, "RecorderPrepare");
+            prepareThread.start();
+        }
+        List<String> cameraIds = new ArrayList<>();
+        for (int i = 0; i <= others.size(); i++) cameraIds.add(String.valueOf(i));
+        outcome = new RecordingOutcome(cameraIds, (success, message, changed) -> {
+            if (changed) return;
+            recordingMessage = message;
+            recordingReported.complete(System.nanoTime());
+            CommandFlow.Result result = startResult;
+            startResult = null;
+            if (result != null) result.done(success, message);
+        });
+        for (int i = 0; i < others.size(); i++) startOtherCamera(others.get(i), String.valueOf(i + 1));
+    }
+
+    // takePreparedRecorder waits for an in-flight prepare, otherwise prepare runs inline
+    @Override
+    public void startRecording(CommandQueue.Command command, CommandFlow.Result result) {
+        // The recording session replaces the photo session
+        stopZslStream();
+        Thread prepare = prepareThread;
+        prepareThread = null;
+        if (prepare != null) {
+            join(prepare);
+        } else {
+            prepareRecorder();
+        }
+        states.moveTo(CameraStateMachine.State.DEVICE_OPENED);
+        later(delays.sessionMs, () -> {
+            block(delays.startMs);
+            states.moveTo(CameraStateMachine.State.RECORDING);
+            recordingStarted.complete(System.nanoTime());
+        });
+        startResult = result;
+        outcome.starting("0");
+    }
+
+    // MultiCameraRecorder.start for one camera: a headless recorder that opens, prepares in
+    // parallel and starts as soon as it is IDLE
+    private void startOtherCamera(FakeCamera other, String cameraId) {
+        CameraStateMachine otherStates = new CameraStateMachine(main);
+        other.states = otherStates;
+        track(otherStates, cameraId);
+        Thread prepare = new Thread(other::prepareRecorder, "RecorderPrepare");
+        otherStates.moveTo(CameraStateMachine.State.OPENING);
+        other.later(other.delays.openMs, () -> {
+            if (other.failOpen) {
+                otherStates.moveTo(CameraStateMachine.State.CLOSED);
+                return;
+            }
+            otherStates.moveTo(CameraStateMachine.State.DEVICE_OPENED);
+            otherStates.moveTo(CameraStateMachine.State.IDLE);
+        });
+        prepare.start();
+        otherStates.runWhen("multi", () -> {
+            join(prepare);
+            otherStates.moveTo(CameraStateMachine.State.DEVICE_OPENED);
+            outcome.starting(cameraId);
+            other.later(other.delays.sessionMs, () -> {
+                block(other.delays.startMs);
+                otherStates.moveTo(CameraStateMachine.State.RECORDING);
+            });
+        }, CameraStateMachine.State.IDLE);
+    }
+
+    // State changes come on the camera threads; the outcome hears them on main
+    private void track(CameraStateMachine machine, String cameraId) {
+        machine.setListener((from, to) -> main.execute(() -> {
+            if (outcome != null) outcome.onStateChanged(cameraId, from, to);
+        }));
+    }
+
+    private void closeOutcome() {
+        if (outcome != null) outcome.close();
+        outcome = null;
+        startResult = null;
+    }
+
+    @Override
+    public void stopRecording(boolean resuming) {
+        closeOutcome();
+        if (states.isIn(CameraStateMachine.State.RECORDING)) {
+            block(delays.stopMs);
+            fileFinalized.complete(System.nanoTime());
+            states.moveTo(CameraStateMachine.State.DEVICE_OPENED);
+            startPreview();
+        }
+        for (FakeCamera other : others) {
+            if (other.isIn(CameraStateMachine.State.RECORDING)) block(other.delays.stopMs);
+            other.states = null;
+        }
+    }
+
+    @Override
+    public boolean canSnapshot(CommandQueue.Command command) {
+        return true;
+    }
+
+    // The recording session's JPEG output; the recording keeps running
+    @Override
+    public void snapshot(CommandQueue.Command command, CommandFlow.Result result) {
+        later(delays.snapshotMs, () -> savePhoto(result));
+    }
+
+    @Override
+    public void capture(CommandQueue.Command command, CommandFlow.Result result) {
+        if (zslStreaming) {
+            // Warm ZSL session: the frame the camera took when the command came in
+            long triggerNs = System.nanoTime() - command.ageNs();
+            cameraThread.execute(() -> takeZslFrame(result, triggerNs));
+            return;
+        }
+        later(delays.sessionMs, () -> later(delays.convergeMs, () -> {
+            if (zsl) {
+                main.execute(() -> zslStreaming = true);
+                streamFrames();
+                // Frames from before 3A was ready are no good: the first one after
+                takeZslFrame(result, System.nanoTime());
+            } else {
+                later(delays.captureMs, () -> savePhoto(result));
+            }
+        }));
+    }
+
+    // The repeating request's frames, on the camera thread until stopFrames(): each sensor
+    // timestamp (System.nanoTime() clock) into the ring, its capture result resultMs later
+    private synchronized void streamFrames() {
+        stopFrames();
+        frames = cameraThread.scheduleAtFixedRate(() -> {
+            long timestamp = System.nanoTime();
+            zslRing.addFrame(timestamp, timestamp);
+            pickZslFrame();
+            later(delays.resultMs, () -> {
+                zslRing.addResult(timestamp, timestamp);
+                pickZslFrame();
+            });
+        }, delays.frameMs, delays.frameMs, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stopFrames() {
+        if (frames != null) {
+            frames.cancel(false);
+            frames = null;
+        }
+    }
+
+    private void stopZslStream() {
+        if (zslStreaming) {
+            zslStreaming = false;
+            stopFrames();
+        }
+    }
+
+    private void takeZslFrame(CommandFlow.Result result, long triggerNs) {
+        zslResult = result;
+        zslTriggerNs = triggerNs;
+        pickZslFrame();
+    }
+
+    private void pickZslFrame() {
+        CommandFlow.Result result = zslResult;
+        if (result == null || !zslRing.canTake(zslTriggerNs)) return;
+        zslResult = null;
+        ZslRing.Entry<Long, Long> frame = zslRing.take(zslTriggerNs);
+        lastZslOffsetNs = frame.timestampNs - zslTriggerNs;
+        // A ZSL ring frame back through the camera's JPEG encoder
+        later(delays.reprocessMs, () -> savePhoto(result));
+    }
+
+    private void savePhoto(CommandFlow.Result result) {
+        writer.execute(() -> {
+            block(delays.writeMs);
+            photoSaved(nextPhoto()).complete(System.nanoTime());
+            result.done(true, null);
+        });
+    }
+
+    private synchronized int nextPhoto() {
+        return photosSaved++;
+    }
+
+    @Override
+    public boolean run(CommandQueue.Command command, CommandFlow.Result result) {
+        return false;
+    }
+
+    @Override
+    public String skip(CommandQueue.Command command) {
+        return null;
+    }
+
+    @Override
+    public int durationSeconds(CommandQueue.Command command) {
+        return 0;
+    }
+
+    @Override
+    public CommandQueue.Command resume(CommandQueue.Command recording, long remainingMs, int part) {
+        return new CommandQueue.Command(UUID.randomUUID().toString(), CommandFlow.VIDEO, CommandFlow.VIDEO,
+                CommandQueue.PRIORITY_HIGH, null);
+    }
+
+    @Override
+    public void dispatched(CommandQueue.Command command) {
+    }
+
+    @Override
+    public void phase(String name, boolean begin) {
+    }
+
+    // The service's shutdown once the idle linger ran out: the camera and its photo session go
+    @Override
+    public void idle() {
+        closeOutcome();
+        if (states == null) return;
+        stopZslStream();
+        cameraThread.execute(zslRing::clear);
+        states.moveTo(CameraStateMachine.State.CLOSED);
+        states = null;
+    }
+
+    public void shutdown() {
+        cameraThread.shutdownNow();
+        writer.shutdownNow();
+        for (FakeCamera other : others) other.shutdown();
+    }
+
+    private void prepareRecorder() {
+        block(delays.prepareMs);
+    }
+
+    private void later(long delayMs, Runnable action) {
+        cameraThread.schedule(action, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static void join(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void block(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.simple2fps.camera.latency;
+
+import com.simple2fps.camera.CameraCapabilities;
+import com.simple2fps.camera.CameraStateMachine;
+import com.simple2fps.camera.ConcurrentCameraPlan;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// Latency regression gate for the intent-driven flows. Each scenario runs the app's CommandFlow
+// (through ScriptedHost) against FakeCamera and must finish within the critical path of the
+// scripted delays plus slack; time added by the orchestration itself (a fixed delay, a
+// serialized step that used to overlap) fails it. A scenario over its bound is measured again
+// before it counts, so one stall on a busy machine doesn't fail it. Exits 1 on any failure:
+// ./gradlew :benchmark:latencyCheck (CI runs it; it is wall-clock bound, so not part of check)
+//
+// -Dlatency.runs=5, -Dlatency.retries=1, -Dlatency.slackMs=40, -Dlatency.slackPercent=15, plus
+// FakeCamera's -Dfake.<step>Ms delays.
+public class LatencyCheck {
+    private static final int RUNS = Integer.getInteger("latency.runs", 5);
+    private static final int RETRIES = Integer.getInteger("latency.retries", 1);
+    private static final long SLACK_MS = Long.getLong("latency.slackMs", 40);
+    private static final long SLACK_PERCENT = Long.getLong("latency.slackPercent", 15);
+    private static final long TIMEOUT_MS = 20000;
+    // Between two automation commands in the warm scenario; well inside the idle linger
+    private static final long COMMAND_GAP_MS = 1000;
+    // Linger for the scenario that lets it run out
+    private static final long SHORT_LINGER_MS = 100;
+
+    private interface Scenario {
+        // Returns the measured latency in ms
+        long run(FakeCamera camera) throws Exception;
+    }
+
+    private static class Result {
+        final String name;
+        final long expectedMs;
+        final long boundMs;
+        final List<Long> samples = new ArrayList<>();
+        int attempts;
+
+        Result(String name, long expectedMs) {
+            this.name = name;
+            this.expectedMs = expectedMs;
+            this.boundMs = expectedMs + Math.max(SLACK_MS, expectedMs * SLACK_PERCENT / 100);
+        }
+
+        long max() {
+            long max = 0;
+            for (long sample : samples) max = Math.max(max, sample);
+            return max;
+        }
+
+        boolean passed() {
+            return !samples.isEmpty() && max() <= boundMs;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        FakeCamera.Delays d = new FakeCamera.Delays();
+        System.out.println("Fake camera: " + d);
+        List<Result> results = new ArrayList<>();
+
+        // Cold start, headless: MediaRecorder.prepare overlaps the open
+        results.add(measure("intent -> recording started (cold)",
+                Math.max(d.openMs, d.prepareMs) + d.sessionMs + d.startMs, camera -> {
+            ScriptedHost host = new ScriptedHost(camera, false);
+            try {
+                long start = System.nanoTime();
+                host.submit(ScriptedHost.VIDEO);
+                return elapsedMs(start, camera.recordingStarted);
+            } finally {
+                host.shutdown();
+            }
+        }));
+
+        // Activity launch: the intent is queued while the preview surface opens the camera, and
+        // MediaRecorder.prepare overlaps both
+        results.add(measure("intent -> recording started (activity launch)",
+                Math.max(d.openMs + d.previewMs, d.prepareMs) + d.sessionMs + d.startMs, camera -> {
+            long start = System.nanoTime();
+            ScriptedHost host = new ScriptedHost(camera, true);
+            try {
+                host.submit(ScriptedHost.VIDEO);
+                return elapsedMs(start, camera.recordingStarted);
+            } finally {
+                host.shutdown();
+            }
+        }));
+
+        results.add(measure("stop -> file finalized", d.stopMs, camera -> {
+            ScriptedHost host = new ScriptedHost(camera, false);
+            try {
+                host.submit(ScriptedHost.VIDEO);
+                camera.recordingStarted.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                long start = System.nanoTime();
+                host.submit(ScriptedHost.STOP);
+                return elapsedMs(start, camera.fileFinalized);
+            } finally {
+                host.shutdown();
+            }
+        }));
+
+        results.add(measure("intent -> photo saved (cold)",
+                d.openMs + d.sessionMs + d.convergeMs + d.captureMs + d.writeMs, camera -> {
+            ScriptedHost host = new ScriptedHost(camera, false);
+            try {
+                long start = System.nanoTime();
+                host.submit(ScriptedHost.PHOTO);
+                return elapsedMs(start, camera.photoSaved(0));
+            } finally {
+                host.shutdown();
+            }
+        }));
+
+        results.add(measure("intent -> photo saved (camera idle)",
+                d.sessionMs + d.convergeMs + d.captureMs + d.writeMs, camera -> {
+            ScriptedHost host = new ScriptedHost(camera, true);
+            try {
+                host.submit(ScriptedHost.VIDEO);
+                camera.recordingStarted.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                host.submit(ScriptedHost.STOP);
+                camera.fileFinalized.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                awaitIdle(host);
+                long start = System.nanoTime();
+                host.submit(ScriptedHost.PHOTO);
+                return elapsedMs(start, camera.photoSaved(0));
+            } finally {
+                host.shutdown();
+            }
+        }));
+
+        // A video snapshot: one frame plus the write, and the recording must still be running
+        results.add(measure("intent -> photo saved (while recording)", d.snapshotMs + d.writeMs, camera -> {
+            ScriptedHost host = new ScriptedHost(camera, true);
+            try {
+                host.submit(ScriptedHost.VIDEO);
+                camera.recordingStarted.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                long start = System.nanoTime();
+                host.submit(ScriptedHost.PHOTO);
+                long latency = elapsedMs(start, camera.photoSaved(0));
+                if (!host.isIn(CameraStateMachine.State.RECORDING) || camera.fileFinalized.isDone()) {
+                    throw new IllegalStateException("photo while recording interrupted the recording");
+                }
+                return latency;
+            } finally {
+                host.shutdown();
+            }
+        }));
+
+        // Zero shutter lag, photo session still warm from a shot a moment earlier (within the
+        // idle linger): the frame nearest the command's arrival is already in the ring, so at
+        // most half a frame and its result, then the reprocess and the write
+        results.add(measure("intent -> photo saved (zsl, session warm)",
+                d.frameMs / 2 + d.resultMs + d.reprocessMs + d.writeMs, camera -> {
+            ScriptedHost host = new ScriptedHost(camera, true, Collections.emptyList(), true);
+            try {
+                host.submit(ScriptedHost.PHOTO);
+                camera.photoSaved(0).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                awaitIdle(host);
+                Thread.sleep(COMMAND_GAP_MS);
+                if (!host.isIn(CameraStateMachine.State.IDLE)) {
+                    throw new IllegalStateException("camera closed " + COMMAND_GAP_MS + " ms after a command");
+                }
+                long start = System.nanoTime();
+                host.submit(ScriptedHost.PHOTO);
+                long latency = elapsedMs(start, camera.photoSaved(1));
+                long offsetMs = camera.lastZslOffsetNs / 1_000_000;
+                if (Math.abs(offsetMs) > d.frameMs) {
+                    throw new IllegalStateException("ZSL frame " + offsetMs + " ms from the trigger");
+                }
+                return latency;
+            } finally {
+                host.shutdown();
+            }
+        }));
+
+        // Past the idle linger the camera is closed again, so the next shot starts cold: open,
+        // preview, the photo session, 3A, then the first frame after the trigger
+        results.add(measure("intent -> photo saved (zsl, linger expired)",
+                d.openMs + d.previewMs + d.sessionMs + d.convergeMs + d.frameMs + d.resultMs + d.reprocessMs + d.writeMs,
+                camera -> {
+            ScriptedHost host = new ScriptedHost(camera, true, Collections.emptyList(), true);
+            host.setIdleLingerMs(SHORT_LINGER_MS);
+            try {
+                host.submit(ScriptedHost.PHOTO);
+                camera.photoSaved(0).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                awaitState(host, CameraStateMachine.State.CLOSED);
+                long start = System.nanoTime();
+                host.submit(ScriptedHost.PHOTO);
+                return elapsedMs(start, camera.photoSaved(1));
+            } finally {
+                host.shutdown();
+            }
+        }));
+
+        // Multi-camera: the other cameras open, prepare and start alongside the first, so all of
+        // them record about when one would; serializing them would add an open and a start each.
+        // The result goes out once every camera records, counting them.
+        int cameras = checkPlans().streams.size();
+        results.add(measure("intent -> " + cameras + " cameras recording (cold)",
+                Math.max(d.openMs, d.prepareMs) + d.sessionMs + d.startMs,
+                camera -> multiCamera(camera, cameras, -1, cameras + " cameras")));
+
+        // One of them fails to open: the others still record, and the result says which didn't
+        int failing = cameras - 1;
+        results.add(measure("intent -> " + (cameras - 1) + " of " + cameras + " cameras (one fails)",
+                Math.max(d.openMs, d.prepareMs) + d.sessionMs + d.startMs,
+                camera -> multiCamera(camera, cameras, failing,
+                        (cameras - 1) + " of " + cameras + " cameras recording; camera " + failing + " failed to open")));
+
+        boolean failed = false;
+        System.out.println(String.format(Locale.US, "%-46s %9s %9s %9s  %s", "flow", "expected", "bound", "max", "samples (ms)"));
+        for (Result result : results) {
+            System.out.println(String.format(Locale.US, "%-46s %9d %9d %9d  %s %s", result.name, result.expectedMs,
+                    result.boundMs, result.max(), result.samples, result.passed() ? "" : "FAILED")
+                    + (result.attempts > 1 ? " (attempt " + result.attempts + ")" : ""));
+            failed |= !result.passed();
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    // Intent to the video command's result with the first camera and cameras - 1 others, the
+    // failing-th of them (from 1; -1 for none) failing to open; the result must read expected
+    private static long multiCamera(FakeCamera camera, int cameras, int failing, String expected) throws Exception {
+        List<FakeCamera> others = new ArrayList<>();
+        for (int i = 1; i < cameras; i++) {
+            FakeCamera other = new FakeCamera(new FakeCamera.Delays());
+            if (i == failing) other.failOpen();
+            others.add(other);
+        }
+        ScriptedHost host = new ScriptedHost(camera, false, others, false);
+        try {
+            long start = System.nanoTime();
+            host.submit(ScriptedHost.VIDEO);
+            long latency = elapsedMs(start, camera.recordingReported);
+            if (!expected.equals(camera.recordingMessage)) {
+                throw new IllegalStateException("reported \"" + camera.recordingMessage + "\", expected \"" + expected + "\"");
+            }
+            return latency;
+        } finally {
+            host.shutdown();
+        }
+    }
+
+    // ConcurrentCameraPlan against the fake device's capabilities; returns the "all" plan
+    private static ConcurrentCameraPlan checkPlans() {
+        CameraCapabilities caps = FakeCamera.capabilities();
+        ConcurrentCameraPlan all = ConcurrentCameraPlan.plan(caps, "all", null, "0");
+        expectPlan(all, "0", "1", "2");
+        for (ConcurrentCameraPlan.Stream stream : all.streams) {
+            if (stream.width > ConcurrentCameraPlan.MAX_WIDTH || stream.height > ConcurrentCameraPlan.MAX_HEIGHT) {
+                throw new IllegalStateException("plan above s1440p: " + all);
+            }
+        }
+        ConcurrentCameraPlan backFront = ConcurrentCameraPlan.plan(caps, "back+front", "4k", "0");
+        expectPlan(backFront, "0", "1");
+        if (backFront.streams.get(0).width != 1920 || backFront.streams.get(0).height != 1080) {
+            throw new IllegalStateException("4k not capped to the nearest 16:9 size: " + backFront);
+        }
+        expectPlan(ConcurrentCameraPlan.plan(caps, "2,0", null, "0"), "0", "2");
+        expectPlan(ConcurrentCameraPlan.plan(caps, "front, back", null, "2"), "2", "1");
+        expectPlan(ConcurrentCameraPlan.plan(caps, "front+front", null, null));
+        expectPlan(ConcurrentCameraPlan.plan(new CameraCapabilities("fake", caps.cameras), "all", null, null));
+        System.out.println("Concurrent camera plans: " + all);
+        return all;
+    }
+
+    // No ids: the plan must be impossible
+    private static void expectPlan(ConcurrentCameraPlan plan, String... ids) {
+        List<String> planned = new ArrayList<>();
+        for (ConcurrentCameraPlan.Stream stream : plan.streams) planned.add(stream.cameraId);
+        if (!planned.equals(Arrays.asList(ids)) || plan.isPossible() != (ids.length > 0)) {
+            throw new IllegalStateException("expected cameras " + Arrays.toString(ids) + ", planned " + plan);
+        }
+    }
+
+    private static Result measure(String name, long expectedMs, Scenario scenario) throws Exception {
+        Result result = new Result(name, expectedMs);
+        while (!result.passed() && result.attempts <= RETRIES) {
+            result.attempts++;
+            result.samples.clear();
+            for (int i = 0; i < RUNS; i++) {
+                result.samples.add(scenario.run(new FakeCamera(new FakeCamera.Delays())));
+            }
+        }
+        return result;
+    }
+
+    private static long elapsedMs(long startNs, CompletableFuture<Long> done) throws Exception {
+        return (done.get(TIMEOUT_MS, TimeUnit.MILLISECONDS) - startNs) / 1_000_000;
+    }
+
+    private static void awaitIdle(ScriptedHost host) throws InterruptedException {
+        awaitState(host, CameraStateMachine.State.IDLE);
+    }
+
+    private static void awaitState(ScriptedHost host, CameraStateMachine.State state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!host.isIn(state) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.simple2fps.camera.latency;
+
+import com.simple2fps.camera.CameraStateMachine;
+import com.simple2fps.camera.CommandFlow;
+import com.simple2fps.camera.CommandQueue;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// The app's CommandFlow on a plain JVM: a single-threaded "main" executor standing in for the
+// main Handler, and FakeCamera standing in for the Camera2 side (Camera2Commands and the two
+// hosts' subclasses of it), so every flow the latency check times is the one
+// RecordingForegroundService and MainActivity run.
+public class ScriptedHost {
+    public static final String VIDEO = CommandFlow.VIDEO;
+    public static final String PHOTO = CommandFlow.PHOTO;
+    public static final String STOP = CommandFlow.STOP;
+    // RecordingForegroundService.IDLE_LINGER_MS
+    public static final long IDLE_LINGER_MS = 15000;
+
+    private final FakeCamera camera;
+    private final ScheduledExecutorService main = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "main"));
+    // Main thread only: delayed actions by identity, as Handler.removeCallbacks finds them
+    private final Map<Runnable, ScheduledFuture<?>> delayed = new HashMap<>();
+    private final CommandFlow flow;
+
+    // preview=false is the headless service, opening the camera for its first command; true is
+    // MainActivity, which opens it with its preview surface at launch
+    public ScriptedHost(FakeCamera camera, boolean preview) {
+        this(camera, preview, Collections.emptyList(), false);
+    }
+
+    public ScriptedHost(FakeCamera camera, boolean preview, List<FakeCamera> others, boolean zsl) {
+        this.camera = camera;
+        CommandFlow.MainThread mainThread = new CommandFlow.MainThread() {
+            @Override
+            public void execute(Runnable action) {
+                try {
+                    main.execute(action);
+                } catch (RejectedExecutionException e) {
+                    // Shut down: the scenario is over, late camera callbacks go nowhere
+                }
+            }
+
+            @Override
+            public void postDelayed(Runnable action, long delayMs) {
+                delayed.put(action, main.schedule(() -> {
+                    delayed.remove(action);
+                    action.run();
+                }, delayMs, TimeUnit.MILLISECONDS));
+            }
+
+            @Override
+            public void cancel(Runnable action) {
+                ScheduledFuture<?> pending = delayed.remove(action);
+                if (pending != null) pending.cancel(false);
+            }
+        };
+        camera.attach(mainThread, preview, zsl, others);
+        flow = new CommandFlow(camera, mainThread, IDLE_LINGER_MS);
+        if (preview) main.execute(() -> camera.open(null));
+    }
+
+    public void setIdleLingerMs(long lingerMs) {
+        main.execute(() -> flow.setIdleLingerMs(lingerMs));
+    }
+
+    public void submit(String type) {
+        String key = PHOTO.equals(type) ? null : type;
+        int priority = STOP.equals(type) ? CommandQueue.PRIORITY_HIGH : CommandQueue.PRIORITY_NORMAL;
+        CommandQueue.Command command = new CommandQueue.Command(UUID.randomUUID().toString(), type, key, priority, null);
+        main.execute(() -> flow.submit(command));
+    }
+
+    public boolean isIn(CameraStateMachine.State state) {
+        return camera.isIn(state);
+    }
+
+    public void shutdown() {
+        main.shutdownNow();
+        camera.shutdown();
+    }
+}
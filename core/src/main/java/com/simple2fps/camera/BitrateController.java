@@ -0,0 +1,139 @@
+package com.simple2fps.camera;
+
+import java.util.Locale;
+
+// Content-adaptive target bitrate for the MediaCodec engines. Fed the size of every encoded
+// frame, it estimates how busy the scene is and moves the target between a floor and a ceiling.
+//
+// Two signals, both free since the encoder already computed them:
+// - activity: average delta-frame size relative to the last keyframe. A static scene costs the
+//   encoder almost nothing between keyframes; motion and noise push deltas towards keyframe size.
+// - saturation: the encoder spending (nearly) all of the current target on a scene that isn't
+//   static means it is starved.
+// Rises are applied at once, drops are smoothed and held back so a passing car doesn't make the
+// target oscillate. Pure Java: no codec involved, so it can be driven from recorded frame sizes.
+public class BitrateController {
+    // Delta/keyframe size ratios treated as "static" and "busy"
+    private static final double STATIC_RATIO = 0.05;
+    private static final double BUSY_RATIO = 0.5;
+    // Share of the target above which the encoder counts as starved, and the step up when it is
+    private static final double SATURATED = 0.9;
+    private static final double SATURATED_STEP = 1.25;
+    // Changes smaller than this aren't worth a codec parameter update
+    private static final double MIN_CHANGE = 0.1;
+    private static final double DECAY = 0.5;
+    private static final long DEFAULT_WINDOW_US = 2000000;
+    private static final long DEFAULT_HOLD_US = 5000000;
+
+    private final int floorBps;
+    private final int ceilingBps;
+    private final long windowUs;
+    private final long holdUs;
+
+    private int targetBps;
+    private long lastChangeUs = -1;
+    private double keyFrameBytes = -1;
+    private double activity = 1;
+
+    private long windowStartUs = -1;
+    private long windowEndUs;
+    private long windowBytes;
+    private long deltaBytes;
+    private int deltaFrames;
+
+    public BitrateController(int floorBps, int ceilingBps) {
+        this(floorBps, ceilingBps, DEFAULT_WINDOW_US, DEFAULT_HOLD_US);
+    }
+
+    public BitrateController(int floorBps, int ceilingBps, long windowUs, long holdUs) {
+        this.ceilingBps = Math.max(1, ceilingBps);
+        this.floorBps = Math.max(1, Math.min(floorBps, this.ceilingBps));
+        this.windowUs = windowUs;
+        this.holdUs = holdUs;
+        // Start high: the first keyframes set the quality reference
+        this.targetBps = this.ceilingBps;
+    }
+
+    // Static bits-per-pixel estimate, the most a stream of this size and rate should need
+    public static int defaultCeiling(int width, int height, int fps) {
+        double bitsPerPixel = fps <= 5 ? 0.25 : 0.15;
+        int bitrate = (int) ((long) width * height * fps * bitsPerPixel);
+        return Math.max(500000, Math.min(bitrate, 20000000));
+    }
+
+    public static int defaultFloor(int ceilingBps) {
+        return Math.max(250000, ceilingBps / 4);
+    }
+
+    public synchronized int getTargetBps() {
+        return targetBps;
+    }
+
+    public synchronized double getActivity() {
+        return activity;
+    }
+
+    public int getFloorBps() {
+        return floorBps;
+    }
+
+    public int getCeilingBps() {
+        return ceilingBps;
+    }
+
+    // Call for every encoded frame (not codec config). Returns the new target when it should be
+    // applied to the encoder, or 0 to leave it as is.
+    public synchronized int onFrame(int sizeBytes, long ptsUs, boolean keyFrame) {
+        if (windowStartUs < 0) windowStartUs = ptsUs;
+        windowEndUs = ptsUs;
+        windowBytes += sizeBytes;
+        if (keyFrame) {
+            keyFrameBytes = keyFrameBytes < 0 ? sizeBytes : (keyFrameBytes + sizeBytes) / 2;
+        } else {
+            deltaBytes += sizeBytes;
+            deltaFrames++;
+        }
+        if (ptsUs - windowStartUs < windowUs) return 0;
+        return closeWindow(ptsUs);
+    }
+
+    private int closeWindow(long ptsUs) {
+        long spanUs = Math.max(1, windowEndUs - windowStartUs);
+        double spentBps = windowBytes * 8.0 * 1000000 / spanUs;
+
+        double measured = -1;
+        if (deltaFrames > 0 && keyFrameBytes > 0) {
+            double ratio = (double) deltaBytes / deltaFrames / keyFrameBytes;
+            measured = clamp((ratio - STATIC_RATIO) / (BUSY_RATIO - STATIC_RATIO), 0, 1);
+            activity = measured > activity ? measured : activity + (measured - activity) * DECAY;
+        }
+        windowStartUs = ptsUs;
+        windowBytes = 0;
+        deltaBytes = 0;
+        deltaFrames = 0;
+
+        int desired = (int) (floorBps + (ceilingBps - floorBps) * activity);
+        // A constant-rate encoder always spends its target: only trust that on a scene that moves
+        if (spentBps >= targetBps * SATURATED && measured != 0) {
+            desired = Math.max(desired, (int) Math.min(ceilingBps, targetBps * SATURATED_STEP));
+        }
+        desired = (int) clamp(desired, floorBps, ceilingBps);
+
+        if (Math.abs(desired - targetBps) < targetBps * MIN_CHANGE) return 0;
+        boolean rising = desired > targetBps;
+        if (!rising && lastChangeUs >= 0 && ptsUs - lastChangeUs < holdUs) return 0;
+        targetBps = desired;
+        lastChangeUs = ptsUs;
+        return targetBps;
+    }
+
+    private static double clamp(double value, double min, double max) {
+        return Math.max(min, Math.min(value, max));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%d kbps (%d-%d), activity %.2f",
+                targetBps / 1000, floorBps / 1000, ceilingBps / 1000, activity);
+    }
+}
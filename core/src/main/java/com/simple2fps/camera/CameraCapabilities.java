@@ -0,0 +1,183 @@
+package com.simple2fps.camera;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Snapshot of everything we ask CameraManager for, in a form that can be written to a small
+// binary file and read back without any binder calls. Plain Java so it can be exercised off-device.
+public class CameraCapabilities {
+    private static final int MAGIC = 0x53324643; // "S2FC"
+    private static final int VERSION = 4;
+
+    // Same values as CameraMetadata.LENS_FACING_*
+    public static final int FACING_FRONT = 0;
+    public static final int FACING_BACK = 1;
+    public static final int FACING_EXTERNAL = 2;
+
+    // Same values as CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_*
+    public static final int LEVEL_LIMITED = 0;
+    public static final int LEVEL_FULL = 1;
+    public static final int LEVEL_LEGACY = 2;
+
+    // Bits of Camera.reprocessing: REQUEST_AVAILABLE_CAPABILITIES_PRIVATE/YUV_REPROCESSING
+    public static final int REPROCESS_PRIVATE = 1;
+    public static final int REPROCESS_YUV = 2;
+
+    public static class Camera {
+        public final String id;
+        public final int facing;
+        // Packed {w0, h0, w1, h1, ...}; MediaRecorder sizes with their min frame durations
+        public final int[] videoSizes;
+        public final long[] videoMinFrameDurations;
+        public final int[] jpegSizes;
+        // {lower, upper} pairs from CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES
+        public final int[][] fpsRanges;
+        // 0 when the HAL doesn't report the range
+        public final long minExposureNs;
+        public final long maxExposureNs;
+        public final int minIso;
+        public final int maxIso;
+        public final int hardwareLevel;
+        public final int reprocessing;
+        // SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME: sensor timestamps are elapsedRealtimeNanos()
+        public final boolean realtimeTimestamps;
+
+        public Camera(String id, int facing, int[] videoSizes, long[] videoMinFrameDurations, int[] jpegSizes,
+                      int[][] fpsRanges, long minExposureNs, long maxExposureNs, int minIso, int maxIso,
+                      int hardwareLevel, int reprocessing, boolean realtimeTimestamps) {
+            this.id = id;
+            this.facing = facing;
+            this.videoSizes = videoSizes;
+            this.videoMinFrameDurations = videoMinFrameDurations;
+            this.jpegSizes = jpegSizes;
+            this.fpsRanges = fpsRanges;
+            this.minExposureNs = minExposureNs;
+            this.maxExposureNs = maxExposureNs;
+            this.minIso = minIso;
+            this.maxIso = maxIso;
+            this.hardwareLevel = hardwareLevel;
+            this.reprocessing = reprocessing;
+            this.realtimeTimestamps = realtimeTimestamps;
+        }
+
+        public int videoSizeCount() {
+            return videoSizes.length / 2;
+        }
+
+        // LEGACY HALs don't guarantee a JPEG stream next to preview + recording
+        public boolean supportsVideoSnapshot() {
+            return hardwareLevel != LEVEL_LEGACY;
+        }
+
+        // TEMPLATE_ZERO_SHUTTER_LAG is only guaranteed with one of the reprocessing capabilities
+        public boolean supportsZeroShutterLag() {
+            return reprocessing != 0;
+        }
+    }
+
+    public final String fingerprint;
+    public final List<Camera> cameras;
+    // CameraManager.getConcurrentCameraIds(): camera id sets that may stream at the same time.
+    // Empty below API 30 or when the device allows no combination.
+    public final List<String[]> concurrentSets;
+
+    public CameraCapabilities(String fingerprint, List<Camera> cameras) {
+        this(fingerprint, cameras, Collections.<String[]>emptyList());
+    }
+
+    public CameraCapabilities(String fingerprint, List<Camera> cameras, List<String[]> concurrentSets) {
+        this.fingerprint = fingerprint;
+        this.cameras = Collections.unmodifiableList(new ArrayList<>(cameras));
+        this.concurrentSets = Collections.unmodifiableList(new ArrayList<>(concurrentSets));
+    }
+
+    public Camera find(String id) {
+        for (Camera camera : cameras) {
+            if (camera.id.equals(id)) return camera;
+        }
+        return null;
+    }
+
+    // First camera with the given facing, else the first camera at all, else null
+    public Camera preferFacing(int facing) {
+        for (Camera camera : cameras) {
+            if (camera.facing == facing) return camera;
+        }
+        return cameras.isEmpty() ? null : cameras.get(0);
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(fingerprint);
+        out.writeInt(cameras.size());
+        for (Camera camera : cameras) {
+            out.writeUTF(camera.id);
+            out.writeByte(camera.facing);
+            writeInts(out, camera.videoSizes);
+            out.writeInt(camera.videoMinFrameDurations.length);
+            for (long duration : camera.videoMinFrameDurations) out.writeLong(duration);
+            writeInts(out, camera.jpegSizes);
+            out.writeInt(camera.fpsRanges.length);
+            for (int[] range : camera.fpsRanges) {
+                out.writeShort(range[0]);
+                out.writeShort(range[1]);
+            }
+            out.writeLong(camera.minExposureNs);
+            out.writeLong(camera.maxExposureNs);
+            out.writeInt(camera.minIso);
+            out.writeInt(camera.maxIso);
+            out.writeByte(camera.hardwareLevel);
+            out.writeByte(camera.reprocessing);
+            out.writeBoolean(camera.realtimeTimestamps);
+        }
+        out.writeInt(concurrentSets.size());
+        for (String[] set : concurrentSets) {
+            out.writeInt(set.length);
+            for (String id : set) out.writeUTF(id);
+        }
+    }
+
+    // Throws IOException on a foreign, truncated or older-format file; callers just re-query
+    public static CameraCapabilities readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Unknown capability file format");
+        String fingerprint = in.readUTF();
+        int count = in.readInt();
+        List<Camera> cameras = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String id = in.readUTF();
+            int facing = in.readByte();
+            int[] videoSizes = readInts(in);
+            long[] durations = new long[in.readInt()];
+            for (int j = 0; j < durations.length; j++) durations[j] = in.readLong();
+            int[] jpegSizes = readInts(in);
+            int[][] ranges = new int[in.readInt()][];
+            for (int j = 0; j < ranges.length; j++) ranges[j] = new int[]{in.readShort(), in.readShort()};
+            cameras.add(new Camera(id, facing, videoSizes, durations, jpegSizes, ranges,
+                    in.readLong(), in.readLong(), in.readInt(), in.readInt(), in.readByte(), in.readByte(), in.readBoolean()));
+        }
+        List<String[]> concurrentSets = new ArrayList<>();
+        int sets = in.readInt();
+        for (int i = 0; i < sets; i++) {
+            String[] set = new String[in.readInt()];
+            for (int j = 0; j < set.length; j++) set[j] = in.readUTF();
+            concurrentSets.add(set);
+        }
+        return new CameraCapabilities(fingerprint, cameras, concurrentSets);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) out.writeInt(value);
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int[] values = new int[in.readInt()];
+        for (int i = 0; i < values.length; i++) values[i] = in.readInt();
+        return values;
+    }
+}
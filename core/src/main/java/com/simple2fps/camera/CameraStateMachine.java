@@ -0,0 +1,121 @@
+package com.simple2fps.camera;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+// Camera lifecycle as explicit states. Work that needs the camera in a given state is queued
+// with runWhen() and runs the moment that state is reached, instead of after a fixed delay
+// that is too long on fast devices and too short on slow ones.
+public class CameraStateMachine {
+
+    public enum State {
+        CLOSED,
+        SURFACE_READY,
+        OPENING,
+        DEVICE_OPENED,
+        // Device open and no recording/capture in progress: ready for the next command
+        IDLE,
+        RECORDING,
+        CAPTURING
+    }
+
+    public interface Listener {
+        void onStateChanged(State from, State to);
+    }
+
+    private static class Pending {
+        final String name;
+        final EnumSet<State> states;
+        final Runnable action;
+
+        Pending(String name, EnumSet<State> states, Runnable action) {
+            this.name = name;
+            this.states = states;
+            this.action = action;
+        }
+    }
+
+    private final Executor executor;
+    private final List<Pending> queue = new ArrayList<>();
+    private State state = State.CLOSED;
+    private boolean dispatching = false;
+    private Listener listener;
+
+    // Commands always run on executor (the main thread in the app)
+    public CameraStateMachine(Executor executor) {
+        this.executor = executor;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized boolean isIn(State... states) {
+        return Arrays.asList(states).contains(state);
+    }
+
+    public void moveTo(State next) {
+        State previous;
+        synchronized (this) {
+            previous = state;
+            if (previous == next) return;
+            state = next;
+        }
+        if (listener != null) listener.onStateChanged(previous, next);
+        dispatchNext();
+    }
+
+    // Runs action once the machine is in one of states (immediately if it already is).
+    // Queued commands run one at a time in FIFO order; each one sees the state left by the last.
+    public void runWhen(String name, Runnable action, State... states) {
+        synchronized (this) {
+            queue.add(new Pending(name, EnumSet.copyOf(Arrays.asList(states)), action));
+        }
+        dispatchNext();
+    }
+
+    public synchronized int pendingCount() {
+        return queue.size();
+    }
+
+    public synchronized void clear() {
+        queue.clear();
+    }
+
+    private void dispatchNext() {
+        Pending next = null;
+        synchronized (this) {
+            if (dispatching) return;
+            Iterator<Pending> it = queue.iterator();
+            while (it.hasNext()) {
+                Pending pending = it.next();
+                if (pending.states.contains(state)) {
+                    it.remove();
+                    next = pending;
+                    break;
+                }
+            }
+            if (next == null) return;
+            dispatching = true;
+        }
+        Pending command = next;
+        executor.execute(() -> {
+            try {
+                command.action.run();
+            } finally {
+                synchronized (this) {
+                    dispatching = false;
+                }
+                dispatchNext();
+            }
+        });
+    }
+}
@@ -0,0 +1,217 @@
+package com.simple2fps.camera;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counters for one recording session, written from the camera, encoder and muxer threads and
+// read by whoever exports snapshots. Everything is an atomic: no locks on the frame path.
+// Plain Java, so the snapshot math can be checked off-device.
+public class CaptureMetrics {
+    private static final int MAGIC = 0x53324d53; // "S2MS"
+    private static final int VERSION = 1;
+
+    // Histogram bucket upper bounds in ms; the last bucket takes everything above
+    public static final long[] JITTER_BUCKETS_MS = {1, 2, 5, 10, 20, 50, 100, 250, 1000};
+    public static final long[] WRITE_BUCKETS_MS = {1, 2, 5, 10, 20, 50, 100, 250, 1000};
+
+    private final long startNs;
+    private final long expectedIntervalNs;
+
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong firstSensorNs = new AtomicLong(-1);
+    private final AtomicLong lastSensorNs = new AtomicLong(-1);
+    private final AtomicLong maxIntervalNs = new AtomicLong();
+    // Frames arriving more than 1.5 intervals late count the missing ones as dropped
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final AtomicLongArray jitter = new AtomicLongArray(JITTER_BUCKETS_MS.length + 1);
+    private final AtomicLong captureFailed = new AtomicLong();
+    private final AtomicLong buffersLost = new AtomicLong();
+
+    private final AtomicLong encodedFrames = new AtomicLong();
+    private final AtomicLong encodedBytes = new AtomicLong();
+    // File size seen by an engine that doesn't report encoded bytes (MediaRecorder)
+    private final AtomicLong fileBytes = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong writeNsTotal = new AtomicLong();
+    private final AtomicLong writeNsMax = new AtomicLong();
+    private final AtomicLongArray writeLatency = new AtomicLongArray(WRITE_BUCKETS_MS.length + 1);
+
+    public CaptureMetrics(long startNs, int expectedFps) {
+        this.startNs = startNs;
+        this.expectedIntervalNs = 1000000000L / Math.max(1, expectedFps);
+    }
+
+    // Sensor timestamp of a completed capture
+    public void onFrame(long sensorTimestampNs) {
+        frames.incrementAndGet();
+        firstSensorNs.compareAndSet(-1, sensorTimestampNs);
+        long previous = lastSensorNs.getAndSet(sensorTimestampNs);
+        if (previous < 0 || sensorTimestampNs <= previous) return;
+        long interval = sensorTimestampNs - previous;
+        updateMax(maxIntervalNs, interval);
+        jitter.incrementAndGet(bucket(Math.abs(interval - expectedIntervalNs), JITTER_BUCKETS_MS));
+        long missed = (interval + expectedIntervalNs / 2) / expectedIntervalNs - 1;
+        if (missed > 0) droppedFrames.addAndGet(missed);
+    }
+
+    public void onCaptureFailed() {
+        captureFailed.incrementAndGet();
+    }
+
+    public void onBufferLost() {
+        buffersLost.incrementAndGet();
+    }
+
+    public void onEncodedFrame(int bytes) {
+        encodedFrames.incrementAndGet();
+        encodedBytes.addAndGet(bytes);
+    }
+
+    public void onFileSize(long bytes) {
+        fileBytes.set(bytes);
+    }
+
+    // Time one write (writeSampleData, a JPEG write...) blocked its thread
+    public void onWrite(long durationNs) {
+        writes.incrementAndGet();
+        writeNsTotal.addAndGet(durationNs);
+        updateMax(writeNsMax, durationNs);
+        writeLatency.incrementAndGet(bucket(durationNs, WRITE_BUCKETS_MS));
+    }
+
+    public static class Snapshot {
+        public final long uptimeMs;
+        public final long frames;
+        public final double deliveredFps;
+        public final double intervalFps;
+        public final long droppedFrames;
+        public final long maxIntervalMs;
+        public final long[] jitter;
+        public final long captureFailed;
+        public final long buffersLost;
+        public final long encodedFrames;
+        public final long bytes;
+        public final double bytesPerSecond;
+        public final long writes;
+        public final double writeAvgMs;
+        public final double writeMaxMs;
+        public final long[] writeLatency;
+
+        Snapshot(long uptimeMs, long frames, double deliveredFps, double intervalFps, long droppedFrames,
+                 long maxIntervalMs, long[] jitter, long captureFailed, long buffersLost, long encodedFrames,
+                 long bytes, double bytesPerSecond, long writes, double writeAvgMs, double writeMaxMs,
+                 long[] writeLatency) {
+            this.uptimeMs = uptimeMs;
+            this.frames = frames;
+            this.deliveredFps = deliveredFps;
+            this.intervalFps = intervalFps;
+            this.droppedFrames = droppedFrames;
+            this.maxIntervalMs = maxIntervalMs;
+            this.jitter = jitter;
+            this.captureFailed = captureFailed;
+            this.buffersLost = buffersLost;
+            this.encodedFrames = encodedFrames;
+            this.bytes = bytes;
+            this.bytesPerSecond = bytesPerSecond;
+            this.writes = writes;
+            this.writeAvgMs = writeAvgMs;
+            this.writeMaxMs = writeMaxMs;
+            this.writeLatency = writeLatency;
+        }
+
+        public String toJson() {
+            return String.format(Locale.US,
+                    "{\"uptime_ms\":%d,\"frames\":%d,\"delivered_fps\":%.3f,\"interval_fps\":%.3f,\"dropped\":%d,"
+                            + "\"max_interval_ms\":%d,\"jitter_ms\":%s,\"capture_failed\":%d,\"buffers_lost\":%d,"
+                            + "\"encoded_frames\":%d,\"bytes\":%d,\"bytes_per_s\":%.1f,\"writes\":%d,"
+                            + "\"write_avg_ms\":%.3f,\"write_max_ms\":%.3f,\"write_ms\":%s}",
+                    uptimeMs, frames, deliveredFps, intervalFps, droppedFrames, maxIntervalMs,
+                    histogramJson(JITTER_BUCKETS_MS, jitter), captureFailed, buffersLost, encodedFrames, bytes,
+                    bytesPerSecond, writes, writeAvgMs, writeMaxMs, histogramJson(WRITE_BUCKETS_MS, writeLatency));
+        }
+
+        // Fixed-layout record; a stats file is a MAGIC/VERSION header followed by these
+        public void writeTo(DataOutputStream out) throws IOException {
+            out.writeLong(uptimeMs);
+            out.writeLong(frames);
+            out.writeDouble(deliveredFps);
+            out.writeDouble(intervalFps);
+            out.writeLong(droppedFrames);
+            out.writeLong(maxIntervalMs);
+            for (long count : jitter) out.writeLong(count);
+            out.writeLong(captureFailed);
+            out.writeLong(buffersLost);
+            out.writeLong(encodedFrames);
+            out.writeLong(bytes);
+            out.writeDouble(bytesPerSecond);
+            out.writeLong(writes);
+            out.writeDouble(writeAvgMs);
+            out.writeDouble(writeMaxMs);
+            for (long count : writeLatency) out.writeLong(count);
+        }
+
+        private static String histogramJson(long[] bounds, long[] counts) {
+            StringBuilder json = new StringBuilder("{");
+            for (int i = 0; i < counts.length; i++) {
+                if (i > 0) json.append(',');
+                json.append('"').append(i < bounds.length ? "<" + bounds[i] : ">=" + bounds[bounds.length - 1])
+                        .append("\":").append(counts[i]);
+            }
+            return json.append('}').toString();
+        }
+    }
+
+    public static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    // Totals since the session started; rates over the whole session. previous (may be null)
+    // turns bytesPerSecond into the rate since that snapshot.
+    public Snapshot snapshot(long nowNs, Snapshot previous) {
+        long uptimeMs = (nowNs - startNs) / 1000000;
+        long frameCount = frames.get();
+        double deliveredFps = uptimeMs > 0 ? frameCount * 1000.0 / uptimeMs : 0;
+        long first = firstSensorNs.get();
+        long last = lastSensorNs.get();
+        double intervalFps = frameCount > 1 && last > first ? (frameCount - 1) * 1e9 / (last - first) : 0;
+
+        long bytes = Math.max(encodedBytes.get(), fileBytes.get());
+        double bytesPerSecond;
+        if (previous != null && uptimeMs > previous.uptimeMs) {
+            bytesPerSecond = (bytes - previous.bytes) * 1000.0 / (uptimeMs - previous.uptimeMs);
+        } else {
+            bytesPerSecond = uptimeMs > 0 ? bytes * 1000.0 / uptimeMs : 0;
+        }
+        long writeCount = writes.get();
+        double writeAvgMs = writeCount > 0 ? writeNsTotal.get() / 1e6 / writeCount : 0;
+
+        return new Snapshot(uptimeMs, frameCount, deliveredFps, intervalFps, droppedFrames.get(),
+                maxIntervalNs.get() / 1000000, toArray(jitter), captureFailed.get(), buffersLost.get(),
+                encodedFrames.get(), bytes, bytesPerSecond, writeCount, writeAvgMs, writeNsMax.get() / 1e6,
+                toArray(writeLatency));
+    }
+
+    private static int bucket(long valueNs, long[] boundsMs) {
+        for (int i = 0; i < boundsMs.length; i++) {
+            if (valueNs < boundsMs[i] * 1000000) return i;
+        }
+        return boundsMs.length;
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) return;
+        }
+    }
+
+    private static long[] toArray(AtomicLongArray array) {
+        long[] values = new long[array.length()];
+        for (int i = 0; i < values.length; i++) values[i] = array.get(i);
+        return values;
+    }
+}
@@ -0,0 +1,29 @@
+package com.simple2fps.camera;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Writes a buffer straight to a FileChannel. Direct buffers (Image planes, pooled staging
+// buffers) go to the kernel without a heap copy.
+public final class ChannelWriter {
+
+    private ChannelWriter() {}
+
+    // Writes src from position to limit. With durable=true the data is forced to storage
+    // before returning, so the source can be recycled safely.
+    public static long writeFully(ByteBuffer src, File file, boolean durable) throws IOException {
+        // FileOutputStream rather than FileChannel.open(Path), which needs API 26
+        try (FileOutputStream output = new FileOutputStream(file);
+             FileChannel channel = output.getChannel()) {
+            long written = 0;
+            while (src.hasRemaining()) {
+                written += channel.write(src);
+            }
+            if (durable) channel.force(false);
+            return written;
+        }
+    }
+}
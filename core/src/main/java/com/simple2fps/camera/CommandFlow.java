@@ -0,0 +1,311 @@
+package com.simple2fps.camera;
+
+import java.util.concurrent.Executor;
+
+// What happens to an automation command between the queue and the camera, for every host:
+// the camera is opened if needed (a video command's recorder prepares alongside), the command
+// waits for the camera to be ready, then runs. A still taken while recording comes from the
+// recording's own output when the camera can, otherwise the recording is stopped and picked up
+// again in a new file once the still is saved. Recordings stop themselves after their duration.
+// Once nothing is left to do the host hears about it, after the idle linger if the camera is
+// open, so the next command of the same automation finds it warm.
+//
+// The camera side is behind Camera: Camera2 in the app, scripted delays in the latency check.
+// Everything here runs on the main executor.
+public class CommandFlow {
+    public static final String VIDEO = "video";
+    public static final String PHOTO = "photo";
+    public static final String BURST = "burst";
+    public static final String STOP = "stop";
+    public static final String SAVE = "save";
+
+    private static final long CAMERA_WAIT_TIMEOUT_MS = 10000;
+    // A resumed recording shorter than this isn't worth a file of its own
+    private static final long MIN_RESUME_MS = 1000;
+
+    // Handler-like main thread: execute() posts
+    public interface MainThread extends Executor {
+        void postDelayed(Runnable action, long delayMs);
+
+        void cancel(Runnable action);
+    }
+
+    // Called once, from any thread
+    public interface Result {
+        void done(boolean success, String message);
+    }
+
+    public interface Camera {
+        // The open camera's states; null while it is closed
+        CameraStateMachine getStateMachine();
+
+        // Opens the camera a command needs, without waiting for it; false if there is none
+        boolean open(CommandQueue.Command command);
+
+        // A video command is about to wait for the camera: settings from the command, and the
+        // recorder prepared while the camera opens or finishes its session
+        void prepareRecording(CommandQueue.Command command, boolean opening);
+
+        // The camera is IDLE. Moves it to RECORDING and reports once the recording (all of its
+        // cameras) runs; false right away if it refused to start
+        void startRecording(CommandQueue.Command command, Result result);
+
+        // resuming: a still interrupted the recording, and a new part starts after it
+        void stopRecording(boolean resuming);
+
+        // Whether this still can come from the running recording's output
+        boolean canSnapshot(CommandQueue.Command command);
+
+        void snapshot(CommandQueue.Command command, Result result);
+
+        // Photo or burst with a session of its own; the camera is CAPTURING until the result
+        void capture(CommandQueue.Command command, Result result);
+
+        // Anything but video, photo, burst and stop; false for a type the host doesn't know
+        boolean run(CommandQueue.Command command, Result result);
+
+        // A reason to report a command done without running it, or null
+        String skip(CommandQueue.Command command);
+
+        // Seconds a video command records for; 0 until stopped
+        int durationSeconds(CommandQueue.Command command);
+
+        // The rest of an interrupted recording as a command of its own; remainingMs -1 if it
+        // had no duration
+        CommandQueue.Command resume(CommandQueue.Command recording, long remainingMs, int part);
+
+        // Timeline: the command started running, and the camera wait around it
+        void dispatched(CommandQueue.Command command);
+
+        void phase(String name, boolean begin);
+
+        // Nothing queued or running for the idle linger (or at all, with the camera closed)
+        void idle();
+    }
+
+    private final Camera camera;
+    private final MainThread main;
+    private final CommandQueue queue;
+    private long idleLingerMs;
+    private final Runnable idleCheck = this::idleCheck;
+
+    // Recording started by a command, kept so a still taken mid-recording can resume it
+    private CommandQueue.Command recording;
+    private long recordingEndsAtMs;
+    private CommandQueue.Command resume;
+    private int resumeParts = 0;
+    private Runnable durationStop;
+
+    public CommandFlow(Camera camera, MainThread main, long idleLingerMs) {
+        this.camera = camera;
+        this.main = main;
+        this.idleLingerMs = idleLingerMs;
+        this.queue = new CommandQueue(main, this::execute, 32);
+    }
+
+    public CommandQueue getQueue() {
+        return queue;
+    }
+
+    public void setIdleLingerMs(long idleLingerMs) {
+        this.idleLingerMs = idleLingerMs;
+    }
+
+    // A stop drops the video commands still waiting; a refused command may leave nothing to do
+    public void submit(CommandQueue.Command command) {
+        main.cancel(idleCheck);
+        if (STOP.equals(command.type)) queue.cancelPending(VIDEO, "cancelled by stop");
+        if (!queue.submit(command)) stopIfIdle();
+    }
+
+    public boolean isRecording() {
+        CameraStateMachine states = camera.getStateMachine();
+        return states != null && states.isIn(CameraStateMachine.State.RECORDING);
+    }
+
+    public boolean isIdle() {
+        if (!queue.isIdle()) return false;
+        CameraStateMachine states = camera.getStateMachine();
+        return states == null || states.isIn(CameraStateMachine.State.IDLE, CameraStateMachine.State.CLOSED);
+    }
+
+    // Tells the host once it is idle: at once with the camera closed, else after the linger
+    public void stopIfIdle() {
+        if (!isIdle()) return;
+        main.cancel(idleCheck);
+        if (camera.getStateMachine() == null) {
+            camera.idle();
+        } else {
+            main.postDelayed(idleCheck, idleLingerMs);
+        }
+    }
+
+    private void idleCheck() {
+        if (isIdle()) camera.idle();
+    }
+
+    // The host is letting go of the camera: drops queued work, the recording and what would resume it
+    public void reset(String reason) {
+        main.cancel(idleCheck);
+        queue.clear(reason);
+        cancelDurationStop();
+        recording = null;
+        recordingEndsAtMs = 0;
+        resume = null;
+        resumeParts = 0;
+    }
+
+    // CommandQueue handler
+    private void execute(CommandQueue.Command command) {
+        camera.dispatched(command);
+        boolean opening = camera.getStateMachine() == null;
+        if (opening && STOP.equals(command.type)) {
+            complete(command, true, "not recording");
+            return;
+        }
+        if (opening && !VIDEO.equals(command.type) && !PHOTO.equals(command.type) && !BURST.equals(command.type)) {
+            // Runs without a camera, or fails for want of one
+            run(command);
+            return;
+        }
+        if (opening && !camera.open(command)) {
+            complete(command, false, "no camera available");
+            return;
+        }
+        if (VIDEO.equals(command.type) && !isRecording() && camera.skip(command) == null) {
+            camera.prepareRecording(command, opening);
+        }
+
+        Runnable timeout = () -> complete(command, false, "camera not ready");
+        main.postDelayed(timeout, CAMERA_WAIT_TIMEOUT_MS);
+        camera.phase("wait_camera", true);
+        camera.getStateMachine().runWhen("command:" + command.type, () -> {
+            camera.phase("wait_camera", false);
+            main.cancel(timeout);
+            if (queue.getRunning() == command) run(command);
+        }, CameraStateMachine.State.IDLE, CameraStateMachine.State.RECORDING);
+    }
+
+    private void run(CommandQueue.Command command) {
+        String skipped = camera.skip(command);
+        if (skipped != null) {
+            complete(command, true, skipped);
+        } else if (STOP.equals(command.type)) {
+            boolean wasRecording = isRecording();
+            endRecording();
+            queue.complete(command, true, wasRecording ? null : "not recording");
+            stopWhenIdle();
+        } else if (PHOTO.equals(command.type) || BURST.equals(command.type)) {
+            if (isRecording() && PHOTO.equals(command.type) && camera.canSnapshot(command)) {
+                // Leaves the recording and its state alone
+                camera.snapshot(command, (success, message) -> main.execute(() -> complete(command, success, message)));
+            } else if (isRecording()) {
+                // The still needs its own session: pause the recording and pick it up again afterwards
+                interruptRecording();
+                camera.getStateMachine().runWhen("photo-after-record", () -> capture(command),
+                        CameraStateMachine.State.IDLE);
+            } else {
+                capture(command);
+            }
+        } else if (VIDEO.equals(command.type)) {
+            if (isRecording()) {
+                queue.complete(command, true, "already recording");
+            } else {
+                camera.startRecording(command, (success, message) -> main.execute(() -> {
+                    if (queue.getRunning() == command) recordingStarted(command, success, message);
+                }));
+            }
+        } else if (!camera.run(command, (success, message) -> main.execute(() -> complete(command, success, message)))) {
+            complete(command, false, "unknown mode: " + command.type);
+        }
+    }
+
+    private void recordingStarted(CommandQueue.Command command, boolean success, String message) {
+        if (!success) {
+            complete(command, false, message != null ? message : "recording refused");
+            return;
+        }
+        recording = command;
+        int duration = camera.durationSeconds(command);
+        recordingEndsAtMs = duration > 0 ? nowMs() + duration * 1000L : 0;
+        if (duration > 0) {
+            durationStop = () -> {
+                durationStop = null;
+                endRecording();
+                stopWhenIdle();
+            };
+            main.postDelayed(durationStop, duration * 1000L);
+        }
+        queue.complete(command, true, message);
+    }
+
+    private void capture(CommandQueue.Command command) {
+        camera.getStateMachine().moveTo(CameraStateMachine.State.CAPTURING);
+        camera.capture(command, (success, message) -> main.execute(() -> finishCapture(command, success, message)));
+    }
+
+    // Reports, then resumes an interrupted recording
+    private void finishCapture(CommandQueue.Command command, boolean success, String message) {
+        CameraStateMachine states = camera.getStateMachine();
+        if (states == null) return;
+        states.moveTo(CameraStateMachine.State.IDLE);
+        queue.complete(command, success, message);
+        if (resume != null) {
+            CommandQueue.Command next = resume;
+            resume = null;
+            submit(next);
+        } else {
+            stopIfIdle();
+        }
+    }
+
+    // Remembers what was recording so finishCapture() can start the rest of it in a new file
+    private void interruptRecording() {
+        if (recording != null) {
+            long remainingMs = recordingEndsAtMs > 0 ? recordingEndsAtMs - nowMs() : -1;
+            if (recordingEndsAtMs == 0 || remainingMs > MIN_RESUME_MS) {
+                resume = camera.resume(recording, remainingMs, ++resumeParts);
+            }
+        }
+        if (resume == null) {
+            endRecording();
+        } else {
+            cancelDurationStop();
+            camera.stopRecording(true);
+        }
+    }
+
+    private void endRecording() {
+        cancelDurationStop();
+        recording = null;
+        recordingEndsAtMs = 0;
+        resumeParts = 0;
+        camera.stopRecording(false);
+    }
+
+    private void cancelDurationStop() {
+        if (durationStop != null) {
+            main.cancel(durationStop);
+            durationStop = null;
+        }
+    }
+
+    // After a stop the camera goes back to its preview first
+    private void stopWhenIdle() {
+        CameraStateMachine states = camera.getStateMachine();
+        if (states == null) {
+            stopIfIdle();
+            return;
+        }
+        states.runWhen("stop-when-idle", this::stopIfIdle, CameraStateMachine.State.IDLE, CameraStateMachine.State.CLOSED);
+    }
+
+    private void complete(CommandQueue.Command command, boolean success, String message) {
+        queue.complete(command, success, message);
+        stopIfIdle();
+    }
+
+    private static long nowMs() {
+        return System.nanoTime() / 1_000_000;
+    }
+}
@@ -0,0 +1,255 @@
+package com.simple2fps.camera;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+// Serializes automation commands: one runs at a time, higher priority first, FIFO within a
+// priority. A command stays "running" until its handler calls complete(), so asynchronous work
+// (photos, session setup) is covered too. Duplicates are coalesced instead of dropped silently,
+// and every submitted command gets exactly one result, including merged and rejected ones.
+public class CommandQueue {
+
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    // Recently finished ids, so re-delivered intents (onResume, onNewIntent) don't run twice
+    private static final int RECENT_IDS = 64;
+
+    public interface Handler {
+        void execute(Command command);
+    }
+
+    public interface ResultListener {
+        // queuedMs: submit -> start, runMs: start -> complete (0 if it never ran)
+        void onResult(Command command, boolean success, String message, long queuedMs, long runMs);
+    }
+
+    public static class Command {
+        public final String id;
+        public final String type;
+        // Commands with equal non-null keys are duplicates of each other
+        public final String coalesceKey;
+        public final Object payload;
+        private int priority;
+        private final long submittedAtNs = System.nanoTime();
+        private long startedAtNs;
+        private final List<Command> merged = new ArrayList<>();
+
+        public Command(String id, String type, String coalesceKey, int priority, Object payload) {
+            this.id = id;
+            this.type = type;
+            this.coalesceKey = coalesceKey;
+            this.priority = priority;
+            this.payload = payload;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        // Time since it was built, for placing its trigger on another clock
+        public long ageNs() {
+            return System.nanoTime() - submittedAtNs;
+        }
+
+        @Override
+        public String toString() {
+            return type + "#" + id;
+        }
+    }
+
+    private final Executor executor;
+    private final Handler handler;
+    private final int maxPending;
+    private final List<Command> pending = new ArrayList<>();
+    private final LinkedHashSet<String> recentIds = new LinkedHashSet<>();
+    private Command running;
+    private ResultListener listener;
+
+    public CommandQueue(Executor executor, Handler handler, int maxPending) {
+        this.executor = executor;
+        this.handler = handler;
+        this.maxPending = maxPending;
+    }
+
+    public void setResultListener(ResultListener listener) {
+        this.listener = listener;
+    }
+
+    // Returns false if the command was not queued (already seen, or merged into a duplicate)
+    public boolean submit(Command command) {
+        Command rejected = null;
+        String reason = null;
+        synchronized (this) {
+            if (recentIds.contains(command.id) || isKnown(command.id)) return false;
+
+            Command duplicate = findPending(command.coalesceKey);
+            if (duplicate != null) {
+                duplicate.merged.add(command);
+                if (command.priority > duplicate.priority) duplicate.priority = command.priority;
+                return false;
+            }
+
+            if (pending.size() >= maxPending) {
+                // Make room by failing the oldest lowest-priority command, unless that's this one
+                Command victim = lowestPriority();
+                if (victim.priority < command.priority) {
+                    pending.remove(victim);
+                    rejected = victim;
+                } else {
+                    rejected = command;
+                }
+                reason = "queue full";
+            }
+            if (rejected != command) pending.add(command);
+        }
+        if (rejected != null) report(rejected, false, reason);
+        dispatchNext();
+        return rejected != command;
+    }
+
+    // Fails every queued (not running) command of the given type, e.g. starts made moot by a stop
+    public int cancelPending(String type, String reason) {
+        List<Command> cancelled = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Command> it = pending.iterator();
+            while (it.hasNext()) {
+                Command command = it.next();
+                if (command.type.equals(type)) {
+                    it.remove();
+                    cancelled.add(command);
+                }
+            }
+        }
+        for (Command command : cancelled) report(command, false, reason);
+        return cancelled.size();
+    }
+
+    // Ends the running command; ignored if command isn't the one running (late or repeated call)
+    public void complete(Command command, boolean success, String message) {
+        synchronized (this) {
+            if (running != command) return;
+            running = null;
+        }
+        report(command, success, message);
+        dispatchNext();
+    }
+
+    public synchronized Command getRunning() {
+        return running;
+    }
+
+    public synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    // Whether a command of this type is running or waiting to
+    public synchronized boolean hasQueued(String type) {
+        if (running != null && running.type.equals(type)) return true;
+        for (Command command : pending) {
+            if (command.type.equals(type)) return true;
+        }
+        return false;
+    }
+
+    public synchronized boolean isIdle() {
+        return running == null && pending.isEmpty();
+    }
+
+    // Fails everything still queued or running, e.g. when the owner is torn down
+    public void clear(String reason) {
+        List<Command> dropped;
+        synchronized (this) {
+            dropped = new ArrayList<>(pending);
+            pending.clear();
+            if (running != null) dropped.add(0, running);
+            running = null;
+        }
+        for (Command command : dropped) report(command, false, reason);
+    }
+
+    private void dispatchNext() {
+        Command next;
+        synchronized (this) {
+            if (running != null || pending.isEmpty()) return;
+            next = pending.get(0);
+            for (Command command : pending) {
+                if (command.priority > next.priority) next = command;
+            }
+            pending.remove(next);
+            running = next;
+            next.startedAtNs = System.nanoTime();
+        }
+        Command command = next;
+        executor.execute(() -> {
+            try {
+                handler.execute(command);
+            } catch (RuntimeException e) {
+                complete(command, false, e.toString());
+            }
+        });
+    }
+
+    private void report(Command command, boolean success, String message) {
+        long now = System.nanoTime();
+        List<Command> merged;
+        synchronized (this) {
+            remember(command.id);
+            merged = new ArrayList<>(command.merged);
+            for (Command duplicate : merged) remember(duplicate.id);
+        }
+        ResultListener l = listener;
+        if (l == null) return;
+        long queuedMs = command.startedAtNs != 0 ? (command.startedAtNs - command.submittedAtNs) / 1_000_000 : (now - command.submittedAtNs) / 1_000_000;
+        long runMs = command.startedAtNs != 0 ? (now - command.startedAtNs) / 1_000_000 : 0;
+        l.onResult(command, success, message, queuedMs, runMs);
+        for (Command duplicate : merged) {
+            l.onResult(duplicate, success, "coalesced into " + command.id + (message != null ? ": " + message : ""),
+                    (now - duplicate.submittedAtNs) / 1_000_000, 0);
+        }
+    }
+
+    private void remember(String id) {
+        recentIds.add(id);
+        if (recentIds.size() > RECENT_IDS) {
+            Iterator<String> it = recentIds.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    private boolean isKnown(String id) {
+        if (running != null && (running.id.equals(id) || containsId(running.merged, id))) return true;
+        for (Command command : pending) {
+            if (command.id.equals(id) || containsId(command.merged, id)) return true;
+        }
+        return false;
+    }
+
+    private static boolean containsId(List<Command> commands, String id) {
+        for (Command command : commands) {
+            if (command.id.equals(id)) return true;
+        }
+        return false;
+    }
+
+    private Command findPending(String coalesceKey) {
+        if (coalesceKey == null) return null;
+        for (Command command : pending) {
+            if (coalesceKey.equals(command.coalesceKey)) return command;
+        }
+        return null;
+    }
+
+    private Command lowestPriority() {
+        Command lowest = pending.get(0);
+        for (Command command : pending) {
+            if (command.priority < lowest.priority) lowest = command;
+        }
+        return lowest;
+    }
+}
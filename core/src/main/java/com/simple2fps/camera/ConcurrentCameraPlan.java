@@ -0,0 +1,170 @@
+package com.simple2fps.camera;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+// Which cameras record together, and at what size, worked out from the cached capabilities
+// before anything is opened. The "cameras" extra picks the combination: "all" (the largest
+// concurrent set), facings ("back+front") or camera ids ("0,2"); only sets the device lists in
+// getConcurrentCameraIds() qualify. Every camera gets the "quality" extra's size (or the nearest
+// one), capped at s1440p, the largest size concurrent streaming guarantees per camera.
+public class ConcurrentCameraPlan {
+    public static final int MAX_WIDTH = 1920;
+    public static final int MAX_HEIGHT = 1440;
+
+    public static class Stream {
+        public final String cameraId;
+        public final int facing;
+        public final int width;
+        public final int height;
+        // 0 when the HAL reported no min frame duration
+        public final int maxFps;
+
+        Stream(String cameraId, int facing, int width, int height, int maxFps) {
+            this.cameraId = cameraId;
+            this.facing = facing;
+            this.width = width;
+            this.height = height;
+            this.maxFps = maxFps;
+        }
+
+        @Override
+        public String toString() {
+            return cameraId + " (" + facingName(facing) + ") " + width + "x" + height;
+        }
+    }
+
+    // Preferred camera first; empty when the plan is impossible
+    public final List<Stream> streams;
+    // Why nothing can be planned; null when possible
+    public final String reason;
+
+    private ConcurrentCameraPlan(List<Stream> streams, String reason) {
+        this.streams = Collections.unmodifiableList(streams);
+        this.reason = reason;
+    }
+
+    public boolean isPossible() {
+        return reason == null;
+    }
+
+    @Override
+    public String toString() {
+        return isPossible() ? streams.toString() : "impossible: " + reason;
+    }
+
+    // preferredId: a camera already open (or the default one), put first and favoured between
+    // otherwise equal sets; may be null
+    public static ConcurrentCameraPlan plan(CameraCapabilities caps, String selection, String quality, String preferredId) {
+        if (caps.concurrentSets.isEmpty()) return impossible("device reports no concurrent camera combinations");
+        String wanted = selection != null ? selection.trim().toLowerCase(Locale.US) : "";
+
+        List<String[]> sets = new ArrayList<>(caps.concurrentSets);
+        // Sets with the preferred camera first; stable, so the device's order decides the rest
+        if (preferredId != null) {
+            sets.sort((a, b) -> Boolean.compare(contains(b, preferredId), contains(a, preferredId)));
+        }
+
+        List<String> ids = null;
+        if (wanted.isEmpty() || wanted.equals("all")) {
+            for (String[] set : sets) {
+                if (ids == null || set.length > ids.size()) ids = new ArrayList<>(Arrays.asList(set));
+            }
+        } else {
+            String[] tokens = wanted.split("[+,\\s]+");
+            boolean byFacing = true;
+            for (String token : tokens) byFacing &= facingOf(token) >= 0;
+            for (String[] set : sets) {
+                ids = byFacing ? pickByFacing(caps, set, tokens, preferredId) : pickById(set, tokens);
+                if (ids != null) break;
+            }
+        }
+        if (ids == null || ids.size() < 2) return impossible("no concurrent combination has " + (wanted.isEmpty() ? "all" : wanted));
+        if (preferredId != null && ids.remove(preferredId)) ids.add(0, preferredId);
+
+        List<Stream> streams = new ArrayList<>();
+        for (String id : ids) {
+            CameraCapabilities.Camera camera = caps.find(id);
+            if (camera == null) return impossible("camera " + id + " is not in the capability cache");
+            ResolutionIndex sizes = cappedSizes(camera);
+            if (sizes.size() == 0) return impossible("camera " + id + " has no size up to " + MAX_WIDTH + "x" + MAX_HEIGHT);
+            ResolutionIndex.Match match = sizes.find(quality);
+            if (match == null) match = sizes.nearest(1920, 1080);
+            streams.add(new Stream(id, camera.facing, match.width, match.height, match.maxFps));
+        }
+        return new ConcurrentCameraPlan(streams, null);
+    }
+
+    // One distinct camera of the set per facing token, preferring the preferred camera for its facing
+    private static List<String> pickByFacing(CameraCapabilities caps, String[] set, String[] tokens, String preferredId) {
+        List<String> picked = new ArrayList<>();
+        for (String token : tokens) {
+            int facing = facingOf(token);
+            String choice = null;
+            for (String id : set) {
+                CameraCapabilities.Camera camera = caps.find(id);
+                if (camera == null || camera.facing != facing || picked.contains(id)) continue;
+                if (choice == null || id.equals(preferredId)) choice = id;
+            }
+            if (choice == null) return null;
+            picked.add(choice);
+        }
+        return picked;
+    }
+
+    private static List<String> pickById(String[] set, String[] tokens) {
+        List<String> picked = new ArrayList<>();
+        for (String token : tokens) {
+            if (!contains(set, token)) return null;
+            if (!picked.contains(token)) picked.add(token);
+        }
+        return picked;
+    }
+
+    private static ResolutionIndex cappedSizes(CameraCapabilities.Camera camera) {
+        int[] packed = new int[camera.videoSizes.length];
+        long[] durations = new long[camera.videoSizeCount()];
+        int count = 0;
+        for (int i = 0; i < camera.videoSizeCount(); i++) {
+            int width = camera.videoSizes[i * 2];
+            int height = camera.videoSizes[i * 2 + 1];
+            if (width > MAX_WIDTH || height > MAX_HEIGHT) continue;
+            packed[count * 2] = width;
+            packed[count * 2 + 1] = height;
+            durations[count] = i < camera.videoMinFrameDurations.length ? camera.videoMinFrameDurations[i] : 0;
+            count++;
+        }
+        return new ResolutionIndex(Arrays.copyOf(packed, count * 2), Arrays.copyOf(durations, count));
+    }
+
+    private static int facingOf(String token) {
+        switch (token) {
+            case "back": return CameraCapabilities.FACING_BACK;
+            case "front": return CameraCapabilities.FACING_FRONT;
+            case "external": return CameraCapabilities.FACING_EXTERNAL;
+            default: return -1;
+        }
+    }
+
+    private static String facingName(int facing) {
+        switch (facing) {
+            case CameraCapabilities.FACING_BACK: return "back";
+            case CameraCapabilities.FACING_FRONT: return "front";
+            default: return "external";
+        }
+    }
+
+    private static boolean contains(String[] set, String id) {
+        for (String member : set) {
+            if (member.equals(id)) return true;
+        }
+        return false;
+    }
+
+    private static ConcurrentCameraPlan impossible(String reason) {
+        return new ConcurrentCameraPlan(new ArrayList<>(), reason);
+    }
+}
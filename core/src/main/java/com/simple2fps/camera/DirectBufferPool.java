@@ -0,0 +1,49 @@
+package com.simple2fps.camera;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+// Small pool of reusable direct buffers for data that has to be staged before it hits disk
+// (CPU-encoded JPEGs, encoder output). Steady-state bursts allocate nothing.
+public class DirectBufferPool {
+    // Buffers grow in 64 KB steps so slightly bigger frames still reuse the same buffer
+    private static final int CAPACITY_STEP = 64 * 1024;
+
+    private final int maxPooled;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private int allocations = 0;
+
+    public DirectBufferPool(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+
+    // Returns a cleared buffer with at least minCapacity bytes
+    public synchronized ByteBuffer acquire(int minCapacity) {
+        Iterator<ByteBuffer> it = free.iterator();
+        while (it.hasNext()) {
+            ByteBuffer buffer = it.next();
+            if (buffer.capacity() >= minCapacity) {
+                it.remove();
+                buffer.clear();
+                return buffer;
+            }
+        }
+        // Nothing big enough: drop the smallest so the pool converges on the working size
+        if (!free.isEmpty() && free.size() >= maxPooled) free.poll();
+        allocations++;
+        int capacity = ((minCapacity + CAPACITY_STEP - 1) / CAPACITY_STEP) * CAPACITY_STEP;
+        return ByteBuffer.allocateDirect(Math.max(capacity, CAPACITY_STEP));
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) return;
+        buffer.clear();
+        if (free.size() < maxPooled) free.add(buffer);
+    }
+
+    // Total direct allocations so far; flat during a burst means the pool is doing its job
+    public synchronized int getAllocations() {
+        return allocations;
+    }
+}
@@ -0,0 +1,154 @@
+package com.simple2fps.camera;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+// Keeps the most recent encoded access units in one off-heap buffer, bounded by bytes and
+// optionally by duration. Eviction drops whole GOPs from the front, so the oldest unit held is
+// always a keyframe and the contents can be muxed as-is.
+public class EncodedRingBuffer {
+
+    public interface Sink {
+        void write(ByteBuffer data, long ptsUs, boolean keyFrame) throws IOException;
+    }
+
+    private static class Unit {
+        final int offset;
+        final int size;
+        final long ptsUs;
+        final boolean keyFrame;
+
+        Unit(int offset, int size, long ptsUs, boolean keyFrame) {
+            this.offset = offset;
+            this.size = size;
+            this.ptsUs = ptsUs;
+            this.keyFrame = keyFrame;
+        }
+    }
+
+    private final ByteBuffer store;
+    private final long maxDurationUs;
+    private final ArrayDeque<Unit> units = new ArrayDeque<>();
+    // Next write position; units never straddle the end of the buffer
+    private int tail = 0;
+    private int keyFrames = 0;
+    private long bytesUsed = 0;
+
+    // maxDurationUs <= 0: bounded by capacity only
+    public EncodedRingBuffer(int capacityBytes, long maxDurationUs) {
+        this.store = ByteBuffer.allocateDirect(capacityBytes);
+        this.maxDurationUs = maxDurationUs;
+    }
+
+    // Copies data (position..limit) in. Returns false if the unit was not kept: a delta frame
+    // with no keyframe to decode from, or a unit larger than the whole buffer.
+    public synchronized boolean add(ByteBuffer data, long ptsUs, boolean keyFrame) {
+        int size = data.remaining();
+        if (units.isEmpty() && !keyFrame) return false;
+        if (size > store.capacity()) {
+            clear();
+            return false;
+        }
+
+        int position;
+        while ((position = findSpace(size)) < 0) {
+            evictGop();
+            if (units.isEmpty() && !keyFrame) return false;
+        }
+
+        ByteBuffer target = store.duplicate();
+        target.position(position);
+        target.limit(position + size);
+        target.put(data.duplicate());
+        units.addLast(new Unit(position, size, ptsUs, keyFrame));
+        tail = position + size;
+        bytesUsed += size;
+        if (keyFrame) keyFrames++;
+
+        if (maxDurationUs > 0) trimToDuration();
+        return true;
+    }
+
+    // Writes everything held, oldest first, then empties the buffer
+    public synchronized int drainTo(Sink sink) throws IOException {
+        int count = 0;
+        for (Unit unit : units) {
+            ByteBuffer slice = store.duplicate();
+            slice.position(unit.offset);
+            slice.limit(unit.offset + unit.size);
+            sink.write(slice, unit.ptsUs, unit.keyFrame);
+            count++;
+        }
+        clear();
+        return count;
+    }
+
+    public synchronized void clear() {
+        units.clear();
+        tail = 0;
+        keyFrames = 0;
+        bytesUsed = 0;
+    }
+
+    public synchronized int unitCount() {
+        return units.size();
+    }
+
+    public synchronized long bytesUsed() {
+        return bytesUsed;
+    }
+
+    public synchronized long durationUs() {
+        return units.isEmpty() ? 0 : units.peekLast().ptsUs - units.peekFirst().ptsUs;
+    }
+
+    public int capacity() {
+        return store.capacity();
+    }
+
+    // Start offset where size bytes fit without touching live units, or -1
+    private int findSpace(int size) {
+        if (units.isEmpty()) {
+            tail = 0;
+            return 0;
+        }
+        int head = units.peekFirst().offset;
+        if (tail > head) {
+            // Live region is [head, tail): room after it, or wrap to the start
+            if (tail + size <= store.capacity()) return tail;
+            return size <= head ? 0 : -1;
+        }
+        // Wrapped: live region is [head, end) + [0, tail)
+        return tail + size <= head ? tail : -1;
+    }
+
+    // Drops the oldest keyframe and the delta frames that depend on it
+    private void evictGop() {
+        if (units.isEmpty()) return;
+        Unit first = units.pollFirst();
+        bytesUsed -= first.size;
+        if (first.keyFrame) keyFrames--;
+        while (!units.isEmpty() && !units.peekFirst().keyFrame) {
+            bytesUsed -= units.pollFirst().size;
+        }
+        if (units.isEmpty()) tail = 0;
+    }
+
+    // Drops GOPs while the rest still covers maxDurationUs
+    private void trimToDuration() {
+        while (keyFrames > 1) {
+            long nextKeyPts = -1;
+            boolean first = true;
+            for (Unit unit : units) {
+                if (!first && unit.keyFrame) {
+                    nextKeyPts = unit.ptsUs;
+                    break;
+                }
+                first = false;
+            }
+            if (nextKeyPts < 0 || units.peekLast().ptsUs - nextKeyPts < maxDurationUs) return;
+            evictGop();
+        }
+    }
+}
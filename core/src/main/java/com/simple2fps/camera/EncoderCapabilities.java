@@ -0,0 +1,218 @@
+package com.simple2fps.camera;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Snapshot of the video encoders from MediaCodecList (AVC and HEVC only) and the negotiation
+// that picks one for a recording. Plain Java like CameraCapabilities: written to a small file
+// and read back instead of walking the codec list on every cold start.
+public class EncoderCapabilities {
+    private static final int MAGIC = 0x53324645; // "S2FE"
+    private static final int VERSION = 1;
+
+    public static final String MIME_AVC = "video/avc";
+    public static final String MIME_HEVC = "video/hevc";
+
+    // Same values as MediaCodecInfo.CodecProfileLevel
+    public static final int AVC_PROFILE_BASELINE = 0x01;
+    public static final int AVC_PROFILE_MAIN = 0x02;
+    public static final int AVC_PROFILE_HIGH = 0x08;
+    public static final int HEVC_PROFILE_MAIN = 0x01;
+
+    // Frame rates are probed at these sizes; other sizes use the next larger one
+    public static final int[][] PROBE_SIZES = {{3840, 2160}, {2560, 1440}, {1920, 1080}, {1280, 720}, {640, 480}};
+
+    // Bitrate HEVC needs for the same quality as AVC
+    private static final double HEVC_BITRATE_SCALE = 0.6;
+
+    public static class Encoder {
+        public final String name;
+        public final String mime;
+        public final boolean hardware;
+        // Packed {profile0, maxLevel0, profile1, maxLevel1, ...}
+        public final int[] profileLevels;
+        public final int widthAlignment;
+        public final int heightAlignment;
+        public final int maxWidth;
+        public final int maxHeight;
+        // Highest rate per PROBE_SIZES entry, 0 where the size isn't supported
+        public final int[] maxFps;
+        public final int maxBitrate;
+
+        public Encoder(String name, String mime, boolean hardware, int[] profileLevels, int widthAlignment,
+                       int heightAlignment, int maxWidth, int maxHeight, int[] maxFps, int maxBitrate) {
+            this.name = name;
+            this.mime = mime;
+            this.hardware = hardware;
+            this.profileLevels = profileLevels;
+            this.widthAlignment = Math.max(1, widthAlignment);
+            this.heightAlignment = Math.max(1, heightAlignment);
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.maxFps = maxFps;
+            this.maxBitrate = maxBitrate;
+        }
+
+        public boolean supports(int width, int height, int fps) {
+            if (width % widthAlignment != 0 || height % heightAlignment != 0) return false;
+            // Portrait sizes count too: encoders usually advertise landscape limits
+            boolean fits = (width <= maxWidth && height <= maxHeight) || (height <= maxWidth && width <= maxHeight);
+            if (!fits) return false;
+            long pixels = (long) width * height;
+            int rate = -1;
+            for (int i = PROBE_SIZES.length - 1; i >= 0 && i < maxFps.length; i--) {
+                if ((long) PROBE_SIZES[i][0] * PROBE_SIZES[i][1] >= pixels) {
+                    rate = maxFps[i];
+                    if (rate > 0) break;
+                }
+            }
+            // Larger than every probed size: trust the size limits
+            return rate < 0 || fps <= rate;
+        }
+
+        // Most efficient profile this encoder offers, 0 if it reports none we know
+        public int bestProfile() {
+            int[] order = MIME_HEVC.equals(mime)
+                    ? new int[]{HEVC_PROFILE_MAIN}
+                    : new int[]{AVC_PROFILE_HIGH, AVC_PROFILE_MAIN, AVC_PROFILE_BASELINE};
+            for (int profile : order) {
+                if (maxLevel(profile) > 0) return profile;
+            }
+            return 0;
+        }
+
+        public int maxLevel(int profile) {
+            int level = 0;
+            for (int i = 0; i + 1 < profileLevels.length; i += 2) {
+                if (profileLevels[i] == profile) level = Math.max(level, profileLevels[i + 1]);
+            }
+            return level;
+        }
+    }
+
+    public static class Choice {
+        public final Encoder encoder;
+        public final int profile;
+        public final int level;
+        // First encoder for its type, i.e. the one MediaRecorder will use
+        public final boolean platformDefault;
+
+        Choice(Encoder encoder, int profile, int level, boolean platformDefault) {
+            this.encoder = encoder;
+            this.profile = profile;
+            this.level = level;
+            this.platformDefault = platformDefault;
+        }
+
+        public boolean isHevc() {
+            return MIME_HEVC.equals(encoder.mime);
+        }
+
+        // Scale for an AVC-derived bitrate
+        public double bitrateScale() {
+            return isHevc() ? HEVC_BITRATE_SCALE : 1.0;
+        }
+
+        @Override
+        public String toString() {
+            return encoder.name + " (" + encoder.mime + (encoder.hardware ? ", hw" : ", sw")
+                    + ", profile " + profile + ", level " + level + ")";
+        }
+    }
+
+    public final String fingerprint;
+    public final List<Encoder> encoders;
+
+    public EncoderCapabilities(String fingerprint, List<Encoder> encoders) {
+        this.fingerprint = fingerprint;
+        this.encoders = Collections.unmodifiableList(new ArrayList<>(encoders));
+    }
+
+    // Most efficient encoder that can take width x height at fps: hardware HEVC, hardware AVC,
+    // software AVC, then software HEVC (too slow above a few FPS). Ties keep the platform's order.
+    // mime restricts the choice when that type is available; null or HEVC not allowed (no muxer
+    // support on the device) means AVC. Returns null if nothing fits.
+    public Choice choose(int width, int height, int fps, String mime, boolean allowHevc) {
+        Choice best = pick(width, height, fps, mime, allowHevc);
+        return best != null || mime == null ? best : pick(width, height, fps, null, allowHevc);
+    }
+
+    private Choice pick(int width, int height, int fps, String mime, boolean allowHevc) {
+        Encoder best = null;
+        int bestRank = Integer.MIN_VALUE;
+        for (Encoder encoder : encoders) {
+            boolean hevc = MIME_HEVC.equals(encoder.mime);
+            if (hevc && !allowHevc) continue;
+            if (mime != null && !mime.equals(encoder.mime)) continue;
+            if (!encoder.supports(width, height, fps)) continue;
+            int rank = encoder.hardware ? (hevc ? 3 : 2) : (hevc ? -1 : 0);
+            if (rank > bestRank) {
+                best = encoder;
+                bestRank = rank;
+            }
+        }
+        if (best == null) return null;
+        int profile = best.bestProfile();
+        return new Choice(best, profile, profile > 0 ? best.maxLevel(profile) : 0, best == firstFor(best.mime));
+    }
+
+    private Encoder firstFor(String mime) {
+        for (Encoder encoder : encoders) {
+            if (encoder.mime.equals(mime)) return encoder;
+        }
+        return null;
+    }
+
+    // GOP length for a rate when none is configured: about 20 frames, so low-rate footage isn't
+    // mostly keyframes, but never more than 10 s between seek points
+    public static int defaultIFrameIntervalSeconds(int fps) {
+        return Math.max(1, Math.min(10, Math.round(20f / Math.max(1, fps))));
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(fingerprint);
+        out.writeInt(encoders.size());
+        for (Encoder encoder : encoders) {
+            out.writeUTF(encoder.name);
+            out.writeUTF(encoder.mime);
+            out.writeBoolean(encoder.hardware);
+            writeInts(out, encoder.profileLevels);
+            out.writeInt(encoder.widthAlignment);
+            out.writeInt(encoder.heightAlignment);
+            out.writeInt(encoder.maxWidth);
+            out.writeInt(encoder.maxHeight);
+            writeInts(out, encoder.maxFps);
+            out.writeInt(encoder.maxBitrate);
+        }
+    }
+
+    // Throws IOException on a foreign, truncated or older-format file; callers just re-probe
+    public static EncoderCapabilities readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Unknown encoder file format");
+        String fingerprint = in.readUTF();
+        int count = in.readInt();
+        List<Encoder> encoders = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            encoders.add(new Encoder(in.readUTF(), in.readUTF(), in.readBoolean(), readInts(in),
+                    in.readInt(), in.readInt(), in.readInt(), in.readInt(), readInts(in), in.readInt()));
+        }
+        return new EncoderCapabilities(fingerprint, encoders);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) out.writeInt(value);
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int[] values = new int[in.readInt()];
+        for (int i = 0; i < values.length; i++) values[i] = in.readInt();
+        return values;
+    }
+}
@@ -0,0 +1,180 @@
+package com.simple2fps.camera;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Works out, before any session is created, which AE target range and sensor frame duration a
+// (size, fps) request really needs, and whether it can be recorded at all. Inputs are the raw
+// CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES and per-size getOutputMinFrameDuration() values.
+public class FpsRangeResolver {
+
+    public static class Plan {
+        public final int width;
+        public final int height;
+        public final int targetFps;
+        public final boolean possible;
+        // The sensor can't go this slow: only the decimating (time-lapse) engine can record it
+        public final boolean needsDecimation;
+        public final int aeLower;
+        public final int aeUpper;
+        public final long frameDurationNs;
+        public final int maxFps;
+        public final String reason;
+
+        Plan(int width, int height, int targetFps, boolean possible, boolean needsDecimation,
+             int aeLower, int aeUpper, long frameDurationNs, int maxFps, String reason) {
+            this.width = width;
+            this.height = height;
+            this.targetFps = targetFps;
+            this.possible = possible;
+            this.needsDecimation = needsDecimation;
+            this.aeLower = aeLower;
+            this.aeUpper = aeUpper;
+            this.frameDurationNs = frameDurationNs;
+            this.maxFps = maxFps;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            if (!possible) return width + "x" + height + "@" + targetFps + ": impossible (" + reason + ")";
+            return String.format(Locale.US, "%dx%d@%d: AE [%d, %d], frame %.1f ms%s", width, height, targetFps,
+                    aeLower, aeUpper, frameDurationNs / 1e6, needsDecimation ? ", decimated" : "");
+        }
+    }
+
+    private final int[][] aeRanges;
+    private final boolean decimationAvailable;
+    private final Map<Long, Long> minFrameDurations = new HashMap<>();
+    private final Map<Long, Plan[]> precomputed = new HashMap<>();
+    private int[] precomputedFps = new int[0];
+
+    // aeRanges: {lower, upper} pairs. decimationAvailable: whether the time-lapse engine can be used.
+    public FpsRangeResolver(int[][] aeRanges, boolean decimationAvailable) {
+        this.aeRanges = aeRanges != null ? aeRanges : new int[0][];
+        this.decimationAvailable = decimationAvailable;
+    }
+
+    // minFrameDurationNs <= 0 means the HAL didn't report one
+    public void addSize(int width, int height, long minFrameDurationNs) {
+        minFrameDurations.put(key(width, height), minFrameDurationNs);
+    }
+
+    // Resolves every registered size against each fps once, so per-intent lookups are a map hit
+    public void precompute(int[] fpsOptions) {
+        precomputedFps = fpsOptions.clone();
+        precomputed.clear();
+        for (Map.Entry<Long, Long> entry : minFrameDurations.entrySet()) {
+            int width = (int) (entry.getKey() >>> 32);
+            int height = (int) (long) entry.getKey();
+            Plan[] plans = new Plan[fpsOptions.length];
+            for (int i = 0; i < fpsOptions.length; i++) {
+                plans[i] = compute(width, height, fpsOptions[i]);
+            }
+            precomputed.put(entry.getKey(), plans);
+        }
+    }
+
+    public Plan resolve(int width, int height, int targetFps) {
+        Plan[] plans = precomputed.get(key(width, height));
+        if (plans != null) {
+            for (int i = 0; i < precomputedFps.length; i++) {
+                if (precomputedFps[i] == targetFps) return plans[i];
+            }
+        }
+        return compute(width, height, targetFps);
+    }
+
+    // Widest legal range topping out at the highest rate the size allows, for an idle preview
+    public int[] previewRange(int width, int height) {
+        int maxFps = maxFpsFor(width, height);
+        int[] best = null;
+        for (int[] r : aeRanges) {
+            if (r[1] > maxFps) continue;
+            if (best == null || r[1] > best[1] || (r[1] == best[1] && r[0] < best[0])) best = r;
+        }
+        return best != null ? best.clone() : new int[]{15, 30};
+    }
+
+    public List<Plan> impossiblePlans() {
+        List<Plan> result = new ArrayList<>();
+        for (Plan[] plans : precomputed.values()) {
+            for (Plan plan : plans) {
+                if (!plan.possible) result.add(plan);
+            }
+        }
+        return result;
+    }
+
+    private Plan compute(int width, int height, int targetFps) {
+        int maxFps = maxFpsFor(width, height);
+        if (targetFps <= 0) {
+            return impossible(width, height, targetFps, maxFps, "fps must be positive");
+        }
+        if (targetFps > maxFps) {
+            return impossible(width, height, targetFps, maxFps, width + "x" + height + " supports at most " + maxFps + " fps");
+        }
+
+        // A range containing the target: prefer one topping out exactly at it, then the
+        // tightest upper bound, then the steadiest (highest lower bound)
+        int[] direct = null;
+        for (int[] r : aeRanges) {
+            if (r[0] > targetFps || r[1] < targetFps || r[0] > maxFps) continue;
+            if (direct == null || better(r, direct, targetFps)) direct = r;
+        }
+        if (direct != null) {
+            int upper = Math.min(direct[1], maxFps);
+            return new Plan(width, height, targetFps, true, false, direct[0], upper,
+                    frameDuration(width, height, upper), maxFps, null);
+        }
+
+        // Slower than any advertised range: run the sensor at the cheapest legal range and decimate
+        int[] sensor = null;
+        for (int[] r : aeRanges) {
+            if (r[1] < targetFps || r[0] > maxFps) continue;
+            if (sensor == null || r[1] < sensor[1] || (r[1] == sensor[1] && r[0] < sensor[0])) sensor = r;
+        }
+        if (sensor == null) {
+            return impossible(width, height, targetFps, maxFps, "no AE range reaches " + targetFps + " fps at " + width + "x" + height);
+        }
+        if (!decimationAvailable) {
+            return impossible(width, height, targetFps, maxFps, "sensor can't go below " + sensor[0] + " fps and the time-lapse engine is unavailable");
+        }
+        int upper = Math.min(sensor[1], maxFps);
+        return new Plan(width, height, targetFps, true, true, sensor[0], upper,
+                frameDuration(width, height, upper), maxFps, null);
+    }
+
+    private static boolean better(int[] candidate, int[] current, int targetFps) {
+        boolean candidateExact = candidate[1] == targetFps;
+        boolean currentExact = current[1] == targetFps;
+        if (candidateExact != currentExact) return candidateExact;
+        if (candidate[1] != current[1]) return candidate[1] < current[1];
+        return candidate[0] > current[0];
+    }
+
+    private int maxFpsFor(int width, int height) {
+        Long minDuration = minFrameDurations.get(key(width, height));
+        if (minDuration == null || minDuration <= 0) return Integer.MAX_VALUE;
+        // Rounded so 29.97 fps (33366700 ns) still counts as 30
+        return (int) Math.round(1e9 / minDuration);
+    }
+
+    // Frame duration the sensor will settle on: one AE-upper-bound period, never below the size's minimum
+    private long frameDuration(int width, int height, int aeUpper) {
+        long duration = 1_000_000_000L / Math.max(1, aeUpper);
+        Long minDuration = minFrameDurations.get(key(width, height));
+        return minDuration != null ? Math.max(duration, minDuration) : duration;
+    }
+
+    private static Plan impossible(int width, int height, int targetFps, int maxFps, String reason) {
+        return new Plan(width, height, targetFps, false, false, 0, 0, 0, maxFps, reason);
+    }
+
+    private static long key(int width, int height) {
+        return ((long) width << 32) | (height & 0xffffffffL);
+    }
+}
@@ -0,0 +1,64 @@
+package com.simple2fps.camera;
+
+// Picks which sensor frames go into a low-fps / time-lapse file. The sensor runs at whatever
+// rate the HAL supports; we keep the frame nearest to each capture slot and stamp it with an
+// exact output timestamp, so the file plays at outputFps regardless of sensor jitter.
+public class FrameDecimator {
+    private final long captureIntervalNs;
+    private final long outputFrameUs;
+
+    private long firstTimestampNs = -1;
+    private long lastTimestampNs = -1;
+    private long framePeriodNs = 0;
+    private long nextSlot = 0;
+    private long keptFrames = 0;
+
+    // timelapseFactor 1 = real time (2 fps in, 2 fps out); 60 = one minute per second of output
+    public FrameDecimator(double outputFps, double timelapseFactor) {
+        if (outputFps <= 0 || timelapseFactor <= 0) {
+            throw new IllegalArgumentException("outputFps and timelapseFactor must be positive");
+        }
+        this.captureIntervalNs = Math.round(1_000_000_000L / outputFps * timelapseFactor);
+        this.outputFrameUs = Math.round(1_000_000L / outputFps);
+    }
+
+    // Returns the output presentation time in us if the frame should be encoded, or -1 to drop it
+    public long accept(long timestampNs) {
+        if (firstTimestampNs < 0) {
+            firstTimestampNs = timestampNs;
+            lastTimestampNs = timestampNs;
+            nextSlot = 1;
+            return keptFrames++ * outputFrameUs;
+        }
+        if (timestampNs <= lastTimestampNs) return -1; // Out of order or duplicate
+
+        framePeriodNs = timestampNs - lastTimestampNs;
+        lastTimestampNs = timestampNs;
+
+        // Keep the frame whose timestamp is closest to the slot: the first one within half a
+        // sensor period of it
+        long slotTimeNs = firstTimestampNs + nextSlot * captureIntervalNs;
+        if (timestampNs + framePeriodNs / 2 < slotTimeNs) return -1;
+
+        // After a stall, skip the missed slots rather than bursting to catch up
+        long elapsed = timestampNs - firstTimestampNs + framePeriodNs / 2;
+        nextSlot = elapsed / captureIntervalNs + 1;
+        return keptFrames++ * outputFrameUs;
+    }
+
+    public long getKeptFrames() {
+        return keptFrames;
+    }
+
+    public long getCaptureIntervalNs() {
+        return captureIntervalNs;
+    }
+
+    public void reset() {
+        firstTimestampNs = -1;
+        lastTimestampNs = -1;
+        framePeriodNs = 0;
+        nextSlot = 0;
+        keptFrames = 0;
+    }
+}
@@ -0,0 +1,562 @@
+package com.simple2fps.camera;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Bracketed HDR: a few NV21 exposures of the same scene (say -2/0/+2 EV) blended pixel by pixel,
+// each frame weighted by how well exposed and how detailed it is around that pixel, so shadows
+// come from the long exposure and highlights from the short one. No tone curve is involved: every
+// output value is a mix of values the camera itself rendered. Like NightStacker, every pass
+// fans out over a fork-join pool in row bands, and all buffers are sized once per resolution.
+//
+// Alignment is one global shift per frame against the best exposed one (median nearest
+// mid-grey), found on gradient-sign bitmaps: whether each pixel's right and lower neighbours are
+// brighter or darker survives any exposure and tone curve, where the values themselves don't.
+// First on a 4x box-downsampled copy, then refined at full resolution.
+//
+// Weights are worked out per CELL x CELL block, smoothed across blocks and interpolated back per
+// pixel: a single-scale stand-in for a Laplacian-pyramid blend, soft enough not to show block
+// seams and cheap enough to keep up with a shot a second.
+public class HdrFuser {
+    public static final int CELL = 16;
+    private static final int DOWNSCALE = 4;
+    // In downsampled pixels, so +-16 at full resolution; then +-2 around the coarse match
+    private static final int COARSE_RADIUS = 4;
+    private static final int FINE_RADIUS = 2;
+    // Both searches look at every SEARCH_STEP-th row and column of the reference
+    private static final int SEARCH_STEP = 2;
+    // Gradients this small are left out of the bitmap comparison: noise flips them either way,
+    // and clipped areas have none
+    private static final int EXCLUDE = 4;
+    // Added to a block's mean gradient, so flat blocks still weigh by exposure alone
+    private static final int CONTRAST_FLOOR = 4;
+    // [1 2 1] passes over the block weights, each in both directions
+    private static final int SMOOTH_PASSES = 3;
+    // Full-resolution rows per task; downsampled rows and block rows are smaller, so go in eights
+    private static final int BAND = 32;
+    private static final int ROWS_PER_TASK = 8;
+
+    private static final int PASS_DOWNSAMPLE = 0;
+    private static final int PASS_COARSE_SIGNS = 1;
+    private static final int PASS_REFERENCE_SIGNS = 2;
+    private static final int PASS_MATCHING_SIGNS = 3;
+    private static final int PASS_COARSE_MATCH = 4;
+    private static final int PASS_FINE_MATCH = 5;
+    private static final int PASS_WEIGHTS = 6;
+    private static final int PASS_BLEND = 7;
+
+    // A pixel's sign code: whether its right and lower neighbours differ by more than EXCLUDE,
+    // and if so which way
+    private static final int RIGHT_VALID = 1;
+    private static final int RIGHT_BRIGHTER = 2;
+    private static final int DOWN_VALID = 4;
+    private static final int DOWN_BRIGHTER = 8;
+    // Gradients two codes disagree on (0..2), indexed by a << 4 | b
+    private static final byte[] DISAGREE = new byte[256];
+    // A gradient's part of the code, indexed by gradient + 255
+    private static final byte[] RIGHT_CODE = new byte[511];
+    private static final byte[] DOWN_CODE = new byte[511];
+
+    // Well-exposedness of a luma value, 1..256: a Gaussian around mid-grey (sigma 0.2 of full
+    // scale), never zero so a block where every frame clips still has weights to split
+    private static final int[] EXPOSEDNESS = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            double d = (i - 127.5) / 255;
+            EXPOSEDNESS[i] = Math.max(1, (int) Math.round(256 * Math.exp(-d * d / (2 * 0.2 * 0.2))));
+        }
+        for (int a = 0; a < 16; a++) {
+            for (int b = 0; b < 16; b++) {
+                int both = a & b;
+                int differ = a ^ b;
+                int n = 0;
+                if ((both & RIGHT_VALID) != 0 && (differ & RIGHT_BRIGHTER) != 0) n++;
+                if ((both & DOWN_VALID) != 0 && (differ & DOWN_BRIGHTER) != 0) n++;
+                DISAGREE[a << 4 | b] = (byte) n;
+            }
+        }
+        for (int gradient = -255; gradient <= 255; gradient++) {
+            int valid = gradient > EXCLUDE || gradient < -EXCLUDE ? 1 : 0;
+            int brighter = gradient > EXCLUDE ? 1 : 0;
+            RIGHT_CODE[gradient + 255] = (byte) (valid * RIGHT_VALID | brighter * RIGHT_BRIGHTER);
+            DOWN_CODE[gradient + 255] = (byte) (valid * DOWN_VALID | brighter * DOWN_BRIGHTER);
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final int maxFrames;
+    private final ForkJoinPool pool;
+    private final byte[][] frames;
+    private final byte[] output;
+    private final int coarseWidth;
+    private final int coarseHeight;
+    private final short[][] coarse;
+    // Sign codes: per frame on the downsampled copies; at full resolution for the reference on
+    // every SEARCH_STEP-th pixel and row, and for the frame being matched on all of them
+    private final byte[][] coarseSigns;
+    private final int referenceSignsWidth;
+    private final byte[] referenceSigns;
+    private final byte[] matchingSigns;
+    // Per frame: median luma of the downsampled copy, and shift against the reference
+    private final int[] median;
+    private final int[] histogram = new int[256];
+    private final int[] offsetX;
+    private final int[] offsetY;
+    private final int bands;
+    // Per band and candidate shift: bitmap mismatches, summed once the pass is done
+    private final int[][] mismatches;
+    private final int cellsX;
+    private final int cellsY;
+    // Per frame and block: weight, then its share of 256 once smoothed
+    private final int[][] weights;
+    private final int[] scratch;
+    // Per column and row: the two nearest block centres and the distance past the first (0..CELL)
+    private final int[] columnCell;
+    private final int[] columnFraction;
+    private final int[] rowCell;
+    private final int[] rowFraction;
+    // Per band: one frame's block weights for the row being blended, interpolated vertically,
+    // and the weighted sums of the row's luma and (on even rows) chroma
+    private final int[][] rowWeights;
+    private final int[][] rowSums;
+
+    // The shot being fused; written before each pass is invoked, read by its tasks
+    private int count;
+    private int reference;
+    private int matching;
+
+    // width and height even, as camera YUV sizes are
+    public HdrFuser(int width, int height, int maxFrames, ForkJoinPool pool) {
+        if (width <= 0 || height <= 0 || width % 2 != 0 || height % 2 != 0) {
+            throw new IllegalArgumentException("Frame size must be positive and even: " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.maxFrames = Math.max(1, maxFrames);
+        this.pool = pool;
+        int size = Yuv420.nv21Size(width, height);
+        frames = new byte[this.maxFrames][size];
+        output = new byte[size];
+        coarseWidth = width / DOWNSCALE;
+        coarseHeight = height / DOWNSCALE;
+        coarse = new short[this.maxFrames][coarseWidth * coarseHeight];
+        coarseSigns = new byte[this.maxFrames][coarseWidth * coarseHeight];
+        referenceSignsWidth = (width + SEARCH_STEP - 1) / SEARCH_STEP;
+        referenceSigns = new byte[referenceSignsWidth * ((height + SEARCH_STEP - 1) / SEARCH_STEP)];
+        matchingSigns = new byte[width * height];
+        median = new int[this.maxFrames];
+        offsetX = new int[this.maxFrames];
+        offsetY = new int[this.maxFrames];
+        bands = (height + BAND - 1) / BAND;
+        int candidates = Math.max(square(2 * COARSE_RADIUS + 1), square(2 * FINE_RADIUS + 1));
+        mismatches = new int[bands][candidates];
+        cellsX = (width + CELL - 1) / CELL;
+        cellsY = (height + CELL - 1) / CELL;
+        weights = new int[this.maxFrames][cellsX * cellsY];
+        scratch = new int[cellsX * cellsY];
+        columnCell = new int[width];
+        columnFraction = new int[width];
+        rowCell = new int[height];
+        rowFraction = new int[height];
+        interpolation(width, cellsX, columnCell, columnFraction);
+        interpolation(height, cellsY, rowCell, rowFraction);
+        rowWeights = new int[bands][cellsX + 1];
+        rowSums = new int[bands][2 * width];
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public int maxFrames() {
+        return maxFrames;
+    }
+
+    // Where the index-th exposure's NV21 goes (Yuv420.toNv21's out); any order
+    public byte[] frame(int index) {
+        return frames[index];
+    }
+
+    // Frame the last fusion was aligned to
+    public int reference() {
+        return reference;
+    }
+
+    // Aligns and blends frames 0..count-1. The NV21 result belongs to the fuser and is
+    // overwritten by the next call.
+    public byte[] fuse(int count) {
+        this.count = Math.max(1, Math.min(count, maxFrames));
+        if (this.count == 1) {
+            reference = 0;
+            System.arraycopy(frames[0], 0, output, 0, output.length);
+            return output;
+        }
+        pool.invoke(new Pass(PASS_DOWNSAMPLE, 0, this.count * coarseHeight));
+        pool.invoke(new Pass(PASS_COARSE_SIGNS, 0, this.count * coarseHeight));
+        reference = bestExposed();
+        pool.invoke(new Pass(PASS_REFERENCE_SIGNS, 0, (height + SEARCH_STEP - 1) / SEARCH_STEP));
+        for (int f = 0; f < this.count; f++) {
+            offsetX[f] = 0;
+            offsetY[f] = 0;
+            if (f == reference) continue;
+            matching = f;
+            pool.invoke(new Pass(PASS_COARSE_MATCH, 0, bands));
+            int best = bestCandidate(COARSE_RADIUS);
+            offsetX[f] = (best % (2 * COARSE_RADIUS + 1) - COARSE_RADIUS) * DOWNSCALE;
+            offsetY[f] = (best / (2 * COARSE_RADIUS + 1) - COARSE_RADIUS) * DOWNSCALE;
+            pool.invoke(new Pass(PASS_MATCHING_SIGNS, 0, height));
+            pool.invoke(new Pass(PASS_FINE_MATCH, 0, bands));
+            best = bestCandidate(FINE_RADIUS);
+            offsetX[f] += best % (2 * FINE_RADIUS + 1) - FINE_RADIUS;
+            offsetY[f] += best / (2 * FINE_RADIUS + 1) - FINE_RADIUS;
+        }
+        pool.invoke(new Pass(PASS_WEIGHTS, 0, cellsY));
+        normalizeWeights();
+        pool.invoke(new Pass(PASS_BLEND, 0, bands));
+        return output;
+    }
+
+    // Shift of the index-th frame against the reference, in full-resolution pixels
+    public int offsetX(int index) {
+        return offsetX[index];
+    }
+
+    public int offsetY(int index) {
+        return offsetY[index];
+    }
+
+    private class Pass extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int pass;
+        final int from;
+        final int to;
+
+        Pass(int pass, int from, int to) {
+            this.pass = pass;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            int grain;
+            if (pass == PASS_COARSE_MATCH || pass == PASS_FINE_MATCH || pass == PASS_BLEND) grain = 1;
+            else if (pass == PASS_REFERENCE_SIGNS || pass == PASS_MATCHING_SIGNS) grain = BAND;
+            else grain = ROWS_PER_TASK;
+            if (to - from > grain) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Pass(pass, from, middle), new Pass(pass, middle, to));
+                return;
+            }
+            for (int unit = from; unit < to; unit++) {
+                if (pass == PASS_DOWNSAMPLE) downsampleRow(unit / coarseHeight, unit % coarseHeight);
+                else if (pass == PASS_COARSE_SIGNS) coarseSignRow(unit / coarseHeight, unit % coarseHeight);
+                else if (pass == PASS_REFERENCE_SIGNS) referenceSignRow(unit * SEARCH_STEP);
+                else if (pass == PASS_MATCHING_SIGNS) matchingSignRow(unit);
+                else if (pass == PASS_COARSE_MATCH) coarseMatch(unit);
+                else if (pass == PASS_FINE_MATCH) fineMatch(unit);
+                else if (pass == PASS_WEIGHTS) weighRow(unit);
+                else blendBand(unit);
+            }
+        }
+    }
+
+    private void downsampleRow(int index, int row) {
+        byte[] luma = frames[index];
+        short[] out = coarse[index];
+        int base = row * DOWNSCALE * width;
+        for (int x = 0; x < coarseWidth; x++) {
+            int sum = 0;
+            int offset = base + x * DOWNSCALE;
+            for (int dy = 0; dy < DOWNSCALE; dy++) {
+                for (int dx = 0; dx < DOWNSCALE; dx++) sum += luma[offset + dx] & 0xFF;
+                offset += width;
+            }
+            out[row * coarseWidth + x] = (short) (sum / (DOWNSCALE * DOWNSCALE));
+        }
+    }
+
+    private void coarseSignRow(int index, int row) {
+        short[] image = coarse[index];
+        byte[] out = coarseSigns[index];
+        int base = row * coarseWidth;
+        boolean lastRow = row == coarseHeight - 1;
+        for (int x = 0; x < coarseWidth; x++) {
+            int value = image[base + x];
+            int right = x < coarseWidth - 1 ? image[base + x + 1] - value : 0;
+            int down = lastRow ? 0 : image[base + coarseWidth + x] - value;
+            out[base + x] = (byte) (RIGHT_CODE[right + 255] | DOWN_CODE[down + 255]);
+        }
+    }
+
+    private void referenceSignRow(int y) {
+        byte[] luma = frames[reference];
+        int out = (y / SEARCH_STEP) * referenceSignsWidth;
+        for (int x = 0; x < width; x += SEARCH_STEP) referenceSigns[out + x / SEARCH_STEP] = (byte) fullSignCode(luma, x, y);
+    }
+
+    private void matchingSignRow(int y) {
+        byte[] luma = frames[matching];
+        int base = y * width;
+        // The last row and column have no neighbour to compare with
+        int below = y < height - 1 ? width : 0;
+        for (int x = 0; x < width - 1; x++) {
+            int value = luma[base + x] & 0xFF;
+            matchingSigns[base + x] = (byte) (RIGHT_CODE[(luma[base + x + 1] & 0xFF) - value + 255]
+                    | DOWN_CODE[(luma[base + x + below] & 0xFF) - value + 255]);
+        }
+        matchingSigns[base + width - 1] = (byte) fullSignCode(luma, width - 1, y);
+    }
+
+    private int fullSignCode(byte[] luma, int x, int y) {
+        int index = y * width + x;
+        int value = luma[index] & 0xFF;
+        int right = x < width - 1 ? (luma[index + 1] & 0xFF) - value : 0;
+        int down = y < height - 1 ? (luma[index + width] & 0xFF) - value : 0;
+        return RIGHT_CODE[right + 255] | DOWN_CODE[down + 255];
+    }
+
+    // Median closest to mid-grey
+    private int bestExposed() {
+        int best = 0;
+        for (int f = 0; f < count; f++) {
+            Arrays.fill(histogram, 0);
+            short[] image = coarse[f];
+            for (short value : image) histogram[value]++;
+            int half = image.length / 2;
+            int level = 0;
+            for (int seen = histogram[0]; seen <= half && level < 255; seen += histogram[++level]) {}
+            median[f] = level;
+            if (Math.abs(level - 128) < Math.abs(median[best] - 128)) best = f;
+        }
+        return best;
+    }
+
+    // Gradient signs that disagree between the reference and the matched frame over the band's
+    // downsampled rows, per candidate shift. Only the inner area every candidate covers is
+    // compared, so larger shifts aren't favoured for comparing less.
+    private void coarseMatch(int band) {
+        int[] counts = mismatches[band];
+        int size = 2 * COARSE_RADIUS + 1;
+        Arrays.fill(counts, 0, size * size, 0);
+        int start = (COARSE_RADIUS + SEARCH_STEP - 1) / SEARCH_STEP * SEARCH_STEP;
+        int rowFrom = Math.max(start, band * BAND / DOWNSCALE);
+        int rowTo = Math.min(coarseHeight - COARSE_RADIUS, (band + 1) * BAND / DOWNSCALE);
+        int columnTo = coarseWidth - COARSE_RADIUS;
+        byte[] a = coarseSigns[reference];
+        byte[] b = coarseSigns[matching];
+        for (int v = -COARSE_RADIUS; v <= COARSE_RADIUS; v++) {
+            for (int u = -COARSE_RADIUS; u <= COARSE_RADIUS; u++) {
+                int total = 0;
+                for (int y = rowFrom; y < rowTo; y += SEARCH_STEP) {
+                    int rowA = y * coarseWidth;
+                    int rowB = (y + v) * coarseWidth + u;
+                    for (int x = start; x < columnTo; x += SEARCH_STEP) total += DISAGREE[a[rowA + x] << 4 | b[rowB + x]];
+                }
+                counts[(v + COARSE_RADIUS) * size + u + COARSE_RADIUS] = total;
+            }
+        }
+    }
+
+    // The same at full resolution around the coarse shift, on every SEARCH_STEP-th pixel and row
+    // of the reference
+    private void fineMatch(int band) {
+        int[] counts = mismatches[band];
+        int size = 2 * FINE_RADIUS + 1;
+        Arrays.fill(counts, 0, size * size, 0);
+        int margin = COARSE_RADIUS * DOWNSCALE + FINE_RADIUS;
+        int start = (margin + SEARCH_STEP - 1) / SEARCH_STEP * SEARCH_STEP;
+        int rowFrom = Math.max(start, band * BAND);
+        int rowTo = Math.min(height - margin, (band + 1) * BAND);
+        int columnTo = width - margin;
+        for (int v = -FINE_RADIUS; v <= FINE_RADIUS; v++) {
+            for (int u = -FINE_RADIUS; u <= FINE_RADIUS; u++) {
+                int dx = offsetX[matching] + u;
+                int dy = offsetY[matching] + v;
+                int total = 0;
+                // BAND is a multiple of SEARCH_STEP, so every band starts on a sampled row
+                for (int y = rowFrom; y < rowTo; y += SEARCH_STEP) {
+                    int rowA = (y / SEARCH_STEP) * referenceSignsWidth;
+                    int rowB = (y + dy) * width + dx;
+                    for (int x = start; x < columnTo; x += SEARCH_STEP) {
+                        total += DISAGREE[referenceSigns[rowA + x / SEARCH_STEP] << 4 | matchingSigns[rowB + x]];
+                    }
+                }
+                counts[(v + FINE_RADIUS) * size + u + FINE_RADIUS] = total;
+            }
+        }
+    }
+
+    // Fewest mismatches over all bands; ties go to the smaller shift
+    private int bestCandidate(int radius) {
+        int size = 2 * radius + 1;
+        int best = -1;
+        long bestTotal = Long.MAX_VALUE;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int candidate = 0; candidate < size * size; candidate++) {
+            long total = 0;
+            for (int band = 0; band < bands; band++) total += mismatches[band][candidate];
+            int distance = Math.abs(candidate % size - radius) + Math.abs(candidate / size - radius);
+            if (total < bestTotal || (total == bestTotal && distance < bestDistance)) {
+                best = candidate;
+                bestTotal = total;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    // Per block and frame: mean exposedness times (floor + mean gradient), on every other pixel
+    // of every other row, as seen through the frame's shift
+    private void weighRow(int cellY) {
+        int y0 = cellY * CELL;
+        int y1 = Math.min(height, y0 + CELL);
+        for (int cellX = 0; cellX < cellsX; cellX++) {
+            int x0 = cellX * CELL;
+            int x1 = Math.min(width, x0 + CELL);
+            for (int f = 0; f < count; f++) {
+                byte[] luma = frames[f];
+                int dx = offsetX[f];
+                int dy = offsetY[f];
+                long exposed = 0;
+                long contrast = 0;
+                int samples = 0;
+                for (int y = y0; y < y1; y += 2) {
+                    int sy = clamp(y + dy, 0, height - 2);
+                    int row = sy * width;
+                    for (int x = x0; x < x1; x += 2) {
+                        int sx = clamp(x + dx, 0, width - 2);
+                        int value = luma[row + sx] & 0xFF;
+                        exposed += EXPOSEDNESS[value];
+                        contrast += Math.abs((luma[row + sx + 1] & 0xFF) - value)
+                                + Math.abs((luma[row + width + sx] & 0xFF) - value);
+                        samples++;
+                    }
+                }
+                weights[f][cellY * cellsX + cellX] = (int) (exposed / samples * (CONTRAST_FLOOR + contrast / samples));
+            }
+        }
+    }
+
+    // Smooths each frame's block weights, then turns them into shares of 256 per block; the
+    // reference takes the rounding remainder, so shares always add up exactly
+    private void normalizeWeights() {
+        for (int f = 0; f < count; f++) {
+            for (int pass = 0; pass < SMOOTH_PASSES; pass++) smooth(weights[f]);
+        }
+        for (int cell = 0; cell < cellsX * cellsY; cell++) {
+            long total = 0;
+            for (int f = 0; f < count; f++) total += weights[f][cell];
+            int rest = 256;
+            for (int f = 0; f < count; f++) {
+                if (f == reference) continue;
+                int share = (int) (weights[f][cell] * 256L / total);
+                weights[f][cell] = share;
+                rest -= share;
+            }
+            weights[reference][cell] = rest;
+        }
+    }
+
+    // [1 2 1] / 4 across, then down, repeating the edge blocks
+    private void smooth(int[] grid) {
+        for (int y = 0; y < cellsY; y++) {
+            int row = y * cellsX;
+            for (int x = 0; x < cellsX; x++) {
+                int left = grid[row + Math.max(0, x - 1)];
+                int right = grid[row + Math.min(cellsX - 1, x + 1)];
+                scratch[row + x] = (left + 2 * grid[row + x] + right + 2) / 4;
+            }
+        }
+        for (int y = 0; y < cellsY; y++) {
+            int up = Math.max(0, y - 1) * cellsX;
+            int down = Math.min(cellsY - 1, y + 1) * cellsX;
+            int row = y * cellsX;
+            for (int x = 0; x < cellsX; x++) {
+                grid[row + x] = (scratch[up + x] + 2 * scratch[row + x] + scratch[down + x] + 2) / 4;
+            }
+        }
+    }
+
+    // Each pixel's weights are bilinear between the four nearest block centres, in units of
+    // 256 * CELL * CELL = 65536, so the sum over frames is exact and a shift normalizes it. A row
+    // is summed a frame at a time; chroma (interleaved V/U at half resolution, shifted by whole
+    // pairs) on even rows, with the weight of the pair's top-left luma pixel.
+    private void blendBand(int band) {
+        int[] interpolated = rowWeights[band];
+        int[] sums = rowSums[band];
+        int chromaOffset = width * height;
+        int y1 = Math.min(height, (band + 1) * BAND);
+        for (int y = band * BAND; y < y1; y++) {
+            int cell = rowCell[y];
+            int next = Math.min(cellsY - 1, cell + 1);
+            int fy = rowFraction[y];
+            boolean chroma = (y & 1) == 0;
+            Arrays.fill(sums, 0, chroma ? 2 * width : width, 0);
+            for (int f = 0; f < count; f++) {
+                int[] grid = weights[f];
+                for (int x = 0; x < cellsX; x++) {
+                    interpolated[x] = grid[cell * cellsX + x] * (CELL - fy) + grid[next * cellsX + x] * fy;
+                }
+                // The last block has no right-hand neighbour; its fraction is always 0
+                interpolated[cellsX] = interpolated[cellsX - 1];
+                byte[] frame = frames[f];
+                int dx = offsetX[f];
+                int sy = clamp(y + offsetY[f], 0, height - 1);
+                int row = sy * width;
+                for (int x = 0; x < width; x++) {
+                    int c = columnCell[x];
+                    int fx = columnFraction[x];
+                    int w = interpolated[c] * (CELL - fx) + interpolated[c + 1] * fx;
+                    sums[x] += w * (frame[row + clamp(x + dx, 0, width - 1)] & 0xFF);
+                }
+                if (!chroma) continue;
+                int chromaRow = chromaOffset + (sy / 2) * width;
+                for (int x = 0; x < width; x += 2) {
+                    int c = columnCell[x];
+                    int fx = columnFraction[x];
+                    int w = interpolated[c] * (CELL - fx) + interpolated[c + 1] * fx;
+                    int index = chromaRow + (clamp(x + dx, 0, width - 1) & ~1);
+                    sums[width + x] += w * (frame[index] & 0xFF);
+                    sums[width + x + 1] += w * (frame[index + 1] & 0xFF);
+                }
+            }
+            int out = y * width;
+            for (int x = 0; x < width; x++) output[out + x] = (byte) ((sums[x] + 32768) >>> 16);
+            if (chroma) {
+                int chromaOut = chromaOffset + (y / 2) * width;
+                for (int x = 0; x < width; x++) output[chromaOut + x] = (byte) ((sums[width + x] + 32768) >>> 16);
+            }
+        }
+    }
+
+    // Per pixel along one axis: the block whose centre is at or before it, and how far past
+    private static void interpolation(int length, int cells, int[] cell, int[] fraction) {
+        for (int i = 0; i < length; i++) {
+            int position = i - CELL / 2;
+            if (position < 0) {
+                cell[i] = 0;
+                fraction[i] = 0;
+            } else {
+                cell[i] = Math.min(cells - 1, position / CELL);
+                fraction[i] = cell[i] == cells - 1 ? 0 : position % CELL;
+            }
+        }
+    }
+
+    private static int clamp(int value, int low, int high) {
+        return value < low ? low : value > high ? high : value;
+    }
+
+    private static int square(int value) {
+        return value * value;
+    }
+}
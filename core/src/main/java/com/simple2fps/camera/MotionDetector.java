@@ -0,0 +1,164 @@
+package com.simple2fps.camera;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+// Luma frame-difference motion detector on a coarse grid. Each frame is reduced to the mean luma
+// of gridCols x gridRows cells (sampling a few pixels per cell), compared against a slowly
+// adapting background, and counts as motion when enough cells changed. A global brightness
+// shift (auto exposure, clouds) moves every cell alike and is subtracted first.
+//
+// Allocation-free after construction; plain Java so it runs on synthetic frames off-device.
+public class MotionDetector {
+
+    public static class Config {
+        public final int gridCols;
+        public final int gridRows;
+        // Mean luma change (0-255) for a cell to count as changed
+        public final int cellThreshold;
+        // Share of changed cells (0-1) for a frame to count as motion
+        public final float areaThreshold;
+        // Consecutive motion frames needed to start, so single-frame noise doesn't trigger
+        public final int triggerFrames;
+        // Motion stays on until this long without a motion frame
+        public final long hangoverMs;
+
+        public Config(int gridCols, int gridRows, int cellThreshold, float areaThreshold, int triggerFrames, long hangoverMs) {
+            this.gridCols = Math.max(1, gridCols);
+            this.gridRows = Math.max(1, gridRows);
+            this.cellThreshold = Math.max(1, cellThreshold);
+            this.areaThreshold = Math.max(0f, Math.min(areaThreshold, 1f));
+            this.triggerFrames = Math.max(1, triggerFrames);
+            this.hangoverMs = Math.max(0, hangoverMs);
+        }
+
+        public static Config defaults() {
+            return new Config(32, 24, 12, 0.01f, 2, 5000);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%dx%d grid, cell %d, area %.3f, %d frames, hangover %d ms",
+                    gridCols, gridRows, cellThreshold, areaThreshold, triggerFrames, hangoverMs);
+        }
+    }
+
+    public interface Listener {
+        void onMotionStart(long timestampNs, float area);
+        void onMotionStop(long timestampNs);
+    }
+
+    // Samples per cell side; enough to average out sensor noise
+    private static final int SAMPLES_PER_CELL = 8;
+    // Background follows the scene at 1/2^BACKGROUND_SHIFT per frame
+    private static final int BACKGROUND_SHIFT = 3;
+
+    private final Config config;
+    private final Listener listener;
+    private final int cells;
+    // Cell means of the current frame, and the background in 8.8 fixed point
+    private final int[] current;
+    private final int[] background;
+    private boolean primed = false;
+
+    private boolean active = false;
+    private int motionFrames = 0;
+    private long lastMotionNs = 0;
+    private float lastArea = 0;
+    private long framesProcessed = 0;
+
+    public MotionDetector(Config config, Listener listener) {
+        this.config = config;
+        this.listener = listener;
+        this.cells = config.gridCols * config.gridRows;
+        this.current = new int[cells];
+        this.background = new int[cells];
+    }
+
+    // Y plane of a frame (YUV_420_888 plane 0, or any 8-bit luma buffer). Returns whether motion
+    // is active after this frame; start/stop go to the listener on the calling thread.
+    public boolean process(ByteBuffer luma, int width, int height, int rowStride, int pixelStride, long timestampNs) {
+        reduce(luma, width, height, rowStride, pixelStride);
+        framesProcessed++;
+        if (!primed) {
+            for (int i = 0; i < cells; i++) background[i] = current[i] << 8;
+            primed = true;
+            return active;
+        }
+
+        // Global shift first, then the cells that moved beyond it
+        long shift = 0;
+        for (int i = 0; i < cells; i++) shift += (current[i] << 8) - background[i];
+        int meanShift = (int) (shift / cells);
+        int threshold = config.cellThreshold << 8;
+        int changed = 0;
+        for (int i = 0; i < cells; i++) {
+            int diff = (current[i] << 8) - background[i] - meanShift;
+            if (diff > threshold || diff < -threshold) changed++;
+            background[i] += ((current[i] << 8) - background[i]) >> BACKGROUND_SHIFT;
+        }
+        lastArea = (float) changed / cells;
+
+        if (lastArea >= config.areaThreshold && changed > 0) {
+            motionFrames++;
+            lastMotionNs = timestampNs;
+            if (!active && motionFrames >= config.triggerFrames) {
+                active = true;
+                if (listener != null) listener.onMotionStart(timestampNs, lastArea);
+            }
+        } else {
+            motionFrames = 0;
+            if (active && timestampNs - lastMotionNs >= config.hangoverMs * 1000000L) {
+                active = false;
+                if (listener != null) listener.onMotionStop(timestampNs);
+            }
+        }
+        return active;
+    }
+
+    // Ends an active motion period now (recording stopped), without waiting for the hangover
+    public void reset(long timestampNs) {
+        if (active && listener != null) listener.onMotionStop(timestampNs);
+        active = false;
+        primed = false;
+        motionFrames = 0;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public float getLastArea() {
+        return lastArea;
+    }
+
+    public long getFramesProcessed() {
+        return framesProcessed;
+    }
+
+    // Mean of a SAMPLES_PER_CELL^2 sub-grid of pixels in each cell, into current[]
+    private void reduce(ByteBuffer luma, int width, int height, int rowStride, int pixelStride) {
+        int cols = config.gridCols;
+        int rows = config.gridRows;
+        for (int row = 0; row < rows; row++) {
+            int y0 = row * height / rows;
+            int y1 = (row + 1) * height / rows;
+            int stepY = Math.max(1, (y1 - y0) / SAMPLES_PER_CELL);
+            for (int col = 0; col < cols; col++) {
+                int x0 = col * width / cols;
+                int x1 = (col + 1) * width / cols;
+                int stepX = Math.max(1, (x1 - x0) / SAMPLES_PER_CELL);
+                int sum = 0;
+                int count = 0;
+                for (int y = y0 + stepY / 2; y < y1; y += stepY) {
+                    int rowBase = y * rowStride;
+                    for (int x = x0 + stepX / 2; x < x1; x += stepX) {
+                        sum += luma.get(rowBase + x * pixelStride) & 0xFF;
+                        count++;
+                    }
+                }
+                current[row * cols + col] = count > 0 ? sum / count : 0;
+            }
+        }
+    }
+}
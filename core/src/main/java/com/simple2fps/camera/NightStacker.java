@@ -0,0 +1,358 @@
+package com.simple2fps.camera;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Multi-frame night shot: a burst of short NV21 exposures aligned tile by tile against the
+// sharpest of them and averaged, so noise drops with the frame count while each exposure is short
+// enough not to blur. Tiles are independent, so every pass fans out over a fork-join pool; all
+// buffers are sized once per resolution and reused, so a shot allocates no pixel memory.
+//
+// Per TILE x TILE luma tile and frame: a search on a 4x box-downsampled copy, refined at full
+// resolution. A tile that still differs from the reference by well over that frame's typical
+// (median) tile difference has moved; it gets less weight, down to none, rather than ghosting.
+// Chroma follows the luma offsets at half resolution.
+public class NightStacker {
+    public static final int TILE = 32;
+    private static final int DOWNSCALE = 4;
+    // In downsampled pixels, so +-16 at full resolution; then +-2 around the coarse match
+    private static final int COARSE_RADIUS = 4;
+    private static final int FINE_RADIUS = 2;
+    // A perfect match's weight; the reference frame always gets it
+    private static final int FULL_WEIGHT = 16;
+    // Tile differences, relative to the frame's median, where weight starts to fall and hits zero
+    // (times two: 3 is 1.5x, 8 is 4x)
+    private static final int ACCEPT_X2 = 3;
+    private static final int REJECT_X2 = 8;
+    // Floor for the median difference (in 1/16 levels), so clean synthetic frames don't reject
+    // everything over a one-level wobble
+    private static final int MIN_NOISE_Q4 = 32;
+    // Work below these sizes isn't split further
+    private static final int ROWS_PER_TASK = 32;
+    private static final int TILES_PER_TASK = 8;
+
+    private static final int PASS_DOWNSAMPLE = 0;
+    private static final int PASS_ALIGN = 1;
+    private static final int PASS_MERGE = 2;
+
+    private final int width;
+    private final int height;
+    private final int maxFrames;
+    private final ForkJoinPool pool;
+    private final byte[][] frames;
+    private final byte[] output;
+    private final int coarseWidth;
+    private final int coarseHeight;
+    private final short[][] coarse;
+    private final int tilesX;
+    private final int tilesY;
+    // Per frame and tile: offset into the frame and mean abs difference (1/16 levels)
+    private final int[] offsetX;
+    private final int[] offsetY;
+    private final int[] difference;
+    // Per frame: median tile difference
+    private final int[] noise;
+    private final int[] scratch;
+    // Weighted sums per output byte; tiles are disjoint, so tasks never share an element
+    private final int[] accumulator;
+
+    // The shot being stacked; written before each pass is invoked, read by its tasks
+    private int count;
+    private int reference;
+
+    // width and height even, as camera YUV sizes are
+    public NightStacker(int width, int height, int maxFrames, ForkJoinPool pool) {
+        if (width <= 0 || height <= 0 || width % 2 != 0 || height % 2 != 0) {
+            throw new IllegalArgumentException("Frame size must be positive and even: " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.maxFrames = Math.max(1, maxFrames);
+        this.pool = pool;
+        int size = Yuv420.nv21Size(width, height);
+        frames = new byte[this.maxFrames][size];
+        output = new byte[size];
+        coarseWidth = width / DOWNSCALE;
+        coarseHeight = height / DOWNSCALE;
+        coarse = new short[this.maxFrames][coarseWidth * coarseHeight];
+        tilesX = (width + TILE - 1) / TILE;
+        tilesY = (height + TILE - 1) / TILE;
+        int tiles = tilesX * tilesY;
+        offsetX = new int[this.maxFrames * tiles];
+        offsetY = new int[this.maxFrames * tiles];
+        difference = new int[this.maxFrames * tiles];
+        noise = new int[this.maxFrames];
+        scratch = new int[tiles];
+        accumulator = new int[size];
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public int maxFrames() {
+        return maxFrames;
+    }
+
+    // Where the index-th exposure's NV21 goes (Yuv420.toNv21's out)
+    public byte[] frame(int index) {
+        return frames[index];
+    }
+
+    // Frame the last stack was aligned to
+    public int reference() {
+        return reference;
+    }
+
+    // Aligns and averages frames 0..count-1. The NV21 result belongs to the stacker and is
+    // overwritten by the next call.
+    public byte[] stack(int count) {
+        this.count = Math.max(1, Math.min(count, maxFrames));
+        if (this.count == 1) {
+            reference = 0;
+            System.arraycopy(frames[0], 0, output, 0, output.length);
+            return output;
+        }
+        pool.invoke(new Pass(PASS_DOWNSAMPLE, 0, this.count * coarseHeight));
+        reference = sharpest();
+        pool.invoke(new Pass(PASS_ALIGN, 0, tilesX * tilesY));
+        estimateNoise();
+        pool.invoke(new Pass(PASS_MERGE, 0, tilesX * tilesY));
+        return output;
+    }
+
+    private class Pass extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int pass;
+        final int from;
+        final int to;
+
+        Pass(int pass, int from, int to) {
+            this.pass = pass;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            int grain = pass == PASS_DOWNSAMPLE ? ROWS_PER_TASK : TILES_PER_TASK;
+            if (to - from > grain) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Pass(pass, from, middle), new Pass(pass, middle, to));
+                return;
+            }
+            for (int unit = from; unit < to; unit++) {
+                if (pass == PASS_DOWNSAMPLE) downsampleRow(unit / coarseHeight, unit % coarseHeight);
+                else if (pass == PASS_ALIGN) alignTile(unit);
+                else mergeTile(unit);
+            }
+        }
+    }
+
+    private void downsampleRow(int index, int row) {
+        byte[] luma = frames[index];
+        short[] out = coarse[index];
+        int base = row * DOWNSCALE * width;
+        for (int x = 0; x < coarseWidth; x++) {
+            int sum = 0;
+            int offset = base + x * DOWNSCALE;
+            for (int dy = 0; dy < DOWNSCALE; dy++) {
+                for (int dx = 0; dx < DOWNSCALE; dx++) sum += luma[offset + dx] & 0xFF;
+                offset += width;
+            }
+            out[row * coarseWidth + x] = (short) (sum / (DOWNSCALE * DOWNSCALE));
+        }
+    }
+
+    // Most gradient energy on the downsampled copies: the frame with the least shake
+    private int sharpest() {
+        int best = 0;
+        long bestEnergy = -1;
+        for (int f = 0; f < count; f++) {
+            short[] image = coarse[f];
+            long energy = 0;
+            for (int y = 0; y < coarseHeight - 1; y++) {
+                int row = y * coarseWidth;
+                for (int x = 0; x < coarseWidth - 1; x++) {
+                    int value = image[row + x];
+                    energy += Math.abs(image[row + x + 1] - value) + Math.abs(image[row + coarseWidth + x] - value);
+                }
+            }
+            if (energy > bestEnergy) {
+                best = f;
+                bestEnergy = energy;
+            }
+        }
+        return best;
+    }
+
+    private void alignTile(int tile) {
+        int x0 = (tile % tilesX) * TILE;
+        int y0 = (tile / tilesX) * TILE;
+        int tileWidth = Math.min(TILE, width - x0);
+        int tileHeight = Math.min(TILE, height - y0);
+        int tiles = tilesX * tilesY;
+        for (int f = 0; f < count; f++) {
+            int slot = f * tiles + tile;
+            if (f == reference) {
+                offsetX[slot] = 0;
+                offsetY[slot] = 0;
+                difference[slot] = 0;
+                continue;
+            }
+            // Coarse: the whole downsampled cells inside the tile
+            int cx0 = (x0 + DOWNSCALE - 1) / DOWNSCALE;
+            int cy0 = (y0 + DOWNSCALE - 1) / DOWNSCALE;
+            int cw = (x0 + tileWidth) / DOWNSCALE - cx0;
+            int ch = (y0 + tileHeight) / DOWNSCALE - cy0;
+            int bestU = 0;
+            int bestV = 0;
+            if (cw > 0 && ch > 0) {
+                // No shift first: usually close, so the early exit cuts most other candidates short
+                long best = coarseSad(coarse[reference], coarse[f], cx0, cy0, cw, ch, 0, 0, Long.MAX_VALUE);
+                for (int v = -COARSE_RADIUS; v <= COARSE_RADIUS; v++) {
+                    if (cy0 + v < 0 || cy0 + ch + v > coarseHeight) continue;
+                    for (int u = -COARSE_RADIUS; u <= COARSE_RADIUS; u++) {
+                        if ((u == 0 && v == 0) || cx0 + u < 0 || cx0 + cw + u > coarseWidth) continue;
+                        long sad = coarseSad(coarse[reference], coarse[f], cx0, cy0, cw, ch, u, v, best);
+                        // Ties go to the smaller shift
+                        if (sad < best || (sad == best && Math.abs(u) + Math.abs(v) < Math.abs(bestU) + Math.abs(bestV))) {
+                            best = sad;
+                            bestU = u;
+                            bestV = v;
+                        }
+                    }
+                }
+            }
+            // Fine: full resolution around the coarse match, which is in bounds unless the tile is
+            // narrower than a downsampled cell
+            int bestX = bestU * DOWNSCALE;
+            int bestY = bestV * DOWNSCALE;
+            if (!lumaInBounds(x0, y0, tileWidth, tileHeight, bestX, bestY)) {
+                bestX = 0;
+                bestY = 0;
+            }
+            long best = lumaSad(frames[reference], frames[f], x0, y0, tileWidth, tileHeight, bestX, bestY, Long.MAX_VALUE);
+            int centreX = bestX;
+            int centreY = bestY;
+            for (int v = -FINE_RADIUS; v <= FINE_RADIUS; v++) {
+                int dy = centreY + v;
+                for (int u = -FINE_RADIUS; u <= FINE_RADIUS; u++) {
+                    int dx = centreX + u;
+                    if ((u == 0 && v == 0) || !lumaInBounds(x0, y0, tileWidth, tileHeight, dx, dy)) continue;
+                    long sad = lumaSad(frames[reference], frames[f], x0, y0, tileWidth, tileHeight, dx, dy, best);
+                    if (sad < best || (sad == best && Math.abs(dx) + Math.abs(dy) < Math.abs(bestX) + Math.abs(bestY))) {
+                        best = sad;
+                        bestX = dx;
+                        bestY = dy;
+                    }
+                }
+            }
+            offsetX[slot] = bestX;
+            offsetY[slot] = bestY;
+            difference[slot] = (int) (best * 16 / (tileWidth * tileHeight));
+        }
+    }
+
+    private boolean lumaInBounds(int x0, int y0, int w, int h, int dx, int dy) {
+        return x0 + dx >= 0 && y0 + dy >= 0 && x0 + w + dx <= width && y0 + h + dy <= height;
+    }
+
+    // Stops early once past limit; the result then only needs to be known to be worse
+    private long coarseSad(short[] a, short[] b, int x0, int y0, int w, int h, int u, int v, long limit) {
+        long sad = 0;
+        for (int y = 0; y < h; y++) {
+            int rowA = (y0 + y) * coarseWidth + x0;
+            int rowB = (y0 + y + v) * coarseWidth + x0 + u;
+            for (int x = 0; x < w; x++) sad += Math.abs(a[rowA + x] - b[rowB + x]);
+            if (sad > limit) return sad;
+        }
+        return sad;
+    }
+
+    private long lumaSad(byte[] a, byte[] b, int x0, int y0, int w, int h, int dx, int dy, long limit) {
+        long sad = 0;
+        for (int y = 0; y < h; y++) {
+            int rowA = (y0 + y) * width + x0;
+            int rowB = (y0 + y + dy) * width + x0 + dx;
+            for (int x = 0; x < w; x++) sad += Math.abs((a[rowA + x] & 0xFF) - (b[rowB + x] & 0xFF));
+            if (sad > limit) return sad;
+        }
+        return sad;
+    }
+
+    private void estimateNoise() {
+        int tiles = tilesX * tilesY;
+        for (int f = 0; f < count; f++) {
+            if (f == reference) continue;
+            System.arraycopy(difference, f * tiles, scratch, 0, tiles);
+            Arrays.sort(scratch, 0, tiles);
+            noise[f] = Math.max(MIN_NOISE_Q4, scratch[tiles / 2]);
+        }
+    }
+
+    private int weight(int f, int slot) {
+        if (f == reference) return FULL_WEIGHT;
+        int twice = difference[slot] * 2;
+        int accept = noise[f] * ACCEPT_X2;
+        int reject = noise[f] * REJECT_X2;
+        if (twice <= accept) return FULL_WEIGHT;
+        if (twice >= reject) return 0;
+        return (int) ((long) FULL_WEIGHT * (reject - twice) / (reject - accept));
+    }
+
+    private void mergeTile(int tile) {
+        int x0 = (tile % tilesX) * TILE;
+        int y0 = (tile / tilesX) * TILE;
+        int tileWidth = Math.min(TILE, width - x0);
+        int tileHeight = Math.min(TILE, height - y0);
+        int tiles = tilesX * tilesY;
+        int chromaOffset = width * height;
+        int chromaHeight = tileHeight / 2;
+        int[] sum = accumulator;
+        for (int y = 0; y < tileHeight; y++) Arrays.fill(sum, (y0 + y) * width + x0, (y0 + y) * width + x0 + tileWidth, 0);
+        for (int y = 0; y < chromaHeight; y++) {
+            int row = chromaOffset + (y0 / 2 + y) * width + x0;
+            Arrays.fill(sum, row, row + tileWidth, 0);
+        }
+        int totalWeight = 0;
+
+        for (int f = 0; f < count; f++) {
+            int slot = f * tiles + tile;
+            int w = weight(f, slot);
+            if (w == 0) continue;
+            totalWeight += w;
+            byte[] frame = frames[f];
+            int dx = offsetX[slot];
+            int dy = offsetY[slot];
+            for (int y = 0; y < tileHeight; y++) {
+                int out = (y0 + y) * width + x0;
+                int in = out + dy * width + dx;
+                for (int x = 0; x < tileWidth; x++) sum[out + x] += w * (frame[in + x] & 0xFF);
+            }
+            // Interleaved V/U at half resolution: tileWidth bytes per chroma row, shifted by whole pairs
+            int chromaShift = dy / 2 * width + dx / 2 * 2;
+            for (int y = 0; y < chromaHeight; y++) {
+                int out = chromaOffset + (y0 / 2 + y) * width + x0;
+                int in = out + chromaShift;
+                for (int x = 0; x < tileWidth; x++) sum[out + x] += w * (frame[in + x] & 0xFF);
+            }
+        }
+
+        int half = totalWeight / 2;
+        for (int y = 0; y < tileHeight; y++) {
+            int row = (y0 + y) * width + x0;
+            for (int x = 0; x < tileWidth; x++) output[row + x] = (byte) ((sum[row + x] + half) / totalWeight);
+        }
+        for (int y = 0; y < chromaHeight; y++) {
+            int row = chromaOffset + (y0 / 2 + y) * width + x0;
+            for (int x = 0; x < tileWidth; x++) output[row + x] = (byte) ((sum[row + x] + half) / totalWeight);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.simple2fps.camera;
+
+import java.util.Locale;
+
+// Named qualities accepted in the "quality" extra and shown next to the spinner sizes, plus
+// exact "WxH" and "W:H" aspect strings. Works on plain {width, height} pairs so it runs off-device.
+public final class QualityPresets {
+    private static final String[] NAMES = {"4k", "qhd", "fhd", "hd", "vga"};
+    private static final String[] LABELS = {"4K UHD", "QHD", "Full HD", "HD", "VGA"};
+    private static final int[][] SIZES = {{3840, 2160}, {2560, 1440}, {1920, 1080}, {1280, 720}, {640, 480}};
+
+    private QualityPresets() {}
+
+    // {width, height} of a preset name (any case), or null
+    public static int[] preset(String name) {
+        if (name == null) return null;
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equalsIgnoreCase(name)) return SIZES[i].clone();
+        }
+        return null;
+    }
+
+    // "1920x1080" -> {1920, 1080}; null if quality isn't of that form
+    public static int[] parse(String quality) {
+        if (quality == null) return null;
+        int x = quality.toLowerCase(Locale.US).indexOf('x');
+        if (x <= 0 || x == quality.length() - 1) return null;
+        try {
+            int width = Integer.parseInt(quality.substring(0, x).trim());
+            int height = Integer.parseInt(quality.substring(x + 1).trim());
+            return width > 0 && height > 0 ? new int[]{width, height} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // "16:9" -> {16, 9}; null if quality isn't of that form
+    public static int[] parseAspect(String quality) {
+        if (quality == null) return null;
+        int colon = quality.indexOf(':');
+        if (colon <= 0 || colon == quality.length() - 1) return null;
+        try {
+            int width = Integer.parseInt(quality.substring(0, colon).trim());
+            int height = Integer.parseInt(quality.substring(colon + 1).trim());
+            return width > 0 && height > 0 ? new int[]{width, height} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Display name of a preset size ("Full HD"), or null
+    public static String label(int width, int height) {
+        for (int i = 0; i < SIZES.length; i++) {
+            if (SIZES[i][0] == width && SIZES[i][1] == height) return LABELS[i];
+        }
+        return null;
+    }
+
+    // Index of quality in sizes: exact "WxH" first, then a preset name; -1 if nothing matches
+    public static int indexOf(int[][] sizes, String quality) {
+        if (quality == null || quality.isEmpty() || sizes == null) return -1;
+        int[] wanted = parse(quality);
+        if (wanted == null) wanted = preset(quality);
+        if (wanted == null) return -1;
+        for (int i = 0; i < sizes.length; i++) {
+            if (sizes[i][0] == wanted[0] && sizes[i][1] == wanted[1]) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,136 @@
+package com.simple2fps.camera;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// How each camera of a recording did: it reached RECORDING, or failed to open, was closed or
+// refused on the way. The recording's result waits until every camera has settled and counts
+// only the ones recording; it succeeds as long as the first camera (the primary) records, with
+// the others that didn't reported alongside, and fails as soon as the primary doesn't. A camera
+// lost after that is a change of its own. Main thread only.
+public class RecordingOutcome {
+
+    public interface Listener {
+        // Once with the recording's result when every camera has settled, then again (changed)
+        // for every camera lost while recording
+        void onOutcome(boolean success, String message, boolean changed);
+    }
+
+    private final List<String> cameraIds;
+    private final Listener listener;
+    // Asked to record, not RECORDING yet
+    private final Set<String> starting = new HashSet<>();
+    private final List<String> recording = new ArrayList<>();
+    // Camera id to what happened to it, in the order it happened
+    private final Map<String, String> failures = new LinkedHashMap<>();
+    private boolean reported = false;
+    private boolean closed = false;
+
+    // cameraIds: the primary first, at least the primary
+    public RecordingOutcome(List<String> cameraIds, Listener listener) {
+        this.cameraIds = new ArrayList<>(cameraIds);
+        this.listener = listener;
+    }
+
+    // The camera accepted startRecording(): back to IDLE from here means the session failed
+    public void starting(String cameraId) {
+        if (isPending(cameraId)) starting.add(cameraId);
+    }
+
+    // A camera's state machine moved; posted to the main thread by the host
+    public void onStateChanged(String cameraId, CameraStateMachine.State from, CameraStateMachine.State to) {
+        if (to == CameraStateMachine.State.RECORDING) {
+            recording(cameraId);
+        } else if (to == CameraStateMachine.State.CLOSED) {
+            failed(cameraId, from == CameraStateMachine.State.OPENING ? "failed to open" : "closed");
+        } else if (to == CameraStateMachine.State.IDLE && starting.contains(cameraId)) {
+            failed(cameraId, "failed to start recording");
+        }
+    }
+
+    public void recording(String cameraId) {
+        if (!isPending(cameraId)) return;
+        starting.remove(cameraId);
+        recording.add(cameraId);
+        reportIfSettled();
+    }
+
+    // reason: "failed to open", "closed", "refused to record"...
+    public void failed(String cameraId, String reason) {
+        if (!cameraIds.contains(cameraId) || failures.containsKey(cameraId)) return;
+        starting.remove(cameraId);
+        boolean wasRecording = recording.remove(cameraId);
+        failures.put(cameraId, reason);
+        if (!reported && cameraId.equals(cameraIds.get(0))) {
+            // Nothing to wait for: the other cameras don't make a recording on their own
+            report();
+        } else if (!reported) {
+            reportIfSettled();
+        } else if (wasRecording && !closed) {
+            listener.onOutcome(isSuccess(), message(), true);
+        }
+    }
+
+    // Gives up on the cameras still on their way: the recording was stopped, or took too long
+    public void settle(String reason) {
+        for (String cameraId : cameraIds) {
+            if (isPending(cameraId)) failures.put(cameraId, reason);
+        }
+        starting.clear();
+        reportIfSettled();
+    }
+
+    // The recording is over (stopped on purpose): its cameras going away is no news, nor are
+    // state changes still posted
+    public void close() {
+        closed = true;
+    }
+
+    public int recordingCount() {
+        return recording.size();
+    }
+
+    public boolean isSettled() {
+        return recording.size() + failures.size() == cameraIds.size();
+    }
+
+    // "3 cameras", or "2 of 3 cameras recording; camera 2 failed to open", or the primary's
+    // failure; null for a single camera that records
+    public String message() {
+        String primary = cameraIds.get(0);
+        if (failures.containsKey(primary)) return "camera " + primary + " " + failures.get(primary);
+        if (failures.isEmpty()) return cameraIds.size() > 1 ? recording.size() + " cameras" : null;
+        StringBuilder message = new StringBuilder();
+        if (cameraIds.size() > 1) {
+            message.append(recording.size()).append(" of ").append(cameraIds.size()).append(" cameras recording; ");
+        }
+        String separator = "";
+        for (Map.Entry<String, String> failure : failures.entrySet()) {
+            message.append(separator).append("camera ").append(failure.getKey()).append(' ').append(failure.getValue());
+            separator = ", ";
+        }
+        return message.toString();
+    }
+
+    private boolean isSuccess() {
+        return recording.contains(cameraIds.get(0));
+    }
+
+    private boolean isPending(String cameraId) {
+        return cameraIds.contains(cameraId) && !recording.contains(cameraId) && !failures.containsKey(cameraId);
+    }
+
+    private void reportIfSettled() {
+        if (isSettled()) report();
+    }
+
+    private void report() {
+        if (reported || closed) return;
+        reported = true;
+        listener.onOutcome(isSuccess(), message(), false);
+    }
+}
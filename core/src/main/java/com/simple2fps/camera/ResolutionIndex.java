@@ -0,0 +1,189 @@
+package com.simple2fps.camera;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// One camera stream's legal sizes (MediaRecorder or JPEG), built once per camera so a "quality"
+// extra resolves with a map lookup instead of a scan per intent. Accepts preset names
+// (vga/hd/fhd/qhd/4k), exact "WxH" and "W:H" aspect ratios (largest size of that shape).
+// Anything legal-looking that the camera doesn't have resolves to the nearest size it does have.
+public class ResolutionIndex {
+    // Sizes within this of the requested aspect ratio count as the same shape (1440x1080 is
+    // 4:3, 1920x1088 is 16:9)
+    private static final double ASPECT_TOLERANCE = 0.02;
+
+    public static class Match {
+        // Position in the index, largest size first
+        public final int index;
+        public final int width;
+        public final int height;
+        // 0 when the HAL reported no min frame duration (JPEG sizes)
+        public final int maxFps;
+        // False when the request named a size or shape the camera doesn't have
+        public final boolean exact;
+
+        Match(int index, int width, int height, int maxFps, boolean exact) {
+            this.index = index;
+            this.width = width;
+            this.height = height;
+            this.maxFps = maxFps;
+            this.exact = exact;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + (maxFps > 0 ? " (max " + maxFps + " fps)" : "") + (exact ? "" : " [nearest]");
+        }
+    }
+
+    private final int[][] sizes;
+    private final int[] maxFps;
+    // "1920x1080", "fhd", "16:9" -> index; aspect keys are reduced and map to the largest size
+    private final Map<String, Integer> byKey = new HashMap<>();
+
+    // packedSizes: {w0, h0, w1, h1, ...}. minFrameDurationsNs: one per size, or null
+    public ResolutionIndex(int[] packedSizes, long[] minFrameDurationsNs) {
+        int count = packedSizes.length / 2;
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) order[i] = i;
+        // Largest first, like the spinner; stable, so equal areas keep the HAL's order
+        Arrays.sort(order, (a, b) -> Long.compare(area(packedSizes, b), area(packedSizes, a)));
+
+        sizes = new int[count][];
+        maxFps = new int[count];
+        for (int i = 0; i < count; i++) {
+            int source = order[i];
+            int width = packedSizes[source * 2];
+            int height = packedSizes[source * 2 + 1];
+            sizes[i] = new int[]{width, height};
+            long duration = minFrameDurationsNs != null && source < minFrameDurationsNs.length ? minFrameDurationsNs[source] : 0;
+            // Rounded so 29.97 fps (33366700 ns) still counts as 30, as in FpsRangeResolver
+            maxFps[i] = duration > 0 ? (int) Math.round(1e9 / duration) : 0;
+
+            byKey.putIfAbsent(width + "x" + height, i);
+            byKey.putIfAbsent(aspectKey(width, height), i);
+        }
+        for (String name : new String[]{"vga", "hd", "fhd", "qhd", "4k"}) {
+            int[] preset = QualityPresets.preset(name);
+            Integer index = byKey.get(preset[0] + "x" + preset[1]);
+            if (index != null) byKey.put(name, index);
+        }
+    }
+
+    public int size() {
+        return sizes.length;
+    }
+
+    public int width(int index) {
+        return sizes[index][0];
+    }
+
+    public int height(int index) {
+        return sizes[index][1];
+    }
+
+    public int maxFps(int index) {
+        return maxFps[index];
+    }
+
+    // "1920 x 1080 (Full HD)", as listed in the spinner
+    public String label(int index) {
+        String label = sizes[index][0] + " x " + sizes[index][1];
+        String preset = QualityPresets.label(sizes[index][0], sizes[index][1]);
+        return preset != null ? label + " (" + preset + ")" : label;
+    }
+
+    // Exact size only; -1 if the camera doesn't have it
+    public int indexOf(int width, int height) {
+        Integer index = byKey.get(width + "x" + height);
+        return index != null ? index : -1;
+    }
+
+    // The size the "quality" extra asks for, or the nearest legal one; null if quality is empty,
+    // unparseable or the index is empty (callers keep their default)
+    public Match find(String quality) {
+        if (quality == null || quality.isEmpty() || sizes.length == 0) return null;
+        String key = quality.trim().toLowerCase(Locale.US);
+        Integer hit = byKey.get(key);
+        if (hit != null) return match(hit, true);
+
+        int[] aspect = QualityPresets.parseAspect(key);
+        if (aspect != null) {
+            hit = byKey.get(aspectKey(aspect[0], aspect[1]));
+            if (hit != null) return match(hit, true);
+            int index = largestNearAspect(aspect[0], aspect[1]);
+            return match(index, sameAspect(sizes[index][0], sizes[index][1], (double) aspect[0] / aspect[1]));
+        }
+        int[] wanted = QualityPresets.parse(key);
+        if (wanted == null) wanted = QualityPresets.preset(key);
+        if (wanted == null) return null;
+        return nearest(wanted[0], wanted[1]);
+    }
+
+    // Exact size if present, else the closest in pixel count among sizes of the same shape,
+    // else the closest in pixel count overall; ties go to the larger size
+    public Match nearest(int width, int height) {
+        if (sizes.length == 0) return null;
+        int exact = indexOf(width, height);
+        if (exact >= 0) return match(exact, true);
+        double wantedAspect = (double) width / height;
+        double wantedArea = (double) width * height;
+        int best = -1;
+        boolean bestSameShape = false;
+        double bestDistance = Double.MAX_VALUE;
+        for (int i = 0; i < sizes.length; i++) {
+            boolean sameShape = sameAspect(sizes[i][0], sizes[i][1], wantedAspect);
+            double distance = Math.abs(Math.log((double) sizes[i][0] * sizes[i][1] / wantedArea));
+            if (best < 0 || (sameShape && !bestSameShape) || (sameShape == bestSameShape && distance < bestDistance)) {
+                best = i;
+                bestSameShape = sameShape;
+                bestDistance = distance;
+            }
+        }
+        return match(best, false);
+    }
+
+    private int largestNearAspect(int aspectWidth, int aspectHeight) {
+        double wanted = (double) aspectWidth / aspectHeight;
+        int best = 0;
+        double bestError = Double.MAX_VALUE;
+        // Sizes are largest first, so a strict < keeps the largest of equally close shapes
+        for (int i = 0; i < sizes.length; i++) {
+            if (sameAspect(sizes[i][0], sizes[i][1], wanted)) return i;
+            double error = Math.abs((double) sizes[i][0] / sizes[i][1] / wanted - 1);
+            if (error < bestError) {
+                best = i;
+                bestError = error;
+            }
+        }
+        return best;
+    }
+
+    private Match match(int index, boolean exact) {
+        return new Match(index, sizes[index][0], sizes[index][1], maxFps[index], exact);
+    }
+
+    private static boolean sameAspect(int width, int height, double aspect) {
+        return Math.abs((double) width / height / aspect - 1) < ASPECT_TOLERANCE;
+    }
+
+    private static String aspectKey(int width, int height) {
+        int divisor = gcd(width, height);
+        return width / divisor + ":" + height / divisor;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    private static long area(int[] packed, int index) {
+        return (long) packed[index * 2] * packed[index * 2 + 1];
+    }
+}
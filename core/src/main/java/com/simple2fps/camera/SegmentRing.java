@@ -0,0 +1,142 @@
+package com.simple2fps.camera;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+// Rolling set of loop-recording segments: names the next file and, each time a new segment goes
+// live, deletes the oldest finished ones so the set stays within N files and/or a byte quota.
+// Deletes run on the given executor, never on the encoder's thread.
+public class SegmentRing {
+
+    public static class Policy {
+        // Roll over after this much recorded time and/or this many bytes (0 = no limit)
+        public final long segmentDurationMs;
+        public final long segmentBytes;
+        // Keep at most this many segments and/or this many bytes on disk (0 = no limit)
+        public final int keepSegments;
+        public final long quotaBytes;
+
+        public Policy(long segmentDurationMs, long segmentBytes, int keepSegments, long quotaBytes) {
+            this.segmentDurationMs = Math.max(0, segmentDurationMs);
+            this.segmentBytes = Math.max(0, segmentBytes);
+            this.keepSegments = Math.max(0, keepSegments);
+            this.quotaBytes = Math.max(0, quotaBytes);
+        }
+
+        public boolean isEnabled() {
+            return segmentDurationMs > 0 || segmentBytes > 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "segment %d ms / %d B, keep %d / %d B",
+                    segmentDurationMs, segmentBytes, keepSegments, quotaBytes);
+        }
+    }
+
+    private final File directory;
+    private final String prefix;
+    private final String extension;
+    private final Policy policy;
+    private final Executor deleter;
+    // Oldest first; the last entry is the segment being written
+    private final ArrayDeque<File> segments = new ArrayDeque<>();
+    private long nextSequence = 1;
+    private long segmentBytesHint;
+
+    // Files are directory/prefix_NNNNNN.extension
+    public SegmentRing(File directory, String prefix, String extension, Policy policy, Executor deleter) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.extension = extension;
+        this.policy = policy;
+        this.deleter = deleter;
+        this.segmentBytesHint = policy.segmentBytes;
+    }
+
+    // Expected size of a full segment; reserved for the active one when checking the quota
+    public synchronized void setSegmentBytesHint(long bytes) {
+        segmentBytesHint = Math.max(0, bytes);
+    }
+
+    // Adopts segments left by an earlier run with the same prefix, so a restart keeps counting
+    // them against the limits and continues the numbering instead of overwriting
+    public synchronized void scanExisting() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        List<File> found = new ArrayList<>();
+        for (File file : files) {
+            if (sequenceOf(file.getName()) > 0) found.add(file);
+        }
+        File[] sorted = found.toArray(new File[0]);
+        Arrays.sort(sorted, (a, b) -> Long.compare(sequenceOf(a.getName()), sequenceOf(b.getName())));
+        for (File file : sorted) {
+            segments.add(file);
+            nextSequence = Math.max(nextSequence, sequenceOf(file.getName()) + 1);
+        }
+    }
+
+    public synchronized File nextFile() {
+        directory.mkdirs();
+        return new File(directory, String.format(Locale.US, "%s_%06d%s", prefix, nextSequence++, extension));
+    }
+
+    // Call once file is actually being written (after the encoder switched to it)
+    public void onSegmentStarted(File file) {
+        List<File> victims;
+        synchronized (this) {
+            segments.add(file);
+            victims = trim();
+        }
+        if (victims.isEmpty()) return;
+        deleter.execute(() -> {
+            for (File victim : victims) {
+                if (!victim.delete() && victim.exists()) {
+                    // Leave it to the next pass rather than failing the recording
+                    synchronized (this) {
+                        segments.addFirst(victim);
+                    }
+                }
+            }
+        });
+    }
+
+    public synchronized List<File> getSegments() {
+        return new ArrayList<>(segments);
+    }
+
+    // Oldest finished segments that push the set over its limits; the active one is never chosen
+    private List<File> trim() {
+        List<File> victims = new ArrayList<>();
+        long total = segmentBytesHint;
+        for (File file : segments) total += file.length();
+        while (segments.size() > 1) {
+            boolean overCount = policy.keepSegments > 0 && segments.size() > policy.keepSegments;
+            boolean overQuota = policy.quotaBytes > 0 && total > policy.quotaBytes;
+            if (!overCount && !overQuota) break;
+            File oldest = segments.pollFirst();
+            total -= oldest.length();
+            victims.add(oldest);
+        }
+        return victims;
+    }
+
+    private long sequenceOf(String name) {
+        if (!name.startsWith(prefix + "_") || !name.endsWith(extension)) return -1;
+        String digits = name.substring(prefix.length() + 1, name.length() - extension.length());
+        if (digits.isEmpty()) return -1;
+        for (int i = 0; i < digits.length(); i++) {
+            if (!Character.isDigit(digits.charAt(i))) return -1;
+        }
+        try {
+            return Long.parseLong(digits);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.simple2fps.camera;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Phase durations of one automation command, from dispatch to result. Phases may overlap (the
+// recorder prepares while the camera opens) and repeat (one jpeg_write per burst frame): a
+// repeated phase is reported once with its count, total and worst case. Each instance carries
+// the caller's async trace cookie, so overlapping instances stay apart in traces too.
+//
+// Not thread-safe; TimelineRecorder serializes access. Plain Java, so the formatting can be
+// checked off-device.
+public class Timeline {
+    private static class Open {
+        final int cookie;
+        final long startNs;
+
+        Open(int cookie, long startNs) {
+            this.cookie = cookie;
+            this.startNs = startNs;
+        }
+    }
+
+    private static class Closed {
+        long firstStartNs;
+        long totalNs;
+        long maxNs;
+        int count;
+    }
+
+    public final String id;
+    public final String command;
+    private final long startNs;
+    // Open instances per phase, oldest first: ends match begins in order
+    private final Map<String, ArrayDeque<Open>> open = new HashMap<>();
+    private final Map<String, Closed> closed = new LinkedHashMap<>();
+
+    public Timeline(String id, String command, long startNs) {
+        this.id = id;
+        this.command = command;
+        this.startNs = startNs;
+    }
+
+    public void begin(String phase, int cookie, long nowNs) {
+        ArrayDeque<Open> instances = open.get(phase);
+        if (instances == null) {
+            instances = new ArrayDeque<>();
+            open.put(phase, instances);
+        }
+        instances.add(new Open(cookie, nowNs));
+    }
+
+    // Closes the oldest open instance of phase; returns its cookie, or -1 if none was open
+    public int end(String phase, long nowNs) {
+        ArrayDeque<Open> instances = open.get(phase);
+        Open instance = instances != null ? instances.poll() : null;
+        if (instance == null) return -1;
+        if (instances.isEmpty()) open.remove(phase);
+        Closed stats = closed.get(phase);
+        if (stats == null) {
+            stats = new Closed();
+            stats.firstStartNs = instance.startNs;
+            closed.put(phase, stats);
+        }
+        long duration = Math.max(0, nowNs - instance.startNs);
+        stats.totalNs += duration;
+        stats.maxNs = Math.max(stats.maxNs, duration);
+        stats.count++;
+        return instance.cookie;
+    }
+
+    // Phases never ended (the command failed or timed out inside them) with their cookies, so
+    // the caller can close the trace sections; they are listed as unfinished in the record
+    public List<Map.Entry<String, Integer>> openInstances() {
+        List<Map.Entry<String, Integer>> result = new ArrayList<>();
+        for (Map.Entry<String, ArrayDeque<Open>> entry : open.entrySet()) {
+            for (Open instance : entry.getValue()) {
+                result.add(new AbstractMap.SimpleEntry<>(entry.getKey(), instance.cookie));
+            }
+        }
+        return result;
+    }
+
+    // One JSON object per command: {"time":..,"id":..,"command":..,"success":..,"message":..,
+    // "queued_ms":..,"total_ms":..,"phases":[{"name":..,"start_ms":..,"ms":..,"count":..,"max_ms":..}],
+    // "unfinished":[..]}. start_ms is the first instance's offset from dispatch.
+    public String toJson(long nowNs, long wallTimeMs, long queuedMs, boolean success, String message) {
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"time\":").append(wallTimeMs)
+                .append(",\"id\":").append(quote(id))
+                .append(",\"command\":").append(quote(command))
+                .append(",\"success\":").append(success)
+                .append(",\"message\":").append(message != null ? quote(message) : "null")
+                .append(",\"queued_ms\":").append(queuedMs)
+                .append(",\"total_ms\":").append(String.format(Locale.US, "%.1f", (nowNs - startNs) / 1e6))
+                .append(",\"phases\":[");
+        boolean first = true;
+        for (Map.Entry<String, Closed> entry : closed.entrySet()) {
+            Closed stats = entry.getValue();
+            if (!first) json.append(',');
+            first = false;
+            json.append(String.format(Locale.US, "{\"name\":%s,\"start_ms\":%.1f,\"ms\":%.1f,\"count\":%d,\"max_ms\":%.1f}",
+                    quote(entry.getKey()), (stats.firstStartNs - startNs) / 1e6, stats.totalNs / 1e6,
+                    stats.count, stats.maxNs / 1e6));
+        }
+        json.append("],\"unfinished\":[");
+        first = true;
+        for (String phase : open.keySet()) {
+            if (!first) json.append(',');
+            first = false;
+            json.append(quote(phase));
+        }
+        return json.append("]}").toString();
+    }
+
+    static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') quoted.append('\\').append(c);
+            else if (c == '\n') quoted.append("\\n");
+            else if (c < 0x20) quoted.append(String.format(Locale.US, "\\u%04x", (int) c));
+            else quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,38 @@
+package com.simple2fps.camera;
+
+import java.nio.ByteBuffer;
+
+// YUV_420_888 planes, whatever their row and pixel strides, packed as NV21 (Y, then interleaved
+// V/U) for YuvImage.compressToJpeg. Works on plain ByteBuffers so it runs off-device.
+public final class Yuv420 {
+
+    private Yuv420() {}
+
+    public static int nv21Size(int width, int height) {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    // out is reused when it is big enough; returns the array written
+    public static byte[] toNv21(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v, int uvRowStride,
+                                int uvPixelStride, int width, int height, byte[] out) {
+        if (out == null || out.length < nv21Size(width, height)) out = new byte[nv21Size(width, height)];
+        ByteBuffer luma = y.duplicate();
+        int offset = 0;
+        for (int row = 0; row < height; row++) {
+            luma.position(row * yRowStride);
+            luma.get(out, offset, width);
+            offset += width;
+        }
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        for (int row = 0; row < chromaHeight; row++) {
+            int base = row * uvRowStride;
+            for (int col = 0; col < chromaWidth; col++) {
+                int index = base + col * uvPixelStride;
+                out[offset++] = v.get(index);
+                out[offset++] = u.get(index);
+            }
+        }
+        return out;
+    }
+}
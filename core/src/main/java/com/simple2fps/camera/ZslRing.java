@@ -0,0 +1,136 @@
+package com.simple2fps.camera;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Zero-shutter-lag history: the last few full-resolution frames of the repeating request, each
+// paired with its capture result by sensor timestamp (images and results arrive separately, in
+// either order). A trigger takes the complete frame closest to its own time and owns it from
+// then on; frames that age out go back through the releaser, so the reader slots they hold come
+// free. Not thread-safe: feed it and take from it on the camera handler.
+public class ZslRing<F, R> {
+
+    public interface Releaser<F> {
+        void release(F frame);
+    }
+
+    public static class Entry<F, R> {
+        public final long timestampNs;
+        public final F frame;
+        public final R result;
+
+        Entry(long timestampNs, F frame, R result) {
+            this.timestampNs = timestampNs;
+            this.frame = frame;
+            this.result = result;
+        }
+    }
+
+    private static class Slot<F, R> {
+        final long timestampNs;
+        F frame;
+        R result;
+
+        Slot(long timestampNs) {
+            this.timestampNs = timestampNs;
+        }
+    }
+
+    private final int capacity;
+    private final Releaser<F> releaser;
+    // Frames oldest first, result null until it arrives
+    private final List<Slot<F, R>> frames = new ArrayList<>();
+    // Results whose frame hasn't arrived yet, oldest first
+    private final List<Slot<F, R>> results = new ArrayList<>();
+
+    // capacity: frames kept, matched or not; the reader needs capacity plus the taken ones
+    public ZslRing(int capacity, Releaser<F> releaser) {
+        this.capacity = Math.max(1, capacity);
+        this.releaser = releaser;
+    }
+
+    public void addFrame(long timestampNs, F frame) {
+        Slot<F, R> slot = new Slot<>(timestampNs);
+        slot.frame = frame;
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i).timestampNs == timestampNs) {
+                slot.result = results.remove(i).result;
+                break;
+            }
+        }
+        frames.add(slot);
+        while (frames.size() > capacity) releaser.release(frames.remove(0).frame);
+    }
+
+    public void addResult(long timestampNs, R result) {
+        for (Slot<F, R> slot : frames) {
+            if (slot.timestampNs == timestampNs) {
+                slot.result = result;
+                return;
+            }
+        }
+        // Older than every frame kept: its frame has already aged out (or never came)
+        if (!frames.isEmpty() && timestampNs < frames.get(0).timestampNs) return;
+        Slot<F, R> slot = new Slot<>(timestampNs);
+        slot.result = result;
+        results.add(slot);
+        while (results.size() > capacity) results.remove(0);
+    }
+
+    // True once no frame still to come (or still waiting for its result) can be closer to
+    // triggerNs than the frames either side of it: the nearer of those is complete, or the one
+    // before is complete and the next frame is known to land further away
+    public boolean canTake(long triggerNs) {
+        int after = 0;
+        while (after < frames.size() && frames.get(after).timestampNs < triggerNs) after++;
+        Slot<F, R> before = after > 0 ? frames.get(after - 1) : null;
+        long nextNs;
+        if (after < frames.size()) {
+            nextNs = frames.get(after).timestampNs;
+            boolean beforeCloser = before != null && triggerNs - before.timestampNs <= nextNs - triggerNs;
+            if (!beforeCloser) return frames.get(after).result != null;
+        } else {
+            // Where the next frame will land, from the last frame interval; unknown with one frame
+            int last = frames.size() - 1;
+            if (last < 1) return false;
+            nextNs = 2 * frames.get(last).timestampNs - frames.get(last - 1).timestampNs;
+            if (triggerNs - before.timestampNs > nextNs - triggerNs) return false;
+        }
+        return before.result != null;
+    }
+
+    // Removes and returns the complete frame closest to triggerNs (the earlier one on a tie),
+    // or null if no frame is complete
+    public Entry<F, R> take(long triggerNs) {
+        int best = -1;
+        long bestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < frames.size(); i++) {
+            Slot<F, R> slot = frames.get(i);
+            if (slot.result == null) continue;
+            long distance = Math.abs(slot.timestampNs - triggerNs);
+            if (distance < bestDistance) {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+        if (best < 0) return null;
+        Slot<F, R> slot = frames.remove(best);
+        return new Entry<>(slot.timestampNs, slot.frame, slot.result);
+    }
+
+    // Timestamp of the newest frame in the ring, or -1 when empty
+    public long newestTimestamp() {
+        return frames.isEmpty() ? -1 : frames.get(frames.size() - 1).timestampNs;
+    }
+
+    public int size() {
+        return frames.size();
+    }
+
+    // Releases every frame still in the ring
+    public void clear() {
+        for (Slot<F, R> slot : frames) releaser.release(slot.frame);
+        frames.clear();
+        results.clear();
+    }
+}
@@ -0,0 +1,103 @@
+package com.simple2fps.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BitrateControllerTest {
+    private static final int FLOOR = 1_000_000;
+    private static final int CEILING = 4_000_000;
+    private static final long WINDOW_US = 1_000_000;
+    private static final long HOLD_US = 5_000_000;
+    private static final int FPS = 10;
+    private static final int KEY_FRAME_BYTES = 50_000;
+
+    private final BitrateController controller = new BitrateController(FLOOR, CEILING, WINDOW_US, HOLD_US);
+    private long ptsUs;
+    private long lastChangeUs = -1;
+    private int changes;
+
+    // One second of 10 fps video, a keyframe at its start; returns the last target handed back
+    private int feedSecond(int deltaBytes) {
+        int applied = 0;
+        for (int i = 0; i < FPS; i++) {
+            boolean key = i == 0;
+            int target = controller.onFrame(key ? KEY_FRAME_BYTES : deltaBytes, ptsUs, key);
+            if (target != 0) {
+                applied = target;
+                lastChangeUs = ptsUs;
+                changes++;
+            }
+            ptsUs += 1_000_000 / FPS;
+        }
+        return applied;
+    }
+
+    @Test
+    public void startsAtTheCeiling() {
+        assertEquals(CEILING, controller.getTargetBps());
+        assertEquals(1.0, controller.getActivity(), 0);
+    }
+
+    @Test
+    public void activityDecaysByHalfPerWindowOnAStaticScene() {
+        feedSecond(100);
+        double expected = 1;
+        for (int window = 0; window < 5; window++) {
+            feedSecond(100);
+            expected /= 2;
+            assertEquals(expected, controller.getActivity(), 1e-9);
+        }
+    }
+
+    @Test
+    public void dropsAreHeldBackForTheHoldTime() {
+        long previousChangeUs = -1;
+        int previousTarget = controller.getTargetBps();
+        for (int second = 0; second < 30; second++) {
+            int target = feedSecond(100);
+            if (target == 0) continue;
+            assertTrue("target rose on a static scene", target < previousTarget);
+            if (previousChangeUs >= 0) {
+                assertTrue("dropped again " + (lastChangeUs - previousChangeUs) + " us after the last change",
+                        lastChangeUs - previousChangeUs >= HOLD_US);
+            }
+            previousChangeUs = lastChangeUs;
+            previousTarget = target;
+        }
+        assertTrue(changes >= 2);
+        // Settles just above the floor: the last drop comes once the rest is under MIN_CHANGE
+        assertTrue(controller.getTargetBps() < FLOOR * 1.2);
+        assertTrue(controller.getTargetBps() >= FLOOR);
+    }
+
+    @Test
+    public void risesAtOnceWhenTheSceneGetsBusy() {
+        for (int second = 0; second < 30; second++) feedSecond(100);
+        int low = controller.getTargetBps();
+        assertTrue(low < CEILING / 2);
+
+        // Deltas as big as keyframes: full activity, applied on the very next window despite the hold
+        long busySinceUs = ptsUs;
+        int target = feedSecond(KEY_FRAME_BYTES);
+        if (target == 0) target = feedSecond(KEY_FRAME_BYTES);
+        assertEquals(CEILING, target);
+        assertTrue(lastChangeUs - busySinceUs <= 2 * WINDOW_US);
+        assertEquals(1.0, controller.getActivity(), 0);
+    }
+
+    @Test
+    public void passingMotionDoesNotDropTheTargetStraightBack() {
+        for (int second = 0; second < 30; second++) feedSecond(100);
+        feedSecond(KEY_FRAME_BYTES);
+        feedSecond(KEY_FRAME_BYTES);
+        assertEquals(CEILING, controller.getTargetBps());
+        int changesBefore = changes;
+        // Static again: the target stays up for the hold time
+        long staticSinceUs = ptsUs;
+        while (ptsUs - staticSinceUs < HOLD_US - WINDOW_US) feedSecond(100);
+        assertEquals(changesBefore, changes);
+        assertEquals(CEILING, controller.getTargetBps());
+    }
+}
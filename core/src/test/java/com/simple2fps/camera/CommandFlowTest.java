@@ -0,0 +1,296 @@
+package com.simple2fps.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CommandFlowTest {
+    private static final long LINGER_MS = 15000;
+
+    // Main thread run by hand: posts wait for drain(), delayed actions for advance()
+    private static class ManualMain implements CommandFlow.MainThread {
+        final ArrayDeque<Runnable> posted = new ArrayDeque<>();
+        final List<Long> dueAt = new ArrayList<>();
+        final List<Runnable> delayed = new ArrayList<>();
+        long nowMs;
+
+        @Override
+        public void execute(Runnable action) {
+            posted.add(action);
+        }
+
+        @Override
+        public void postDelayed(Runnable action, long delayMs) {
+            dueAt.add(nowMs + delayMs);
+            delayed.add(action);
+        }
+
+        @Override
+        public void cancel(Runnable action) {
+            for (int i = delayed.size() - 1; i >= 0; i--) {
+                if (delayed.get(i) == action) {
+                    delayed.remove(i);
+                    dueAt.remove(i);
+                }
+            }
+        }
+
+        void drain() {
+            while (!posted.isEmpty()) posted.poll().run();
+        }
+
+        void advance(long ms) {
+            nowMs += ms;
+            boolean fired = true;
+            while (fired) {
+                fired = false;
+                for (int i = 0; i < delayed.size(); i++) {
+                    if (dueAt.get(i) <= nowMs) {
+                        Runnable action = delayed.remove(i);
+                        dueAt.remove(i);
+                        action.run();
+                        drain();
+                        fired = true;
+                        break;
+                    }
+                }
+            }
+            drain();
+        }
+    }
+
+    // Records what the flow asks of it; the test decides when the camera is ready and when
+    // stills are done
+    private class ScriptedCamera implements CommandFlow.Camera {
+        CameraStateMachine states;
+        boolean snapshots = true;
+        int opens;
+        final List<String> calls = new ArrayList<>();
+        CommandFlow.Result capturing;
+        int idles;
+
+        @Override
+        public CameraStateMachine getStateMachine() {
+            return states;
+        }
+
+        @Override
+        public boolean open(CommandQueue.Command command) {
+            opens++;
+            states = new CameraStateMachine(main);
+            states.moveTo(CameraStateMachine.State.OPENING);
+            return true;
+        }
+
+        void ready() {
+            states.moveTo(CameraStateMachine.State.IDLE);
+            main.drain();
+        }
+
+        @Override
+        public void prepareRecording(CommandQueue.Command command, boolean opening) {
+            calls.add("prepare" + (opening ? " opening" : ""));
+        }
+
+        @Override
+        public void startRecording(CommandQueue.Command command, CommandFlow.Result result) {
+            calls.add("start " + command.payload);
+            states.moveTo(CameraStateMachine.State.RECORDING);
+            result.done(true, null);
+        }
+
+        @Override
+        public void stopRecording(boolean resuming) {
+            calls.add("stop" + (resuming ? " resuming" : ""));
+            if (states.isIn(CameraStateMachine.State.RECORDING)) states.moveTo(CameraStateMachine.State.IDLE);
+        }
+
+        @Override
+        public boolean canSnapshot(CommandQueue.Command command) {
+            return snapshots;
+        }
+
+        @Override
+        public void snapshot(CommandQueue.Command command, CommandFlow.Result result) {
+            calls.add("snapshot");
+            result.done(true, "snapshot");
+        }
+
+        @Override
+        public void capture(CommandQueue.Command command, CommandFlow.Result result) {
+            calls.add("capture in " + states.getState());
+            capturing = result;
+        }
+
+        void captured() {
+            CommandFlow.Result result = capturing;
+            capturing = null;
+            result.done(true, "saved");
+            main.drain();
+        }
+
+        @Override
+        public boolean run(CommandQueue.Command command, CommandFlow.Result result) {
+            return false;
+        }
+
+        @Override
+        public String skip(CommandQueue.Command command) {
+            return null;
+        }
+
+        @Override
+        public int durationSeconds(CommandQueue.Command command) {
+            return 30;
+        }
+
+        @Override
+        public CommandQueue.Command resume(CommandQueue.Command recording, long remainingMs, int part) {
+            return new CommandQueue.Command("resume" + part, CommandFlow.VIDEO, null, CommandQueue.PRIORITY_HIGH, "part" + part);
+        }
+
+        @Override
+        public void dispatched(CommandQueue.Command command) {
+        }
+
+        @Override
+        public void phase(String name, boolean begin) {
+        }
+
+        @Override
+        public void idle() {
+            idles++;
+            states = null;
+        }
+    }
+
+    private ManualMain main;
+    private ScriptedCamera camera;
+    private CommandFlow flow;
+    private final List<String> results = new ArrayList<>();
+    private int nextId;
+
+    @Before
+    public void createFlow() {
+        main = new ManualMain();
+        camera = new ScriptedCamera();
+        flow = new CommandFlow(camera, main, LINGER_MS);
+        flow.getQueue().setResultListener((command, success, message, queuedMs, runMs) ->
+                results.add(command.type + (success ? " ok" : " failed") + (message != null ? ": " + message : "")));
+    }
+
+    private void submit(String type, Object payload) {
+        flow.submit(new CommandQueue.Command("c" + nextId++, type, null, CommandQueue.PRIORITY_NORMAL, payload));
+        main.drain();
+    }
+
+    private void startRecording() {
+        submit(CommandFlow.VIDEO, "first");
+        camera.ready();
+        assertTrue(flow.isRecording());
+        camera.calls.clear();
+        results.clear();
+    }
+
+    @Test
+    public void commandsWaitForTheCameraTheyOpen() {
+        submit(CommandFlow.VIDEO, "first");
+        assertEquals(1, camera.opens);
+        assertEquals(List.of("prepare opening"), camera.calls);
+        assertTrue(results.isEmpty());
+
+        camera.ready();
+        assertEquals(List.of("prepare opening", "start first"), camera.calls);
+        assertEquals(List.of("video ok"), results);
+        assertEquals(1, camera.opens);
+    }
+
+    @Test
+    public void stillWhileRecordingComesFromTheRecording() {
+        startRecording();
+        submit(CommandFlow.PHOTO, null);
+        assertEquals(List.of("snapshot"), camera.calls);
+        assertEquals(List.of("photo ok: snapshot"), results);
+        assertTrue(flow.isRecording());
+    }
+
+    @Test
+    public void stillThatNeedsItsOwnSessionResumesTheRecordingAfterwards() {
+        startRecording();
+        camera.snapshots = false;
+        submit(CommandFlow.PHOTO, null);
+        assertEquals(List.of("stop resuming", "capture in CAPTURING"), camera.calls);
+        assertTrue(results.isEmpty());
+
+        camera.captured();
+        assertEquals(List.of("stop resuming", "capture in CAPTURING", "prepare", "start part1"), camera.calls);
+        assertEquals(List.of("photo ok: saved", "video ok"), results);
+        assertTrue(flow.isRecording());
+    }
+
+    @Test
+    public void stopDropsQueuedVideoAndEndsTheRecording() {
+        submit(CommandFlow.PHOTO, null);
+        camera.ready();
+        submit(CommandFlow.VIDEO, "queued");
+        submit(CommandFlow.STOP, null);
+        assertEquals(List.of("video failed: cancelled by stop"), results);
+
+        camera.captured();
+        assertEquals(List.of("video failed: cancelled by stop", "photo ok: saved", "stop ok: not recording"), results);
+        assertFalse(camera.calls.contains("start queued"));
+    }
+
+    @Test
+    public void durationEndsTheRecording() {
+        startRecording();
+        main.advance(29999);
+        assertTrue(flow.isRecording());
+        main.advance(1);
+        assertEquals(List.of("stop"), camera.calls);
+        assertFalse(flow.isRecording());
+    }
+
+    @Test
+    public void cameraLingersAfterTheLastCommand() {
+        submit(CommandFlow.PHOTO, null);
+        camera.ready();
+        camera.captured();
+        main.advance(LINGER_MS - 1);
+        assertEquals(0, camera.idles);
+
+        // The next command in time keeps it open and finds it ready
+        submit(CommandFlow.PHOTO, null);
+        assertEquals("capture in CAPTURING", camera.calls.get(1));
+        camera.captured();
+        main.advance(LINGER_MS - 1);
+        assertEquals(0, camera.idles);
+        main.advance(1);
+        assertEquals(1, camera.idles);
+        assertEquals(1, camera.opens);
+    }
+
+    @Test
+    public void stopWithTheCameraClosedIsIdleAtOnce() {
+        submit(CommandFlow.STOP, null);
+        assertEquals(List.of("stop ok: not recording"), results);
+        assertEquals(0, camera.opens);
+        assertEquals(1, camera.idles);
+        assertNull(camera.getStateMachine());
+    }
+
+    @Test
+    public void cameraThatNeverBecomesReadyFailsTheCommand() {
+        submit(CommandFlow.PHOTO, null);
+        main.advance(10000);
+        assertEquals(List.of("photo failed: camera not ready"), results);
+        assertTrue(camera.calls.isEmpty());
+    }
+}
@@ -0,0 +1,78 @@
+package com.simple2fps.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FpsRangeResolverTest {
+    // A typical back camera: nothing below 7 fps; 4K tops out at 30, 1080p at 60
+    private static final int[][] RANGES = {{7, 30}, {15, 15}, {15, 30}, {30, 30}, {30, 60}};
+
+    private static FpsRangeResolver resolver(boolean decimationAvailable) {
+        FpsRangeResolver resolver = new FpsRangeResolver(RANGES, decimationAvailable);
+        resolver.addSize(3840, 2160, 33_333_333L);
+        resolver.addSize(1920, 1080, 16_666_666L);
+        return resolver;
+    }
+
+    @Test
+    public void prefersARangeToppingOutAtTheTarget() {
+        FpsRangeResolver.Plan plan = resolver(true).resolve(1920, 1080, 15);
+        assertTrue(plan.possible);
+        assertFalse(plan.needsDecimation);
+        assertEquals(15, plan.aeLower);
+        assertEquals(15, plan.aeUpper);
+        assertEquals(1_000_000_000L / 15, plan.frameDurationNs);
+    }
+
+    @Test
+    public void belowEverySensorRangeFallsBackToDecimation() {
+        FpsRangeResolver.Plan plan = resolver(true).resolve(1920, 1080, 2);
+        assertTrue(plan.possible);
+        assertTrue(plan.needsDecimation);
+        // The cheapest range that still reaches the target: lowest upper bound, then lowest lower
+        assertEquals(15, plan.aeLower);
+        assertEquals(15, plan.aeUpper);
+        assertEquals(1_000_000_000L / 15, plan.frameDurationNs);
+    }
+
+    @Test
+    public void decimatedRangeIsCappedAtTheSizesMaximum() {
+        FpsRangeResolver resolver = new FpsRangeResolver(new int[][]{{24, 60}}, true);
+        resolver.addSize(3840, 2160, 33_333_333L);
+        FpsRangeResolver.Plan plan = resolver.resolve(3840, 2160, 1);
+        assertTrue(plan.needsDecimation);
+        assertEquals(30, plan.aeUpper);
+        assertEquals(33_333_333L, plan.frameDurationNs);
+    }
+
+    @Test
+    public void withoutTheTimelapseEngineSlowRatesAreImpossible() {
+        FpsRangeResolver.Plan plan = resolver(false).resolve(1920, 1080, 2);
+        assertFalse(plan.possible);
+        assertFalse(plan.needsDecimation);
+        assertTrue(plan.reason, plan.reason.contains("time-lapse"));
+    }
+
+    @Test
+    public void fasterThanTheSizeAllowsIsImpossible() {
+        FpsRangeResolver.Plan plan = resolver(true).resolve(3840, 2160, 60);
+        assertFalse(plan.possible);
+        assertEquals(30, plan.maxFps);
+    }
+
+    @Test
+    public void precomputedPlansMatchComputedOnes() {
+        int[] fps = {1, 2, 15, 30, 60};
+        FpsRangeResolver precomputed = resolver(true);
+        precomputed.precompute(fps);
+        FpsRangeResolver computed = resolver(true);
+        for (int target : fps) {
+            assertEquals(computed.resolve(3840, 2160, target).toString(), precomputed.resolve(3840, 2160, target).toString());
+            assertEquals(computed.resolve(1920, 1080, target).toString(), precomputed.resolve(1920, 1080, target).toString());
+        }
+        assertEquals(1, precomputed.impossiblePlans().size());
+    }
+}
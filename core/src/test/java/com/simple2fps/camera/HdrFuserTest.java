@@ -0,0 +1,114 @@
+package com.simple2fps.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+
+public class HdrFuserTest {
+    private static final int WIDTH = 480;
+    private static final int HEIGHT = 320;
+    private static final int PAD = 12;
+    // -3, -1 and +1 EV around a scene the middle exposure can't hold
+    private static final double[] GAINS = {0.125, 0.5, 2.0};
+    private static final int[][] SHIFTS = {{3, -5}, {0, 0}, {-7, 4}};
+
+    private final ForkJoinPool pool = new ForkJoinPool(2);
+
+    // A dark room on the left and a window 100x brighter on the right, with sharp-edged objects
+    // of varied reflectance; each exposure is a shifted crop through a gamma curve, with noise
+    private HdrFuser bracket() {
+        int sceneWidth = WIDTH + 2 * PAD;
+        int sceneHeight = HEIGHT + 2 * PAD;
+        double[] radiance = new double[sceneWidth * sceneHeight];
+        Random random = new Random(1);
+        for (int y = 0; y < sceneHeight; y++) {
+            for (int x = 0; x < sceneWidth; x++) {
+                radiance[y * sceneWidth + x] = x < sceneWidth / 2 ? 0.02 : 2.0;
+            }
+        }
+        for (int i = 0; i < 150; i++) {
+            int x0 = random.nextInt(sceneWidth);
+            int y0 = random.nextInt(sceneHeight);
+            int x1 = Math.min(sceneWidth, x0 + 8 + random.nextInt(60));
+            int y1 = Math.min(sceneHeight, y0 + 8 + random.nextInt(60));
+            double reflectance = Math.exp(random.nextGaussian() * 0.8);
+            for (int y = y0; y < y1; y++) {
+                for (int x = x0; x < x1; x++) radiance[y * sceneWidth + x] *= reflectance;
+            }
+        }
+
+        HdrFuser fuser = new HdrFuser(WIDTH, HEIGHT, GAINS.length, pool);
+        for (int f = 0; f < GAINS.length; f++) {
+            byte[] frame = fuser.frame(f);
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    double light = radiance[(y + PAD + SHIFTS[f][1]) * sceneWidth + x + PAD + SHIFTS[f][0]] * GAINS[f];
+                    double v = 255 * Math.pow(Math.min(1, light), 1 / 2.2) + random.nextGaussian() * 2;
+                    frame[y * WIDTH + x] = (byte) Math.max(0, Math.min(255, (int) Math.round(v)));
+                }
+            }
+            Arrays.fill(frame, WIDTH * HEIGHT, frame.length, (byte) 128);
+        }
+        return fuser;
+    }
+
+    // Mean luma over one half of the frame
+    private static double mean(byte[] image, boolean right) {
+        double sum = 0;
+        int n = 0;
+        int x0 = right ? WIDTH / 2 + PAD : PAD;
+        for (int y = PAD; y < HEIGHT - PAD; y++) {
+            for (int x = x0; x < x0 + WIDTH / 2 - 2 * PAD; x++) {
+                sum += image[y * WIDTH + x] & 0xFF;
+                n++;
+            }
+        }
+        return sum / n;
+    }
+
+    private static double clipped(byte[] image, boolean right) {
+        int count = 0;
+        int n = 0;
+        int x0 = right ? WIDTH / 2 + PAD : PAD;
+        for (int y = PAD; y < HEIGHT - PAD; y++) {
+            for (int x = x0; x < x0 + WIDTH / 2 - 2 * PAD; x++) {
+                int v = image[y * WIDTH + x] & 0xFF;
+                if (v >= 254 || v <= 1) count++;
+                n++;
+            }
+        }
+        return (double) count / n;
+    }
+
+    @Test
+    public void alignsEveryExposureToTheReference() {
+        HdrFuser fuser = bracket();
+        fuser.fuse(GAINS.length);
+        int reference = fuser.reference();
+        assertTrue(reference >= 0 && reference < GAINS.length);
+        for (int f = 0; f < GAINS.length; f++) {
+            assertEquals("x offset of frame " + f, SHIFTS[reference][0] - SHIFTS[f][0], fuser.offsetX(f));
+            assertEquals("y offset of frame " + f, SHIFTS[reference][1] - SHIFTS[f][1], fuser.offsetY(f));
+        }
+    }
+
+    @Test
+    public void keepsShadowsFromTheLongExposureAndHighlightsFromTheShortOne() {
+        HdrFuser fuser = bracket();
+        byte[] shortExposure = fuser.frame(0).clone();
+        byte[] longExposure = fuser.frame(2).clone();
+        byte[] out = fuser.fuse(GAINS.length);
+        assertEquals(WIDTH * HEIGHT * 3 / 2, out.length);
+
+        double shadows = mean(out, false);
+        assertTrue("shadows " + shadows + " vs " + mean(shortExposure, false), shadows > 2 * mean(shortExposure, false));
+        double highlightClipping = clipped(out, true);
+        assertTrue("highlights clipped " + highlightClipping + " vs " + clipped(longExposure, true),
+                highlightClipping < clipped(longExposure, true) / 2);
+        for (int i = WIDTH * HEIGHT; i < out.length; i++) assertEquals(128, out[i] & 0xFF);
+    }
+}
@@ -0,0 +1,124 @@
+package com.simple2fps.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class MotionDetectorTest {
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    // 8x6 grid of 20x20 cells; the test object covers 2x2 cells, 4 of 48 = 8% of the frame
+    private static final int COLS = 8;
+    private static final int ROWS = 6;
+    private static final int CELL = 20;
+    private static final long FRAME_NS = 100_000_000L;
+    private static final long HANGOVER_MS = 500;
+
+    private final List<String> events = new ArrayList<>();
+    private final MotionDetector detector = new MotionDetector(
+            new MotionDetector.Config(COLS, ROWS, 20, 0.05f, 2, HANGOVER_MS),
+            new MotionDetector.Listener() {
+                @Override
+                public void onMotionStart(long timestampNs, float area) {
+                    events.add("start@" + timestampNs / FRAME_NS);
+                }
+
+                @Override
+                public void onMotionStop(long timestampNs) {
+                    events.add("stop@" + timestampNs / FRAME_NS);
+                }
+            });
+    private long frame;
+
+    // Flat grey scene at the given luma, with a bright 2x2-cell object at (col, row) unless col < 0
+    private boolean feed(int luma, int col, int row) {
+        ByteBuffer buffer = ByteBuffer.allocate(WIDTH * HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                boolean object = col >= 0 && x >= col * CELL && x < (col + 2) * CELL && y >= row * CELL && y < (row + 2) * CELL;
+                buffer.put(y * WIDTH + x, (byte) (object ? 230 : luma));
+            }
+        }
+        return detector.process(buffer, WIDTH, HEIGHT, WIDTH, 1, frame++ * FRAME_NS);
+    }
+
+    private boolean feedStatic(int luma) {
+        return feed(luma, -1, 0);
+    }
+
+    // An object crossing the frame, in a new place every frame
+    private boolean feedMoving(int step) {
+        return feed(100, (step % 4) * 2, (step / 4 % 3) * 2);
+    }
+
+    @Test
+    public void staticSceneNeverTriggers() {
+        for (int i = 0; i < 50; i++) assertFalse(feedStatic(100));
+        assertTrue(events.isEmpty());
+        assertEquals(50, detector.getFramesProcessed());
+    }
+
+    @Test
+    public void needsTriggerFramesInARow() {
+        feedStatic(100);
+        // One frame of motion is treated as noise
+        assertFalse(feedMoving(0));
+        assertFalse(feedStatic(100));
+        assertFalse(feedStatic(100));
+        assertTrue(events.isEmpty());
+
+        assertFalse(feedMoving(1));
+        assertTrue(feedMoving(2));
+        // Where the object is now, and possibly where it just was
+        assertTrue(detector.getLastArea() >= 4f / (COLS * ROWS));
+        assertEquals(List.of("start@5"), events);
+    }
+
+    @Test
+    public void staysActiveForTheHangover() {
+        feedStatic(100);
+        for (int step = 0; step < 4; step++) feedMoving(step);
+        assertTrue(detector.isActive());
+        long lastMotion = frame - 1;
+        // 500 ms at 100 ms a frame: still on for the next four frames, off on the fifth
+        for (int i = 1; i < HANGOVER_MS * 1_000_000L / FRAME_NS; i++) assertTrue(feedStatic(100));
+        assertFalse(feedStatic(100));
+        assertEquals(List.of("start@2", "stop@" + (lastMotion + 5)), events);
+    }
+
+    @Test
+    public void motionDuringTheHangoverExtendsIt() {
+        feedStatic(100);
+        for (int step = 0; step < 3; step++) feedMoving(step);
+        for (int i = 0; i < 3; i++) feedStatic(100);
+        feedMoving(3);
+        for (int i = 0; i < 4; i++) assertTrue(feedStatic(100));
+        assertFalse(feedStatic(100));
+        assertEquals(2, events.size());
+    }
+
+    @Test
+    public void globalBrightnessShiftIsNotMotion() {
+        for (int i = 0; i < 5; i++) feedStatic(100);
+        // Auto exposure or a cloud: every cell changes alike, well beyond the cell threshold
+        for (int i = 0; i < 10; i++) assertFalse(feedStatic(160));
+        for (int i = 0; i < 10; i++) assertFalse(feedStatic(60));
+        assertTrue(events.isEmpty());
+        assertEquals(0f, detector.getLastArea(), 0);
+    }
+
+    @Test
+    public void resetEndsMotionAtOnce() {
+        feedStatic(100);
+        for (int step = 0; step < 3; step++) feedMoving(step);
+        assertTrue(detector.isActive());
+        detector.reset(frame * FRAME_NS);
+        assertFalse(detector.isActive());
+        assertEquals(List.of("start@2", "stop@" + frame), events);
+    }
+}
@@ -0,0 +1,99 @@
+package com.simple2fps.camera;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+
+public class NightStackerTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int FRAMES = 8;
+    private static final int PAD = 16;
+    private static final double NOISE_SIGMA = 12;
+
+    private final ForkJoinPool pool = new ForkJoinPool(2);
+    private final Random random = new Random(1);
+    // Textured scene, larger than a frame so each exposure can be a shifted crop of it
+    private final int sceneWidth = WIDTH + 2 * PAD;
+    private final byte[] scene = new byte[sceneWidth * (HEIGHT + 2 * PAD)];
+    private final int[][] shifts = new int[FRAMES][2];
+
+    public NightStackerTest() {
+        for (int y = 0; y < HEIGHT + 2 * PAD; y++) {
+            for (int x = 0; x < sceneWidth; x++) {
+                double v = 128 + 60 * Math.sin(x / 9.0) * Math.cos(y / 13.0) + ((x / 40 + y / 40) % 2) * 30 - 15;
+                scene[y * sceneWidth + x] = (byte) v;
+            }
+        }
+    }
+
+    // Handheld burst: each frame the scene shifted by up to 10 px, plus sensor noise; grey chroma
+    private NightStacker burst() {
+        NightStacker stacker = new NightStacker(WIDTH, HEIGHT, FRAMES, pool);
+        for (int f = 0; f < FRAMES; f++) {
+            shifts[f][0] = random.nextInt(21) - 10;
+            shifts[f][1] = random.nextInt(21) - 10;
+            byte[] frame = stacker.frame(f);
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    int v = truth(f, x, y) + (int) Math.round(random.nextGaussian() * NOISE_SIGMA);
+                    frame[y * WIDTH + x] = (byte) Math.max(0, Math.min(255, v));
+                }
+            }
+            Arrays.fill(frame, WIDTH * HEIGHT, frame.length, (byte) 128);
+        }
+        return stacker;
+    }
+
+    private int truth(int frame, int x, int y) {
+        return scene[(y + PAD + shifts[frame][1]) * sceneWidth + x + PAD + shifts[frame][0]] & 0xFF;
+    }
+
+    // Mean absolute luma error against the noise-free scene as the reference frame saw it,
+    // away from the borders a shift exposes
+    private double error(byte[] image, int reference) {
+        double sum = 0;
+        int n = 0;
+        for (int y = PAD; y < HEIGHT - PAD; y++) {
+            for (int x = PAD; x < WIDTH - PAD; x++) {
+                sum += Math.abs((image[y * WIDTH + x] & 0xFF) - truth(reference, x, y));
+                n++;
+            }
+        }
+        return sum / n;
+    }
+
+    @Test
+    public void stackingAlignsAndAveragesOutNoise() {
+        NightStacker stacker = burst();
+        byte[] out = stacker.stack(FRAMES);
+        int reference = stacker.reference();
+        double single = error(stacker.frame(reference), reference);
+        double stacked = error(out, reference);
+        // Eight frames: noise down by about sqrt(8); misalignment would blur the texture instead
+        assertTrue("single frame " + single + ", stacked " + stacked, stacked < single * 0.5);
+        assertEquals(WIDTH * HEIGHT * 3 / 2, out.length);
+        for (int i = WIDTH * HEIGHT; i < out.length; i++) assertEquals(128, out[i] & 0xFF);
+    }
+
+    @Test
+    public void singleFrameIsPassedThrough() {
+        NightStacker stacker = burst();
+        byte[] out = stacker.stack(1);
+        assertEquals(0, stacker.reference());
+        assertArrayEquals(stacker.frame(0), out);
+    }
+
+    @Test
+    public void outputBufferIsReused() {
+        NightStacker stacker = burst();
+        byte[] first = stacker.stack(FRAMES);
+        assertSame(first, stacker.stack(FRAMES / 2));
+    }
+}
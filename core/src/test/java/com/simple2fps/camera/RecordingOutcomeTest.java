@@ -0,0 +1,100 @@
+package com.simple2fps.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RecordingOutcomeTest {
+    private final List<String> reports = new ArrayList<>();
+    private RecordingOutcome outcome;
+
+    @Before
+    public void createOutcome() {
+        outcome = new RecordingOutcome(Arrays.asList("0", "1", "2"), (success, message, changed) ->
+                reports.add((changed ? "changed " : "") + (success ? "ok" : "failed") + (message != null ? ": " + message : "")));
+    }
+
+    private void record(String cameraId) {
+        outcome.onStateChanged(cameraId, CameraStateMachine.State.IDLE, CameraStateMachine.State.DEVICE_OPENED);
+        outcome.starting(cameraId);
+        outcome.onStateChanged(cameraId, CameraStateMachine.State.DEVICE_OPENED, CameraStateMachine.State.RECORDING);
+    }
+
+    @Test
+    public void reportsOnceEveryCameraRecords() {
+        record("0");
+        record("2");
+        assertTrue(reports.isEmpty());
+        record("1");
+        assertEquals(Arrays.asList("ok: 3 cameras"), reports);
+        assertEquals(3, outcome.recordingCount());
+    }
+
+    @Test
+    public void countsOnlyTheCamerasRecording() {
+        outcome.onStateChanged("2", CameraStateMachine.State.OPENING, CameraStateMachine.State.CLOSED);
+        record("0");
+        outcome.starting("1");
+        outcome.onStateChanged("1", CameraStateMachine.State.DEVICE_OPENED, CameraStateMachine.State.IDLE);
+        assertEquals(Arrays.asList("ok: 1 of 3 cameras recording; camera 2 failed to open, camera 1 failed to start recording"),
+                reports);
+        assertEquals(1, outcome.recordingCount());
+    }
+
+    @Test
+    public void previewComingUpBeforeTheStartIsNoFailure() {
+        outcome.onStateChanged("1", CameraStateMachine.State.DEVICE_OPENED, CameraStateMachine.State.IDLE);
+        record("0");
+        record("1");
+        record("2");
+        assertEquals(Arrays.asList("ok: 3 cameras"), reports);
+    }
+
+    @Test
+    public void primaryThatDoesNotRecordFailsAtOnce() {
+        record("1");
+        outcome.failed("0", "refused to record");
+        assertEquals(Arrays.asList("failed: camera 0 refused to record"), reports);
+    }
+
+    @Test
+    public void cameraLostWhileRecordingIsAChange() {
+        record("0");
+        record("1");
+        record("2");
+        outcome.onStateChanged("1", CameraStateMachine.State.RECORDING, CameraStateMachine.State.CLOSED);
+        assertEquals(Arrays.asList("ok: 3 cameras", "changed ok: 2 of 3 cameras recording; camera 1 closed"), reports);
+    }
+
+    @Test
+    public void settleGivesUpOnTheCamerasStillStarting() {
+        record("0");
+        record("1");
+        outcome.settle("not recording after 10 s");
+        assertEquals(Arrays.asList("ok: 2 of 3 cameras recording; camera 2 not recording after 10 s"), reports);
+    }
+
+    @Test
+    public void closedOutcomeReportsNothing() {
+        record("0");
+        record("1");
+        outcome.close();
+        record("2");
+        outcome.onStateChanged("0", CameraStateMachine.State.RECORDING, CameraStateMachine.State.CLOSED);
+        assertTrue(reports.isEmpty());
+    }
+
+    @Test
+    public void singleCameraRecordingHasNoMessage() {
+        RecordingOutcome single = new RecordingOutcome(Arrays.asList("0"), (success, message, changed) ->
+                reports.add(success + " " + message));
+        single.starting("0");
+        single.onStateChanged("0", CameraStateMachine.State.DEVICE_OPENED, CameraStateMachine.State.RECORDING);
+        assertEquals(Arrays.asList("true null"), reports);
+    }
+}
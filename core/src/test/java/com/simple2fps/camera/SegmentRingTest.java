@@ -0,0 +1,113 @@
+package com.simple2fps.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentRingTest {
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("segments").toFile();
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        directory.delete();
+    }
+
+    // Deletes run inline so the test sees them at once
+    private SegmentRing ring(int keepSegments, long quotaBytes) {
+        return new SegmentRing(directory, "loop", ".mp4", new SegmentRing.Policy(60000, 0, keepSegments, quotaBytes), Runnable::run);
+    }
+
+    // Starts the next segment, finishing the previous one at finishedBytes
+    private static File roll(SegmentRing ring, File previous, int finishedBytes) throws IOException {
+        if (previous != null) write(previous, finishedBytes);
+        File next = ring.nextFile();
+        write(next, 0);
+        ring.onSegmentStarted(next);
+        return next;
+    }
+
+    private static void write(File file, int bytes) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[bytes]);
+        }
+    }
+
+    @Test
+    public void countLimitDeletesTheOldestFinishedSegments() throws IOException {
+        SegmentRing ring = ring(3, 0);
+        List<File> started = new ArrayList<>();
+        File active = null;
+        for (int i = 0; i < 6; i++) {
+            active = roll(ring, active, 100);
+            started.add(active);
+        }
+        assertEquals(started.subList(3, 6), ring.getSegments());
+        for (int i = 0; i < 3; i++) assertFalse(started.get(i).exists());
+        for (int i = 3; i < 6; i++) assertTrue(started.get(i).exists());
+    }
+
+    @Test
+    public void quotaCountsTheActiveSegmentsExpectedSize() throws IOException {
+        SegmentRing ring = ring(0, 350);
+        ring.setSegmentBytesHint(100);
+        File first = roll(ring, null, 0);
+        File active = roll(ring, first, 100);
+        active = roll(ring, active, 100);
+        assertEquals(3, ring.getSegments().size());
+        // 3 finished x 100 + the active one's 100 > 350
+        active = roll(ring, active, 100);
+        assertEquals(3, ring.getSegments().size());
+        assertFalse(first.exists());
+        assertEquals(active, ring.getSegments().get(2));
+    }
+
+    @Test
+    public void neverEvictsTheActiveSegment() throws IOException {
+        SegmentRing ring = ring(1, 10);
+        ring.setSegmentBytesHint(1000);
+        File active = null;
+        for (int i = 0; i < 4; i++) {
+            active = roll(ring, active, 500);
+            List<File> segments = ring.getSegments();
+            assertEquals(1, segments.size());
+            assertEquals(active, segments.get(0));
+            assertTrue(active.exists());
+        }
+    }
+
+    @Test
+    public void scanExistingAdoptsEarlierSegmentsAndContinuesTheNumbering() throws IOException {
+        write(new File(directory, "loop_000007.mp4"), 100);
+        write(new File(directory, "loop_000003.mp4"), 100);
+        write(new File(directory, "other_000009.mp4"), 100);
+        write(new File(directory, "loop_x.mp4"), 100);
+        SegmentRing ring = ring(3, 0);
+        ring.scanExisting();
+        assertEquals(2, ring.getSegments().size());
+        assertEquals("loop_000003.mp4", ring.getSegments().get(0).getName());
+        File next = roll(ring, null, 0);
+        assertEquals("loop_000008.mp4", next.getName());
+        roll(ring, next, 100);
+        assertFalse(new File(directory, "loop_000003.mp4").exists());
+        assertTrue(new File(directory, "other_000009.mp4").exists());
+    }
+}